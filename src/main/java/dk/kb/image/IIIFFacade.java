@@ -14,8 +14,9 @@
  */
 package dk.kb.image;
 
-import com.damnhandy.uri.template.UriTemplate;
+import dk.kb.image.config.ConfigBound;
 import dk.kb.image.config.ServiceConfig;
+import dk.kb.image.util.CompiledUriTemplate;
 import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.util.webservice.exception.ServiceException;
 import org.slf4j.Logger;
@@ -24,6 +25,7 @@ import org.slf4j.LoggerFactory;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.StreamingOutput;
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Proxy for an image server that supports the <a href="https://iiif.io/api/image/3.0/">IIIF Image API</a>.
@@ -32,7 +34,7 @@ import java.net.URI;
 public class IIIFFacade {
     private static final Logger log = LoggerFactory.getLogger(IIIFFacade.class);
 
-    private static IIIFFacade instance;
+    private static volatile IIIFFacade instance;
 
     public static final String KEY_IIIF_SERVER = "imageservers.iiif.server";
 
@@ -49,11 +51,25 @@ public class IIIFFacade {
             "/{identifier}" +
                     "/info.{ext}";
 
-    public static synchronized IIIFFacade getInstance() {
-        if (instance == null) {
-            instance = new IIIFFacade();
+    // The templates are prefixed with the server from the configuration and only compiled when it changes
+    private final ConfigBound<CompiledUriTemplate> imageTemplate = new ConfigBound<>(
+            config -> CompiledUriTemplate.compile(ServiceConfig.getServer(KEY_IIIF_SERVER) + IIIF_IMAGE3_TEMPLATE));
+    private final ConfigBound<CompiledUriTemplate> infoTemplate = new ConfigBound<>(
+            config -> CompiledUriTemplate.compile(ServiceConfig.getServer(KEY_IIIF_SERVER) + IIIF_INFO3_TEMPLATE));
+
+    public static IIIFFacade getInstance() {
+        IIIFFacade current = instance;
+        if (current == null) {
+            // Only locks on first call, so that request threads (including virtual threads) are not serialized
+            synchronized (IIIFFacade.class) {
+                current = instance;
+                if (current == null) {
+                    current = new IIIFFacade();
+                    instance = current;
+                }
+            }
         }
-        return instance;
+        return current;
     }
 
     private IIIFFacade() {
@@ -88,13 +104,35 @@ public class IIIFFacade {
      */
     public StreamingOutput getIIIFImage(URI requestURI, String identifier, String region, String size,
                                         String rotation, String quality, String format, HttpHeaders httpHeaders) {
+        String uri = getIIIFImageURI(requestURI, identifier, region, size, rotation, quality, format);
+        // Not using URIBuilder as the template already encodes the parameters
+        return ProxyHelper.proxy(identifier, uri, requestURI,httpHeaders);
+    }
+
+    /**
+     * Asynchronous version of {@link #getIIIFImage}.
+     * @return the future image.
+     */
+    public CompletableFuture<StreamingOutput> getIIIFImageAsync(
+            URI requestURI, String identifier, String region, String size,
+            String rotation, String quality, String format, HttpHeaders httpHeaders) {
+        String uri = getIIIFImageURI(requestURI, identifier, region, size, rotation, quality, format);
+        return ProxyHelper.proxyAsync(
+                identifier, ProxyHelper.toURI(identifier, uri, requestURI), requestURI, null, httpHeaders);
+    }
+
+    /**
+     * Validate the image request and resolve the URI for the IIIF server.
+     */
+    private String getIIIFImageURI(URI requestURI, String identifier, String region, String size,
+                                   String rotation, String quality, String format) {
         validateIIIFImageRequest(requestURI, identifier, region, size, rotation, quality, format);
         if (format == null) {
             format = "jpg";
         }
 
         // TODO: Add versioning to config so that default/standard for quality can be handled according to image server
-        String uri = UriTemplate.fromTemplate(ServiceConfig.getServer(KEY_IIIF_SERVER) + IIIF_IMAGE3_TEMPLATE)
+        return imageTemplate.get().builder()
                 .set("identifier", identifier)
                 .set("region", region)
                 .set("size", size)
@@ -102,8 +140,6 @@ public class IIIFFacade {
                 .set("quality", quality)
                 .set("format", format)
                 .expand();
-        // Not using URIBuilder as the UriTemplate already encodes the parameters
-        return ProxyHelper.proxy(identifier, uri, requestURI,httpHeaders);
     }
 
     /**
@@ -122,12 +158,27 @@ public class IIIFFacade {
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     public StreamingOutput getIIIFInfo(URI requestURI, String identifier, String extension, HttpHeaders httpHeaders) {
+        String uri = getIIIFInfoURI(identifier, extension);
+        return ProxyHelper.proxy(identifier, uri, requestURI,httpHeaders);
+    }
+
+    /**
+     * Asynchronous version of {@link #getIIIFInfo(URI, String, String, HttpHeaders)}.
+     * @return the future image information.
+     */
+    public CompletableFuture<StreamingOutput> getIIIFInfoAsync(
+            URI requestURI, String identifier, String extension, HttpHeaders httpHeaders) {
+        String uri = getIIIFInfoURI(identifier, extension);
+        return ProxyHelper.proxyAsync(
+                identifier, ProxyHelper.toURI(identifier, uri, requestURI), requestURI, null, httpHeaders);
+    }
+
+    private String getIIIFInfoURI(String identifier, String extension) {
         // TODO: Verify extension
-        String uri = UriTemplate.fromTemplate(ServiceConfig.getServer(KEY_IIIF_SERVER) + IIIF_INFO3_TEMPLATE)
+        return infoTemplate.get().builder()
                 .set("identifier", identifier)
                 .set("ext", extension)
                 .expand();
-        return ProxyHelper.proxy(identifier, uri, requestURI,httpHeaders);
     }
 
     /**
@@ -14,8 +14,11 @@
  */
 package dk.kb.image;
 
-import com.damnhandy.uri.template.UriTemplate;
+import dk.kb.image.cache.TileCache;
+import dk.kb.image.config.ConfigBound;
 import dk.kb.image.config.ServiceConfig;
+import dk.kb.image.util.CompiledUriTemplate;
+import dk.kb.util.yaml.YAML;
 import dk.kb.util.webservice.exception.InternalServiceException;
 import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.util.webservice.exception.ServiceException;
@@ -25,9 +28,11 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.InternalServerErrorException;
 import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.StreamingOutput;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Proxy for an image server that supports the
@@ -37,7 +42,14 @@ import java.util.List;
 public class IIPFacade {
     private static final Logger log = LoggerFactory.getLogger(IIPFacade.class);
 
-    private static IIPFacade instance;
+    private static volatile IIPFacade instance;
+
+    private final ConfigBound<TileCache> tileCache = new ConfigBound<>(TileCache::create, TileCache::close);
+
+    // The templates are prefixed with the servers from the configuration and only compiled when it changes
+    private final ConfigBound<CompiledUriTemplate> iipTemplate = new ConfigBound<>(
+            config -> CompiledUriTemplate.compile(ServiceConfig.getServer(KEY_IIP_SERVER) + IIP_TEMPLATE));
+    private final ConfigBound<DeepzoomTemplates> deepzoomTemplates = new ConfigBound<>(DeepzoomTemplates::create);
 
     public static final String KEY_IIP_SERVER = "imageservers.iip.server";
 
@@ -109,11 +121,19 @@ public class IIPFacade {
                     "{+INV}" + // Invert image (no argument). Note missing &, which must be added if INV is set
                     "{&COL}";  // Color transformation to output space, c.
 
-    public static synchronized IIPFacade getInstance() {
-        if (instance == null) {
-            instance = new IIPFacade();
+    public static IIPFacade getInstance() {
+        IIPFacade current = instance;
+        if (current == null) {
+            // Only locks on first call, so that request threads (including virtual threads) are not serialized
+            synchronized (IIPFacade.class) {
+                current = instance;
+                if (current == null) {
+                    current = new IIPFacade();
+                    instance = current;
+                }
+            }
         }
-        return instance;
+        return current;
     }
 
     private IIPFacade() {
@@ -176,28 +196,26 @@ public class IIPFacade {
 
         // http://example.com/iipsrv.fcgi?FIF=/mymount/85/c1/85c1df89-bffe-48e0-8813-111f6f0fba50.jp2&CVT=jpeg
         try {
-            UriTemplate template = UriTemplate.fromTemplate(ServiceConfig.getServer(KEY_IIP_SERVER) + IIP_TEMPLATE)
+            CompiledUriTemplate.Builder template = iipTemplate.get().builder()
                     .set("FIF", FIF); // Mandatory. Note that slashes will be encoded
 
-            ProxyHelper.addIfPresent(template, "WID", WID);
-            ProxyHelper.addIfPresent(template, "HEI", HEI);
-            ProxyHelper.addIfPresent(template, "RGN", RGN);
-            ProxyHelper.addIfPresent(template, "QLT", QLT);
-            ProxyHelper.addIfPresent(template, "CNT", CNT);
-
-            ProxyHelper.addIfPresent(template, "ROT", ROT);
-            ProxyHelper.addIfPresent(template, "GAM", GAM);
-            ProxyHelper.addIfPresent(template, "CMP", CMP);
-            ProxyHelper.addIfPresent(template, "PFL", PFL);
-            ProxyHelper.addIfPresent(template, "CTW", CTW);
+            template.setIfPresent("WID", WID)
+                    .setIfPresent("HEI", HEI)
+                    .setIfPresent("RGN", RGN)
+                    .setIfPresent("QLT", QLT)
+                    .setIfPresent("CNT", CNT)
+                    .setIfPresent("ROT", ROT)
+                    .setIfPresent("GAM", GAM)
+                    .setIfPresent("CMP", CMP)
+                    .setIfPresent("PFL", PFL)
+                    .setIfPresent("CTW", CTW);
             if (Boolean.TRUE.equals(INV)) {
                 template.set("INV", "&INV"); // Special case as INV is without value
             }
-            ProxyHelper.addIfPresent(template, "COL", COL);
-
-            ProxyHelper.addIfPresent(template, "JTL", JTL);
-            ProxyHelper.addIfPresent(template, "PTL", PTL);
-            ProxyHelper.addIfPresent(template, "CVT", CVT);
+            template.setIfPresent("COL", COL)
+                    .setIfPresent("JTL", JTL)
+                    .setIfPresent("PTL", PTL)
+                    .setIfPresent("CVT", CVT);
 
             final URI uri = new URI(template.expand());
 
@@ -212,27 +230,30 @@ public class IIPFacade {
     public javax.ws.rs.core.StreamingOutput getDeepzoomDZI(
             URI requestURI, String imageid,
             HttpServletResponse httpServletResponse, HttpHeaders httpHeaders) throws ServiceException {
-        validateDeepzoomDZIRequest(imageid);
-        final String idDZI = imageid + (imageid.endsWith(".dzi") ? "" : ".dzi");
-
-        UriTemplate template;
-        if (ServiceConfig.getConfig().containsKey(KEY_DEEPZOOM_SERVER_PATH)){
-            // Path based DeepZoom server: http://example.com:1234/image_identifier.dzi
-            template = UriTemplate
-                    .fromTemplate(ServiceConfig.getServer(KEY_DEEPZOOM_SERVER_PATH) + DEEPZOOM_PATH_DZI_TEMPLATE);
-
-        } else if (ServiceConfig.getConfig().containsKey(KEY_DEEPZOOM_SERVER_PARAM)){
-            // Param based DeepZoom server: http://example.com:1234/iipsrv/iipsrv.fcgi?DeepZoom=Path_to_your_image.jpg.dzi
-            template = UriTemplate
-                    .fromTemplate(ServiceConfig.getServer(KEY_DEEPZOOM_SERVER_PARAM) + DEEPZOOM_PARAM_DZI_TEMPLATE);
+        final URI uri = getDeepzoomDZIURI(requestURI, imageid);
+        return ProxyHelper.proxy(imageid, uri, requestURI, httpServletResponse, httpHeaders);
+    }
 
-        } else {
-            log.error("No DeepZoom server defined");
-            throw new InternalServiceException("No DeepZoom server defined");
-        }
+    /**
+     * Asynchronous version of {@link #getDeepzoomDZI(URI, String, HttpServletResponse, HttpHeaders)}.
+     * @return the future DZI.
+     */
+    public CompletableFuture<StreamingOutput> getDeepzoomDZIAsync(
+            URI requestURI, String imageid,
+            HttpServletResponse httpServletResponse, HttpHeaders httpHeaders) throws ServiceException {
+        final URI uri = getDeepzoomDZIURI(requestURI, imageid);
+        return ProxyHelper.proxyAsync(imageid, uri, requestURI, httpServletResponse, httpHeaders);
+    }
 
-        template.set("dzipath", idDZI);
+    /**
+     * Validate the DZI request and resolve the URI for the DeepZoom server.
+     */
+    private URI getDeepzoomDZIURI(URI requestURI, String imageid) {
+        validateDeepzoomDZIRequest(imageid);
+        final String idDZI = imageid + (imageid.endsWith(".dzi") ? "" : ".dzi");
 
+        CompiledUriTemplate.Builder template = getDeepzoomTemplates().dzi.builder()
+                .set("dzipath", idDZI);
 
         final URI uri;
         try {
@@ -243,14 +264,38 @@ public class IIPFacade {
             throw new InternalServerErrorException(
                     "Error finalizing DeepZoom-dzi proxy URI for request '" + requestURI + "'");
         }
-
-        return ProxyHelper.proxy(imageid, uri, requestURI, httpServletResponse, httpHeaders);
+        return uri;
     }
 
     public javax.ws.rs.core.StreamingOutput getDeepzoomTile(
             URI requestURI,
             String imageid, Integer layer, String tiles, String format, Float CNT,
             Float GAM, String CMP, String CTW, Boolean INV, String COL, HttpHeaders httpHeaders) throws ServiceException {
+        final URI uri = getDeepzoomTileURI(requestURI, imageid, layer, tiles, format, CNT, GAM, CMP, CTW, INV, COL);
+        // Tiles are immutable, so they are cached under the resolved URI
+        return tileCache.get().serve(
+                uri.toString(), () -> ProxyHelper.proxy(imageid, uri, requestURI, httpHeaders));
+    }
+
+    /**
+     * Asynchronous version of {@link #getDeepzoomTile}.
+     * @return the future tile.
+     */
+    public CompletableFuture<StreamingOutput> getDeepzoomTileAsync(
+            URI requestURI,
+            String imageid, Integer layer, String tiles, String format, Float CNT,
+            Float GAM, String CMP, String CTW, Boolean INV, String COL, HttpHeaders httpHeaders) throws ServiceException {
+        final URI uri = getDeepzoomTileURI(requestURI, imageid, layer, tiles, format, CNT, GAM, CMP, CTW, INV, COL);
+        return tileCache.get().serveAsync(
+                uri.toString(), () -> ProxyHelper.proxyAsync(imageid, uri, requestURI, null, httpHeaders));
+    }
+
+    /**
+     * Validate the tile request and resolve the URI for the DeepZoom server.
+     */
+    private URI getDeepzoomTileURI(
+            URI requestURI, String imageid, Integer layer, String tiles, String format,
+            Float CNT, Float GAM, String CMP, String CTW, Boolean INV, String COL) {
         IIPParamValidation.validateDeepzoomTileRequest(imageid, layer, tiles, format, CNT, GAM, CMP, CTW, INV, COL);
 
         // Defaults
@@ -258,46 +303,29 @@ public class IIPFacade {
             format = "jpeg";
         }
 
-        boolean isPath = true;
-        UriTemplate template;
-        if (ServiceConfig.getConfig().containsKey(KEY_DEEPZOOM_SERVER_PATH)) {
-            // Path based DeepZoom server
-            // https://example.com/example-images/fooimage/fooimage_files/11/2_0.jpg
-            template = UriTemplate
-                    .fromTemplate(ServiceConfig.getServer(KEY_DEEPZOOM_SERVER_PATH) + DEEPZOOM_PATH_TEMPLATE);
-
-        } else if (ServiceConfig.getConfig().containsKey(KEY_DEEPZOOM_SERVER_PARAM)) {
-            // Param based DeepZoom server
-            // https://example.com/fcgi-bin/iipsrv.fcgi?Deepzoom=hs-2007-16-a-full_tif.tif_files/12/2_4.jpg
-            template = UriTemplate
-                    .fromTemplate(ServiceConfig.getServer(KEY_DEEPZOOM_SERVER_PARAM) + DEEPZOOM_PARAM_TEMPLATE);
-            isPath = false;
-
-        } else {
-            log.error("No Deepzoom server defined");
-            throw new InternalServiceException("No Deepzoom server defined");
-        }
+        DeepzoomTemplates templates = getDeepzoomTemplates();
 
         // Mandatory arguments
-        template.set("imageid", imageid)
-                .set("layer", Integer.toString(layer))
+        CompiledUriTemplate.Builder template = templates.tile.builder()
+                .set("imageid", imageid)
+                .set("layer", layer)
                 .set("tile", tiles)
                 .set("format", format);
 
         // Optional arguments
-        ProxyHelper.addIfPresent(template, "CNT", CNT);
-        ProxyHelper.addIfPresent(template, "GAM", GAM);
-        ProxyHelper.addIfPresent(template, "CMP", CMP);
-        ProxyHelper.addIfPresent(template, "CTW", CTW);
+        template.setIfPresent("CNT", CNT)
+                .setIfPresent("GAM", GAM)
+                .setIfPresent("CMP", CMP)
+                .setIfPresent("CTW", CTW);
         if (Boolean.TRUE.equals(INV)) {
             // INV should start with '?' if this is the first parameter for an othwerwise path based request
-            if (isPath && CNT==null && GAM==null && CMP==null && CTW==null) {
+            if (templates.isPath && CNT==null && GAM==null && CMP==null && CTW==null) {
                 template.set("INV", "?INV"); // Special case as INV is without value
             } else {
                 template.set("INV", "&INV"); // Special case as INV is without value
             }
         }
-        ProxyHelper.addIfPresent(template, "COL", COL);
+        template.setIfPresent("COL", COL);
 
         final URI uri;
         try {
@@ -308,8 +336,27 @@ public class IIPFacade {
             throw new InternalServerErrorException(
                     "Error finalizing DeepZoom-tile proxy URI for request '" + requestURI + "'");
         }
+        return uri;
+    }
 
-        return ProxyHelper.proxy(imageid, uri, requestURI, httpHeaders);
+    /**
+     * @return the templates for the configured DeepZoom server.
+     * @throws InternalServiceException if no DeepZoom server is configured.
+     */
+    private DeepzoomTemplates getDeepzoomTemplates() {
+        DeepzoomTemplates templates = deepzoomTemplates.get();
+        if (templates == null) {
+            log.error("No DeepZoom server defined");
+            throw new InternalServiceException("No DeepZoom server defined");
+        }
+        return templates;
+    }
+
+    /**
+     * @return the cache for DeepZoom tiles. Disabled unless {@code cache.tiles.enabled} is true.
+     */
+    public TileCache getTileCache() {
+        return tileCache.get();
     }
 
     /**
@@ -326,4 +373,37 @@ public class IIPFacade {
         }
     }
 
+    /**
+     * The compiled DZI and tile templates for either a path based or a param based DeepZoom server.
+     */
+    private static final class DeepzoomTemplates {
+        final CompiledUriTemplate dzi;
+        final CompiledUriTemplate tile;
+        final boolean isPath;
+
+        /**
+         * @return the templates for the DeepZoom server in the configuration or null if no server is defined.
+         */
+        static DeepzoomTemplates create(YAML config) {
+            if (config != null && config.containsKey(KEY_DEEPZOOM_SERVER_PATH)) {
+                // Path based DeepZoom server: http://example.com:1234/image_identifier.dzi
+                // https://example.com/example-images/fooimage/fooimage_files/11/2_0.jpg
+                String server = ServiceConfig.getServer(KEY_DEEPZOOM_SERVER_PATH);
+                return new DeepzoomTemplates(server + DEEPZOOM_PATH_DZI_TEMPLATE, server + DEEPZOOM_PATH_TEMPLATE, true);
+            }
+            if (config != null && config.containsKey(KEY_DEEPZOOM_SERVER_PARAM)) {
+                // Param based DeepZoom server: http://example.com:1234/iipsrv/iipsrv.fcgi?DeepZoom=Path_to_your_image.jpg.dzi
+                // https://example.com/fcgi-bin/iipsrv.fcgi?Deepzoom=hs-2007-16-a-full_tif.tif_files/12/2_4.jpg
+                String server = ServiceConfig.getServer(KEY_DEEPZOOM_SERVER_PARAM);
+                return new DeepzoomTemplates(server + DEEPZOOM_PARAM_DZI_TEMPLATE, server + DEEPZOOM_PARAM_TEMPLATE, false);
+            }
+            return null;
+        }
+
+        private DeepzoomTemplates(String dzi, String tile, boolean isPath) {
+            this.dzi = CompiledUriTemplate.compile(dzi);
+            this.tile = CompiledUriTemplate.compile(tile);
+            this.isPath = isPath;
+        }
+    }
 }
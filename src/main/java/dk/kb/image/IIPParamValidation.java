@@ -5,20 +5,24 @@ import dk.kb.util.webservice.exception.ServiceException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Parameter validation for the Internet Imaging Protocol. The protocol can be found : <a href="https://iipimage.sourceforge.io/documentation/protocol/">here</a>.
  * Each method in this class has been made from this specification.
+ * <p>
+ * Validation is called for every IIP and DeepZoom request, so the structured parameters are checked with
+ * hand-written scanners that do not allocate unless the parameter is invalid.
  */
 public class IIPParamValidation {
     private static final Logger log = LoggerFactory.getLogger(IIPParamValidation.class);
 
+    private static final String[] REGION_VALUE_NAMES = new String[]{"x", "y", "w", "h"};
+    // Names and separators for the groups in r:x1,y1-x2,y2
+    private static final String[] PFL_VALUE_NAMES = new String[]{"r", "x1", "y1", "x2", "y2"};
+    private static final char[] PFL_SEPARATORS = new char[]{':', ',', '-', ','};
+    private static final String[] CTW_VALUE_NAMES = new String[]{"r", "g", "b"};
+
     /**
      * Validates IIP parameters and throws appropriate exceptions if any parameters are invalid.
      * See <a href="https://iipimage.sourceforge.io/documentation/protocol/">the protocol</a>
@@ -149,29 +153,16 @@ public class IIPParamValidation {
      * The IIP protocol requires one and only one of JTL, PTL and CVT to be set. This method validates that only one of these are indeed set.
      */
     public static void validateOneJtlPtlCvtExists(List<Integer> jtl, List<Integer> ptl, String cvt){
-        boolean jtlPresent = (jtl != null && !jtl.isEmpty());
-        boolean ptlPresent = (ptl != null && !ptl.isEmpty());
-        boolean cvtPresent = (cvt != null && !cvt.isEmpty() && !cvt.isBlank());
-
-        boolean[] valuesPresent = new boolean[]{jtlPresent,ptlPresent,cvtPresent};
+        int present = (jtl != null && !jtl.isEmpty() ? 1 : 0) +
+                      (ptl != null && !ptl.isEmpty() ? 1 : 0) +
+                      (cvt != null && !cvt.isBlank() ? 1 : 0);
 
-        if (areMoreThanOneTrue(valuesPresent)){
+        if (present > 1){
             log.error("More than one of the parameters JTL, PTL and CVT are set. Only one can be set at a time");
             throw new InvalidArgumentServiceException("More than one of the parameters JTL, PTL and CVT are set. Only one can be set at a time");
         }
     }
 
-    private static boolean areMoreThanOneTrue(boolean[] arrayOfBools) {
-        int trueBooleans = 0;
-        for (boolean i : arrayOfBools) {
-            trueBooleans += i ? 1 : 0;
-            if (trueBooleans >= 2) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
      * Validate that WID(width) is only set, when used together with CVT.
      * WID has to be set as width in pixels.
@@ -209,10 +200,10 @@ public class IIPParamValidation {
                         "The first number representing X. The second number representing Y. The third number representing W " +
                         "The fourth number representing H between 0.0 and 1.0. All numbers should be between 0.0 and 1.0");
             }
-            String[] regionValueNames = new String[]{"x", "y", "w", "h"};
             for (int i = 0; i < rgn.size(); i++) {
-                if (!(rgn.get(i) >= 0.0F && rgn.get(i) <= 1.0)){
-                    throw new InvalidArgumentServiceException("The value of " + regionValueNames[i] + " in parameter RGN is out of bounds. It has to be between 0.0 and 1.0");
+                float value = rgn.get(i);
+                if (!(value >= 0.0F && value <= 1.0)){
+                    throw new InvalidArgumentServiceException("The value of " + REGION_VALUE_NAMES[i] + " in parameter RGN is out of bounds. It has to be between 0.0 and 1.0");
                 }
             }
         }
@@ -255,10 +246,10 @@ public class IIPParamValidation {
     public static void rotValidation(String rot){
         if (rot != null && !rot.isEmpty()) {
             // Only 90, 180 and 270 supported. ! can be used to flip horizontally.
-            String[] values = {"0", "90", "180", "270", "!90", "!180", "!270"};
-            boolean b = Arrays.asList(values).contains(rot);
-            if (!b) {
-                throw new InvalidArgumentServiceException("ROT has to be specified as one of the following values when set: 90, 180, 270, !90, !180, !270. The provided ROT was: '" + rot + "'");
+            switch (rot) {
+                case "0": case "90": case "180": case "270": case "!90": case "!180": case "!270": return;
+                default:
+                    throw new InvalidArgumentServiceException("ROT has to be specified as one of the following values when set: 90, 180, 270, !90, !180, !270. The provided ROT was: '" + rot + "'");
             }
         }
     }
@@ -269,10 +260,10 @@ public class IIPParamValidation {
      */
     public static void cmpValidation(String cmp){
         if (cmp != null) {
-            String[] values = {"GREY", "JET", "COLD", "HOT", "RED", "GREEN", "BLUE"};
-            boolean b = Arrays.asList(values).contains(cmp);
-            if (!b) {
-                throw new InvalidArgumentServiceException("CMP has to be specified as one of the following values when set: GREY, JET, COLD, HOT, RED, GREEN or BLUE. The provided CMP was: '" + cmp + "'");
+            switch (cmp) {
+                case "GREY": case "JET": case "COLD": case "HOT": case "RED": case "GREEN": case "BLUE": return;
+                default:
+                    throw new InvalidArgumentServiceException("CMP has to be specified as one of the following values when set: GREY, JET, COLD, HOT, RED, GREEN or BLUE. The provided CMP was: '" + cmp + "'");
             }
         }
     }
@@ -284,34 +275,83 @@ public class IIPParamValidation {
      */
     public static void pflValidation(String pfl){
         if (pfl != null) {
-            // Each group in the pattern represents a part of r:x1,y1-x2,y2
-            Pattern correctPattern = Pattern.compile("(\\d+):(\\d+),(\\d+)-(\\d+),(\\d+)", Pattern.CASE_INSENSITIVE);
-            Matcher matcher = correctPattern.matcher(pfl);
-            boolean matchFound = matcher.find();
-            if(!matchFound) {
+            int start = findPfl(pfl);
+            if (start < 0) {
                 throw new InvalidArgumentServiceException("The value of PFL needs to be defined specifically as r:x1,y1-x2,y2 but was: '" + pfl + "'");
             }
 
-            // Create map with values as string
-            Map<String, String> values = new HashMap<>();
-            values.put("r", matcher.group(1));
-            values.put("x1", matcher.group(2));
-            values.put("y1", matcher.group(3));
-            values.put("x2", matcher.group(4));
-            values.put("y2", matcher.group(5));
-
-            // Convert string values to integers, throws exception when fails
-            for (Map.Entry<String, String> entry : values.entrySet()) {
-                try {
-                    int realValue = Integer.parseInt(entry.getValue());
-                    if (realValue < 0) {
-                        throw new InvalidArgumentServiceException("The value of " + entry.getKey() + " needs to be a positive number, but was: '" + entry.getValue() + "'");
+            // Check that each value can be represented as an integer
+            int pos = start;
+            for (String name : PFL_VALUE_NAMES) {
+                int end = skipDigits(pfl, pos);
+                if (end - pos > 9 && parsePositive(pfl, pos, end) > Integer.MAX_VALUE) {
+                    throw new InvalidArgumentServiceException("The value of " + name + " needs to be a positive number, but was: '" + pfl.substring(pos, end) + "'");
+                }
+                pos = end + 1;
+            }
+        }
+    }
+
+    /**
+     * Find the first occurrence of r:x1,y1-x2,y2 in the PFL, where all values are non-negative integers.
+     * The result is the same as {@code Matcher.find()} with the pattern {@code \d+:\d+,\d+-\d+,\d+}.
+     * @return the start of the first occurrence or -1 if there is none.
+     */
+    private static int findPfl(String pfl) {
+        for (int start = 0; start < pfl.length(); start++) {
+            // A match always starts at the beginning of a run of digits, as the first value is not bounded
+            if (!isDigit(pfl.charAt(start)) || (start > 0 && isDigit(pfl.charAt(start-1)))) {
+                continue;
+            }
+            int pos = start;
+            for (int group = 0; group < PFL_VALUE_NAMES.length; group++) {
+                int end = skipDigits(pfl, pos);
+                if (end == pos) {
+                    pos = -1;
+                    break;
+                }
+                if (group < PFL_SEPARATORS.length) {
+                    if (end == pfl.length() || pfl.charAt(end) != PFL_SEPARATORS[group]) {
+                        pos = -1;
+                        break;
                     }
-                } catch (NumberFormatException e) {
-                    throw new InvalidArgumentServiceException("The value of " + entry.getKey() + " needs to be a positive number, but was: '" + entry.getValue() + "'");
+                    end++;
                 }
+                pos = end;
+            }
+            if (pos != -1) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position of the first non-digit at or after pos.
+     */
+    private static int skipDigits(String s, int pos) {
+        while (pos < s.length() && isDigit(s.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the value of the digits from start to end, capped at {@code Long.MAX_VALUE}.
+     */
+    private static long parsePositive(String s, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (s.charAt(i) - '0');
+            if (value > Integer.MAX_VALUE) { // Stop before overflowing the long
+                return Long.MAX_VALUE;
             }
         }
+        return value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 
     public static void minmaxValidation(){
@@ -320,53 +360,137 @@ public class IIPParamValidation {
 
     /**
      * Validate correct use of CTW(Color twist/ channel recombination)
-     * CTW has to be defined as [array;array;array] using ; as delimiter between arrays and , between integers
+     * CTW has to be defined as [array;array;array] using ; as delimiter between arrays and , between integers.
+     * Brackets are ignored wherever they are, empty trailing arrays and values are ignored and only the first
+     * three values of each array are checked, as r, g and b.
      */
     public static void ctwValidation(String ctw){
         if (ctw != null){
-            // Strip string for brackets
-            ctw = ctw.replace("[","");
-            ctw = ctw.replace("]","");
-            // Split string into arrays
-            String[] stringArrays = ctw.split(";");
-            // Splits each array formatted as a comma separated string into a map containing r,g,b keys and values as string
-            splitCommaSeparatedStringToMap(stringArrays);
+            int arraysEnd = keptEnd(ctw, 0, ctw.length(), ';');
+            int arrayStart = 0;
+            for (int count = 1; arrayStart <= arraysEnd; count++) {
+                int arrayEnd = indexOf(ctw, ';', arrayStart, arraysEnd);
+                validateRGB(ctw, arrayStart, arrayEnd, count);
+                arrayStart = arrayEnd + 1;
+            }
+        }
+    }
+
+    /**
+     * Validate that the first three comma separated values in the array from start to end can be converted to floats.
+     * @param count the number of the array, used to deliver meaningful service exceptions.
+     */
+    private static void validateRGB(String ctw, int start, int end, int count) {
+        int valuesEnd = keptEnd(ctw, start, end, ',');
+        if (countElements(ctw, start, valuesEnd, ',') < CTW_VALUE_NAMES.length) {
+            throw new InvalidArgumentServiceException(
+                    "The array" + count + " in CTW needs to contain three numbers r, g and b, but was: " + stripBrackets(ctw, start, end));
+        }
+        int valueStart = start;
+        for (String name : CTW_VALUE_NAMES) {
+            int valueEnd = indexOf(ctw, ',', valueStart, valuesEnd);
+            if (!isFloat(ctw, valueStart, valueEnd)) {
+                throw new InvalidArgumentServiceException(
+                        "The value of " + name + " in array" + count + " needs to be a number, but was: " + stripBrackets(ctw, valueStart, valueEnd));
+            }
+            valueStart = valueEnd + 1;
+        }
+    }
+
+    /**
+     * @param end the end of the last element as returned by {@link #keptEnd(String, int, int, char)}.
+     * @return the number of elements from start to end.
+     */
+    private static int countElements(String s, int start, int end, char separator) {
+        if (end < 0) {
+            return 0;
         }
+        int elements = 1;
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == separator) {
+                elements++;
+            }
+        }
+        return elements;
     }
 
     /**
-     * Split string that contains comma separated RGB values into a map where each value has its own entry
+     * Resolve the part of the string from start to end that holds the elements, when splitting on the separator
+     * with the same semantics as {@link String#split(String)}: If there are separators, trailing empty elements
+     * are removed. Brackets are ignored when checking for empty elements.
+     * @return the end of the last kept element or -1 if no elements are kept.
      */
-    private static void splitCommaSeparatedStringToMap(String[] stringArrays) {
-        for (int i = 0; i < stringArrays.length; i++) {
-            int count = i+1;
+    private static int keptEnd(String s, int start, int end, char separator) {
+        if (indexOf(s, separator, start, end) == end) {
+            return end; // No separators: The whole string is a single element, even if empty
+        }
+        int limit = end;
+        while (true) {
+            int last = s.lastIndexOf(separator, limit-1);
+            if (last < start) {
+                return isEmptyIgnoringBrackets(s, start, limit) ? -1 : limit;
+            }
+            if (!isEmptyIgnoringBrackets(s, last+1, limit)) {
+                return limit;
+            }
+            limit = last;
+        }
+    }
 
-            String[] rgbArray = stringArrays[i].split(",");
-            // Defined as map, so that exception makes sense
-            Map<String, String> rgbMap = new HashMap<>();
-            rgbMap.put("r", rgbArray[0]);
-            rgbMap.put("g", rgbArray[1]);
-            rgbMap.put("b", rgbArray[2]);
+    /**
+     * @return the position of the first separator from start to end or end if there are no separators.
+     */
+    private static int indexOf(String s, char separator, int start, int end) {
+        int index = s.indexOf(separator, start);
+        return index < 0 || index > end ? end : index;
+    }
 
-            // Validates that r, g and b can be converted to floats in each map
-            ValidateStringToFloatConversion(count, rgbMap);
+    private static boolean isEmptyIgnoringBrackets(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isBracket(s.charAt(i))) {
+                return false;
+            }
         }
+        return true;
     }
 
     /**
-     * Validate that each value from given map can be converted from string to float
-     * @param count used to deliver meaningfully service exception
-     * @param array map consisting of r, g and b values to be checked for conversion
+     * Check if the string from start to end, ignoring brackets, can be parsed with {@link Float#parseFloat(String)}.
+     * Plain decimal numbers are checked without parsing, all other forms are passed to {@code parseFloat}.
      */
-    private static void ValidateStringToFloatConversion(int count, Map<String, String> array) {
-        for (Map.Entry<String, String> entry: array.entrySet()) {
-            try {
-                float realValue = Float.parseFloat(entry.getValue());
-            } catch (NumberFormatException e){
-                throw new InvalidArgumentServiceException(
-                        "The value of " + entry.getKey() + " in array" + count + " needs to be a number, but was: " + entry.getValue());
+    private static boolean isFloat(String s, int start, int end) {
+        int digits = 0;
+        boolean dot = false;
+        boolean plain = true;
+        for (int i = start; i < end && plain; i++) {
+            char c = s.charAt(i);
+            if (isDigit(c)) {
+                digits++;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else if ((c == '-' || c == '+') && digits == 0 && !dot && isEmptyIgnoringBrackets(s, start, i)) {
+                // Leading sign
+            } else if (!isBracket(c)) {
+                plain = false;
             }
         }
+        if (plain && digits > 0) {
+            return true;
+        }
+        try {
+            Float.parseFloat(stripBrackets(s, start, end));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String stripBrackets(String s, int start, int end) {
+        return s.substring(start, end).replace("[", "").replace("]", "");
+    }
+
+    private static boolean isBracket(char c) {
+        return c == '[' || c == ']';
     }
 
     /**
@@ -374,10 +498,10 @@ public class IIPParamValidation {
      */
     public static void colValidation(String col){
         if (col != null) {
-            String[] values = {"grey", "gray", "binary"};
-            boolean b = Arrays.asList(values).contains(col);
-            if (!b) {
-                throw new InvalidArgumentServiceException("COL has to be specified as one of the following values when set: grey, gray or binary");
+            switch (col) {
+                case "grey": case "gray": case "binary": return;
+                default:
+                    throw new InvalidArgumentServiceException("COL has to be specified as one of the following values when set: grey, gray or binary");
             }
         }
     }
@@ -387,19 +511,32 @@ public class IIPParamValidation {
      * @param tiles string to validate.
      */
     public static void deepzoomTileValidation(String tiles){
-        Pattern correctPattern = Pattern.compile("\\d+_+\\d", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = correctPattern.matcher(tiles);
-        boolean matchFound = matcher.find();
-        if(!matchFound) {
+        if (!containsTile(tiles)) {
             throw new InvalidArgumentServiceException(
                     "Deepzoom parameter 'tiles' was '" + tiles + "' but must be specified as x_y");
         }
     }
 
+    /**
+     * @return true if the tiles contains digits, one or more underscores and a digit, e.g. {@code 2_4}.
+     */
+    private static boolean containsTile(String tiles) {
+        for (int i = 0; i < tiles.length() - 2; i++) {
+            if (isDigit(tiles.charAt(i)) && tiles.charAt(i+1) == '_') {
+                int end = i+1;
+                while (end < tiles.length() && tiles.charAt(end) == '_') {
+                    end++;
+                }
+                if (end < tiles.length() && isDigit(tiles.charAt(end))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public static void deepzoomFormatValidation(String format){
-        String[] values = {"jpg", "png", "jpeg"};
-        boolean b = Arrays.asList(values).contains(format);
-        if (!b) {
+        if (!("jpg".equals(format) || "png".equals(format) || "jpeg".equals(format))) {
             throw new InvalidArgumentServiceException("Format for Deepzoom tile has to be either 'jpg', 'jpeg' or 'png'");
         }
     }
@@ -15,10 +15,23 @@
 package dk.kb.image;
 
 import com.damnhandy.uri.template.UriTemplate;
+import dk.kb.image.cache.RangeCache;
+import dk.kb.image.config.ConfigBound;
+import dk.kb.image.upstream.BalancedUpstreamClient;
+import dk.kb.image.upstream.BufferPool;
+import dk.kb.image.upstream.CircuitBreaker;
+import dk.kb.image.upstream.RelayedHeaders;
+import dk.kb.image.upstream.UpstreamClient;
+import dk.kb.image.upstream.UpstreamClients;
+import dk.kb.image.upstream.UpstreamResponse;
+import dk.kb.image.util.AsyncRequests;
+import dk.kb.image.util.ConditionalRequests;
+import dk.kb.image.util.DaemonThreadFactory;
+import dk.kb.image.util.RangeRequests;
+import dk.kb.image.util.RequestContext;
 import dk.kb.util.string.Strings;
 import dk.kb.util.webservice.exception.InternalServiceException;
 import dk.kb.util.webservice.exception.ServiceException;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,9 +43,18 @@ import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.*;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpTimeoutException;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
 
 /**
@@ -44,6 +66,12 @@ public class ProxyHelper {
 	final static String HEADER_ACCEPT="Accept";
 	private static final Logger log = LoggerFactory.getLogger(ProxyHelper.class);
 
+    private static final ConfigBound<RangeCache> rangeCache = new ConfigBound<>(RangeCache::create, RangeCache::close);
+
+    // Handles responses from asynchronous requests that might be spooled to the RangeCache
+    private static final ExecutorService spoolExecutor =
+            Executors.newCachedThreadPool(new DaemonThreadFactory("range-spool"));
+
     /**
      * Streams the content from the given uri. In the case of HTTP codes outside of the 200-299 range, a matching
      * {@link ServiceException} is thrown.
@@ -69,27 +97,41 @@ public class ProxyHelper {
      * @return a lambda providing the data from the given uri.
      */
     public static StreamingOutput proxy(String request, String uri, URI clientRequestURI, HttpHeaders httpHeaders) {
-        URI realURI;
+        return proxy(request, toURI(request, uri, clientRequestURI), clientRequestURI, null, httpHeaders);
+    }
+
+    /**
+     * @param request image ID or similar information used to construct exception messages to the caller.
+     * @param uri an internally generated URI for the image server.
+     * @param clientRequestURI the original request URI from the client. Used only for logging.
+     * @return uri as an {@link URI}.
+     * @throws InternalServerErrorException if uri is not a valid URI.
+     */
+    static URI toURI(String request, String uri, URI clientRequestURI) {
         try {
-            realURI = new URI(uri);
+            return new URI(uri);
         } catch (URISyntaxException e) {
             log.warn("Error processing '{}': Unable to create URI from '{}' for user request '{}'",
                     request, uri, clientRequestURI, e);
             throw new InternalServerErrorException(
                     "Invalid internally generated proxy-URI for request '" + clientRequestURI + "'");
         }
-        return proxy(request, realURI, clientRequestURI, null, httpHeaders);
     }
 
     /**
      * Streams the content from the given uri. In the case of HTTP codes outside of the 200-299 range, a matching
-     * {@link ServiceException} is thrown.
+     * {@link ServiceException} is thrown, except for {@code 304 Not Modified} which is passed on to the client.
+     * <p>
+     * {@code Range} and {@code If-Range} are forwarded and {@code 206 Partial Content} is passed on to the client.
+     * If the image server responds with the full content, the range is served from a local copy, if
+     * {@link RangeCache} is enabled.
      * @param request image ID or similar information used to construct exception messages to the caller.
      *                The uri is NOT stated in any exception messages as that might be considered confidential.
      * @param uri the URI to proxy.
      * @param clientRequestURI the original request URI from the client. Used only for logging.
      * @param httpHeaders the original httpHeaders from the client. Used to transfer specific header fields to image server request.
-     * @param httpServletResponse used for setting the {@code Content-Type} to match the one delivered form uri. Ignored if null.
+     * @param httpServletResponse used for setting the {@code Content-Type} and validators such as {@code ETag} to match
+     *                            the ones delivered from uri. If null, the response from {@link RequestContext} is used.
      * @return a lambda providing the data from the given uri.
      */
     public static StreamingOutput proxy(
@@ -99,33 +141,213 @@ public class ProxyHelper {
         //If more headerfields besides Accept is transfered to proxy request add them to log.
     	log.debug("proxy(request='{}', uri='{}', clientRequestURI='{}', httpServletResponse={}, acceptHeader={}) called",
                   request, uri, clientRequestURI, httpServletResponse == null ? "not present" : "present", acceptHeader);
-        final HttpURLConnection connection = establishConnection(request, uri, clientRequestURI,httpHeaders);
+        // Facades that do not pass the servlet response still get the headers through the request context
+        HttpServletResponse target = httpServletResponse != null ?
+                httpServletResponse : RequestContext.current().getServletResponse();
+        // Ranges require the servlet response for the 206 status and Content-Range
+        String range = target != null && httpHeaders != null ? httpHeaders.getHeaderString(RangeRequests.RANGE) : null;
+        StreamingOutput local = serveLocalRange(uri, range, httpHeaders, target);
+        if (local != null) {
+            return local;
+        }
+
+        final UpstreamResponse response = establishConnection(request, uri, clientRequestURI, httpHeaders, range);
+        return handleResponse(
+                request, uri, clientRequestURI, response, target, httpHeaders, range, RequestContext.current());
+    }
+
+    /**
+     * Asynchronous version of {@link #proxy(String, URI, URI, HttpServletResponse, HttpHeaders)}: The request to
+     * the image server is sent using {@link BalancedUpstreamClient#getAsync(URI, String, Map, long)} and the
+     * returned future completes when the response headers have been received. The content is streamed when the
+     * returned {@link StreamingOutput} is written.
+     * <p>
+     * The future fails with {@code 504 Gateway Timeout} if the response headers are not received before the
+     * deadline from {@link RequestContext}. A response that arrives after the deadline is closed and does not change
+     * the servlet response. Other failures are the same as for the synchronous version.
+     * <p>
+     * If the image server does not support ranges and the response must be spooled to the {@link RangeCache}, the
+     * spooling happens on a separate thread before the future completes.
+     * @param request image ID or similar information used to construct exception messages to the caller.
+     *                The uri is NOT stated in any exception messages as that might be considered confidential.
+     * @param uri the URI to proxy.
+     * @param clientRequestURI the original request URI from the client. Used only for logging.
+     * @param httpServletResponse used for setting the {@code Content-Type} and validators such as {@code ETag} to match
+     *                            the ones delivered from uri. If null, the response from {@link RequestContext} is used.
+     * @param httpHeaders the original httpHeaders from the client. Used to transfer specific header fields to image server request.
+     * @return a future lambda providing the data from the given uri.
+     */
+    public static CompletableFuture<StreamingOutput> proxyAsync(
+            String request, URI uri, URI clientRequestURI, HttpServletResponse httpServletResponse, HttpHeaders httpHeaders) {
+        log.debug("proxyAsync(request='{}', uri='{}', clientRequestURI='{}', httpServletResponse={}) called",
+                  request, uri, clientRequestURI, httpServletResponse == null ? "not present" : "present");
+        RequestContext requestContext = RequestContext.current();
+        HttpServletResponse target = httpServletResponse != null ?
+                httpServletResponse : requestContext.getServletResponse();
+        String range = target != null && httpHeaders != null ? httpHeaders.getHeaderString(RangeRequests.RANGE) : null;
+        StreamingOutput local = serveLocalRange(uri, range, httpHeaders, target);
+        if (local != null) {
+            return CompletableFuture.completedFuture(local);
+        }
+
+        Map<String, String> requestHeaders = getRequestHeaders(httpHeaders, range);
+        requestContext.checkDeadline("proxy request for '" + request + "'");
+        long remainingMs = requestContext.getRemainingMs();
+        long startNanos = System.nanoTime();
+        CompletableFuture<UpstreamResponse> connection;
         try {
-            validateStatuscode(request, uri, clientRequestURI, connection.getResponseCode());
-        } catch (IOException e) {
-            log.warn("Unable to establish connection for request '{}' to '{}' for client request '{}'",
-                     request, uri, clientRequestURI, e);
-            throw new ServiceException("Unable to establish connection to '" + request + "'",
-                                       Response.Status.BAD_GATEWAY);
+            connection = UpstreamClients.forURI(uri, requestContext.getBackend())
+                    .getAsync(uri, request, requestHeaders, remainingMs);
+        } catch (RuntimeException e) {
+            connection = CompletableFuture.failedFuture(e);
         }
-        if (httpServletResponse != null) {
-            copyHeaders(connection, httpServletResponse);
+
+        CompletableFuture<UpstreamResponse> result = new CompletableFuture<>();
+        CompletableFuture<UpstreamResponse> limited =
+                AsyncRequests.withDeadline(result, "proxy request for '" + request + "'");
+        limited.whenComplete((ignored, e) -> {
+            if (e != null && !result.cancel(false)) {
+                result.thenAccept(UpstreamResponse::close); // The response arrived as the deadline was exceeded
+            }
+        });
+        connection.whenComplete((response, e) -> {
+            requestContext.recordStage(RequestContext.STAGE_CONNECT, System.nanoTime() - startNanos);
+            if (e != null) {
+                result.completeExceptionally(connectionFailure(
+                        request, uri, clientRequestURI, AsyncRequests.unwrap(e)));
+            } else if (!result.complete(response)) { // The deadline was exceeded while waiting for the image server
+                response.close();
+            }
+        });
+
+        // The servlet response is only changed when the response has won over the deadline
+        Function<UpstreamResponse, StreamingOutput> handler = response -> {
+            try {
+                return handleResponse(
+                        request, uri, clientRequestURI, response, target, httpHeaders, range, requestContext);
+            } catch (RuntimeException e) {
+                response.close();
+                throw e;
+            }
+        };
+        // Spooling to a local copy is blocking I/O, which must not run on the threads of the HTTP client
+        return range != null && rangeCache.get().isEnabled() ?
+                limited.thenApplyAsync(handler, spoolExecutor) :
+                limited.thenApply(handler);
+    }
+
+    /**
+     * Serve the range from the local copy in {@link RangeCache}, if the request is for a range and there is a copy.
+     * @return the range or null if it could not be served locally.
+     */
+    private static StreamingOutput serveLocalRange(
+            URI uri, String range, HttpHeaders httpHeaders, HttpServletResponse target) {
+        if (range == null) {
+            return null;
+        }
+        RangeCache.Entry local = rangeCache.get().get(uri.toString());
+        if (local == null) {
+            return null;
         }
+        log.debug("Serving range '{}' for '{}' from local copy", range, uri);
+        return RangeCache.serve(local, range, httpHeaders.getHeaderString(RangeRequests.IF_RANGE), target);
+    }
 
-        return output -> pipeContent(request, uri, clientRequestURI, connection, output);
+    /**
+     * Validate the response from the image server and pass its headers on to target.
+     * @param request image ID or similar information used to construct exception messages to the caller.
+     * @param uri the proxied URI.
+     * @param clientRequestURI the original request URI from the client. Used only for logging.
+     * @param response the response from uri. This is closed when the content has been streamed, if an exception
+     *                 is thrown or when the request is finished without streaming the content, e.g. for
+     *                 {@code HEAD} requests, see {@link RequestContext#closeOnFinish(java.io.Closeable)}.
+     * @param target the servlet response for the called endpoint. Can be null.
+     * @param httpHeaders the original httpHeaders from the client.
+     * @param range the forwarded {@code Range} header or null if ranges were not requested.
+     * @param requestContext the context for the request, used for recording the streaming stages.
+     * @return a lambda providing the data from the given uri.
+     */
+    private static StreamingOutput handleResponse(
+            String request, URI uri, URI clientRequestURI, UpstreamResponse response, HttpServletResponse target,
+            HttpHeaders httpHeaders, String range, RequestContext requestContext) {
+        if (response.getStatusCode() == HttpServletResponse.SC_NOT_MODIFIED) {
+            return notModified(request, uri, response, target);
+        }
+        try {
+            validateStatuscode(request, uri, clientRequestURI, response.getStatusCode());
+        } catch (RuntimeException e) {
+            response.close();
+            throw e;
+        }
+        RangeCache rangeCache = ProxyHelper.rangeCache.get();
+        boolean partial = response.getStatusCode() == HttpServletResponse.SC_PARTIAL_CONTENT;
+        // Ranges served from a local copy get their Content-Length from the copy
+        boolean spool = !partial && range != null && rangeCache.isEnabled();
+        if (target != null) {
+            copyHeaders(response, target, !spool);
+        }
+        if (partial && target != null) {
+            target.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            String contentRange = response.getHeader(RangeRequests.CONTENT_RANGE);
+            if (contentRange != null) {
+                target.setHeader(RangeRequests.CONTENT_RANGE, contentRange);
+            }
+        } else if (spool) {
+            // The image server does not support ranges: Serve the range from a local copy
+            String ifRange = httpHeaders.getHeaderString(RangeRequests.IF_RANGE);
+            try {
+                return rangeCache.spoolAndServe(uri.toString(), response, range, ifRange, target, requestContext);
+            } catch (IOException e) {
+                log.warn("Unable to create local copy of '{}' for client request '{}'", uri, clientRequestURI, e);
+                throw new InternalServerErrorException("Unable to serve request for image '" + request + "'");
+            }
+        } else if (rangeCache.isEnabled() && target != null) {
+            target.setHeader(RangeRequests.ACCEPT_RANGES, RangeRequests.BYTES);
+        }
+
+        // Releases the connection if the content is never written
+        requestContext.closeOnFinish(response);
+        return output -> pipeContent(request, uri, clientRequestURI, response, output, requestContext);
 
     }
 
     /**
-     * Copy the {@code Content-Type} header from connection to httpServletResponse.
-     * @param connection an established connection.
+     * Pass a {@code 304 Not Modified} from the image server on to the client.
+     * @param request image ID or similar information used to construct error messages to the caller.
+     * @param uri the proxied URI.
+     * @param response the {@code 304} response from uri. This is closed.
+     * @param httpServletResponse servlet response for the called endpoint. If null, a {@link ServiceException}
+     *                            with {@code 304} is thrown.
+     * @return {@link ConditionalRequests#NOT_MODIFIED}.
+     */
+    private static StreamingOutput notModified(
+            String request, URI uri, UpstreamResponse response, HttpServletResponse httpServletResponse) {
+        try (UpstreamResponse ignored = response) {
+            log.debug("Not modified: '{}'", uri);
+            if (httpServletResponse == null) {
+                throw new ServiceException("Not modified: '" + request + "'", Response.Status.NOT_MODIFIED);
+            }
+            httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            RelayedHeaders.getInstance().copy(response, httpServletResponse, false);
+        }
+        return ConditionalRequests.NOT_MODIFIED;
+    }
+
+    /**
+     * Copy the {@code Content-Type} header and the {@link RelayedHeaders} from response to httpServletResponse.
+     * The {@code Content-Type} is {@code multipart/byteranges} for {@code 206 Partial Content} with multiple ranges.
+     * @param response an upstream response.
      * @param httpServletResponse servlet response for the called endpoint.
+     * @param withContent true if the content of response is streamed as-is to the client, in which case
+     *                    {@code Content-Length} is relayed.
      */
-    private static void copyHeaders(HttpURLConnection connection, HttpServletResponse httpServletResponse) {
-        String contentType = connection.getHeaderField("Content-Type");
+    private static void copyHeaders(
+            UpstreamResponse response, HttpServletResponse httpServletResponse, boolean withContent) {
+        String contentType = response.getHeader("Content-Type");
         if (contentType != null) {
             httpServletResponse.setContentType(contentType);
         }
+        RelayedHeaders.getInstance().copy(response, httpServletResponse, withContent);
     }
 
     /**
@@ -170,78 +392,135 @@ public class ProxyHelper {
     }
 
     /**
-     * Establishes a connection to the given uri.
+     * Establishes a connection to the given uri, using the {@link UpstreamClient} for the image server that the
+     * uri points to.
      * @param request image ID or similar information used to construct error messages to the caller.
      * @param uri the URI to proxy.
      * @param clientRequestURI the original request URI from the client. Used only for logging.
      * @param httpHeaders the original httpHeaders from the client. Used to transfer specific header fields to image server request.
-     * @return a connection to uri.
-     * @throws ServiceException is the connection could not be established.
+     * @param range the {@code Range} header from the client, forwarded together with {@code If-Range}. Null if
+     *              ranges should not be requested.
+     * @return a response from uri. This must be closed after use.
+     * @throws ServiceException is the connection could not be established or with
+     *                          {@code 503 Service Unavailable} if the {@link CircuitBreaker}s for the image server
+     *                          and its replicas are open.
      */
-    private static HttpURLConnection establishConnection(String request, URI uri, URI clientRequestURI,HttpHeaders httpHeaders) {
-        HttpURLConnection connection;
-        try  {
-            connection = (HttpURLConnection) uri.toURL().openConnection();
-        } catch (Exception e) {
-            log.warn("Unable to create passive proxy connection with URI '{}' from client request '{}'",
-                     uri, clientRequestURI, e);
-            throw new InternalServiceException("Unable to create passive proxy for '" + request + "'");
-        }
+    private static UpstreamResponse establishConnection(
+            String request, URI uri, URI clientRequestURI, HttpHeaders httpHeaders, String range) {
+        Map<String, String> requestHeaders = getRequestHeaders(httpHeaders, range);
 
-        connection.setInstanceFollowRedirects(true);
+        // Timeouts are configured per backend, see UpstreamSettings
+        RequestContext requestContext = RequestContext.current();
+        requestContext.checkDeadline("proxy request for '" + request + "'");
+        // The image ID is used for routing to the same replica, if the image server has replicas
+        BalancedUpstreamClient client = UpstreamClients.forURI(uri, requestContext.getBackend());
+        long startNanos = System.nanoTime();
         try {
-            connection.setRequestMethod("GET");
-        } catch (ProtocolException e) {
-            log.warn("Unable to set request method to 'GET' with URI '{}' from client request '{}'",
-                     uri, clientRequestURI, e);
-            throw new InternalServiceException("Unable to set 'GET' as request method for '" + request + "'");
+            return client.get(uri, request, requestHeaders, requestContext.getRemainingMs());
+        } catch (IOException | IllegalArgumentException e) {
+            throw connectionFailure(request, uri, clientRequestURI, e);
+        } finally {
+            requestContext.recordStage(RequestContext.STAGE_CONNECT, System.nanoTime() - startNanos);
         }
-        connection.setRequestProperty("User-Agent", "ds-image");
-     
+    }
+
+    /**
+     * @param httpHeaders the original httpHeaders from the client. Can be null.
+     * @param range the {@code Range} header from the client, forwarded together with {@code If-Range}. Null if
+     *              ranges should not be requested.
+     * @return the headers for the request to the image server.
+     */
+    private static Map<String, String> getRequestHeaders(HttpHeaders httpHeaders, String range) {
+        Map<String, String> requestHeaders = new LinkedHashMap<>();
+        requestHeaders.put("User-Agent", "ds-image");
         if (httpHeaders != null && httpHeaders.getHeaderString(HEADER_ACCEPT) != null) { //The test code will call it without httpHeaders
-          connection.addRequestProperty("Accept",httpHeaders.getHeaderString(HEADER_ACCEPT));
+            requestHeaders.put(HEADER_ACCEPT, httpHeaders.getHeaderString(HEADER_ACCEPT));
+        }
+        if (httpHeaders != null) {
+            for (String precondition: ConditionalRequests.PRECONDITIONS) {
+                String value = httpHeaders.getHeaderString(precondition);
+                if (value != null) {
+                    requestHeaders.put(precondition, value);
+                }
+            }
+        }
+        if (range != null) {
+            requestHeaders.put(RangeRequests.RANGE, range);
+            String ifRange = httpHeaders.getHeaderString(RangeRequests.IF_RANGE);
+            if (ifRange != null) {
+                requestHeaders.put(RangeRequests.IF_RANGE, ifRange);
+            }
         }
-        
-        // TODO: Add timeouts, but make them configurable
-        //con.setConnectTimeout(1000);
-        //con.setReadTimeout(1000);
+        return requestHeaders;
+    }
 
-        try {
-            connection.connect();
-        } catch (SocketTimeoutException e) {
+    /**
+     * Map a failure to establish a connection to the image server to a {@link ServiceException}.
+     * @param request image ID or similar information used to construct error messages to the caller.
+     * @param uri the URI to proxy.
+     * @param clientRequestURI the original request URI from the client. Used only for logging.
+     * @param e the failure.
+     * @return an exception for the caller.
+     */
+    private static RuntimeException connectionFailure(String request, URI uri, URI clientRequestURI, Throwable e) {
+        if (e instanceof SocketTimeoutException || e instanceof HttpTimeoutException) {
             log.warn("Timeout establishing connection to '{}' for from client request '{}'",
                      uri, clientRequestURI, e);
-            throw new ServiceException("Timeout establishing proxy connection for '" + request + "'",
-                                       Response.Status.GATEWAY_TIMEOUT);
-        } catch (IOException e) {
+            return new ServiceException("Timeout establishing proxy connection for '" + request + "'",
+                                        Response.Status.GATEWAY_TIMEOUT);
+        }
+        if (e instanceof IOException) {
             log.warn("Unable to establish connection to '{}' for from client request '{}'",
                      uri, clientRequestURI, e);
-            throw new ServiceException("Unable to establish proxy connection for '" + request + "'",
-                                       Response.Status.BAD_GATEWAY);
+            return new ServiceException("Unable to establish proxy connection for '" + request + "'",
+                                        Response.Status.BAD_GATEWAY);
+        }
+        if (e instanceof IllegalArgumentException) {
+            log.warn("Unable to create passive proxy connection with URI '{}' from client request '{}'",
+                     uri, clientRequestURI, e);
+            return new InternalServiceException("Unable to create passive proxy for '" + request + "'");
+        }
+        if (e instanceof RuntimeException) { // E.g. 503 from a full connection pool
+            return (RuntimeException) e;
         }
-        return connection;
+        log.warn("Unexpected failure for connection to '{}' for client request '{}'", uri, clientRequestURI, e);
+        return new InternalServiceException("Unable to proxy request for '" + request + "'");
     }
 
 
     /**
-     * Streams the content from the given connection to output.
-     * Closes the inputstream from the connection after streaming.
+     * Streams the content from the given response to output, using a buffer from the {@link BufferPool}.
+     * Closes the response after streaming.
+     * <p>
+     * The time until the first byte is received from the image server and the time for the full streaming is
+     * recorded as {@link RequestContext#STAGE_FIRST_BYTE} and {@link RequestContext#STAGE_STREAM}.
      * @param request image ID or similar information used to construct error messages to the caller.
      * @param uri the URI to proxy.
      * @param clientRequestURI the original request URI from the client. Used only for logging.
-     * @param connection a previously established connection to uri.
+     * @param response a response from uri.
      * @param output the destination for the bytes received from connection.
-     * @return a lambda providing the data from the given uri.
+     * @param requestContext the context for the request. Streaming might happen on another thread.
      */
     private static void pipeContent(
-            String request, URI uri, URI clientRequestURI, HttpURLConnection connection, OutputStream output) {
-        try (InputStream remoteStream = connection.getInputStream()) {
-            long copiedBytes = IOUtils.copyLarge(remoteStream, output);
+            String request, URI uri, URI clientRequestURI, UpstreamResponse response, OutputStream output,
+            RequestContext requestContext) {
+        long startNanos = System.nanoTime();
+        try (UpstreamResponse ignored = response;
+             InputStream remoteStream = response.getBody()) {
+            int first = remoteStream.read();
+            requestContext.recordStage(RequestContext.STAGE_FIRST_BYTE, System.nanoTime() - startNanos);
+            long copiedBytes = 0;
+            if (first != -1) {
+                output.write(first);
+                copiedBytes = 1 + BufferPool.getInstance().copy(remoteStream, output);
+            }
             log.debug("Proxied {} bytes for remote request '{}' for client request '{}'",
                       copiedBytes, uri, clientRequestURI);
         } catch (Exception e) {
             log.warn("Unable to proxy remote request '{}' for client request '{}'", uri, clientRequestURI);
             throw new InternalServerErrorException("Unable to serve request for image '" + request + "'");
+        } finally {
+            requestContext.recordStage(RequestContext.STAGE_STREAM, System.nanoTime() - startNanos);
         }
     }
 
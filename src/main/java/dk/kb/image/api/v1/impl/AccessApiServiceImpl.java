@@ -3,11 +3,21 @@ package dk.kb.image.api.v1.impl;
 import dk.kb.image.IIIFFacade;
 import dk.kb.image.IIPFacade;
 import dk.kb.image.api.v1.AccessApi;
+import dk.kb.image.cache.CachePolicy;
 import dk.kb.image.model.v1.DeepzoomDZIDto;
 import dk.kb.image.model.v1.IIIFInfoDto;
+import dk.kb.image.model.v1.ThumbnailAccessDto;
+import dk.kb.image.model.v1.ThumbnailAccessRequestDto;
+import dk.kb.image.model.v1.ThumbnailVerdictDto;
 import dk.kb.image.model.v1.ThumbnailsDto;
+import dk.kb.image.util.AsyncRequests;
 import dk.kb.image.util.ImageAccessValidation;
+import dk.kb.image.upstream.UpstreamClients;
 import dk.kb.image.util.KalturaUtil;
+import dk.kb.image.util.PlaceholderImages;
+import dk.kb.image.util.RequestContext;
+import dk.kb.image.util.RequestExecutor;
+import dk.kb.image.util.ThumbnailSigner;
 import dk.kb.util.webservice.ImplBase;
 import dk.kb.util.webservice.exception.InternalServiceException;
 import dk.kb.util.webservice.exception.InvalidArgumentServiceException;
@@ -22,8 +32,16 @@ import org.slf4j.LoggerFactory;
 import javax.validation.constraints.DecimalMin;
 import javax.ws.rs.*;
 import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
 import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 
 /**
  * ds-image
@@ -34,6 +52,12 @@ import java.util.List;
 @InInterceptors(interceptors = "dk.kb.image.webservice.KBAuthorizationInterceptor")
 public class AccessApiServiceImpl extends ImplBase implements AccessApi {
     private static final Logger log = LoggerFactory.getLogger(AccessApiServiceImpl.class);
+
+    /**
+     * The maximum number of identifiers for {@link #checkThumbnailAccess(ThumbnailAccessRequestDto)}.
+     */
+    public static final int MAX_THUMBNAIL_IDENTIFIERS = 500;
+    private static final Set<String> THUMBNAIL_FORMATS = Set.of("jpg", "png", "gif", "webp");
     
 
     /**
@@ -65,9 +89,12 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
     @ApiOperation(value = "DeepZoom Image information Nonescaped", tags={ "Access",  })
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Succes!", response = DeepzoomDZIDto.class) })
-    public StreamingOutput getDeepzoomDZINonescaped(@PathParam("imageid") String imageid)
+    public CompletionStage<StreamingOutput> getDeepzoomDZINonescaped(@PathParam("imageid") String imageid)
             throws ServiceException {
-        return rawGetDeepzoomDZI(imageid);
+        if (AsyncRequests.getInstance().isEnabled()) {
+            return rawGetDeepzoomDZIAsync(imageid);
+        }
+        return process(() -> rawGetDeepzoomDZI(imageid));
     }
 
     /**
@@ -76,13 +103,7 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
      */
     private StreamingOutput rawGetDeepzoomDZI(String imageid) throws ServiceException {
         try {
-            // This replace handles double encoding (%252F) of '/' being single-decoded to '%2F'
-            imageid = imageid.replace("%2F", "/");
-            log.debug("getDeepzoomDZI(imageid='{}') called with call details: {}", imageid, getCallDetails());
-            // MIME-TYPE has to be set in proxy helper
-            httpServletResponse.setContentType(getMIME("xml"));
-            httpServletResponse.setHeader("Access-Control-Allow-Origin", "*"); // Access controlled by OAuth2
-            setFilename(new File(imageid).getName() + ".dzi", false, false);
+            imageid = startDeepzoomDZI(imageid);
             return IIPFacade.getInstance().getDeepzoomDZI(
                     uriInfo.getRequestUri(), imageid,
                     httpServletResponse,httpHeaders);
@@ -92,6 +113,37 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
         }
     }
 
+    /**
+     * Asynchronous version of {@link #rawGetDeepzoomDZI(String)}.
+     */
+    private CompletionStage<StreamingOutput> rawGetDeepzoomDZIAsync(String imageid) throws ServiceException {
+        try {
+            imageid = startDeepzoomDZI(imageid);
+            return completeAsync(IIPFacade.getInstance().getDeepzoomDZIAsync(
+                    uriInfo.getRequestUri(), imageid,
+                    httpServletResponse, httpHeaders));
+        } catch (Exception e){
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Start the request and set the response headers for a DZI request.
+     * @return the normalised imageid.
+     */
+    private String startDeepzoomDZI(String imageid) {
+        startRequest(UpstreamClients.BACKEND_DEEPZOOM, RequestContext.ENDPOINT_DEEPZOOM_DZI);
+        // This replace handles double encoding (%252F) of '/' being single-decoded to '%2F'
+        imageid = imageid.replace("%2F", "/");
+        log.debug("getDeepzoomDZI(imageid='{}') called with call details: {}", imageid, getCallDetails());
+        // MIME-TYPE has to be set in proxy helper
+        httpServletResponse.setContentType(getMIME("xml"));
+        httpServletResponse.setHeader("Access-Control-Allow-Origin", "*"); // Access controlled by OAuth2
+        setFilename(new File(imageid).getName() + ".dzi", false, false);
+        CachePolicy.getInstance().apply(ImageAccessValidation.ACCESS_TYPE.ACCESS); // DZI is not license checked
+        return imageid;
+    }
+
     /**
      * DeepZoom Tile
      *
@@ -141,12 +193,15 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
     @ApiOperation(value = "DeepZoom Tile Nonescaped", tags={ "Access",  })
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Succes!", response = File.class) })
-    public javax.ws.rs.core.StreamingOutput getDeepzoomTileNonescaped(
+    public CompletionStage<StreamingOutput> getDeepzoomTileNonescaped(
             @PathParam("imageid") String imageid, @PathParam("layer") Integer layer, @PathParam("tiles") String tiles,
             @PathParam("format") String format, @QueryParam("CNT") @DecimalMin("0") Float CNT,
             @QueryParam("GAM") Float GAM, @QueryParam("CMP")  String CMP, @QueryParam("CTW")  String CTW,
             @QueryParam("INV")  Boolean INV, @QueryParam("COL")  String COL) throws ServiceException {
-        return rawGetDeepzoomTile(imageid, layer, tiles, format, CNT, GAM, CMP, CTW, INV, COL);
+        if (AsyncRequests.getInstance().isEnabled()) {
+            return rawGetDeepzoomTileAsync(imageid, layer, tiles, format, CNT, GAM, CMP, CTW, INV, COL);
+        }
+        return process(() -> rawGetDeepzoomTile(imageid, layer, tiles, format, CNT, GAM, CMP, CTW, INV, COL));
     }
 
 
@@ -156,13 +211,15 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
      */
     private StreamingOutput rawGetDeepzoomTile(String imageid, Integer layer, String tiles, String format, Float CNT, Float GAM, String CMP, String CTW, Boolean INV, String COL) throws ServiceException {
         try {
+            startRequest(UpstreamClients.BACKEND_DEEPZOOM, RequestContext.ENDPOINT_DEEPZOOM_TILE);
             log.debug("getDeepzoomTile(imageid='{}', layer={}, tiles='{}', format='{}', " +
                       "CNT={}, GAM={}, CMP='{}', CTW='{}', INV={}, COL='{}') called with call details: {}",
                       imageid, layer, tiles, format,
                       CNT, GAM, CMP, CTW, INV, COL,
                       getCallDetails());
             //This will always be fullsize image check            
-            StreamingOutput handleNoAccessOrNoImage = ImageAccessValidation.handleNoAccessOrNoImage(imageid, httpServletResponse, true); 
+            StreamingOutput handleNoAccessOrNoImage = ImageAccessValidation.handleNoAccessOrNoImage(
+                    imageid, httpServletResponse, true, PlaceholderImages.Variant.format(format));
             if (handleNoAccessOrNoImage != null) {
                 return handleNoAccessOrNoImage;
             }
@@ -179,6 +236,38 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
 
     }
 
+    /**
+     * Asynchronous version of {@link #rawGetDeepzoomTile}.
+     */
+    private CompletionStage<StreamingOutput> rawGetDeepzoomTileAsync(String imageid, Integer layer, String tiles, String format, Float CNT, Float GAM, String CMP, String CTW, Boolean INV, String COL) throws ServiceException {
+        try {
+            startRequest(UpstreamClients.BACKEND_DEEPZOOM, RequestContext.ENDPOINT_DEEPZOOM_TILE);
+            log.debug("getDeepzoomTileAsync(imageid='{}', layer={}, tiles='{}', format='{}', " +
+                      "CNT={}, GAM={}, CMP='{}', CTW='{}', INV={}, COL='{}') called with call details: {}",
+                      imageid, layer, tiles, format,
+                      CNT, GAM, CMP, CTW, INV, COL,
+                      getCallDetails());
+            URI requestURI = uriInfo.getRequestUri();
+            //This will always be fullsize image check
+            CompletableFuture<StreamingOutput> handleNoAccessOrNoImage = AsyncRequests.withDeadline(
+                    ImageAccessValidation.handleNoAccessOrNoImageAsync(
+                            imageid, httpServletResponse, true, PlaceholderImages.Variant.format(format)),
+                    "license check");
+            return completeAsync(handleNoAccessOrNoImage.thenCompose(RequestContext.current().bind(placeholder -> {
+                if (placeholder != null) {
+                    return CompletableFuture.completedFuture(placeholder);
+                }
+                httpServletResponse.setContentType(getMIME(format));
+                httpServletResponse.setHeader("Access-Control-Allow-Origin", "*"); // Access controlled by OAuth2
+                return IIPFacade.getInstance().getDeepzoomTileAsync(
+                        requestURI,
+                        imageid, layer, tiles, format, CNT, GAM, CMP, CTW, INV, COL, httpHeaders);
+            })));
+        } catch (Exception e){
+            throw handleException(e);
+        }
+    }
+
 
     /**
      * IIIF Image Information
@@ -206,8 +295,11 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
     @Produces({ "application/ld+json", "application/xml" })
     @ApiOperation(value = "IIIF Image Information Nonescaped", tags={ "Access",  })
     @ApiResponses(value = { @ApiResponse(code = 200, message = "Succes!", response = IIIFInfoDto.class) })
-    public javax.ws.rs.core.StreamingOutput getImageInformationNonescaped(@PathParam("identifier") String identifier, @PathParam("format") String format) throws ServiceException {
-        return rawGetImageInformation(identifier, format);
+    public CompletionStage<StreamingOutput> getImageInformationNonescaped(@PathParam("identifier") String identifier, @PathParam("format") String format) throws ServiceException {
+        if (AsyncRequests.getInstance().isEnabled()) {
+            return rawGetImageInformationAsync(identifier, format);
+        }
+        return process(() -> rawGetImageInformation(identifier, format));
     }
 
     /**
@@ -217,18 +309,7 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
      */
     private javax.ws.rs.core.StreamingOutput rawGetImageInformation(String identifier, String format) throws ServiceException {
         try {
-            // This replace handles double encoding (%252F) of '/' being single-decoded to '%2F'
-            
-            identifier = identifier.replace("%2F", "/");
-            log.debug("getImageInformation(identifier='{}' format='{}') called with call details: {}",
-                      identifier, format, getCallDetails());
-            String[] elements = identifier.split("[/\\\\]");
-            String filename = "info_" + elements[elements.length - 1] + "." + format;
-            // Show download link in Swagger UI, inline when opened directly in browser
-            setFilename(filename, false, false);
-            httpServletResponse.setContentType(getMIME(format));
-            httpServletResponse.setHeader("Access-Control-Allow-Origin", "*"); // Access controlled by OAuth2
-
+            identifier = startImageInformation(identifier, format);
             // TODO: Add support for XML when the OpenAPI specification has been corrected
             return IIIFFacade.getInstance().getIIIFInfo(uriInfo.getRequestUri(), identifier, "json",httpHeaders);
         } catch (Exception e) {
@@ -236,6 +317,41 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
         }
     }
 
+    /**
+     * Asynchronous version of {@link #rawGetImageInformation(String, String)}.
+     */
+    private CompletionStage<StreamingOutput> rawGetImageInformationAsync(String identifier, String format) throws ServiceException {
+        try {
+            identifier = startImageInformation(identifier, format);
+            return completeAsync(IIIFFacade.getInstance().getIIIFInfoAsync(
+                    uriInfo.getRequestUri(), identifier, "json", httpHeaders));
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Start the request and set the response headers for an image information request.
+     * @return the normalised identifier.
+     */
+    private String startImageInformation(String identifier, String format) {
+        startRequest(UpstreamClients.BACKEND_IIIF, RequestContext.ENDPOINT_IIIF_INFO);
+        // This replace handles double encoding (%252F) of '/' being single-decoded to '%2F'
+
+        identifier = identifier.replace("%2F", "/");
+        log.debug("getImageInformation(identifier='{}' format='{}') called with call details: {}",
+                  identifier, format, getCallDetails());
+        String[] elements = identifier.split("[/\\\\]");
+        String filename = "info_" + elements[elements.length - 1] + "." + format;
+        // Show download link in Swagger UI, inline when opened directly in browser
+        setFilename(filename, false, false);
+        httpServletResponse.setContentType(getMIME(format));
+        httpServletResponse.setHeader("Access-Control-Allow-Origin", "*"); // Access controlled by OAuth2
+
+        CachePolicy.getInstance().apply(ImageAccessValidation.ACCESS_TYPE.ACCESS); // info is not license checked
+        return identifier;
+    }
+
     /**
      * IIIF Image Request
      * 
@@ -278,11 +394,14 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
     @ApiResponses(value = {
         @ApiResponse(code = 200, message = "Succes!", response = File.class),
         @ApiResponse(code = 400, message = "Bad Request. Please check the formating of the parameters: region, size and rotation.  Check if the requested region’s height or width is zero, or if the region is entirely outside the bounds of the reported dimensions  Requests for sizes not prefixed with ^ that result in a scaled region with pixel dimensions greater than the pixel dimensions of the extracted region are errors that should result in a 400 (Bad Request) status code.  Check for syntax errors in size parameter  A rotation value that is out of range or unsupported should result in a 400 (Bad Request) status code.") })
-    public javax.ws.rs.core.StreamingOutput iIIFImageRequestNonescaped(
+    public CompletionStage<StreamingOutput> iIIFImageRequestNonescaped(
             @PathParam("identifier") String identifier, @PathParam("region") String region,
             @PathParam("size") String size, @PathParam("rotation") String rotation,
             @PathParam("quality") String quality, @PathParam("format") String format) {
-        return rawIIIFImageRequest(identifier, region, size, rotation, quality, format);
+        if (AsyncRequests.getInstance().isEnabled()) {
+            return rawIIIFImageRequestAsync(identifier, region, size, rotation, quality, format);
+        }
+        return process(() -> rawIIIFImageRequest(identifier, region, size, rotation, quality, format));
     }
 
     /**
@@ -295,29 +414,24 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
             String identifier, String region, String size, String rotation, String quality, String format)
             throws ServiceException {
         try {
-            // This replace handles double encoding (%252F) of '/' being single-decoded to '%2F'
-            identifier = identifier.replace("%2F", "/");
-            log.debug("iIIFImageRequest(identifier='{}', region='{}', size='{}', rotation='{}', quality='{}', " +
-                      "format='{}') called with call details: {}",
-                      identifier, region, size, rotation, quality, format, getCallDetails());
-            String[] elements = identifier.split("[/\\\\]");
-            String filename = elements[elements.length - 1] + "." + format;
-            // Show download link in Swagger UI, inline when opened directly in browser
-            
-
-            setFilename(filename, false, false);
-            httpServletResponse.setContentType(getMIME(format));
-            httpServletResponse.setHeader("Access-Control-Allow-Origin", "*"); // Access controlled by OAuth2
+            identifier = startIIIFImageRequest(identifier, region, size, rotation, quality, format);
 
             //We only have size and region, from IIIF spec we have to calcuate height/width
             
             boolean thumbnail=ImageAccessValidation.isThumbnailIIIF(identifier, region,  size,rotation, quality, format);
             log.debug("Image presentation type was parsed as thumbnail={} from parameters for identifer={}",thumbnail,identifier);
                     
-            //Will return null if there is access to the image.
-            StreamingOutput handleNoAccessOrNoImage = ImageAccessValidation.handleNoAccessOrNoImage(identifier, httpServletResponse, thumbnail);
-            if (handleNoAccessOrNoImage != null) {
-                return handleNoAccessOrNoImage;
+            // Thumbnail URLs from checkThumbnailAccess are signed and have already been checked
+            boolean signed = isSignedThumbnail(thumbnail, identifier, size, format);
+            if (signed) {
+                CachePolicy.getInstance().apply(ImageAccessValidation.ACCESS_TYPE.ACCESS);
+            } else {
+                //Will return null if there is access to the image.
+                StreamingOutput handleNoAccessOrNoImage = ImageAccessValidation.handleNoAccessOrNoImage(
+                        identifier, httpServletResponse, thumbnail, PlaceholderImages.Variant.iiif(size, format));
+                if (handleNoAccessOrNoImage != null) {
+                    return handleNoAccessOrNoImage;
+                }
             }
 
             return IIIFFacade.getInstance().getIIIFImage(
@@ -329,6 +443,71 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
         
     }
 
+    /**
+     * Asynchronous version of {@link #rawIIIFImageRequest(String, String, String, String, String, String)}.
+     */
+    private CompletionStage<StreamingOutput> rawIIIFImageRequestAsync(
+            String identifier, String region, String size, String rotation, String quality, String format)
+            throws ServiceException {
+        try {
+            final String id = startIIIFImageRequest(identifier, region, size, rotation, quality, format);
+            boolean thumbnail = ImageAccessValidation.isThumbnailIIIF(id, region, size, rotation, quality, format);
+            log.debug("Image presentation type was parsed as thumbnail={} from parameters for identifer={}",
+                      thumbnail, id);
+            URI requestURI = uriInfo.getRequestUri();
+
+            // Thumbnail URLs from checkThumbnailAccess are signed and have already been checked
+            if (isSignedThumbnail(thumbnail, id, size, format)) {
+                CachePolicy.getInstance().apply(ImageAccessValidation.ACCESS_TYPE.ACCESS);
+                return completeAsync(IIIFFacade.getInstance().getIIIFImageAsync(
+                        requestURI, id, region, size, rotation, quality, format, httpHeaders));
+            }
+            //Will complete with null if there is access to the image.
+            CompletableFuture<StreamingOutput> handleNoAccessOrNoImage = AsyncRequests.withDeadline(
+                    ImageAccessValidation.handleNoAccessOrNoImageAsync(
+                            id, httpServletResponse, thumbnail, PlaceholderImages.Variant.iiif(size, format)),
+                    "license check");
+            return completeAsync(handleNoAccessOrNoImage.thenCompose(RequestContext.current().bind(placeholder ->
+                    placeholder != null ?
+                            CompletableFuture.completedFuture(placeholder) :
+                            IIIFFacade.getInstance().getIIIFImageAsync(
+                                    requestURI, id, region, size, rotation, quality, format, httpHeaders))));
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Start the request and set the response headers for an IIIF image request.
+     * @return the normalised identifier.
+     */
+    private String startIIIFImageRequest(
+            String identifier, String region, String size, String rotation, String quality, String format) {
+        startRequest(UpstreamClients.BACKEND_IIIF, RequestContext.ENDPOINT_IIIF_IMAGE);
+        // This replace handles double encoding (%252F) of '/' being single-decoded to '%2F'
+        identifier = identifier.replace("%2F", "/");
+        log.debug("iIIFImageRequest(identifier='{}', region='{}', size='{}', rotation='{}', quality='{}', " +
+                  "format='{}') called with call details: {}",
+                  identifier, region, size, rotation, quality, format, getCallDetails());
+        String[] elements = identifier.split("[/\\\\]");
+        String filename = elements[elements.length - 1] + "." + format;
+        // Show download link in Swagger UI, inline when opened directly in browser
+        setFilename(filename, false, false);
+        httpServletResponse.setContentType(getMIME(format));
+        httpServletResponse.setHeader("Access-Control-Allow-Origin", "*"); // Access controlled by OAuth2
+        return identifier;
+    }
+
+    /**
+     * @return true if the request is for a thumbnail with a valid signature from {@link ThumbnailSigner}.
+     */
+    private boolean isSignedThumbnail(boolean thumbnail, String identifier, String size, String format) {
+        return ImageAccessValidation.isSignedThumbnail(
+                thumbnail, identifier, size, format,
+                uriInfo.getQueryParameters().getFirst(ThumbnailSigner.PARAM_EXPIRES),
+                uriInfo.getQueryParameters().getFirst(ThumbnailSigner.PARAM_SIGNATURE));
+    }
+
     
     
     /**
@@ -380,6 +559,7 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
             String FIF, Long WID, Long HEI, List<Float> RGN, Integer QLT, Float CNT, String ROT, Float GAM, String CMP, String PFL, String CTW, Boolean INV, String COL,
             List<Integer> JTL, List<Integer> PTL, String CVT) throws ServiceException {
         try {     
+            startRequest(UpstreamClients.BACKEND_IIP, RequestContext.ENDPOINT_IIP);
             log.debug("IIPImageRequest(FIF='{}', WID={}, HEI={}, RGN={}, QLT={}, CNT={}, " +
                       "ROT={}, GAM={}, CMP='{}', PFL='{}', CTW='{}', INV={}, COL='{}', " +
                       "JTL={}, PTL={}, CVT='{}') called with call details: {}",
@@ -393,7 +573,8 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
             boolean thumbnail=ImageAccessValidation.isThumbnailIIP(FIF,WID,HEI,  RGN, QLT, CNT,  ROT,GAM, CMP,  PFL,  CTW,INV, COL, JTL, PTL,CVT);
             log.debug("Image presentation type was parsed as thumbnail={} from parameters for FIF={}",thumbnail,FIF);            
             
-            StreamingOutput handleNoAccessOrNoImage = ImageAccessValidation.handleNoAccessOrNoImage(FIF, httpServletResponse, thumbnail);
+            StreamingOutput handleNoAccessOrNoImage = ImageAccessValidation.handleNoAccessOrNoImage(
+                    FIF, httpServletResponse, thumbnail, PlaceholderImages.Variant.iip(WID, HEI, CVT));
             if (handleNoAccessOrNoImage != null) {                 
                 return handleNoAccessOrNoImage;
             }
@@ -415,6 +596,141 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
 
     
     
+    /**
+     * Check thumbnail access for multiple images with a single call to the license module.
+     *
+     * @param thumbnailAccessRequestDto the identifiers and the thumbnail size.
+     *
+     * @return the access verdict for each identifier and, for identifiers with access, a thumbnail URL that is
+     *         signed with {@link ThumbnailSigner} if signed URLs are enabled.
+     */
+    @Override
+    public ThumbnailAccessDto checkThumbnailAccess(ThumbnailAccessRequestDto thumbnailAccessRequestDto)
+            throws ServiceException {
+        try {
+            startRequest(UpstreamClients.BACKEND_IIIF, RequestContext.ENDPOINT_THUMBNAIL_ACCESS);
+            List<String> identifiers = thumbnailAccessRequestDto.getIdentifiers();
+            if (identifiers == null || identifiers.isEmpty()) {
+                throw new InvalidArgumentServiceException("At least one identifier must be given");
+            }
+            if (identifiers.size() > MAX_THUMBNAIL_IDENTIFIERS) {
+                throw new InvalidArgumentServiceException(
+                        "At most " + MAX_THUMBNAIL_IDENTIFIERS + " identifiers are allowed, but " +
+                        identifiers.size() + " were given");
+            }
+            String format = thumbnailAccessRequestDto.getFormat() == null ? "jpg" : thumbnailAccessRequestDto.getFormat();
+            if (!THUMBNAIL_FORMATS.contains(format)) {
+                throw new InvalidArgumentServiceException(
+                        "Unsupported thumbnail format '" + format + "'. Supported formats are " + THUMBNAIL_FORMATS);
+            }
+            String size = thumbnailAccessRequestDto.getWidth() + "," + thumbnailAccessRequestDto.getHeight();
+            if (thumbnailAccessRequestDto.getWidth() == null || thumbnailAccessRequestDto.getHeight() == null ||
+                !ImageAccessValidation.isThumbnailIIIF(identifiers.get(0), "full", size, "0", "default", format)) {
+                throw new InvalidArgumentServiceException(
+                        "The size '" + size + "' is not a valid thumbnail size");
+            }
+            log.debug("checkThumbnailAccess(#identifiers={}, size='{}', format='{}') called with call details: {}",
+                      identifiers.size(), size, format, getCallDetails());
+
+            Map<String, ImageAccessValidation.ACCESS_TYPE> types =
+                    ImageAccessValidation.accessTypesForThumbnails(identifiers);
+            ThumbnailSigner signer = ImageAccessValidation.getThumbnailSigner();
+            long expires = signer.getExpires();
+
+            List<ThumbnailVerdictDto> verdicts = new ArrayList<>(identifiers.size());
+            for (String identifier: identifiers) {
+                ImageAccessValidation.ACCESS_TYPE type = types.get(identifier);
+                ThumbnailVerdictDto verdict = new ThumbnailVerdictDto();
+                verdict.setIdentifier(identifier);
+                verdict.setAccess(type.name());
+                if (type == ImageAccessValidation.ACCESS_TYPE.ACCESS) {
+                    verdict.setUrl(thumbnailURL(
+                            uriInfo.getBaseUriBuilder(), identifier, size, format, signer, expires).toString());
+                }
+                verdicts.add(verdict);
+            }
+
+            ThumbnailAccessDto response = new ThumbnailAccessDto();
+            if (signer.isEnabled()) {
+                response.setExpires(expires);
+            }
+            response.setThumbnails(verdicts);
+            return response;
+        } catch (Exception e) {
+            throw handleException(e);
+        }
+    }
+
+    /**
+     * Build the IIIF URL for a thumbnail, signed if signed URLs are enabled.
+     * <p>
+     * Slashes in the identifier are kept, so the URL is handled by the non-escaped IIIF endpoint. Containers
+     * such as Tomcat reject encoded slashes ({@code %2F}) in paths by default. All other reserved characters in
+     * the identifier are encoded.
+     * @param base the base URI of the service.
+     * @return the URL for the thumbnail.
+     */
+    static URI thumbnailURL(UriBuilder base, String identifier, String size, String format,
+                            ThumbnailSigner signer, long expires) {
+        UriBuilder url = base.path("IIIF/{identifier}/full/{size}/0/default.{format}");
+        String signature = signer.sign(identifier, size, format, expires);
+        if (signature != null) {
+            url.queryParam(ThumbnailSigner.PARAM_EXPIRES, expires)
+               .queryParam(ThumbnailSigner.PARAM_SIGNATURE, signature);
+        }
+        return url.build(new Object[]{identifier, size, format}, false);
+    }
+
+    /**
+     * Process the request on the {@link RequestExecutor} if it is enabled, else on the calling thread.
+     * @param request the synchronous processing of the request.
+     * @return the result of the processing.
+     */
+    private CompletionStage<StreamingOutput> process(Supplier<StreamingOutput> request) {
+        RequestExecutor executor = RequestExecutor.getInstance();
+        if (!executor.isEnabled()) {
+            return CompletableFuture.completedFuture(request.get());
+        }
+        return completeAsync(executor.submit(request));
+    }
+
+    /**
+     * Map failures from asynchronous processing to the same responses as for synchronous processing.
+     * <p>
+     * The response is delivered from the thread that completes the future, so the {@link RequestContext} is
+     * removed from the request thread, which returns to the container when the endpoint method returns. The
+     * asynchronous processing has the context from {@link RequestContext#bind} or from the request properties.
+     * @param future the result of asynchronous processing.
+     * @return the result with failures mapped by {@link #handleException(Exception)}.
+     */
+    private CompletionStage<StreamingOutput> completeAsync(CompletableFuture<StreamingOutput> future) {
+        CompletableFuture<StreamingOutput> result = new CompletableFuture<>();
+        future.whenComplete((output, e) -> {
+            if (e == null) {
+                result.complete(output);
+                return;
+            }
+            Throwable cause = AsyncRequests.unwrap(e);
+            result.completeExceptionally(cause instanceof Exception ? handleException((Exception) cause) : cause);
+        });
+        RequestContext.end();
+        return result;
+    }
+
+    /**
+     * Set the end-to-end deadline for the current request, using the budget for the given backend, and make the
+     * backend, the HTTP headers and response available through {@link RequestContext}.
+     * @param backend  the backend that will serve the request, e.g. {@link UpstreamClients#BACKEND_IIIF}.
+     * @param endpoint the endpoint that handles the request, e.g. {@link RequestContext#ENDPOINT_IIIF_IMAGE}.
+     */
+    private void startRequest(String backend, String endpoint) {
+        RequestContext.current()
+                .setBudget(UpstreamClients.getSettings(backend).getDeadlineMs())
+                .setHttp(httpHeaders, httpServletResponse)
+                .setBackend(backend)
+                .setEndpoint(endpoint);
+    }
+
     /**
      * Derives the MIME type for replies. Only supports formats from IIIF Image and IIP protocols.
      * @param format simple form, e.g. {@code jpeg}, {@code pdf}...
@@ -467,13 +783,18 @@ public class AccessApiServiceImpl extends ImplBase implements AccessApi {
         if (kalturaId == null) {
             throw new InvalidArgumentServiceException("kalturaId must not be null");
         }        
+        RequestContext requestContext =
+                RequestContext.current().setEndpoint(RequestContext.ENDPOINT_KALTURA_THUMBNAILS);
+        long startNanos = System.nanoTime();
         try {
            ThumbnailsDto thumbnails = KalturaUtil.generateThumbnails( kalturaId, numberOfThumbnails, secondStartSeek, secondEndSeek,width, height);
             return thumbnails;
         }
         catch(Exception e) {
             throw handleException(e); //Expected that the ID is not found at Kaltura with our test data and then a 404 will be returned.                        
-        }               
+        } finally {
+            requestContext.recordStage(RequestContext.STAGE_KALTURA, System.nanoTime() - startNanos);
+        }
     }
 
 }
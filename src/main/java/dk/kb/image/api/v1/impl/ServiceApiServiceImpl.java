@@ -1,9 +1,27 @@
 package dk.kb.image.api.v1.impl;
 
+import dk.kb.image.IIPFacade;
 import dk.kb.image.api.v1.ServiceApi;
+import dk.kb.image.cache.TileCache;
+import dk.kb.image.model.v1.BreakerDto;
+import dk.kb.image.model.v1.CacheStatsDto;
+import dk.kb.image.model.v1.EndpointLoadDto;
+import dk.kb.image.model.v1.LatencyPercentilesDto;
+import dk.kb.image.model.v1.PoolDto;
 import dk.kb.image.model.v1.StatusDto;
 import dk.kb.image.model.v1.WhoamiDto;
 import dk.kb.image.model.v1.WhoamiTokenDto;
+import dk.kb.image.upstream.BalancedUpstreamClient;
+import dk.kb.image.upstream.CircuitBreaker;
+import dk.kb.image.upstream.UpstreamClient;
+import dk.kb.image.upstream.UpstreamClients;
+import dk.kb.image.upstream.UpstreamPool;
+import dk.kb.image.util.ImageAccessValidation;
+import dk.kb.image.util.InFlightRequests;
+import dk.kb.image.util.LicenseDecisionCache;
+import dk.kb.image.util.LicenseModuleGuard;
+import dk.kb.image.util.PlaceholderImages;
+import dk.kb.image.util.StageMetrics;
 import dk.kb.util.BuildInfoManager;
 import dk.kb.util.webservice.ImplBase;
 import dk.kb.util.webservice.exception.ServiceException;
@@ -16,15 +34,19 @@ import org.slf4j.LoggerFactory;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 /**
  * Basic endpoints relevant for all services.
- * TODO: The {@link #status()} should be extended with application specific status information
  */
 public class ServiceApiServiceImpl extends ImplBase implements ServiceApi {
     private static final Logger log = LoggerFactory.getLogger(ServiceApiServiceImpl.class);
 
+    public static final String HEALTH_OK = "ok";
+    public static final String HEALTH_DEGRADED = "degraded";
+    public static final String HEALTH_DOWN = "down";
+
     /**
      * Ping the server to check if the server is reachable.
      */
@@ -39,6 +61,20 @@ public class ServiceApiServiceImpl extends ImplBase implements ServiceApi {
         }
     }
 
+    /**
+     * Latency histograms for the processing stages of requests in the Prometheus text format.
+     * @see StageMetrics
+     */
+    @Override
+    public String metrics() throws ServiceException {
+        try {
+            log.debug("metrics() called with call details: {}", getCallDetails());
+            return StageMetrics.toPrometheus();
+        } catch (Exception e){
+            throw handleException(e);
+        }
+    }
+
     /**
      * Extract info from OAUth2 accessTokens.
      * @return OAUth2 roles from the caller's accessToken, if present.
@@ -67,9 +103,9 @@ public class ServiceApiServiceImpl extends ImplBase implements ServiceApi {
     /**
      * Detailed status / health check for the service.
      * <p>
-     * The default implementation presents status information available to all web applications.
-     * This should be extended with application specific information, such as number of running jobs or
-     * current load.
+     * Besides the general information, the status contains the current load in the form of requests in progress
+     * and connection pool usage, cache statistics, latencies for the license module and the state of the circuit
+     * breakers. The health is derived from the circuit breakers, see {@link #getHealth()}.
      */
     @Override
     public StatusDto status() {
@@ -93,11 +129,127 @@ public class ServiceApiServiceImpl extends ImplBase implements ServiceApi {
                     .gitBranch(BuildInfoManager.getGitBranch())
                     .gitClosestTag(BuildInfoManager.getGitClosestTag())
                     .gitCommitTime(BuildInfoManager.getGitCommitTime())
-                    .health("ok");
+                    .breakers(getBreakers())
+                    .inFlight(getInFlight())
+                    .pools(getPools())
+                    .caches(getCaches())
+                    .licenseLatency(getLicenseLatency())
+                    .health(getHealth());
         } catch (Exception e) {
             throw handleException(e);
         }
     }
 
+    /**
+     * @return the state of the circuit breakers for the image servers and the license module.
+     */
+    private static List<BreakerDto> getBreakers() {
+        List<BreakerDto> breakers = new ArrayList<>();
+        for (UpstreamClient client: UpstreamClients.getClients()) {
+            UpstreamPool pool = client.getPool();
+            breakers.add(toBreakerDto(pool.getCircuitBreaker(), pool.getRejected()));
+        }
+        LicenseModuleGuard licenseGuard = ImageAccessValidation.getLicenseGuard();
+        breakers.add(toBreakerDto(licenseGuard.getCircuitBreaker(), licenseGuard.getRejected()));
+        return breakers;
+    }
+
+    /**
+     * @return {@link #HEALTH_DOWN} if all replicas of an image server or the license module are unreachable,
+     *         {@link #HEALTH_DEGRADED} if some replicas are unreachable, else {@link #HEALTH_OK}.
+     */
+    private static String getHealth() {
+        if (ImageAccessValidation.getLicenseGuard().getCircuitBreaker().getState() == CircuitBreaker.State.OPEN) {
+            return HEALTH_DOWN;
+        }
+        for (BalancedUpstreamClient imageServer: UpstreamClients.getImageServers()) {
+            if (!imageServer.isAvailable()) {
+                return HEALTH_DOWN;
+            }
+        }
+        for (UpstreamClient client: UpstreamClients.getClients()) {
+            if (client.getPool().getCircuitBreaker().getState() == CircuitBreaker.State.OPEN) {
+                return HEALTH_DEGRADED;
+            }
+        }
+        return HEALTH_OK;
+    }
+
+    /**
+     * @return the number of requests in progress per endpoint.
+     */
+    private static List<EndpointLoadDto> getInFlight() {
+        List<EndpointLoadDto> inFlight = new ArrayList<>();
+        InFlightRequests.getInFlight().forEach((endpoint, count) -> inFlight.add(
+                new EndpointLoadDto().endpoint(endpoint).inFlight(count)));
+        return inFlight;
+    }
+
+    /**
+     * @return the usage of the connection pools for the image servers and their replicas.
+     */
+    private static List<PoolDto> getPools() {
+        List<PoolDto> pools = new ArrayList<>();
+        for (UpstreamClient client: UpstreamClients.getClients()) {
+            UpstreamPool pool = client.getPool();
+            pools.add(new PoolDto()
+                              .name(pool.getBackend())
+                              .maxConnections(pool.getMaxConnections())
+                              .leased(pool.getLeased())
+                              .pending(pool.getPending())
+                              .requests(pool.getRequests())
+                              .rejected(pool.getRejected()));
+        }
+        return pools;
+    }
+
+    /**
+     * @return hit statistics for the license decision cache, the tile cache and the rendered placeholders.
+     */
+    private static List<CacheStatsDto> getCaches() {
+        LicenseDecisionCache decisions = ImageAccessValidation.getDecisionCache();
+        TileCache tiles = IIPFacade.getInstance().getTileCache();
+        PlaceholderImages placeholders = PlaceholderImages.getInstance();
+        return List.of(
+                toCacheStatsDto("license", decisions.isEnabled(), decisions.getHits(), decisions.getMisses()),
+                toCacheStatsDto("tiles", tiles.isEnabled(), tiles.getHeapHits() + tiles.getDiskHits(),
+                                tiles.getMisses()),
+                toCacheStatsDto("placeholders", true, placeholders.getRenderHits(), placeholders.getRenderMisses()));
+    }
+
+    private static CacheStatsDto toCacheStatsDto(String name, boolean enabled, long hits, long misses) {
+        return new CacheStatsDto()
+                .name(name)
+                .enabled(enabled)
+                .hits(hits)
+                .misses(misses)
+                .hitRatio(hits + misses == 0 ? null : (double) hits / (hits + misses));
+    }
+
+    /**
+     * @return latency percentiles for the calls to the license module.
+     */
+    private static LatencyPercentilesDto getLicenseLatency() {
+        LicenseModuleGuard licenseGuard = ImageAccessValidation.getLicenseGuard();
+        return new LatencyPercentilesDto()
+                .calls(licenseGuard.getCalls())
+                .p50Ms(licenseGuard.getLatencyPercentileMs(50))
+                .p95Ms(licenseGuard.getLatencyPercentileMs(95))
+                .p99Ms(licenseGuard.getLatencyPercentileMs(99));
+    }
+
+    /**
+     * @param breaker         a circuit breaker.
+     * @param bulkheadRejects the number of calls rejected because too many calls were in progress.
+     */
+    private static BreakerDto toBreakerDto(CircuitBreaker breaker, long bulkheadRejects) {
+        return new BreakerDto()
+                .name(breaker.getName())
+                .state(breaker.getState().name())
+                .consecutiveFailures(breaker.getConsecutiveFailures())
+                .rejected(breaker.getRejected() + bulkheadRejects)
+                .trips(breaker.getTrips());
+    }
+
     
 }
@@ -0,0 +1,207 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.cache;
+
+import dk.kb.image.config.ConfigBound;
+import dk.kb.image.util.ImageAccessValidation.ACCESS_TYPE;
+import dk.kb.image.util.RequestContext;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Rule based caching headers for responses from ds-image: {@code Cache-Control} for browsers and shared caches,
+ * {@code Surrogate-Control} for reverse proxies and {@code Vary}.
+ * <p>
+ * Rules are matched on the endpoint, see {@link RequestContext#getEndpoint()}, and the access outcome from the
+ * license check. The first matching rule is used. If no rule matches, no headers are set and the
+ * {@code Cache-Control} from the image server, if any, is passed on.
+ * <p>
+ * The policy is configured under {@code cache.control} in the behaviour config and is disabled by default.
+ */
+public class CachePolicy {
+    private static final Logger log = LoggerFactory.getLogger(CachePolicy.class);
+
+    public static final String KEY_CONTROL = "cache.control";
+
+    public static final String CACHE_CONTROL = "Cache-Control";
+    public static final String SURROGATE_CONTROL = "Surrogate-Control";
+    public static final String VARY = "Vary";
+
+    /**
+     * Outcome names used in the configuration. They match the names used in {@code licensemodule.cache}.
+     */
+    public static final String OUTCOME_ACCESS = "access";
+    public static final String OUTCOME_NO_ACCESS = "noAccess";
+    public static final String OUTCOME_NON_EXISTING = "nonExisting";
+
+    private static final ConfigBound<CachePolicy> instance = new ConfigBound<>(CachePolicy::create);
+
+    private final List<Rule> rules;
+
+    /**
+     * @return the cache policy for the current configuration.
+     */
+    public static CachePolicy getInstance() {
+        return instance.get();
+    }
+
+    /**
+     * Create a cache policy from the {@code cache.control} part of the configuration.
+     * @param config the full configuration. If null or if {@code cache.control.enabled} is not true, a policy
+     *               without rules is returned.
+     * @return a cache policy.
+     */
+    public static CachePolicy create(YAML config) {
+        if (config == null || !config.getBoolean(KEY_CONTROL + ".enabled", false) ||
+            !config.containsKey(KEY_CONTROL + ".rules")) {
+            return new CachePolicy(Collections.emptyList());
+        }
+        List<Rule> rules = new ArrayList<>();
+        for (YAML ruleConfig: config.getYAMLList(KEY_CONTROL + ".rules")) {
+            rules.add(new Rule(
+                    new HashSet<>(ruleConfig.getList("endpoints", Collections.emptyList())),
+                    toOutcomes(ruleConfig.getList("outcomes", Collections.emptyList())),
+                    ruleConfig.getString("cacheControl", null),
+                    ruleConfig.getString("surrogateControl", null),
+                    ruleConfig.getString("vary", null)));
+        }
+        CachePolicy policy = new CachePolicy(rules);
+        log.info("Created {}", policy);
+        return policy;
+    }
+
+    private static Set<ACCESS_TYPE> toOutcomes(List<String> names) {
+        Set<ACCESS_TYPE> outcomes = EnumSet.noneOf(ACCESS_TYPE.class);
+        for (String name: names) {
+            switch (name) {
+                case OUTCOME_ACCESS: outcomes.add(ACCESS_TYPE.ACCESS); break;
+                case OUTCOME_NO_ACCESS: outcomes.add(ACCESS_TYPE.NO_ACCESS); break;
+                case OUTCOME_NON_EXISTING: outcomes.add(ACCESS_TYPE.ID_NON_EXISTING); break;
+                default: throw new IllegalArgumentException(String.format(
+                        Locale.ROOT, "Unknown outcome '%s' in %s.rules. Valid outcomes are %s, %s and %s",
+                        name, KEY_CONTROL, OUTCOME_ACCESS, OUTCOME_NO_ACCESS, OUTCOME_NON_EXISTING));
+            }
+        }
+        return outcomes;
+    }
+
+    CachePolicy(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Set the caching headers on the response for the current request, using the endpoint from
+     * {@link RequestContext}. Outside of a request, nothing is done.
+     * @param outcome the result of the license check. Use {@link ACCESS_TYPE#ACCESS} for endpoints that are not
+     *                license checked.
+     */
+    public void apply(ACCESS_TYPE outcome) {
+        RequestContext requestContext = RequestContext.current();
+        apply(requestContext.getServletResponse(), requestContext.getEndpoint(), outcome);
+    }
+
+    /**
+     * Set the caching headers on the response from the first rule matching the endpoint and the outcome.
+     * @param response the response to set the headers on. If null, nothing is done.
+     * @param endpoint the endpoint, e.g. {@link RequestContext#ENDPOINT_DEEPZOOM_TILE}. Can be null.
+     * @param outcome  the result of the license check.
+     * @return true if a rule matched.
+     */
+    public boolean apply(HttpServletResponse response, String endpoint, ACCESS_TYPE outcome) {
+        if (response == null) {
+            return false;
+        }
+        Rule rule = getRule(endpoint, outcome);
+        if (rule == null) {
+            return false;
+        }
+        setHeader(response, CACHE_CONTROL, rule.cacheControl);
+        setHeader(response, SURROGATE_CONTROL, rule.surrogateControl);
+        setHeader(response, VARY, rule.vary);
+        return true;
+    }
+
+    private static void setHeader(HttpServletResponse response, String header, String value) {
+        if (value != null && !value.isEmpty()) {
+            response.setHeader(header, value);
+        }
+    }
+
+    /**
+     * @return the first rule matching the endpoint and the outcome or null if no rules matches.
+     */
+    Rule getRule(String endpoint, ACCESS_TYPE outcome) {
+        for (Rule rule: rules) {
+            if (rule.matches(endpoint, outcome)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the policy has any rules.
+     */
+    public boolean isEnabled() {
+        return !rules.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "CachePolicy(rules=" + rules + ")";
+    }
+
+    /**
+     * A caching rule. Empty endpoints or outcomes matches all.
+     */
+    static final class Rule {
+        private final Set<String> endpoints;
+        private final Set<ACCESS_TYPE> outcomes;
+        final String cacheControl;
+        final String surrogateControl;
+        final String vary;
+
+        Rule(Set<String> endpoints, Set<ACCESS_TYPE> outcomes,
+             String cacheControl, String surrogateControl, String vary) {
+            this.endpoints = endpoints;
+            this.outcomes = outcomes;
+            this.cacheControl = cacheControl;
+            this.surrogateControl = surrogateControl;
+            this.vary = vary;
+        }
+
+        boolean matches(String endpoint, ACCESS_TYPE outcome) {
+            return (endpoints.isEmpty() || endpoints.contains(endpoint)) &&
+                   (outcomes.isEmpty() || outcomes.contains(outcome));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Rule(endpoints=%s, outcomes=%s, cacheControl='%s', " +
+                                              "surrogateControl='%s', vary='%s')",
+                                 endpoints, outcomes, cacheControl, surrogateControl, vary);
+        }
+    }
+}
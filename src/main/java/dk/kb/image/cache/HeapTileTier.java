@@ -0,0 +1,93 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-heap LRU cache for tiles, bounded by the total number of bytes for the tiles.
+ */
+class HeapTileTier {
+    private final long maxBytes;
+    private final LinkedHashMap<String, Tile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxBytes the maximum number of bytes for all tiles in the tier.
+     */
+    HeapTileTier(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param key the key for a tile.
+     * @return the tile or null if it is not in the tier.
+     */
+    synchronized Tile get(String key) {
+        return tiles.get(key);
+    }
+
+    /**
+     * Add the tile to the tier, evicting the least recently used tiles if needed.
+     * Tiles larger than the maximum size for the tier are ignored.
+     * @param key  the key for the tile.
+     * @param tile the tile.
+     */
+    synchronized void put(String key, Tile tile) {
+        if (tile.content.length > maxBytes) {
+            return;
+        }
+        Tile old = tiles.put(key, tile);
+        bytes += tile.content.length - (old == null ? 0 : old.content.length);
+        Iterator<Map.Entry<String, Tile>> eldest = tiles.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().content.length;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    synchronized int size() {
+        return tiles.size();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * The content of a tile and its ETag.
+     */
+    static final class Tile {
+        final byte[] content;
+        final String eTag;
+
+        Tile(byte[] content, String eTag) {
+            this.content = content;
+            this.eTag = eTag;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.cache;
+
+import dk.kb.image.upstream.BufferPool;
+import dk.kb.image.upstream.UpstreamResponse;
+import dk.kb.image.util.ConditionalRequests;
+import dk.kb.image.util.RangeRequests;
+import dk.kb.image.util.RequestContext;
+import dk.kb.image.util.SingleFlight;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * Local copies of responses from image servers that do not support range requests, e.g. large IIP {@code CVT}
+ * exports, so that ranges can be served by ds-image.
+ * <p>
+ * When a client requests a range and the image server responds with the full content, the content is spooled to
+ * a file and the requested ranges are served from the file. Later range requests for the same upstream URI, e.g.
+ * resumed downloads, are served from the file without contacting the image server. Copies expire after a
+ * configurable time and the least recently used copies are deleted when the total size exceeds the limit.
+ * <p>
+ * The cache is configured under {@code cache.ranges} in the behaviour config and is disabled by default.
+ */
+public class RangeCache {
+    private static final Logger log = LoggerFactory.getLogger(RangeCache.class);
+
+    public static final String KEY_RANGES = "cache.ranges";
+
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+    public static final long DEFAULT_MAX_ENTRY_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_TTL_SECONDS = 3600;
+
+    private final boolean enabled;
+    private final Path folder;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Guarded by this
+    private final SingleFlight<String, Entry> spools = new SingleFlight<>("local copy");
+    private long totalBytes = 0; // Guarded by this
+
+    /**
+     * Create a range cache from the {@code cache.ranges} part of the configuration.
+     * @param config the full configuration. If null or if {@code cache.ranges.enabled} is not true, a disabled
+     *               cache is returned.
+     * @return a range cache.
+     */
+    public static RangeCache create(YAML config) {
+        if (config == null || !config.getBoolean(KEY_RANGES + ".enabled", false)) {
+            return new RangeCache(false, null, 0, 0, 0, System::currentTimeMillis);
+        }
+        Path folder = Path.of(config.getString(KEY_RANGES + ".folder", System.getProperty("java.io.tmpdir")));
+        RangeCache cache = new RangeCache(
+                true, folder,
+                config.getLong(KEY_RANGES + ".maxBytes", DEFAULT_MAX_BYTES),
+                config.getLong(KEY_RANGES + ".maxEntryBytes", DEFAULT_MAX_ENTRY_BYTES),
+                config.getLong(KEY_RANGES + ".ttlSeconds", DEFAULT_TTL_SECONDS) * 1000,
+                System::currentTimeMillis);
+        log.info("Created {}", cache);
+        return cache;
+    }
+
+    /**
+     * @param enabled       if false, nothing is cached.
+     * @param folder        the folder for the local copies.
+     * @param maxBytes      the maximum total size of the local copies.
+     * @param maxEntryBytes responses larger than this are not copied and their ranges cannot be served.
+     * @param ttlMillis     the number of milliseconds that a local copy is used.
+     * @param clock         provides the current time in epoch milliseconds.
+     */
+    RangeCache(boolean enabled, Path folder, long maxBytes, long maxEntryBytes, long ttlMillis, LongSupplier clock) {
+        this.enabled = enabled && maxBytes > 0 && maxEntryBytes > 0 && ttlMillis > 0;
+        this.folder = folder;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * @param key the resolved upstream URI.
+     * @return the local copy for the key or null if there is no copy or it has expired.
+     */
+    public synchronized Entry get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires <= clock.getAsLong()) {
+            remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Copy the content of the upstream response to a local file and serve the requested ranges from it.
+     * <p>
+     * The ranges are served when the full content has been copied, as the copy is needed for serving ranges
+     * that the image server does not support. Concurrent requests for the same key share a single copy: The first
+     * request makes the copy and the others wait for it and close their own upstream responses unread.
+     * <p>
+     * If the content is larger than {@code cache.ranges.maxEntryBytes}, it is not cached and the full content is
+     * served with {@code 200 OK} from the partial local copy followed by the rest of the upstream response.
+     * Requests waiting for such a copy serve the full content from their own upstream response.
+     * @param key            the resolved upstream URI.
+     * @param upstream       a {@code 200 OK} response with the full content. This is closed when the content has
+     *                       been read or when the request finishes.
+     * @param range          the {@code Range} header from the client.
+     * @param ifRange        the {@code If-Range} header from the client. Can be null.
+     * @param response       the servlet response for the client.
+     * @param requestContext the context for the request. Waiting for a copy made by another request respects its
+     *                       deadline and resources for content that is never written are released when it finishes.
+     * @return the requested ranges or the full content.
+     * @throws IOException if the content could not be copied.
+     */
+    public StreamingOutput spoolAndServe(
+            String key, UpstreamResponse upstream, String range, String ifRange, HttpServletResponse response,
+            RequestContext requestContext) throws IOException {
+        requestContext.closeOnFinish(upstream);
+        AtomicBoolean copied = new AtomicBoolean(false);
+        AtomicReference<StreamingOutput> tooLarge = new AtomicReference<>(null);
+        Entry entry;
+        try {
+            entry = requestContext.bind((String k) -> spools.execute(k, () -> {
+                copied.set(true);
+                try {
+                    return spool(k, upstream, tooLarge, requestContext);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })).apply(key);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (copied.get()) {
+            return entry == null ? tooLarge.get() : serve(entry, range, ifRange, response);
+        }
+        if (entry == null) { // Too large for a copy, so this request uses its own response
+            return output -> {
+                try (UpstreamResponse ignored = upstream; InputStream body = upstream.getBody()) {
+                    BufferPool.getInstance().copy(body, output);
+                }
+            };
+        }
+        upstream.close(); // Served from the copy made by another request
+        return serve(entry, range, ifRange, response);
+    }
+
+    /**
+     * Copy the content of the upstream response to a local file and add it to the cache.
+     * @param tooLarge set to the full content if the content is larger than {@code cache.ranges.maxEntryBytes}.
+     * @return the local copy or null if the content is too large.
+     */
+    private Entry spool(String key, UpstreamResponse upstream, AtomicReference<StreamingOutput> tooLarge,
+                        RequestContext requestContext) throws IOException {
+        Files.createDirectories(folder);
+        Path file = Files.createTempFile(folder, "ds-image-range-", ".tmp");
+        InputStream body = null;
+        try {
+            body = upstream.getBody();
+            long copied;
+            try (OutputStream out = Files.newOutputStream(file)) {
+                copied = BufferPool.getInstance().copy(body, out, maxEntryBytes + 1);
+            }
+            if (copied > maxEntryBytes) {
+                log.debug("Content for '{}' is larger than {} bytes. Serving full content without caching",
+                          key, maxEntryBytes);
+                tooLarge.set(servePartialCopy(file, body, upstream, requestContext));
+                return null;
+            }
+            body.close();
+            upstream.close();
+            Entry entry = new Entry(
+                    file, copied, upstream.getHeader("Content-Type"), upstream.getHeader(ConditionalRequests.ETAG),
+                    upstream.getHeader(ConditionalRequests.LAST_MODIFIED), clock.getAsLong() + ttlMillis);
+            put(key, entry);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            if (body != null) {
+                body.close();
+            }
+            upstream.close();
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Serve the full content from the partial local copy followed by the rest of the upstream body.
+     * The partial copy is deleted when it has been written or when the request finishes.
+     */
+    private static StreamingOutput servePartialCopy(
+            Path file, InputStream rest, UpstreamResponse upstream, RequestContext requestContext) {
+        requestContext.closeOnFinish(rest);
+        requestContext.closeOnFinish(() -> Files.deleteIfExists(file));
+        return output -> {
+            try (UpstreamResponse ignored = upstream; InputStream ignored2 = rest) {
+                transferTo(file, 0, Files.size(file), output);
+                BufferPool.getInstance().copy(rest, output);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        };
+    }
+
+    /**
+     * Serve the requested ranges from the local copy. A single range is served as {@code 206 Partial Content}
+     * with {@code Content-Range}, multiple ranges as {@code multipart/byteranges}. If the ranges cannot be
+     * satisfied, the response is {@code 416 Range Not Satisfiable}. If {@code If-Range} does not match or the
+     * {@code Range} header is not valid, the full content is served.
+     * <p>
+     * If the local copy is evicted between this call and the delivery, the delivery fails. This is rare as the
+     * least recently used copies are evicted first.
+     * @param entry    a local copy.
+     * @param range    the {@code Range} header from the client. Can be null.
+     * @param ifRange  the {@code If-Range} header from the client. Can be null.
+     * @param response the servlet response for the client.
+     * @return the requested ranges or the full content.
+     */
+    public static StreamingOutput serve(Entry entry, String range, String ifRange, HttpServletResponse response) {
+        response.setHeader(RangeRequests.ACCEPT_RANGES, RangeRequests.BYTES);
+        if (entry.eTag != null) {
+            response.setHeader(ConditionalRequests.ETAG, entry.eTag);
+        }
+        if (entry.lastModified != null) {
+            response.setHeader(ConditionalRequests.LAST_MODIFIED, entry.lastModified);
+        }
+        List<long[]> ranges = RangeRequests.ifRangeMatches(ifRange, entry.eTag, entry.lastModified) ?
+                RangeRequests.parse(range, entry.length) : null;
+
+        if (ranges == null) {
+            setContentType(response, entry.contentType);
+            response.setContentLengthLong(entry.length);
+            return output -> transferTo(entry.file, 0, entry.length, output);
+        }
+        if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(RangeRequests.CONTENT_RANGE, RangeRequests.unsatisfiedRange(entry.length));
+            response.setContentLengthLong(0);
+            return output -> { };
+        }
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            long[] single = ranges.get(0);
+            setContentType(response, entry.contentType);
+            response.setHeader(RangeRequests.CONTENT_RANGE, RangeRequests.contentRange(single, entry.length));
+            response.setContentLengthLong(single[1] - single[0] + 1);
+            return output -> transferTo(entry.file, single[0], single[1] - single[0] + 1, output);
+        }
+
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+                          Long.toHexString(ThreadLocalRandom.current().nextLong());
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (long[] part: ranges) {
+            byte[] header = String.format(
+                    Locale.ROOT, "\r\n--%s\r\n%s%s: %s\r\n\r\n", boundary,
+                    entry.contentType == null ? "" : "Content-Type: " + entry.contentType + "\r\n",
+                    RangeRequests.CONTENT_RANGE, RangeRequests.contentRange(part, entry.length))
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(header);
+            contentLength += header.length + part[1] - part[0] + 1;
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += end.length;
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        return output -> {
+            try (FileChannel channel = FileChannel.open(entry.file)) {
+                WritableByteChannel target = Channels.newChannel(output);
+                for (int i = 0; i < ranges.size(); i++) {
+                    output.write(partHeaders.get(i));
+                    long[] part = ranges.get(i);
+                    transferTo(channel, part[0], part[1] - part[0] + 1, target);
+                }
+                output.write(end);
+            }
+        };
+    }
+
+    private static void setContentType(HttpServletResponse response, String contentType) {
+        if (contentType != null) {
+            response.setContentType(contentType);
+        }
+    }
+
+    private static void transferTo(Path file, long position, long count, OutputStream output) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            transferTo(channel, position, count, Channels.newChannel(output));
+        }
+    }
+
+    private static void transferTo(FileChannel channel, long position, long count, WritableByteChannel target)
+            throws IOException {
+        while (count > 0) {
+            long transferred = channel.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new IOException("Unable to transfer bytes at position " + position + " from local copy");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        remove(key);
+        entries.put(key, entry);
+        totalBytes += entry.length;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            totalBytes -= evicted.length;
+            evicted.delete();
+        }
+    }
+
+    private void remove(String key) { // Guarded by this
+        Entry old = entries.remove(key);
+        if (old != null) {
+            totalBytes -= old.length;
+            old.delete();
+        }
+    }
+
+    /**
+     * Delete all local copies.
+     */
+    public synchronized void close() {
+        for (Entry entry: entries.values()) {
+            entry.delete();
+        }
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    /**
+     * @return true if the cache is enabled.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the total size of the local copies in bytes.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public String toString() {
+        if (!enabled) {
+            return "RangeCache(disabled)";
+        }
+        return String.format(Locale.ROOT, "RangeCache(folder='%s', maxBytes=%d, maxEntryBytes=%d, ttlSeconds=%d)",
+                             folder, maxBytes, maxEntryBytes, ttlMillis / 1000);
+    }
+
+    /**
+     * A local copy of the full content from an image server.
+     */
+    public static final class Entry {
+        private final Path file;
+        private final long length;
+        private final String contentType;
+        private final String eTag;
+        private final String lastModified;
+        private final long expires;
+
+        Entry(Path file, long length, String contentType, String eTag, String lastModified, long expires) {
+            this.file = file;
+            this.length = length;
+            this.contentType = contentType;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+
+        private void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Unable to delete local copy '{}'", file, e);
+            }
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Disk cache for tiles, backed by a single memory mapped file.
+ * <p>
+ * The file is divided into segments of equal size. Tiles are appended to the current segment and when it is full,
+ * the oldest segment is emptied and becomes the current segment. This evicts the tiles in the oldest segment in
+ * one operation. To approximate LRU, tiles that are requested from the older half of the segments are copied to
+ * the current segment, giving them a second chance.
+ * <p>
+ * Tiles are copied from the segment to the heap while holding the read lock for the segment and written to the
+ * client after the lock has been released, so slow clients do not prevent reuse of the segment. Tiles are small,
+ * and writing to a servlet stream copies through the heap anyway. A segment is never reused while a tile is being
+ * copied from it: If the segment to reuse is busy, the new tile is not cached.
+ * <p>
+ * {@link #close()} waits for copies in progress, so the tier can be closed while tiles from it are being delivered.
+ */
+class SegmentTileTier implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SegmentTileTier.class);
+
+    private final Path file;
+    private final int segmentBytes;
+    private final MappedByteBuffer[] segments;
+    private final ReadWriteLock[] locks;
+    private final long[] generations; // Guarded by locks
+    private final List<List<String>> segmentKeys = new ArrayList<>(); // Guarded by this
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+
+    private int current = 0; // Guarded by this
+    private int writePosition = 0; // Guarded by this
+    private long evictions = 0; // Guarded by this
+    private volatile boolean closed = false; // Set while holding all write locks
+
+    /**
+     * Create a segment file in the given folder.
+     * @param folder       where to create the segment file.
+     * @param maxBytes     the size of the segment file.
+     * @param segmentCount the number of segments to divide the file into. Must be 2 or more.
+     * @throws IOException if the segment file could not be created.
+     */
+    SegmentTileTier(Path folder, long maxBytes, int segmentCount) throws IOException {
+        if (segmentCount < 2) {
+            throw new IllegalArgumentException("segmentCount must be 2 or more, but was " + segmentCount);
+        }
+        long bytesPerSegment = maxBytes / segmentCount;
+        if (bytesPerSegment < 1 || bytesPerSegment > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "maxBytes/segmentCount must be between 1 and " + Integer.MAX_VALUE + ", but was " +
+                    bytesPerSegment + " (" + maxBytes + "/" + segmentCount + ")");
+        }
+        segmentBytes = (int) bytesPerSegment;
+
+        Files.createDirectories(folder);
+        file = Files.createTempFile(folder, "tiles_", ".segments");
+        file.toFile().deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength((long) segmentBytes * segmentCount);
+            segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                // The mappings stay valid after the RandomAccessFile has been closed
+                segments[i] = raf.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, (long) i * segmentBytes, segmentBytes);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        locks = new ReadWriteLock[segmentCount];
+        generations = new long[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+            segmentKeys.add(new ArrayList<>());
+        }
+        log.info("Created {}", this);
+    }
+
+    /**
+     * Write the tile for the given key to output.
+     * @param key    the key for a tile.
+     * @param output the destination for the tile.
+     * @return true if the tile was written, false if it was not in the tier or the tier has been closed. If false,
+     *         nothing has been written to output.
+     * @throws IOException if the tile could not be written.
+     */
+    boolean transferTo(String key, OutputStream output) throws IOException {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return false;
+        }
+        byte[] tile = new byte[entry.length];
+        ReadWriteLock lock = locks[entry.segment];
+        lock.readLock().lock();
+        try {
+            if (closed || generations[entry.segment] != entry.generation) { // Evicted after lookup
+                return false;
+            }
+            ByteBuffer source = segments[entry.segment].duplicate();
+            source.position(entry.offset);
+            source.get(tile);
+        } finally {
+            lock.readLock().unlock();
+        }
+        output.write(tile); // Without the lock, as the client can be slow
+        promoteIfOld(key, entry);
+        return true;
+    }
+
+    /**
+     * @param key the key for a tile.
+     * @return the ETag for the tile or null if it is not in the tier.
+     */
+    String getETag(String key) {
+        Entry entry = index.get(key);
+        return entry == null ? null : entry.eTag;
+    }
+
+    /**
+     * Add the tile to the tier. If there is no room in the current segment, the oldest segment is emptied.
+     * If that segment is in use, the tile is not added.
+     * @param key  the key for the tile.
+     * @param tile the tile content.
+     * @param eTag the ETag for the tile.
+     * @return true if the tile was added.
+     */
+    synchronized boolean put(String key, byte[] tile, String eTag) {
+        if (closed || tile.length > segmentBytes || !ensureRoom(tile.length)) {
+            return false;
+        }
+        ByteBuffer target = segments[current].duplicate();
+        target.position(writePosition);
+        target.put(tile);
+        addEntry(key, tile.length, eTag);
+        return true;
+    }
+
+    /**
+     * Copy the tile to the current segment if it is in the older half of the segments.
+     */
+    private synchronized void promoteIfOld(String key, Entry entry) {
+        int age = (current - entry.segment + segments.length) % segments.length;
+        if (closed || age < segments.length / 2 || index.get(key) != entry || !ensureRoom(entry.length)) {
+            return;
+        }
+        ReadWriteLock lock = locks[entry.segment];
+        lock.readLock().lock();
+        try {
+            if (generations[entry.segment] != entry.generation) {
+                return;
+            }
+            ByteBuffer source = segments[entry.segment].duplicate();
+            source.position(entry.offset).limit(entry.offset + entry.length);
+            ByteBuffer target = segments[current].duplicate();
+            target.position(writePosition);
+            target.put(source);
+        } finally {
+            lock.readLock().unlock();
+        }
+        addEntry(key, entry.length, entry.eTag);
+    }
+
+    /**
+     * Ensure that there is room for the given number of bytes in the current segment, moving to the next segment
+     * if needed. Must be called while holding the monitor.
+     * @return true if there is room, false if the next segment is in use.
+     */
+    private boolean ensureRoom(int length) {
+        if (writePosition + length <= segmentBytes) {
+            return true;
+        }
+        int next = (current + 1) % segments.length;
+        ReadWriteLock lock = locks[next];
+        if (!lock.writeLock().tryLock()) {
+            log.debug("Unable to reuse segment {} as it is in use", next);
+            return false;
+        }
+        try {
+            generations[next]++;
+            for (String key: segmentKeys.get(next)) {
+                Entry entry = index.get(key);
+                if (entry != null && entry.segment == next) {
+                    index.remove(key, entry);
+                    evictions++;
+                }
+            }
+            segmentKeys.get(next).clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        current = next;
+        writePosition = 0;
+        return true;
+    }
+
+    /**
+     * Register a tile of the given length at the write position in the current segment.
+     * Must be called while holding the monitor.
+     */
+    private void addEntry(String key, int length, String eTag) {
+        index.put(key, new Entry(current, generations[current], writePosition, length, eTag));
+        segmentKeys.get(current).add(key);
+        writePosition += length;
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    long getMaxBytes() {
+        return (long) segmentBytes * segments.length;
+    }
+
+    /**
+     * Close the tier and delete the segment file. Waits for tiles being copied from the segments, but not for the
+     * copies being written to the clients. The memory mappings are released when the segments are garbage collected.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        for (ReadWriteLock lock: locks) {
+            lock.writeLock().lock();
+        }
+        try {
+            closed = true;
+            index.clear();
+            Arrays.fill(segments, null);
+        } finally {
+            for (ReadWriteLock lock: locks) {
+                lock.writeLock().unlock();
+            }
+        }
+        Files.deleteIfExists(file);
+        log.info("Closed {}", this);
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentTileTier(file='" + file + "', segments=" + segments.length + ", segmentBytes=" + segmentBytes +
+               ", tiles=" + index.size() + ")";
+    }
+
+    private static final class Entry {
+        final int segment;
+        final long generation;
+        final int offset;
+        final int length;
+        final String eTag;
+
+        Entry(int segment, long generation, int offset, int length, String eTag) {
+            this.segment = segment;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+            this.eTag = eTag;
+        }
+    }
+}
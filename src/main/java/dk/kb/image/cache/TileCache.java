@@ -0,0 +1,336 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.cache;
+
+import dk.kb.image.util.ConditionalRequests;
+import dk.kb.image.util.RangeRequests;
+import dk.kb.image.util.RequestContext;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Two-tier cache for immutable image tiles, such as DeepZoom tiles.
+ * <p>
+ * The first tier is an in-heap LRU cache for hot tiles. The second tier is a memory mapped segment file on disk,
+ * see {@link SegmentTileTier}. New tiles are added to both tiers.
+ * <p>
+ * Tiles are cached under their resolved upstream URI, which contains all parameters that affect the tile.
+ * The cache is configured under {@code cache.tiles} in the behaviour config and is disabled by default.
+ */
+public class TileCache {
+    private static final Logger log = LoggerFactory.getLogger(TileCache.class);
+
+    public static final String KEY_TILES = "cache.tiles";
+
+    public static final long DEFAULT_MAX_TILE_BYTES = 1024 * 1024;
+    public static final long DEFAULT_HEAP_MAX_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_DISK_MAX_BYTES = 1024L * 1024 * 1024;
+    public static final int DEFAULT_DISK_SEGMENTS = 16;
+
+    private final boolean enabled;
+    private final long maxTileBytes;
+    private final HeapTileTier heap;
+    private final SegmentTileTier disk;
+
+    private final LongAdder heapHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a tile cache from the {@code cache.tiles} part of the configuration.
+     * If the disk tier cannot be created, the cache continues with only the heap tier.
+     * @param config the full configuration. If null or if {@code cache.tiles.enabled} is not true, a disabled
+     *               cache is returned.
+     * @return a tile cache.
+     */
+    public static TileCache create(YAML config) {
+        if (config == null || !config.getBoolean(KEY_TILES + ".enabled", false)) {
+            return new TileCache(false, 0, null, null);
+        }
+        long maxTileBytes = config.getLong(KEY_TILES + ".maxTileBytes", DEFAULT_MAX_TILE_BYTES);
+        long heapMaxBytes = config.getLong(KEY_TILES + ".heap.maxBytes", DEFAULT_HEAP_MAX_BYTES);
+        long diskMaxBytes = config.getLong(KEY_TILES + ".disk.maxBytes", DEFAULT_DISK_MAX_BYTES);
+
+        HeapTileTier heap = heapMaxBytes > 0 ? new HeapTileTier(heapMaxBytes) : null;
+        SegmentTileTier disk = null;
+        if (diskMaxBytes > 0) {
+            Path folder = Path.of(config.getString(KEY_TILES + ".disk.folder", System.getProperty("java.io.tmpdir")));
+            try {
+                disk = new SegmentTileTier(
+                        folder, diskMaxBytes, config.getInteger(KEY_TILES + ".disk.segments", DEFAULT_DISK_SEGMENTS));
+            } catch (Exception e) {
+                log.error("Unable to create disk tier for tile cache in folder '{}'. Continuing without disk tier",
+                          folder, e);
+            }
+        }
+        TileCache cache = new TileCache(true, maxTileBytes, heap, disk);
+        log.info("Created {}", cache);
+        return cache;
+    }
+
+    private TileCache(boolean enabled, long maxTileBytes, HeapTileTier heap, SegmentTileTier disk) {
+        this.enabled = enabled && (heap != null || disk != null);
+        this.maxTileBytes = maxTileBytes;
+        this.heap = heap;
+        this.disk = disk;
+    }
+
+    /**
+     * Deliver the tile for the given key from the cache or from upstream.
+     * <p>
+     * If the tile is not cached, {@code upstream} is called immediately so that errors are thrown before the
+     * response is committed. The delivered tile is added to the cache, if it was fully delivered and not larger
+     * than {@code cache.tiles.maxTileBytes}. Range requests bypass the cache.
+     * <p>
+     * Cached tiles are delivered with a strong ETag generated by ds-image. If the request has a matching
+     * {@code If-None-Match}, the response is {@code 304 Not Modified} without content.
+     * @param key      the resolved upstream URI for the tile.
+     * @param upstream provides the tile from the image server.
+     * @return the tile.
+     */
+    public StreamingOutput serve(String key, Supplier<StreamingOutput> upstream) {
+        if (!enabled || isRangeRequest()) { // Partial tiles must not be cached
+            return upstream.get();
+        }
+        long startNanos = System.nanoTime();
+        StreamingOutput cached = getCached(key, upstream);
+        RequestContext.current().recordStage(RequestContext.STAGE_CACHE, System.nanoTime() - startNanos);
+        if (cached != null) {
+            return cached;
+        }
+        misses.increment();
+        return capture(key, upstream.get());
+    }
+
+    /**
+     * Asynchronous version of {@link #serve(String, Supplier)}. Cached tiles are delivered without waiting.
+     * @param key      the resolved upstream URI for the tile.
+     * @param upstream requests the tile from the image server.
+     * @return the future tile.
+     */
+    public CompletableFuture<StreamingOutput> serveAsync(
+            String key, Supplier<CompletableFuture<StreamingOutput>> upstream) {
+        if (!enabled || isRangeRequest()) { // Partial tiles must not be cached
+            return upstream.get();
+        }
+        long startNanos = System.nanoTime();
+        RequestContext requestContext = RequestContext.current();
+        // Only used if the tile is evicted from disk between lookup and delivery. This runs in the thread that
+        // writes the response, so the request is made with the context of the request and awaited until its deadline
+        StreamingOutput cached = getCached(key, () -> requestContext.bind(
+                (Void ignored) -> requestContext.await(upstream.get(), "tile delivery")).apply(null));
+        requestContext.recordStage(RequestContext.STAGE_CACHE, System.nanoTime() - startNanos);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        misses.increment();
+        return upstream.get().thenApply(source -> capture(key, source));
+    }
+
+    /**
+     * @param key      the resolved upstream URI for the tile.
+     * @param upstream provides the tile from the image server if the tile is evicted from the disk tier before
+     *                 delivery.
+     * @return the cached tile or null if the tile is not cached.
+     */
+    private StreamingOutput getCached(String key, Supplier<StreamingOutput> upstream) {
+        if (heap != null) {
+            HeapTileTier.Tile tile = heap.get(key);
+            if (tile != null) {
+                heapHits.increment();
+                if (ConditionalRequests.isNotModified(tile.eTag)) {
+                    return ConditionalRequests.NOT_MODIFIED;
+                }
+                HttpServletResponse response = RequestContext.current().getServletResponse();
+                if (response != null) { // The disk tier can evict the tile before delivery, so only for heap tiles
+                    response.setContentLength(tile.content.length);
+                }
+                return output -> output.write(tile.content);
+            }
+        }
+        String diskETag = disk == null ? null : disk.getETag(key);
+        if (diskETag != null) {
+            diskHits.increment();
+            if (ConditionalRequests.isNotModified(diskETag)) {
+                return ConditionalRequests.NOT_MODIFIED;
+            }
+            return output -> {
+                if (!disk.transferTo(key, output)) {
+                    // Evicted between lookup and delivery. Rare, so the late upstream request is acceptable
+                    log.debug("Tile '{}' evicted from disk tier before delivery. Requesting from upstream", key);
+                    upstream.get().write(output);
+                }
+            };
+        }
+        return null;
+    }
+
+    /**
+     * @param key    the resolved upstream URI for the tile.
+     * @param source the tile from the image server.
+     * @return the tile, which is added to the cache when it has been delivered.
+     */
+    private StreamingOutput capture(String key, StreamingOutput source) {
+        if (source == ConditionalRequests.NOT_MODIFIED) { // Nothing to cache
+            return source;
+        }
+        return output -> {
+            CapturingOutputStream capturing = new CapturingOutputStream(output, maxTileBytes);
+            source.write(capturing);
+            capturing.flush();
+            byte[] tile = capturing.getCaptured();
+            if (tile != null) {
+                put(key, tile);
+            }
+        };
+    }
+
+    /**
+     * @return true if the current request asks for a range of the content.
+     */
+    private static boolean isRangeRequest() {
+        HttpHeaders requestHeaders = RequestContext.current().getRequestHeaders();
+        return requestHeaders != null && requestHeaders.getHeaderString(RangeRequests.RANGE) != null;
+    }
+
+    /**
+     * Add the tile to the tiers, with a strong ETag generated from the content.
+     */
+    private void put(String key, byte[] tile) {
+        String eTag = ConditionalRequests.strongETag(tile);
+        if (heap != null) {
+            heap.put(key, new HeapTileTier.Tile(tile, eTag));
+        }
+        if (disk != null) {
+            disk.put(key, tile, eTag);
+        }
+    }
+
+    /**
+     * Release the resources held by the cache, including deletion of the disk tier. This is safe while tiles are
+     * being delivered, e.g. on configuration reload: Tiles looked up in the disk tier before the close are
+     * requested from upstream.
+     */
+    public void close() {
+        if (disk != null) {
+            try {
+                disk.close();
+            } catch (IOException e) {
+                log.warn("Exception closing disk tier for tile cache", e);
+            }
+        }
+    }
+
+    /**
+     * @return true if the cache is enabled.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the number of tiles delivered from the heap tier.
+     */
+    public long getHeapHits() {
+        return heapHits.sum();
+    }
+
+    /**
+     * @return the number of tiles delivered from the disk tier.
+     */
+    public long getDiskHits() {
+        return diskHits.sum();
+    }
+
+    /**
+     * @return the number of tiles that were not in the cache.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        if (!enabled) {
+            return "TileCache(disabled)";
+        }
+        return String.format(
+                Locale.ROOT, "TileCache(maxTileBytes=%d, heap=%s, disk=%s, heapHits=%d, diskHits=%d, misses=%d)",
+                maxTileBytes,
+                heap == null ? "disabled" : String.format(Locale.ROOT, "%d tiles/%d of %d bytes, %d evictions",
+                                                          heap.size(), heap.getBytes(), heap.getMaxBytes(),
+                                                          heap.getEvictions()),
+                disk == null ? "disabled" : String.format(Locale.ROOT, "%d tiles/%d bytes, %d evictions",
+                                                          disk.size(), disk.getMaxBytes(), disk.getEvictions()),
+                getHeapHits(), getDiskHits(), getMisses());
+    }
+
+    /**
+     * Passes all bytes to the inner stream and keeps a copy of them, as long as the size limit is not exceeded.
+     */
+    private static class CapturingOutputStream extends FilterOutputStream {
+        private final long maxBytes;
+        private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+        public CapturingOutputStream(OutputStream out, long maxBytes) {
+            super(out);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            capture(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            capture(b, off, len);
+        }
+
+        private void capture(byte[] b, int off, int len) {
+            if (captured == null) {
+                return;
+            }
+            if (captured.size() + len > maxBytes) {
+                captured = null; // Too large for caching
+                return;
+            }
+            captured.write(b, off, len);
+        }
+
+        /**
+         * @return the captured bytes or null if the size limit was exceeded.
+         */
+        public byte[] getCaptured() {
+            return captured == null ? null : captured.toByteArray();
+        }
+    }
+}
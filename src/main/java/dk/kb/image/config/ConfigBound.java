@@ -0,0 +1,94 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.config;
+
+import dk.kb.util.yaml.YAML;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Holds a value derived from the configuration, such as a client or a set of precomputed rules.
+ * <p>
+ * The value is created on first request and re-created when the configuration changes, either due to auto update
+ * or because a new {@link ServiceConfig} instance has been set (typically in unit tests). Checking for changes is a
+ * single reference comparison, so {@link #get()} is cheap enough to be called for every request.
+ * @param <T> the type of the derived value.
+ */
+public class ConfigBound<T> implements Supplier<T> {
+    private final Function<YAML, T> factory;
+    private final Consumer<T> onReplace;
+    // Not synchronized, as the factory might perform I/O, which pins virtual threads inside synchronized blocks
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Snapshot<T> snapshot = null;
+
+    /**
+     * @param factory creates the value from the configuration. Note that the configuration given to the factory
+     *                is null if the {@link ServiceConfig} has not been initialized.
+     */
+    public ConfigBound(Function<YAML, T> factory) {
+        this(factory, null);
+    }
+
+    /**
+     * @param factory creates the value from the configuration. Note that the configuration given to the factory
+     *                is null if the {@link ServiceConfig} has not been initialized.
+     * @param onReplace called with the old value when it has been replaced, e.g. for releasing resources.
+     *                  Note that the old value might still be in use by requests that started before the change.
+     */
+    public ConfigBound(Function<YAML, T> factory, Consumer<T> onReplace) {
+        this.factory = factory;
+        this.onReplace = onReplace;
+    }
+
+    /**
+     * @return the value for the current configuration.
+     */
+    @Override
+    public T get() {
+        YAML config = ServiceConfig.getInstance().getYAML();
+        Snapshot<T> current = snapshot;
+        if (current != null && current.config == config) {
+            return current.value;
+        }
+        lock.lock();
+        try {
+            Snapshot<T> old = snapshot;
+            current = old;
+            if (current == null || current.config != config) {
+                current = new Snapshot<>(config, factory.apply(config));
+                snapshot = current;
+                if (old != null && old.value != null && onReplace != null) {
+                    onReplace.accept(old.value);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return current.value;
+    }
+
+    private static class Snapshot<T> {
+        private final YAML config;
+        private final T value;
+
+        public Snapshot(YAML config, T value) {
+            this.config = config;
+            this.value = value;
+        }
+    }
+}
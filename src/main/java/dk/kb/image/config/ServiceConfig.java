@@ -38,7 +38,7 @@ public class ServiceConfig extends AutoYAML {
     private static final boolean AUTO_UPDATE_DEFAULT = false;
     private static final long AUTO_UPDATE_MS_DEFAULT = 60*1000; // every minute
 
-    private static ServiceConfig instance;
+    private static volatile ServiceConfig instance;
 
     /**
      * Construct a ServiceConfig without a concrete YAML assigned. In order to use the ServiceConfig,
@@ -52,15 +52,23 @@ public class ServiceConfig extends AutoYAML {
     /**
      * @return singleton instance of ServiceConfig.
      */
-    public static synchronized ServiceConfig getInstance() {
-        if (instance == null) {
-            try {
-                instance = new ServiceConfig();
-            } catch (IOException e) {
-                throw new RuntimeException("Exception constructing instance", e);
+    public static ServiceConfig getInstance() {
+        ServiceConfig current = instance;
+        if (current == null) {
+            // Only locks on first call, as this is called for every request through ConfigBound
+            synchronized (ServiceConfig.class) {
+                current = instance;
+                if (current == null) {
+                    try {
+                        current = new ServiceConfig();
+                    } catch (IOException e) {
+                        throw new RuntimeException("Exception constructing instance", e);
+                    }
+                    instance = current;
+                }
             }
         }
-        return instance;
+        return current;
     }
 
     /**
@@ -0,0 +1,624 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import dk.kb.image.util.DaemonThreadFactory;
+import dk.kb.util.webservice.exception.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link UpstreamClient} for an image server with one or more replicas, each with its own {@link UpstreamClient},
+ * connection pool and {@link CircuitBreaker}.
+ * <p>
+ * The URIs for the image server are generated for the primary server. For each request a replica is chosen using
+ * the power of two choices: Two random replicas are compared and the one with the fewest outstanding requests is
+ * used. Replicas with an open circuit breaker are skipped. The URI is rewritten to the chosen replica.
+ * <p>
+ * With {@link UpstreamSettings#ROUTING_HASH} routing, the replica is chosen by rendezvous hashing on a routing key,
+ * normally the image identifier, so that requests for the same image hit the same replica and its image cache.
+ * When a replica is added or removed, only the images for that replica move to other replicas. Failover and
+ * hedging use the replica with the next highest hash.
+ * <p>
+ * If a replica cannot be reached, is rejected by its circuit breaker or pool, or responds with
+ * {@code 502 Bad Gateway}, {@code 503 Service Unavailable} or {@code 504 Gateway Timeout}, the request fails over
+ * to another replica. If no replica delivers another response, the last of these responses is relayed.
+ * If hedging is enabled, a second request is sent to another replica when the first one has not delivered the
+ * response headers within a percentile of the observed latencies. The first response wins and the other is
+ * closed. Hedging requires clients with non-blocking {@link UpstreamClient#getAsync}, i.e.
+ * {@link JdkUpstreamClient}, see {@link UpstreamSettings#isHedgeEnabled()}.
+ * <p>
+ * With a single replica, requests are passed directly to the client for the replica.
+ */
+public class BalancedUpstreamClient implements UpstreamClient {
+    private static final Logger log = LoggerFactory.getLogger(BalancedUpstreamClient.class);
+
+    // Sends the hedged requests. Waiting for a free connection to a replica blocks, so the common pool is not used
+    private static final ExecutorService hedgeExecutor =
+            Executors.newCachedThreadPool(new DaemonThreadFactory("upstream-hedge"));
+
+    private final String primary;
+    private final List<Replica> replicas;
+    private final UpstreamSettings settings;
+    private final Latencies latencies;
+    private final boolean hashRouting;
+
+    private final LongAdder failovers = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+
+    /**
+     * @param primary  the primary server, which the URIs are generated for. Null for the client that handles URIs
+     *                 that does not match any image server, in which case there must be exactly one client.
+     * @param servers  the servers for the replicas, starting with the primary server.
+     * @param clients  the clients for the replicas, in the same order as servers.
+     * @param settings the settings for the backend.
+     */
+    public BalancedUpstreamClient(
+            String primary, List<String> servers, List<UpstreamClient> clients, UpstreamSettings settings) {
+        if (servers.size() != clients.size() || clients.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "There must be one client for each of the " + servers.size() + " servers, but there was " +
+                    clients.size());
+        }
+        if (primary == null && clients.size() != 1) {
+            throw new IllegalArgumentException("Replicas require a primary server");
+        }
+        this.primary = primary;
+        this.settings = settings;
+        List<Replica> replicas = new ArrayList<>(servers.size());
+        for (int i = 0 ; i < servers.size() ; i++) {
+            replicas.add(new Replica(servers.get(i), clients.get(i)));
+        }
+        this.replicas = Collections.unmodifiableList(replicas);
+        this.latencies = new Latencies(settings.getHedgePercentile(), settings.getHedgeMinDelayMs());
+        this.hashRouting = UpstreamSettings.ROUTING_HASH.equals(settings.getRouting());
+        if (replicas.size() > 1) {
+            log.info("Created {}", this);
+        }
+    }
+
+    @Override
+    public UpstreamResponse get(URI uri, Map<String, String> requestHeaders, long budgetMs) throws IOException {
+        return get(uri, null, requestHeaders, budgetMs);
+    }
+
+    /**
+     * Issue a GET request for the given uri, choosing the replica from the routing key if
+     * {@link UpstreamSettings#ROUTING_HASH} routing is used.
+     * @param uri the resource to request.
+     * @param routingKey the image identifier or similar. If null, the replica is chosen by load.
+     * @param requestHeaders headers to add to the request.
+     * @param budgetMs the maximum number of milliseconds to wait for a connection and the response headers.
+     * @return the response from the server, which must be closed after use.
+     * @throws IOException if the request could not be completed.
+     * @see UpstreamClient#get(URI, Map, long)
+     */
+    public UpstreamResponse get(URI uri, String routingKey, Map<String, String> requestHeaders, long budgetMs)
+            throws IOException {
+        if (replicas.size() == 1) {
+            return replicas.get(0).get(uri, requestHeaders, budgetMs);
+        }
+        CompletableFuture<UpstreamResponse> response = getAsync(uri, routingKey, requestHeaders, budgetMs);
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            response.cancel(false); // A late response is closed when it arrives
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for response from '" + uri + "'");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Unable to get response from '" + uri + "'", cause);
+        }
+    }
+
+    @Override
+    public CompletableFuture<UpstreamResponse> getAsync(URI uri, Map<String, String> requestHeaders, long budgetMs) {
+        return getAsync(uri, null, requestHeaders, budgetMs);
+    }
+
+    /**
+     * Issue a GET request for the given uri without waiting for the response, choosing the replica from the
+     * routing key if {@link UpstreamSettings#ROUTING_HASH} routing is used.
+     * @param uri the resource to request.
+     * @param routingKey the image identifier or similar. If null, the replica is chosen by load.
+     * @param requestHeaders headers to add to the request.
+     * @param budgetMs the maximum number of milliseconds to wait for a connection and the response headers.
+     * @return the future response from the server, which must be closed after use.
+     * @see UpstreamClient#getAsync(URI, Map, long)
+     */
+    public CompletableFuture<UpstreamResponse> getAsync(
+            URI uri, String routingKey, Map<String, String> requestHeaders, long budgetMs) {
+        if (replicas.size() == 1) {
+            return replicas.get(0).getAsync(uri, requestHeaders, budgetMs);
+        }
+        return new Call(uri, routingKey, requestHeaders, budgetMs).start();
+    }
+
+    /**
+     * @return the settings for the primary server.
+     */
+    @Override
+    public UpstreamSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return the connection pool for the primary server.
+     */
+    @Override
+    public UpstreamPool getPool() {
+        return replicas.get(0).client.getPool();
+    }
+
+    /**
+     * @return the clients for all replicas, starting with the primary server.
+     */
+    public List<UpstreamClient> getReplicaClients() {
+        List<UpstreamClient> clients = new ArrayList<>(replicas.size());
+        replicas.forEach(replica -> clients.add(replica.client));
+        return clients;
+    }
+
+    /**
+     * @return true if the circuit breaker for at least one of the replicas is not open.
+     */
+    public boolean isAvailable() {
+        for (Replica replica: replicas) {
+            if (replica.isAvailable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of requests that failed over to another replica.
+     */
+    public long getFailovers() {
+        return failovers.sum();
+    }
+
+    /**
+     * @return the number of hedged requests.
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return the current delay in milliseconds before hedging or -1 if too few latencies has been observed.
+     */
+    public long getHedgeDelayMs() {
+        return latencies.getDelayMs();
+    }
+
+    /**
+     * Choose a replica using rendezvous hashing if {@link UpstreamSettings#ROUTING_HASH} routing is used and
+     * routingKey is present, else the power of two choices.
+     * @param excluded   replicas that must not be chosen.
+     * @param routingKey the image identifier or similar. Can be null.
+     * @return a replica or null if there are no more replicas to try.
+     */
+    Replica choose(Set<Replica> excluded, String routingKey) {
+        if (hashRouting && routingKey != null) {
+            return chooseByHash(excluded, hash(routingKey));
+        }
+        List<Replica> candidates = new ArrayList<>(replicas.size());
+        for (Replica replica: replicas) {
+            if (!excluded.contains(replica) && replica.isAvailable()) {
+                candidates.add(replica);
+            }
+        }
+        if (candidates.isEmpty()) { // Let the breaker of a remaining replica decide
+            for (Replica replica: replicas) {
+                if (!excluded.contains(replica)) {
+                    return replica;
+                }
+            }
+            return null;
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        Replica a = candidates.get(first);
+        Replica b = candidates.get(second);
+        return a.getOutstanding() <= b.getOutstanding() ? a : b;
+    }
+
+    /**
+     * Choose the replica with the highest hash of the key and the replica. Replicas with an open circuit breaker
+     * are only chosen if no other replicas are available.
+     */
+    private Replica chooseByHash(Set<Replica> excluded, long keyHash) {
+        Replica best = null;
+        long bestWeight = 0;
+        boolean bestAvailable = false;
+        for (Replica replica: replicas) {
+            if (excluded.contains(replica)) {
+                continue;
+            }
+            long weight = mix(keyHash ^ replica.seed);
+            boolean available = replica.isAvailable();
+            if (best == null || (available && !bestAvailable) ||
+                (available == bestAvailable && Long.compareUnsigned(weight, bestWeight) > 0)) {
+                best = replica;
+                bestWeight = weight;
+                bestAvailable = available;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the given string.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0 ; i < key.length() ; i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Spreads the bits of the given value (the SplitMix64 finalizer), so that similar keys get unrelated weights.
+     */
+    static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "BalancedUpstreamClient(backend='%s', replicas=%d, routing='%s', hedge=%b, " +
+                                          "hedgeDelayMs=%d, failovers=%d, hedges=%d)",
+                             settings.getBackend(), replicas.size(), settings.getRouting(), settings.isHedgeEnabled(),
+                             getHedgeDelayMs(), getFailovers(), getHedges());
+    }
+
+    /**
+     * A single server and its client.
+     */
+    class Replica {
+        private final String server;
+        private final UpstreamClient client;
+        // The hash is based on the server, so that the order of the replicas does not matter
+        private final long seed;
+
+        Replica(String server, UpstreamClient client) {
+            this.server = server;
+            this.client = client;
+            this.seed = hash(server);
+        }
+
+        /**
+         * @return true if the circuit breaker for the replica is not open.
+         */
+        boolean isAvailable() {
+            return client.getPool().getCircuitBreaker().getState() != CircuitBreaker.State.OPEN;
+        }
+
+        /**
+         * @return the number of requests holding a connection to the replica.
+         */
+        int getOutstanding() {
+            return client.getPool().getLeased();
+        }
+
+        /**
+         * @param uri an URI for the primary server.
+         * @return the uri pointing to this replica.
+         */
+        URI rewrite(URI uri) {
+            if (primary == null || server.equals(primary)) {
+                return uri;
+            }
+            return URI.create(server + uri.toString().substring(primary.length()));
+        }
+
+        /**
+         * Synchronous request to the replica, recording the outcome in the circuit breaker.
+         */
+        UpstreamResponse get(URI uri, Map<String, String> requestHeaders, long budgetMs) throws IOException {
+            CircuitBreaker breaker = client.getPool().getCircuitBreaker();
+            breaker.acquire();
+            long startNanos = System.nanoTime();
+            UpstreamResponse response;
+            try {
+                response = client.get(rewrite(uri), requestHeaders, budgetMs);
+            } catch (IOException e) {
+                breaker.onFailure();
+                throw e;
+            } catch (RuntimeException e) { // E.g. rejected by the pool, so the replica was not called
+                breaker.onSkipped();
+                throw e;
+            }
+            breaker.onStatus(response.getStatusCode());
+            latencies.add(System.nanoTime() - startNanos);
+            return response;
+        }
+
+        /**
+         * Asynchronous request to the replica, recording the outcome in the circuit breaker.
+         */
+        CompletableFuture<UpstreamResponse> getAsync(URI uri, Map<String, String> requestHeaders, long budgetMs) {
+            CircuitBreaker breaker = client.getPool().getCircuitBreaker();
+            CompletableFuture<UpstreamResponse> response;
+            long startNanos = System.nanoTime();
+            try {
+                breaker.acquire();
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            try {
+                response = client.getAsync(rewrite(uri), requestHeaders, budgetMs);
+            } catch (RuntimeException e) { // E.g. rejected by the pool, so the replica was not called
+                breaker.onSkipped();
+                return CompletableFuture.failedFuture(e);
+            }
+            return response.whenComplete((r, e) -> {
+                if (e != null) {
+                    if (unwrap(e) instanceof IOException) {
+                        breaker.onFailure();
+                    } else { // Rejected by the pool or cancelled, e.g. as the losing hedge
+                        breaker.onSkipped();
+                    }
+                    return;
+                }
+                breaker.onStatus(r.getStatusCode());
+                latencies.add(System.nanoTime() - startNanos);
+            });
+        }
+
+        @Override
+        public String toString() {
+            return client.getSettings().getName();
+        }
+    }
+
+    /**
+     * A request to the image server, which might be sent to more than one replica.
+     */
+    private class Call {
+        private final URI uri;
+        private final String routingKey;
+        private final Map<String, String> requestHeaders;
+        private final long budgetMs;
+        private final long startNanos = System.nanoTime();
+        private final CompletableFuture<UpstreamResponse> result = new CompletableFuture<>();
+        private final Set<Replica> tried = new HashSet<>(); // Guarded by itself
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+        private volatile Throwable lastFailure = null;
+        // Response with a retryable status, used if no other replica delivers a response
+        private final AtomicReference<UpstreamResponse> fallback = new AtomicReference<>(null);
+
+        Call(URI uri, String routingKey, Map<String, String> requestHeaders, long budgetMs) {
+            this.uri = uri;
+            this.routingKey = routingKey;
+            this.requestHeaders = requestHeaders;
+            this.budgetMs = budgetMs;
+        }
+
+        CompletableFuture<UpstreamResponse> start() {
+            if (!send(null)) {
+                result.completeExceptionally(lastFailure);
+                return result;
+            }
+            long delayMs = latencies.getDelayMs();
+            if (settings.isHedgeEnabled() && delayMs >= 0 && delayMs < getRemainingMs()) {
+                CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS, hedgeExecutor)
+                        .execute(this::hedge);
+            }
+            return result;
+        }
+
+        private void hedge() {
+            if (result.isDone()) {
+                return;
+            }
+            log.debug("No response from image server '{}' within {} ms. Hedging request for '{}'",
+                      settings.getBackend(), latencies.getDelayMs(), uri);
+            send(hedges);
+        }
+
+        /**
+         * Send the request to the next replica.
+         * @param counter incremented before the request is sent, if there is a replica to send it to. Can be null.
+         * @return true if the request was sent, false if there were no more replicas to try.
+         */
+        private boolean send(LongAdder counter) {
+            while (getRemainingMs() > 0) {
+                Replica replica;
+                synchronized (tried) {
+                    replica = choose(tried, routingKey);
+                    if (replica == null) {
+                        break;
+                    }
+                    tried.add(replica);
+                }
+                inFlight.incrementAndGet();
+                if (counter != null) {
+                    counter.increment();
+                }
+                // Failures at once, e.g. from an open breaker, are handled in this thread
+                replica.getAsync(uri, requestHeaders, getRemainingMs())
+                        .whenComplete((r, e) -> onComplete(replica, r, e));
+                return true;
+            }
+            if (lastFailure == null) {
+                lastFailure = new ServiceException("Deadline exceeded for image server '" + settings.getBackend() +
+                                                   "'", Response.Status.GATEWAY_TIMEOUT);
+            }
+            return false;
+        }
+
+        private void onComplete(Replica replica, UpstreamResponse response, Throwable e) {
+            if (e == null && isRetryable(response.getStatusCode()) && !result.isDone()) {
+                log.debug("Replica '{}' responded {} for '{}'. Trying another replica",
+                          replica, response.getStatusCode(), uri);
+                send(failovers);
+                closeQuietly(fallback.getAndSet(response));
+                if (result.isDone()) { // Another replica delivered while the fallback was set
+                    closeQuietly(fallback.getAndSet(null));
+                }
+            } else if (e == null) {
+                if (!result.complete(response)) { // Another replica was faster or the caller gave up
+                    response.close();
+                }
+                closeQuietly(fallback.getAndSet(null));
+            } else {
+                Throwable cause = unwrap(e);
+                lastFailure = cause;
+                if (!result.isDone() && isRetryable(cause)) {
+                    log.debug("Request for '{}' failed on replica '{}'. Trying another replica",
+                              uri, replica, cause);
+                    send(failovers);
+                }
+            }
+            if (inFlight.decrementAndGet() == 0) { // No replica delivered a usable response
+                UpstreamResponse last = fallback.getAndSet(null);
+                if (last == null) {
+                    if (lastFailure != null) { // Else the result is already completed with a response
+                        result.completeExceptionally(lastFailure);
+                    }
+                } else if (!result.complete(last)) {
+                    last.close();
+                }
+            }
+        }
+
+        private long getRemainingMs() {
+            return budgetMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Requests that failed because the replica could not be reached or was unavailable can be sent to another
+     * replica.
+     */
+    private static boolean isRetryable(Throwable e) {
+        return e instanceof IOException ||
+               (e instanceof ServiceException &&
+                ((ServiceException) e).getResponseStatus() == Response.Status.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Responses with these status codes are from a replica that is overloaded or cannot reach its storage, so the
+     * request can be sent to another replica.
+     */
+    static boolean isRetryable(int statusCode) {
+        return statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    private static void closeQuietly(UpstreamResponse response) {
+        if (response != null) {
+            response.close();
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * The most recent latencies for the response headers, used for determining the hedging delay.
+     */
+    static class Latencies {
+        static final int SIZE = 256;
+        static final int MIN_SAMPLES = 64;
+        // The delay is recalculated for every UPDATE_EVERY samples
+        static final int UPDATE_EVERY = 32;
+
+        private final double percentile;
+        private final long minDelayMs;
+        private final AtomicLong[] samples = new AtomicLong[SIZE];
+        private final AtomicLong count = new AtomicLong(0);
+        private volatile long delayMs = -1;
+
+        Latencies(double percentile, long minDelayMs) {
+            this.percentile = percentile;
+            this.minDelayMs = minDelayMs;
+            for (int i = 0 ; i < SIZE ; i++) {
+                samples[i] = new AtomicLong(0);
+            }
+        }
+
+        void add(long nanos) {
+            long index = count.getAndIncrement();
+            samples[(int) (index % SIZE)].set(nanos);
+            if (index + 1 >= MIN_SAMPLES && (index + 1) % UPDATE_EVERY == 0) {
+                update(Math.min(index + 1, SIZE));
+            }
+        }
+
+        private void update(long size) {
+            long[] sorted = new long[(int) size];
+            for (int i = 0 ; i < size ; i++) {
+                sorted[i] = samples[i].get();
+            }
+            Arrays.sort(sorted);
+            int rank = (int) Math.min(size - 1, Math.ceil(percentile / 100 * size) - 1);
+            delayMs = Math.max(minDelayMs, TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, rank)]));
+        }
+
+        /**
+         * @return the delay before hedging or -1 if too few latencies has been observed.
+         */
+        long getDelayMs() {
+            return delayMs;
+        }
+    }
+}
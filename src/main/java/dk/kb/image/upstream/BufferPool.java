@@ -0,0 +1,215 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import dk.kb.image.config.ConfigBound;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of reusable buffers for streaming content from the image servers to the clients.
+ * <p>
+ * Buffers are borrowed for the duration of a copy and returned afterwards, so that streaming does not allocate
+ * a new buffer per request. Heap buffers are copied through their backing array with plain stream calls.
+ * Direct buffers are copied through NIO channels, which avoids copying through the heap when both ends are
+ * channels, e.g. files, but adds a copy when the ends are plain streams such as the servlet output.
+ * <p>
+ * The pool is configured under {@code upstream.buffers} in the behaviour config. If not configured, buffers are
+ * not pooled.
+ */
+public class BufferPool {
+    private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+    public static final String KEY_BUFFERS = "upstream.buffers";
+
+    public static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    private static final ConfigBound<BufferPool> instance = new ConfigBound<>(BufferPool::create);
+
+    private final int bufferBytes;
+    private final boolean direct;
+    private final BlockingQueue<ByteBuffer> pool;
+
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+
+    /**
+     * @return the buffer pool for the current configuration.
+     */
+    public static BufferPool getInstance() {
+        return instance.get();
+    }
+
+    /**
+     * Create a buffer pool from the {@code upstream.buffers} part of the configuration.
+     * @param config the full configuration. If null or if {@code upstream.buffers.enabled} is not true, a pool
+     *               that allocates a new heap buffer for every copy is returned.
+     * @return a buffer pool.
+     */
+    public static BufferPool create(YAML config) {
+        if (config == null || !config.getBoolean(KEY_BUFFERS + ".enabled", false)) {
+            return new BufferPool(DEFAULT_BUFFER_BYTES, 0, false);
+        }
+        BufferPool pool = new BufferPool(
+                config.getInteger(KEY_BUFFERS + ".bufferBytes", DEFAULT_BUFFER_BYTES),
+                config.getInteger(KEY_BUFFERS + ".maxPooled", DEFAULT_MAX_POOLED),
+                config.getBoolean(KEY_BUFFERS + ".direct", false));
+        log.info("Created {}", pool);
+        return pool;
+    }
+
+    /**
+     * @param bufferBytes the size of each buffer.
+     * @param maxPooled   the maximum number of idle buffers to keep. 0 disables pooling.
+     * @param direct      if true, direct buffers are used. If false, heap buffers are used.
+     */
+    public BufferPool(int bufferBytes, int maxPooled, boolean direct) {
+        if (bufferBytes <= 0) {
+            throw new IllegalArgumentException("bufferBytes must be positive but was " + bufferBytes);
+        }
+        this.bufferBytes = bufferBytes;
+        this.direct = direct;
+        this.pool = maxPooled > 0 ? new ArrayBlockingQueue<>(maxPooled) : null;
+    }
+
+    /**
+     * @return a cleared buffer from the pool or a new buffer if the pool is empty. Return it with
+     *         {@link #release(ByteBuffer)} after use.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = pool == null ? null : pool.poll();
+        if (buffer != null) {
+            reused.increment();
+            buffer.clear();
+            return buffer;
+        }
+        allocated.increment();
+        return direct ? ByteBuffer.allocateDirect(bufferBytes) : ByteBuffer.allocate(bufferBytes);
+    }
+
+    /**
+     * Return the buffer to the pool. If the pool is full, the buffer is discarded.
+     * @param buffer a buffer from {@link #acquire()}. Must not be used after release.
+     */
+    public void release(ByteBuffer buffer) {
+        if (pool != null && buffer != null) {
+            pool.offer(buffer);
+        }
+    }
+
+    /**
+     * Copy all bytes from in to out using a pooled buffer. Neither stream is closed.
+     * @return the number of copied bytes.
+     * @throws IOException if reading or writing failed.
+     */
+    public long copy(InputStream in, OutputStream out) throws IOException {
+        return copy(in, out, Long.MAX_VALUE);
+    }
+
+    /**
+     * Copy at most {@code limit} bytes from in to out using a pooled buffer. Neither stream is closed.
+     * @return the number of copied bytes.
+     * @throws IOException if reading or writing failed.
+     */
+    public long copy(InputStream in, OutputStream out, long limit) throws IOException {
+        ByteBuffer buffer = acquire();
+        try {
+            return buffer.hasArray() ?
+                    copyArray(in, out, buffer, limit) :
+                    copyChannel(Channels.newChannel(in), Channels.newChannel(out), buffer, limit);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    private static long copyArray(InputStream in, OutputStream out, ByteBuffer buffer, long limit)
+            throws IOException {
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset();
+        int capacity = buffer.capacity();
+        long copied = 0;
+        while (copied < limit) {
+            int read = in.read(array, offset, (int) Math.min(capacity, limit - copied));
+            if (read == -1) {
+                break;
+            }
+            out.write(array, offset, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    private static long copyChannel(
+            ReadableByteChannel in, WritableByteChannel out, ByteBuffer buffer, long limit) throws IOException {
+        long copied = 0;
+        while (copied < limit) {
+            buffer.clear();
+            if (limit - copied < buffer.capacity()) {
+                buffer.limit((int) (limit - copied));
+            }
+            int read = in.read(buffer);
+            if (read == -1) {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            copied += read;
+        }
+        return copied;
+    }
+
+    /**
+     * @return the number of times a pooled buffer was reused.
+     */
+    public long getReused() {
+        return reused.sum();
+    }
+
+    /**
+     * @return the number of buffers that were allocated because the pool was empty.
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * @return the number of idle buffers in the pool.
+     */
+    public int getIdle() {
+        return pool == null ? 0 : pool.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "BufferPool(bufferBytes=%d, maxPooled=%d, direct=%b)",
+                             bufferBytes, pool == null ? 0 : pool.remainingCapacity() + pool.size(), direct);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import dk.kb.util.webservice.exception.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calls to a failing service, so that requests fail fast with {@code 503 Service Unavailable} instead of
+ * holding threads while waiting for timeouts.
+ * <p>
+ * The breaker is {@link State#CLOSED} as long as calls succeed. After {@code failureThreshold} consecutive
+ * failures it is {@link State#OPEN} and rejects all calls for {@code openMs} milliseconds. Then it is
+ * {@link State#HALF_OPEN} and lets a single probe call through: If the probe succeeds, the breaker is closed,
+ * if it fails, the breaker is opened again. If the outcome of the probe is not recorded within {@code openMs},
+ * another probe is let through.
+ * <p>
+ * Callers must call {@link #acquire()} before each call and record the outcome with {@link #onSuccess()} or
+ * {@link #onFailure()}, or with {@link #onSkipped()} if the call was not made after all.
+ */
+public class CircuitBreaker {
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MS = 10000;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMs;
+    private final LongSupplier clock;
+
+    // State changes are rare, so they are guarded by a lock while the closed state is checked without locking
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile State state = State.CLOSED;
+    private long openedAt = 0;
+    private long probeStartedAt = 0;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder trips = new LongAdder();
+
+    /**
+     * @param name             the name of the guarded service, used for logging and error messages.
+     * @param failureThreshold the number of consecutive failures that opens the breaker. 0 or less disables the
+     *                         breaker.
+     * @param openMs           the number of milliseconds that the breaker stays open before probing.
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMs) {
+        this(name, failureThreshold, openMs, System::currentTimeMillis);
+    }
+
+    /**
+     * @param name             the name of the guarded service, used for logging and error messages.
+     * @param failureThreshold the number of consecutive failures that opens the breaker. 0 or less disables the
+     *                         breaker.
+     * @param openMs           the number of milliseconds that the breaker stays open before probing.
+     * @param clock            provides the current time in milliseconds.
+     */
+    CircuitBreaker(String name, int failureThreshold, long openMs, LongSupplier clock) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+        this.clock = clock;
+    }
+
+    /**
+     * Check if a call is allowed.
+     * @throws ServiceException with {@code 503 Service Unavailable} if the breaker is open or if a probe is
+     *                          already in progress.
+     */
+    public void acquire() {
+        if (state == State.CLOSED) { // Fast path
+            return;
+        }
+        lock.lock();
+        try {
+            long now = clock.getAsLong();
+            if (state == State.OPEN && now - openedAt >= openMs) {
+                log.info("Circuit breaker for '{}' is half open. Probing", name);
+                state = State.HALF_OPEN;
+                probeStartedAt = now;
+                return;
+            }
+            if (state == State.HALF_OPEN && now - probeStartedAt >= openMs) { // The probe never reported back
+                probeStartedAt = now;
+                return;
+            }
+            if (state == State.CLOSED) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        rejected.increment();
+        throw new ServiceException("Service '" + name + "' is unavailable", Response.Status.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Record a successful call. Closes the breaker if it was half open.
+     */
+    public void onSuccess() {
+        consecutiveFailures.set(0);
+        if (state == State.CLOSED) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                log.info("Circuit breaker for '{}' is closed after successful probe", name);
+                state = State.CLOSED;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a failed call. Opens the breaker if the probe failed or if the number of consecutive failures
+     * reached the threshold.
+     */
+    public void onFailure() {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        int failures = consecutiveFailures.incrementAndGet();
+        if (state == State.CLOSED && failures < failureThreshold) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+                log.warn("Circuit breaker for '{}' is open for {} ms after {} consecutive failures",
+                         name, openMs, failures);
+                state = State.OPEN;
+                openedAt = clock.getAsLong();
+                trips.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record that a call allowed by {@link #acquire()} was not made, e.g. because a bulkhead or a connection pool
+     * rejected it, or was abandoned before it had an outcome. If the call was the probe of a half open breaker,
+     * the next call is let through as a new probe.
+     */
+    public void onSkipped() {
+        if (state != State.HALF_OPEN) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (state == State.HALF_OPEN) {
+                probeStartedAt = clock.getAsLong() - openMs;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record the outcome of a HTTP call: Server errors ({@code 5xx}) are failures, everything else is success.
+     * @param statusCode the HTTP status code of the response.
+     */
+    public void onStatus(int statusCode) {
+        if (statusCode >= 500) {
+            onFailure();
+        } else {
+            onSuccess();
+        }
+    }
+
+    /**
+     * @return the name of the guarded service.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the current state. An open breaker that is ready for probing is still reported as open.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of consecutive failed calls.
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * @return the number of calls rejected because the breaker was open.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of times the breaker has been opened.
+     */
+    public long getTrips() {
+        return trips.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "CircuitBreaker(name='%s', state=%s, failureThreshold=%d, openMs=%d, " +
+                                          "consecutiveFailures=%d, rejected=%d, trips=%d)",
+                             name, state, failureThreshold, openMs, getConsecutiveFailures(), getRejected(),
+                             getTrips());
+    }
+}
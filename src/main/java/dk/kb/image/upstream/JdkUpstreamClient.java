@@ -0,0 +1,187 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link UpstreamClient} based on the {@link HttpClient} from the JDK.
+ * <p>
+ * Connections are kept alive and reused between requests. If {@link UpstreamSettings#isHttp2()} is true,
+ * HTTP/2 is negotiated with the server, falling back to HTTP/1.1 if the server does not support it.
+ * <p>
+ * The {@link HttpClient} only supports a timeout for receiving the response headers. Reading of the content is
+ * guarded by a {@link ReadTimeoutInputStream}.
+ */
+public class JdkUpstreamClient implements UpstreamClient {
+    private static final Logger log = LoggerFactory.getLogger(JdkUpstreamClient.class);
+
+    private final UpstreamSettings settings;
+    private final UpstreamPool pool;
+    private final HttpClient client;
+
+    public JdkUpstreamClient(UpstreamSettings settings) {
+        this.settings = settings;
+        this.pool = new UpstreamPool(settings);
+        this.client = HttpClient.newBuilder()
+                .version(settings.isHttp2() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(settings.getConnectTimeoutMs()))
+                .build();
+        log.info("Created {}", this);
+    }
+
+    @Override
+    public UpstreamResponse get(URI uri, Map<String, String> requestHeaders, long budgetMs) throws IOException {
+        HttpRequest request = acquire(uri, requestHeaders, budgetMs);
+        try {
+            return new Response(client.send(request, HttpResponse.BodyHandlers.ofInputStream()));
+        } catch (InterruptedException e) {
+            pool.release();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for response from '" + uri + "'");
+        } catch (IOException | RuntimeException e) {
+            pool.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Uses {@link HttpClient#sendAsync} so that no thread is held while waiting for the response headers.
+     * Waiting for a free connection in the pool blocks the calling thread.
+     */
+    @Override
+    public CompletableFuture<UpstreamResponse> getAsync(URI uri, Map<String, String> requestHeaders, long budgetMs) {
+        HttpRequest request;
+        try {
+            request = acquire(uri, requestHeaders, budgetMs);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<UpstreamResponse> response;
+        try {
+            response = client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()).thenApply(Response::new);
+        } catch (RuntimeException e) {
+            pool.release();
+            return CompletableFuture.failedFuture(e);
+        }
+        return response.whenComplete((ignored, e) -> {
+            if (e != null) {
+                pool.release();
+            }
+        });
+    }
+
+    /**
+     * Acquire a connection from the pool and build the request with the remaining budget as timeout.
+     * The caller must release the connection if the request fails.
+     */
+    private HttpRequest acquire(URI uri, Map<String, String> requestHeaders, long budgetMs) {
+        long startNanos = System.nanoTime();
+        pool.acquire(budgetMs);
+        // The budget might have been reduced while waiting for a connection
+        long remainingMs = budgetMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .GET()
+                .timeout(Duration.ofMillis(Math.max(1, Math.min(settings.getReadTimeoutMs(), remainingMs))));
+        requestHeaders.forEach(request::header);
+        return request.build();
+    }
+
+    @Override
+    public UpstreamSettings getSettings() {
+        return settings;
+    }
+
+    @Override
+    public UpstreamPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Closes the {@link HttpClient} on Java 21 and later. On older versions the client cannot be closed explicitly
+     * and its threads stop when the client is no longer referenced.
+     */
+    @Override
+    public void close() {
+        if (client instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) client).close();
+            } catch (Exception e) {
+                log.warn("Exception closing {}", this, e);
+            }
+        }
+        log.debug("Closed {}", this);
+    }
+
+    @Override
+    public String toString() {
+        return "JdkUpstreamClient(" + settings + ")";
+    }
+
+    private class Response implements UpstreamResponse {
+        private final HttpResponse<InputStream> response;
+        private final InputStream body;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        public Response(HttpResponse<InputStream> response) {
+            this.response = response;
+            this.body = new ReadTimeoutInputStream(response.body(), settings.getReadTimeoutMs(), response.uri());
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.statusCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                body.close();
+            } catch (IOException e) {
+                log.debug("Exception closing response body for '{}'", response.uri(), e);
+            } finally {
+                pool.release();
+            }
+        }
+    }
+}
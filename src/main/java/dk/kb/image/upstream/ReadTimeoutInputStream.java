@@ -0,0 +1,153 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds a read timeout to an {@link InputStream} that does not support it natively, such as the body from the
+ * {@link java.net.http.HttpClient}.
+ * <p>
+ * If a single {@code read} call blocks for more than the timeout, the underlying stream is closed from a watchdog
+ * thread, which unblocks the reader. The reader then gets a {@link SocketTimeoutException}.
+ * Time spent outside of {@code read}, e.g. when the caller is writing the data to a slow client, does not count.
+ * <p>
+ * The pending check is cancelled and removed from the watchdog when the stream is closed, so closed streams are
+ * not kept reachable until their next check.
+ */
+class ReadTimeoutInputStream extends FilterInputStream {
+    private static final Logger log = LoggerFactory.getLogger(ReadTimeoutInputStream.class);
+
+    private static final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "upstream-read-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    static {
+        watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    private final long timeoutNanos;
+    private final URI uri;
+
+    private volatile long readStartNanos = 0;
+    private volatile boolean reading = false;
+    private volatile boolean closed = false;
+    private volatile boolean timedOut = false;
+    private ScheduledFuture<?> pendingCheck = null; // Guarded by this
+
+    /**
+     * @param in the stream to guard.
+     * @param timeoutMs the maximum number of milliseconds that a single read may block.
+     * @param uri the source of the stream. Used for logging.
+     */
+    ReadTimeoutInputStream(InputStream in, long timeoutMs, URI uri) {
+        super(in);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        this.uri = uri;
+        schedule(timeoutNanos);
+    }
+
+    @Override
+    public int read() throws IOException {
+        beginRead();
+        try {
+            return super.read();
+        } catch (IOException e) {
+            throw timedOut ? timeout() : e;
+        } finally {
+            reading = false;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        beginRead();
+        try {
+            return super.read(b, off, len);
+        } catch (IOException e) {
+            throw timedOut ? timeout() : e;
+        } finally {
+            reading = false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            if (pendingCheck != null) {
+                pendingCheck.cancel(false);
+                pendingCheck = null;
+            }
+        }
+        super.close();
+    }
+
+    private void beginRead() throws SocketTimeoutException {
+        if (timedOut) {
+            throw timeout();
+        }
+        readStartNanos = System.nanoTime();
+        reading = true;
+    }
+
+    private SocketTimeoutException timeout() {
+        return new SocketTimeoutException(
+                "Read timed out after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms from '" + uri + "'");
+    }
+
+    private synchronized void schedule(long delayNanos) {
+        if (!closed) {
+            pendingCheck = watchdog.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @return the number of checks waiting in the watchdog.
+     */
+    static int getPendingChecks() {
+        return watchdog.getQueue().size();
+    }
+
+    private void check() {
+        if (closed) {
+            return;
+        }
+        long blockedNanos = reading ? System.nanoTime() - readStartNanos : 0;
+        if (blockedNanos < timeoutNanos) {
+            schedule(timeoutNanos - blockedNanos);
+            return;
+        }
+        log.debug("Read from '{}' blocked for more than {} ms. Closing stream",
+                  uri, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+        timedOut = true;
+        try {
+            in.close();
+        } catch (IOException e) {
+            log.debug("Exception closing timed out stream from '{}'", uri, e);
+        }
+    }
+}
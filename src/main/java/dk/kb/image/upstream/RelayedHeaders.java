@@ -0,0 +1,154 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import dk.kb.image.cache.CachePolicy;
+import dk.kb.image.config.ConfigBound;
+import dk.kb.image.util.ConditionalRequests;
+import dk.kb.image.util.RangeRequests;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The allowlist of headers that are relayed from the image servers to the clients, in addition to
+ * {@code Content-Type} and, for {@code 206 Partial Content}, {@code Content-Range}.
+ * <p>
+ * Relaying {@code Content-Length} allows the container to send the content without chunked encoding, so that
+ * clients and intermediaries can preallocate buffers and show progress.
+ * <p>
+ * The allowlist is configured under {@code upstream.relayHeaders} in the behaviour config. If not configured,
+ * {@link #DEFAULT_HEADERS} are relayed. Hop-by-hop headers are never relayed.
+ */
+public class RelayedHeaders {
+    private static final Logger log = LoggerFactory.getLogger(RelayedHeaders.class);
+
+    public static final String KEY_RELAY_HEADERS = UpstreamSettings.KEY_UPSTREAM + ".relayHeaders";
+
+    public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String CONTENT_DISPOSITION = "Content-Disposition";
+    public static final String EXPIRES = "Expires";
+
+    public static final List<String> DEFAULT_HEADERS = List.of(
+            CONTENT_LENGTH, ConditionalRequests.ETAG, ConditionalRequests.LAST_MODIFIED, CachePolicy.CACHE_CONTROL,
+            EXPIRES, CONTENT_DISPOSITION, RangeRequests.ACCEPT_RANGES);
+
+    // Headers that describe the connection to the image server or are set by ds-image itself
+    private static final Set<String> NEVER_RELAYED = Set.of(
+            "connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "te", "trailer",
+            "transfer-encoding", "upgrade", "content-type", "content-range");
+
+    private static final ConfigBound<RelayedHeaders> instance = new ConfigBound<>(RelayedHeaders::create);
+
+    private final List<String> headers;
+
+    /**
+     * @return the relayed headers for the current configuration.
+     */
+    public static RelayedHeaders getInstance() {
+        return instance.get();
+    }
+
+    /**
+     * Create the allowlist from {@code upstream.relayHeaders} in the configuration.
+     * @param config the full configuration. If null or if {@code upstream.relayHeaders} is not defined,
+     *               {@link #DEFAULT_HEADERS} are used.
+     * @return the relayed headers.
+     */
+    public static RelayedHeaders create(YAML config) {
+        if (config == null || !config.containsKey(KEY_RELAY_HEADERS)) {
+            return new RelayedHeaders(DEFAULT_HEADERS);
+        }
+        RelayedHeaders relayed = new RelayedHeaders(config.getList(KEY_RELAY_HEADERS));
+        log.info("Created {}", relayed);
+        return relayed;
+    }
+
+    /**
+     * @param headers the names of the headers to relay. Hop-by-hop headers are ignored.
+     */
+    public RelayedHeaders(List<String> headers) {
+        this.headers = new ArrayList<>(headers.size());
+        for (String header: headers) {
+            if (NEVER_RELAYED.contains(header.toLowerCase(Locale.ROOT))) {
+                log.warn("The header '{}' in {} is never relayed and will be ignored", header, KEY_RELAY_HEADERS);
+            } else {
+                this.headers.add(header);
+            }
+        }
+    }
+
+    /**
+     * Copy the allowed headers from response to httpServletResponse.
+     * If {@code Cache-Control} has already been set by the {@link CachePolicy}, the caching headers from the image
+     * server are ignored.
+     * @param response            an upstream response.
+     * @param httpServletResponse servlet response for the called endpoint.
+     * @param withContent         true if the content of response is passed on. If false, e.g. for
+     *                            {@code 304 Not Modified} or for ranges served from a local copy,
+     *                            {@code Content-Length} is not relayed.
+     */
+    public void copy(UpstreamResponse response, HttpServletResponse httpServletResponse, boolean withContent) {
+        boolean hasPolicy = httpServletResponse.containsHeader(CachePolicy.CACHE_CONTROL);
+        for (String header: headers) {
+            if (hasPolicy && (CachePolicy.CACHE_CONTROL.equalsIgnoreCase(header) || EXPIRES.equalsIgnoreCase(header))) {
+                continue;
+            }
+            String value = response.getHeader(header);
+            if (value == null) {
+                continue;
+            }
+            if (CONTENT_LENGTH.equalsIgnoreCase(header)) {
+                if (withContent) {
+                    setContentLength(httpServletResponse, value);
+                }
+            } else {
+                httpServletResponse.setHeader(header, value);
+            }
+        }
+    }
+
+    /**
+     * Set the content length through the servlet API, so that the container knows it, if the value is valid.
+     */
+    private static void setContentLength(HttpServletResponse httpServletResponse, String value) {
+        try {
+            long length = Long.parseLong(value.trim());
+            if (length >= 0) {
+                httpServletResponse.setContentLengthLong(length);
+            }
+        } catch (NumberFormatException e) {
+            log.debug("Ignoring invalid Content-Length '{}' from image server", value);
+        }
+    }
+
+    /**
+     * @return the names of the relayed headers.
+     */
+    public List<String> getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public String toString() {
+        return "RelayedHeaders(" + headers + ")";
+    }
+}
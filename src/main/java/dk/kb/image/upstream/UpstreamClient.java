@@ -0,0 +1,85 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * HTTP client for a single upstream image server.
+ * <p>
+ * Implementations are expected to keep connections alive between requests and to limit the number of concurrent
+ * connections to the image server using an {@link UpstreamPool}.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface UpstreamClient {
+
+    /**
+     * Issue a GET request for the given uri.
+     * <p>
+     * The returned response holds a connection from the pool until it is closed, so callers must always
+     * {@link UpstreamResponse#close()} it.
+     * @param uri the resource to request.
+     * @param requestHeaders headers to add to the request.
+     * @param budgetMs the maximum number of milliseconds to wait for a connection and the response headers.
+     *                 This is capped by {@link UpstreamSettings#getAcquireTimeoutMs()} and
+     *                 {@link UpstreamSettings#getReadTimeoutMs()}. Use {@link Long#MAX_VALUE} for no budget.
+     * @return the response from the server. Status codes outside of {@code 200-299} are returned as-is.
+     * @throws IOException if the request could not be completed. Timeouts are signalled with
+     *                     {@link java.net.SocketTimeoutException} or {@link java.net.http.HttpTimeoutException}.
+     */
+    UpstreamResponse get(URI uri, Map<String, String> requestHeaders, long budgetMs) throws IOException;
+
+    /**
+     * Issue a GET request for the given uri without waiting for the response.
+     * <p>
+     * The default implementation calls {@link #get(URI, Map, long)} and blocks the calling thread. Implementations
+     * with a non-blocking HTTP client should override this. Waiting for a free connection in the pool might
+     * still block the calling thread.
+     * @param uri the resource to request.
+     * @param requestHeaders headers to add to the request.
+     * @param budgetMs the maximum number of milliseconds to wait for a connection and the response headers.
+     * @return the future response from the server, which must be closed after use. Failures are signalled as for
+     *         {@link #get(URI, Map, long)}.
+     */
+    default CompletableFuture<UpstreamResponse> getAsync(URI uri, Map<String, String> requestHeaders, long budgetMs) {
+        try {
+            return CompletableFuture.completedFuture(get(uri, requestHeaders, budgetMs));
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @return the settings used for the client.
+     */
+    UpstreamSettings getSettings();
+
+    /**
+     * @return the connection pool for the client.
+     */
+    UpstreamPool getPool();
+
+    /**
+     * Release the resources held by the client, such as the threads of the underlying HTTP client. Called when the
+     * client has been replaced due to a configuration change and all connections have been returned to the pool,
+     * see {@link UpstreamPool#drain(long)}. The default implementation does nothing.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import dk.kb.image.IIIFFacade;
+import dk.kb.image.IIPFacade;
+import dk.kb.image.config.ConfigBound;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps one {@link UpstreamClient} for each image server stated under {@code imageservers} in the configuration and
+ * resolves the client to use for a given URI.
+ * <p>
+ * The image server keys are grouped into the backends {@code iip}, {@code iiif} and {@code deepzoom}, which are
+ * used for looking up settings, see {@link UpstreamSettings}. Each backend has its own client, also if more than
+ * one backend use the same server, so that the timeouts and connection pool for a backend applies to its requests.
+ * For a server used by more than one backend, the client is selected by the backend that serves the request,
+ * see {@link #forURI(URI, String)}. URIs that does not match any configured image server are handled by a client
+ * for the backend {@code default}.
+ * <p>
+ * An image server can have replicas, stated as a list under {@code replicas} next to the server key, e.g.
+ * {@code imageservers.iip.replicas}. Requests are balanced across the server and its replicas by a
+ * {@link BalancedUpstreamClient}. Each replica has its own client, named {@code <backend>#<index>}, where the
+ * index is unique across the image servers for the backend.
+ * <p>
+ * The clients are recreated when the configuration changes. The old clients are closed in the background when
+ * the responses that are still streaming from them have been closed.
+ */
+public class UpstreamClients {
+    private static final Logger log = LoggerFactory.getLogger(UpstreamClients.class);
+
+    public static final String BACKEND_IIP = "iip";
+    public static final String BACKEND_IIIF = "iiif";
+    public static final String BACKEND_DEEPZOOM = "deepzoom";
+
+    /**
+     * Backend names in resolve order, mapped to the image server keys that they cover.
+     */
+    public static final Map<String, List<String>> BACKENDS;
+    static {
+        Map<String, List<String>> backends = new LinkedHashMap<>();
+        backends.put(BACKEND_IIP, List.of(IIPFacade.KEY_IIP_SERVER));
+        backends.put(BACKEND_IIIF, List.of(IIIFFacade.KEY_IIIF_SERVER));
+        backends.put(BACKEND_DEEPZOOM, List.of(IIPFacade.KEY_DEEPZOOM_SERVER_PATH,
+                                               IIPFacade.KEY_DEEPZOOM_SERVER_PARAM));
+        BACKENDS = Collections.unmodifiableMap(backends);
+    }
+
+    /**
+     * The maximum number of milliseconds to wait for the responses from replaced clients to be closed before
+     * closing the clients.
+     */
+    static final long DRAIN_TIMEOUT_MS = 300_000;
+
+    private static final ConfigBound<Registry> registry = new ConfigBound<>(Registry::new, Registry::close);
+
+    /**
+     * Resolve the client to use for the given uri. If more than one backend use the image server, the client for
+     * the first backend in {@link #BACKENDS} is used.
+     * @param uri an URI for an image server.
+     * @return the client for the image server that the uri points to, which rewrites the uri if the image server
+     *         has replicas.
+     */
+    public static BalancedUpstreamClient forURI(URI uri) {
+        return forURI(uri, null);
+    }
+
+    /**
+     * Resolve the client to use for the given uri, preferring the client for the given backend if more than one
+     * backend use the image server.
+     * @param uri an URI for an image server.
+     * @param backend the backend that serves the request, e.g. {@link #BACKEND_DEEPZOOM}. Can be null.
+     * @return the client for the image server that the uri points to, which rewrites the uri if the image server
+     *         has replicas.
+     */
+    public static BalancedUpstreamClient forURI(URI uri, String backend) {
+        return registry.get().resolve(uri, backend);
+    }
+
+    /**
+     * Get the settings for the given backend. Only settings for the request as a whole, such as
+     * {@link UpstreamSettings#getDeadlineMs()}, should be taken from this method.
+     * @param backend a backend from {@link #BACKENDS} or {@link UpstreamSettings#DEFAULT_BACKEND}.
+     * @return the settings for the backend.
+     */
+    public static UpstreamSettings getSettings(String backend) {
+        Registry current = registry.get();
+        return current.settings.getOrDefault(backend, current.defaultClient.getSettings());
+    }
+
+    /**
+     * @return all active clients, including the clients for replicas and the client for the {@code default}
+     *         backend.
+     */
+    public static Collection<UpstreamClient> getClients() {
+        return registry.get().clients.values();
+    }
+
+    /**
+     * @return the clients for the configured image servers, one per backend and server, each balancing across the
+     *         server and its replicas. The client for the {@code default} backend is not included.
+     */
+    public static List<BalancedUpstreamClient> getImageServers() {
+        List<BalancedUpstreamClient> servers = new ArrayList<>();
+        registry.get().prefixes.forEach(prefix -> servers.add(prefix.client));
+        return servers;
+    }
+
+    /**
+     * Create a client for the given settings.
+     */
+    static UpstreamClient createClient(UpstreamSettings settings) {
+        switch (settings.getClient()) {
+            case UpstreamSettings.CLIENT_JDK:
+                return new JdkUpstreamClient(settings);
+            case UpstreamSettings.CLIENT_URLCONNECTION:
+                return new UrlConnectionUpstreamClient(settings);
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown upstream client '" + settings.getClient() + "' for backend '" +
+                        settings.getBackend() + "'. Valid values are '" + UpstreamSettings.CLIENT_JDK + "' and '" +
+                        UpstreamSettings.CLIENT_URLCONNECTION + "'");
+        }
+    }
+
+    /**
+     * @param serverKey a key for an image server, e.g. {@code imageservers.iip.server}.
+     * @return the key for the replicas of the image server, e.g. {@code imageservers.iip.replicas}.
+     */
+    static String getReplicasKey(String serverKey) {
+        return serverKey.substring(0, serverKey.lastIndexOf('.') + 1) + "replicas";
+    }
+
+    /**
+     * @return server without trailing {@code /}.
+     */
+    private static String normalise(String server) {
+        return server.endsWith("/") ? server.substring(0, server.length()-1) : server;
+    }
+
+    /**
+     * Clients for a single configuration.
+     */
+    private static class Registry {
+        private final Map<String, UpstreamClient> clients = new LinkedHashMap<>();
+        private final Map<String, UpstreamSettings> settings = new LinkedHashMap<>();
+        private final List<Prefix> prefixes = new ArrayList<>();
+        // The number of replicas for each backend, used for naming the replicas
+        private final Map<String, Integer> replicaCounts = new LinkedHashMap<>();
+        private final BalancedUpstreamClient defaultClient;
+
+        public Registry(YAML config) {
+            // Servers for each backend
+            Map<String, Map<String, BalancedUpstreamClient>> byBackend = new LinkedHashMap<>();
+            if (config != null) {
+                for (Map.Entry<String, List<String>> backend: BACKENDS.entrySet()) {
+                    settings.put(backend.getKey(), new UpstreamSettings(config, backend.getKey()));
+                    Map<String, BalancedUpstreamClient> byServer = new LinkedHashMap<>();
+                    for (String serverKey: backend.getValue()) {
+                        String server = config.getString(serverKey, null);
+                        if (server == null) {
+                            continue;
+                        }
+                        byServer.computeIfAbsent(normalise(server), s -> createBalanced(
+                                config, settings.get(backend.getKey()), s, getReplicasKey(serverKey)));
+                    }
+                    byBackend.put(backend.getKey(), byServer);
+                }
+            }
+            UpstreamSettings defaultSettings = new UpstreamSettings(config, UpstreamSettings.DEFAULT_BACKEND);
+            UpstreamClient client = createClient(defaultSettings);
+            clients.put(UpstreamSettings.DEFAULT_BACKEND, client);
+            defaultClient = new BalancedUpstreamClient(null, List.of(""), List.of(client), defaultSettings);
+
+            Map<String, String> firstBackends = new LinkedHashMap<>();
+            byBackend.forEach((backend, byServer) -> byServer.forEach((server, balanced) -> {
+                String first = firstBackends.putIfAbsent(server, backend);
+                if (first != null) {
+                    log.warn("The image server '{}' is used by the backends '{}' and '{}'. Requests that are not " +
+                             "served by a backend, e.g. status checks, use the client and settings for '{}'",
+                             server, first, backend, first);
+                }
+                prefixes.add(new Prefix(server, backend, balanced));
+            }));
+            // Longest prefix first to ensure that the most specific server is matched. The sort is stable, so
+            // backends using the same server are kept in the order of BACKENDS
+            prefixes.sort(Comparator.comparingInt((Prefix prefix) -> prefix.server.length()).reversed());
+            log.info("Created upstream clients for {} image servers", prefixes.size());
+        }
+
+        /**
+         * Create a client for the primary server and its replicas. The primary server uses the client for the
+         * backend, which is shared between the servers for the backend. Each replica has its own client.
+         */
+        private BalancedUpstreamClient createBalanced(
+                YAML config, UpstreamSettings backendSettings, String primary, String replicasKey) {
+            List<String> servers = new ArrayList<>();
+            List<UpstreamClient> replicaClients = new ArrayList<>();
+            servers.add(primary);
+            replicaClients.add(clients.computeIfAbsent(backendSettings.getBackend(),
+                                                       name -> createClient(backendSettings)));
+            List<String> replicas = config.getList(replicasKey, Collections.emptyList());
+            for (String replica: replicas) {
+                // Numbered across the servers for the backend, e.g. the path and param servers for deepzoom
+                int index = replicaCounts.merge(backendSettings.getBackend(), 1, Integer::sum) + 1;
+                UpstreamSettings replicaSettings = backendSettings.forReplica(index);
+                servers.add(normalise(replica));
+                UpstreamClient replicaClient = createClient(replicaSettings);
+                clients.put(replicaSettings.getName(), replicaClient);
+                replicaClients.add(replicaClient);
+            }
+            return new BalancedUpstreamClient(primary, servers, replicaClients, backendSettings);
+        }
+
+        /**
+         * Close the clients in a background thread when all their connections have been released, so that
+         * requests that started before the configuration change can finish.
+         */
+        public void close() {
+            Thread closer = new Thread(() -> {
+                for (UpstreamClient client: clients.values()) {
+                    if (!client.getPool().drain(DRAIN_TIMEOUT_MS)) {
+                        log.warn("Closing {} with connections still in use after {} ms. Pool status: {}",
+                                 client, DRAIN_TIMEOUT_MS, client.getPool());
+                    }
+                    client.close();
+                }
+                log.info("Closed {} replaced upstream clients", clients.size());
+            }, "upstream-close");
+            closer.setDaemon(true);
+            closer.start();
+        }
+
+        /**
+         * @param backend the backend that serves the request. If null or if no server for the backend matches,
+         *                the most specific matching server for any backend is used.
+         */
+        public BalancedUpstreamClient resolve(URI uri, String backend) {
+            String uriString = uri.toString();
+            BalancedUpstreamClient fallback = null;
+            for (Prefix prefix: prefixes) {
+                if (!uriString.startsWith(prefix.server)) {
+                    continue;
+                }
+                if (backend == null || backend.equals(prefix.backend)) {
+                    return prefix.client;
+                }
+                if (fallback == null) {
+                    fallback = prefix.client;
+                }
+            }
+            return fallback == null ? defaultClient : fallback;
+        }
+    }
+
+    /**
+     * The client for an image server for a backend.
+     */
+    private static class Prefix {
+        private final String server;
+        private final String backend;
+        private final BalancedUpstreamClient client;
+
+        Prefix(String server, String backend, BalancedUpstreamClient client) {
+            this.server = server;
+            this.backend = backend;
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import dk.kb.util.webservice.exception.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of concurrent connections to a backend and keeps statistics for the connection usage.
+ * <p>
+ * The connections themselves are kept alive by the {@link UpstreamClient} implementations. The pool hands out
+ * permits for using a connection. If {@link UpstreamSettings#getMaxPending()} requests are already waiting for a
+ * permit, further requests are rejected at once, so that a slow backend cannot hold all threads.
+ * <p>
+ * The pool also holds the {@link CircuitBreaker} for the backend.
+ */
+public class UpstreamPool {
+    private static final Logger log = LoggerFactory.getLogger(UpstreamPool.class);
+
+    private final String backend;
+    private final int maxConnections;
+    private final long acquireTimeoutMs;
+    private final int maxPending;
+    private final Semaphore permits;
+    private final CircuitBreaker breaker;
+
+    private volatile boolean drained = false;
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public UpstreamPool(UpstreamSettings settings) {
+        this.backend = settings.getName();
+        this.maxConnections = settings.getMaxConnections();
+        this.acquireTimeoutMs = settings.getAcquireTimeoutMs();
+        this.maxPending = settings.getMaxPending();
+        this.permits = new Semaphore(maxConnections, true);
+        this.breaker = new CircuitBreaker(
+                "image server " + backend, settings.getBreakerFailureThreshold(), settings.getBreakerOpenMs());
+    }
+
+    /**
+     * Acquire a connection permit, waiting at most {@link UpstreamSettings#getAcquireTimeoutMs()}.
+     * Every successful call must be matched by a call to {@link #release()}.
+     * @throws ServiceException with {@code 503 Service Unavailable} if no connection became available in time.
+     */
+    public void acquire() {
+        acquire(Long.MAX_VALUE);
+    }
+
+    /**
+     * Acquire a connection permit, waiting at most {@link UpstreamSettings#getAcquireTimeoutMs()} or
+     * {@code budgetMs}, whichever is lowest.
+     * Every successful call must be matched by a call to {@link #release()}.
+     * @param budgetMs the remaining time budget for the request.
+     * @throws ServiceException with {@code 503 Service Unavailable} if no connection became available within
+     *                          {@link UpstreamSettings#getAcquireTimeoutMs()} or if too many requests are waiting,
+     *                          or {@code 504 Gateway Timeout} if the budget was exceeded.
+     */
+    public void acquire(long budgetMs) {
+        requests.increment();
+        if (permits.tryAcquire()) { // Fast path
+            return;
+        }
+        long waitMs = Math.max(0, Math.min(acquireTimeoutMs, budgetMs));
+        int waiting = pending.incrementAndGet();
+        if (maxPending >= 0 && waiting > maxPending) {
+            pending.decrementAndGet();
+            rejected.increment();
+            log.warn("Too many requests waiting for a connection to upstream backend '{}'. Pool status: {}",
+                     backend, this);
+            throw new ServiceException("Too many requests for image server '" + backend + "'",
+                                       Response.Status.SERVICE_UNAVAILABLE);
+        }
+        try {
+            if (permits.tryAcquire(waitMs, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pending.decrementAndGet();
+        }
+        rejected.increment();
+        log.warn("No free connection to upstream backend '{}' within {} ms. Pool status: {}",
+                 backend, waitMs, this);
+        throw new ServiceException("No free connection to image server '" + backend + "'",
+                                   waitMs < acquireTimeoutMs ?
+                                           Response.Status.GATEWAY_TIMEOUT :
+                                           Response.Status.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Release a permit previously acquired with {@link #acquire()}.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * Wait until all connections have been released and take them, so that no new connections can be acquired.
+     * Used before closing the client for the pool when it has been replaced due to a configuration change.
+     * @param timeoutMs the maximum number of milliseconds to wait.
+     * @return true if all connections were released within the timeout.
+     */
+    public boolean drain(long timeoutMs) {
+        try {
+            drained = permits.tryAcquire(maxConnections, timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return drained;
+    }
+
+    /**
+     * @return true if the pool has been drained with {@link #drain(long)}.
+     */
+    public boolean isDrained() {
+        return drained;
+    }
+
+    /**
+     * @return the name of the backend or replica for the pool, see {@link UpstreamSettings#getName()}.
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * @return the maximum number of concurrent connections.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return the circuit breaker for the backend.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * @return the number of connections currently in use.
+     */
+    public int getLeased() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    /**
+     * @return the number of requests currently waiting for a free connection.
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return the total number of requests for a connection.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the number of requests where no connection became available in time or that were rejected because
+     *         too many requests were waiting.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "UpstreamPool(backend='%s', leased=%d/%d, pending=%d, requests=%d, " +
+                                          "rejected=%d)",
+                             backend, getLeased(), maxConnections, getPending(), getRequests(), getRejected());
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response from an {@link UpstreamClient}.
+ * <p>
+ * The response holds a connection from the pool of the client. Calling {@link #close()} returns the connection to
+ * the pool. Calling {@link #close()} multiple times is allowed.
+ */
+public interface UpstreamResponse extends Closeable {
+
+    /**
+     * @return the HTTP status code from the server.
+     */
+    int getStatusCode();
+
+    /**
+     * @param name the name of a HTTP header, e.g. {@code Content-Type}. Case insensitive.
+     * @return the first value for the header or null if it is not present.
+     */
+    String getHeader(String name);
+
+    /**
+     * The body of the response. This should only be requested once.
+     * @return a stream with the body of the response.
+     * @throws IOException if the body could not be opened.
+     */
+    InputStream getBody() throws IOException;
+
+    /**
+     * Closes the body of the response and returns the connection to the pool.
+     */
+    @Override
+    void close();
+}
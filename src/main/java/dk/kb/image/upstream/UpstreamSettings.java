@@ -0,0 +1,319 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import dk.kb.util.yaml.YAML;
+
+import java.util.Locale;
+
+/**
+ * Immutable settings for an {@link UpstreamClient}.
+ * <p>
+ * Values are resolved from {@code upstream.<backend>.<key>} with fallback to {@code upstream.default.<key>} and
+ * lastly to the defaults stated in this class. See {@code conf/ds-image-behaviour.yaml} for a description of
+ * the keys.
+ */
+public class UpstreamSettings {
+    public static final String KEY_UPSTREAM = "upstream";
+    public static final String DEFAULT_BACKEND = "default";
+
+    public static final String CLIENT_JDK = "jdk";
+    public static final String CLIENT_URLCONNECTION = "urlconnection";
+
+    public static final String DEFAULT_CLIENT = CLIENT_JDK;
+    public static final boolean DEFAULT_HTTP2 = true;
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MS = 10000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+    public static final long DEFAULT_DEADLINE_MS = 60000;
+    public static final int DEFAULT_MAX_PENDING = -1;
+    public static final boolean DEFAULT_HEDGE_ENABLED = false;
+    public static final double DEFAULT_HEDGE_PERCENTILE = 95.0;
+    public static final long DEFAULT_HEDGE_MIN_DELAY_MS = 20;
+    public static final String ROUTING_BALANCED = "balanced";
+    public static final String ROUTING_HASH = "hash";
+    public static final String DEFAULT_ROUTING = ROUTING_BALANCED;
+
+    private final String backend;
+    private final String name;
+    private final String client;
+    private final boolean http2;
+    private final int maxConnections;
+    private final long acquireTimeoutMs;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final long deadlineMs;
+    private final int maxPending;
+    private final int breakerFailureThreshold;
+    private final long breakerOpenMs;
+    private final boolean hedgeEnabled;
+    private final double hedgePercentile;
+    private final long hedgeMinDelayMs;
+    private final String routing;
+
+    /**
+     * Resolve the settings for the given backend.
+     * @param config the configuration to resolve the settings from. If null, the defaults are used.
+     * @param backend the name of the backend, e.g. {@code iip}.
+     */
+    public UpstreamSettings(YAML config, String backend) {
+        this.backend = backend;
+        this.name = backend;
+        client = getString(config, backend, "client", DEFAULT_CLIENT).toLowerCase(Locale.ROOT);
+        http2 = getBoolean(config, backend, "http2", DEFAULT_HTTP2);
+        maxConnections = getInteger(config, backend, "maxConnections", DEFAULT_MAX_CONNECTIONS);
+        acquireTimeoutMs = getLong(config, backend, "acquireTimeoutMs", DEFAULT_ACQUIRE_TIMEOUT_MS);
+        connectTimeoutMs = getInteger(config, backend, "connectTimeoutMs", DEFAULT_CONNECT_TIMEOUT_MS);
+        readTimeoutMs = getInteger(config, backend, "readTimeoutMs", DEFAULT_READ_TIMEOUT_MS);
+        deadlineMs = getLong(config, backend, "deadlineMs", DEFAULT_DEADLINE_MS);
+        maxPending = getInteger(config, backend, "maxPending", DEFAULT_MAX_PENDING);
+        breakerFailureThreshold = getInteger(config, backend, "breaker.failureThreshold",
+                                             CircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+        breakerOpenMs = getLong(config, backend, "breaker.openMs", CircuitBreaker.DEFAULT_OPEN_MS);
+        hedgeEnabled = getBoolean(config, backend, "hedge.enabled", DEFAULT_HEDGE_ENABLED);
+        hedgePercentile = getDouble(config, backend, "hedge.percentile", DEFAULT_HEDGE_PERCENTILE);
+        hedgeMinDelayMs = getLong(config, backend, "hedge.minDelayMs", DEFAULT_HEDGE_MIN_DELAY_MS);
+        routing = getString(config, backend, "routing", DEFAULT_ROUTING).toLowerCase(Locale.ROOT);
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException(
+                    "maxConnections for upstream backend '" + backend + "' must be 1 or more, but was " +
+                    maxConnections);
+        }
+        if (connectTimeoutMs < 1 || readTimeoutMs < 1) {
+            throw new IllegalArgumentException(
+                    "connectTimeoutMs and readTimeoutMs for upstream backend '" + backend + "' must be 1 or more, " +
+                    "but was " + connectTimeoutMs + " and " + readTimeoutMs);
+        }
+        if (hedgeEnabled && !CLIENT_JDK.equals(client)) {
+            // The other clients block until the response headers arrive, so the hedge would never be sent in time
+            throw new IllegalArgumentException(
+                    "hedge.enabled for upstream backend '" + backend + "' requires the client '" + CLIENT_JDK +
+                    "', but the client was '" + client + "'");
+        }
+        if (!ROUTING_BALANCED.equals(routing) && !ROUTING_HASH.equals(routing)) {
+            throw new IllegalArgumentException(
+                    "Unknown routing '" + routing + "' for upstream backend '" + backend + "'. Valid values are '" +
+                    ROUTING_BALANCED + "' and '" + ROUTING_HASH + "'");
+        }
+    }
+
+    /**
+     * Copy the settings with a new name.
+     */
+    private UpstreamSettings(UpstreamSettings settings, String name) {
+        backend = settings.backend;
+        this.name = name;
+        client = settings.client;
+        http2 = settings.http2;
+        maxConnections = settings.maxConnections;
+        acquireTimeoutMs = settings.acquireTimeoutMs;
+        connectTimeoutMs = settings.connectTimeoutMs;
+        readTimeoutMs = settings.readTimeoutMs;
+        deadlineMs = settings.deadlineMs;
+        maxPending = settings.maxPending;
+        breakerFailureThreshold = settings.breakerFailureThreshold;
+        breakerOpenMs = settings.breakerOpenMs;
+        hedgeEnabled = settings.hedgeEnabled;
+        hedgePercentile = settings.hedgePercentile;
+        hedgeMinDelayMs = settings.hedgeMinDelayMs;
+        routing = settings.routing;
+    }
+
+    /**
+     * The settings for a replica of an image server are the same as for the backend, but the replica is named
+     * {@code <backend>#<index>}, e.g. {@code iip#2}, to tell the connection pools and circuit breakers apart.
+     * Server addresses are not used in names as the names can be part of error messages.
+     * @param index the index of the replica, starting at 2 for the first replica. Must be unique for the backend,
+     *              also if more than one image server for the backend has replicas.
+     * @return the settings for the replica.
+     */
+    public UpstreamSettings forReplica(int index) {
+        return new UpstreamSettings(this, backend + "#" + index);
+    }
+
+    /**
+     * @return the name of the backend, e.g. {@code iip}.
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * @return the name of the backend or the replica, e.g. {@code iip} or {@code iip#2}.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the client implementation: {@link #CLIENT_JDK} or {@link #CLIENT_URLCONNECTION}.
+     */
+    public String getClient() {
+        return client;
+    }
+
+    /**
+     * @return true if HTTP/2 should be attempted.
+     */
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * @return the maximum number of concurrent connections to the backend.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return the maximum number of milliseconds to wait for a free connection.
+     */
+    public long getAcquireTimeoutMs() {
+        return acquireTimeoutMs;
+    }
+
+    /**
+     * @return the maximum number of milliseconds to wait for establishing a connection.
+     */
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    /**
+     * @return the maximum number of milliseconds to wait for data from the image server, both when waiting for
+     *         the response headers and when streaming the content.
+     */
+    public int getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    /**
+     * @return the end-to-end time budget in milliseconds for requests served by the backend, including the license
+     *         check. 0 or less means no deadline.
+     */
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    /**
+     * @return the maximum number of requests waiting for a free connection. Requests beyond this are rejected
+     *         without waiting. -1 means no limit.
+     */
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * @return the number of consecutive failures that opens the {@link CircuitBreaker} for the backend.
+     *         0 or less disables the breaker.
+     */
+    public int getBreakerFailureThreshold() {
+        return breakerFailureThreshold;
+    }
+
+    /**
+     * @return the number of milliseconds that the {@link CircuitBreaker} for the backend stays open before
+     *         probing.
+     */
+    public long getBreakerOpenMs() {
+        return breakerOpenMs;
+    }
+
+    /**
+     * @return true if a second request should be sent to another replica of the image server when the first
+     *         request has not responded within the {@link #getHedgePercentile()} latency. Only supported by the
+     *         {@link #CLIENT_JDK} client.
+     */
+    public boolean isHedgeEnabled() {
+        return hedgeEnabled;
+    }
+
+    /**
+     * @return the percentile of the observed latencies for the response headers to wait before hedging.
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * @return the minimum number of milliseconds to wait before hedging.
+     */
+    public long getHedgeMinDelayMs() {
+        return hedgeMinDelayMs;
+    }
+
+    /**
+     * @return how requests are routed to the replicas of an image server: {@link #ROUTING_BALANCED} chooses the
+     *         replica with the fewest outstanding requests, {@link #ROUTING_HASH} chooses the replica from the
+     *         image identifier so that requests for the same image hit the same replica.
+     */
+    public String getRouting() {
+        return routing;
+    }
+
+    static String getString(YAML config, String backend, String key, String defaultValue) {
+        if (config == null) {
+            return defaultValue;
+        }
+        return config.getString(KEY_UPSTREAM + "." + backend + "." + key,
+                                config.getString(KEY_UPSTREAM + "." + DEFAULT_BACKEND + "." + key, defaultValue));
+    }
+
+    static boolean getBoolean(YAML config, String backend, String key, boolean defaultValue) {
+        if (config == null) {
+            return defaultValue;
+        }
+        return config.getBoolean(KEY_UPSTREAM + "." + backend + "." + key,
+                                 config.getBoolean(KEY_UPSTREAM + "." + DEFAULT_BACKEND + "." + key, defaultValue));
+    }
+
+    static int getInteger(YAML config, String backend, String key, int defaultValue) {
+        if (config == null) {
+            return defaultValue;
+        }
+        return config.getInteger(KEY_UPSTREAM + "." + backend + "." + key,
+                                 config.getInteger(KEY_UPSTREAM + "." + DEFAULT_BACKEND + "." + key, defaultValue));
+    }
+
+    static long getLong(YAML config, String backend, String key, long defaultValue) {
+        if (config == null) {
+            return defaultValue;
+        }
+        return config.getLong(KEY_UPSTREAM + "." + backend + "." + key,
+                              config.getLong(KEY_UPSTREAM + "." + DEFAULT_BACKEND + "." + key, defaultValue));
+    }
+
+    static double getDouble(YAML config, String backend, String key, double defaultValue) {
+        if (config == null) {
+            return defaultValue;
+        }
+        return config.getDouble(KEY_UPSTREAM + "." + backend + "." + key,
+                                config.getDouble(KEY_UPSTREAM + "." + DEFAULT_BACKEND + "." + key, defaultValue));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                             "UpstreamSettings(name='%s', client='%s', http2=%b, maxConnections=%d, " +
+                             "acquireTimeoutMs=%d, connectTimeoutMs=%d, readTimeoutMs=%d, deadlineMs=%d, " +
+                             "maxPending=%d, breakerFailureThreshold=%d, breakerOpenMs=%d, hedgeEnabled=%b, " +
+                             "hedgePercentile=%.1f, hedgeMinDelayMs=%d, routing='%s')",
+                             name, client, http2, maxConnections, acquireTimeoutMs,
+                             connectTimeoutMs, readTimeoutMs, deadlineMs, maxPending, breakerFailureThreshold,
+                             breakerOpenMs, hedgeEnabled, hedgePercentile, hedgeMinDelayMs, routing);
+    }
+}
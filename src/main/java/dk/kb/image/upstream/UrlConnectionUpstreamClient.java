@@ -0,0 +1,154 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link UpstreamClient} based on {@link HttpURLConnection}.
+ * <p>
+ * This is the connection method used before the introduction of {@link UpstreamClient}s and is kept as a fallback
+ * for image servers that do not play well with {@link JdkUpstreamClient}. The JVM keeps the connections alive as
+ * long as the responses are fully read, which is ensured by {@link UpstreamResponse#close()}.
+ * HTTP/2 is not supported.
+ */
+public class UrlConnectionUpstreamClient implements UpstreamClient {
+    private static final Logger log = LoggerFactory.getLogger(UrlConnectionUpstreamClient.class);
+
+    private final UpstreamSettings settings;
+    private final UpstreamPool pool;
+
+    public UrlConnectionUpstreamClient(UpstreamSettings settings) {
+        this.settings = settings;
+        this.pool = new UpstreamPool(settings);
+        log.info("Created {}", this);
+    }
+
+    @Override
+    public UpstreamResponse get(URI uri, Map<String, String> requestHeaders, long budgetMs) throws IOException {
+        long startNanos = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+        connection.setInstanceFollowRedirects(true);
+        connection.setRequestMethod("GET");
+        requestHeaders.forEach(connection::addRequestProperty);
+
+        pool.acquire(budgetMs);
+        // The budget might have been reduced while waiting for a connection.
+        // Note that the read timeout also applies to each read when streaming the content
+        long remainingMs = budgetMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        connection.setConnectTimeout((int) Math.max(1, Math.min(settings.getConnectTimeoutMs(), remainingMs)));
+        connection.setReadTimeout((int) Math.max(1, Math.min(settings.getReadTimeoutMs(), remainingMs)));
+        try {
+            connection.connect();
+            return new Response(connection, connection.getResponseCode());
+        } catch (IOException | RuntimeException e) {
+            pool.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public UpstreamSettings getSettings() {
+        return settings;
+    }
+
+    @Override
+    public UpstreamPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public String toString() {
+        return "UrlConnectionUpstreamClient(" + settings + ")";
+    }
+
+    private class Response implements UpstreamResponse {
+        private final HttpURLConnection connection;
+        private final int statusCode;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        // Opening the body is blocking I/O, which pins virtual threads inside synchronized blocks
+        private final ReentrantLock bodyLock = new ReentrantLock();
+        private InputStream body = null;
+
+        public Response(HttpURLConnection connection, int statusCode) {
+            this.connection = connection;
+            this.statusCode = statusCode;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            bodyLock.lock();
+            try {
+                if (body == null) {
+                    body = connection.getInputStream();
+                }
+                return body;
+            } finally {
+                bodyLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            InputStream stream;
+            bodyLock.lock();
+            try {
+                stream = body;
+            } finally {
+                bodyLock.unlock();
+            }
+            // Closing the stream (normal or error) without disconnecting allows the JVM to reuse the connection.
+            // If the body was never opened, e.g. for HEAD requests, it is opened so that it can be closed
+            try {
+                if (stream == null) {
+                    stream = statusCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+                }
+                if (stream == null) {
+                    connection.disconnect();
+                } else {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                log.debug("Exception closing response body for '{}'", connection.getURL(), e);
+                connection.disconnect();
+            } finally {
+                pool.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.image.config.ConfigBound;
+import dk.kb.util.webservice.exception.ServiceException;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Support for asynchronous processing of requests: When enabled, the DeepZoom and IIIF endpoints return a
+ * {@link java.util.concurrent.CompletionStage} and the container thread is released while waiting for the license
+ * module and the image servers.
+ * <p>
+ * Asynchronous processing is configured under {@code async} in the behaviour config and is disabled by default.
+ */
+public class AsyncRequests {
+    private static final Logger log = LoggerFactory.getLogger(AsyncRequests.class);
+
+    public static final String KEY_ASYNC = "async";
+
+    private static final ConfigBound<AsyncRequests> instance = new ConfigBound<>(AsyncRequests::create);
+
+    private final boolean enabled;
+
+    /**
+     * @return the asynchronous processing setup for the current configuration.
+     */
+    public static AsyncRequests getInstance() {
+        return instance.get();
+    }
+
+    /**
+     * Create the asynchronous processing setup from the {@code async} part of the configuration.
+     * @param config the full configuration. If null or if {@code async.enabled} is not true, asynchronous
+     *               processing is disabled.
+     * @return the setup.
+     */
+    public static AsyncRequests create(YAML config) {
+        boolean enabled = config != null && config.getBoolean(KEY_ASYNC + ".enabled", false);
+        if (enabled) {
+            log.info("Asynchronous processing of requests is enabled");
+        }
+        return new AsyncRequests(enabled);
+    }
+
+    AsyncRequests(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return true if requests should be processed asynchronously.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Limit the time to wait for the future to the time left before the deadline of the current request.
+     * The given future is not changed, so it is safe to use for futures that are shared between requests.
+     * @param future the result of an asynchronous call.
+     * @param stage  the processing stage, e.g. {@code license check}. Used for logging and for the error message.
+     * @return a future that completes as the given future or fails with a {@link ServiceException} with
+     *         {@code 504 Gateway Timeout} if the deadline is passed first.
+     */
+    public static <T> CompletableFuture<T> withDeadline(CompletableFuture<T> future, String stage) {
+        RequestContext requestContext = RequestContext.current();
+        long remainingMs = requestContext.getRemainingMs();
+        if (remainingMs == RequestContext.NO_DEADLINE) {
+            return future;
+        }
+        CompletableFuture<T> limited = future.copy().orTimeout(Math.max(1, remainingMs), TimeUnit.MILLISECONDS);
+        return limited.exceptionallyCompose(e -> {
+            Throwable cause = unwrap(e);
+            if (cause instanceof TimeoutException) {
+                log.warn("Deadline exceeded at stage '{}' after {} ms", stage, requestContext.getElapsedMs());
+                cause = new ServiceException("Deadline exceeded at " + stage, Response.Status.GATEWAY_TIMEOUT);
+            }
+            return CompletableFuture.failedFuture(cause);
+        });
+    }
+
+    /**
+     * Remove the wrapping added by {@link CompletableFuture}.
+     * @param e a failure from a future.
+     * @return the original failure.
+     */
+    public static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+}
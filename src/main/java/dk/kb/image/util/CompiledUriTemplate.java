@@ -0,0 +1,261 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A URI template (<a href="https://datatracker.ietf.org/doc/html/rfc6570">RFC 6570</a>) that is parsed once and
+ * expanded many times, for building the URIs for the image servers.
+ * <p>
+ * Only the subset used by the facades is supported: Expressions with a single variable and the operators
+ * none ({@code {var}}), reserved ({@code {+var}}), query ({@code {?var}}) and query continuation ({@code {&var}}).
+ * Collections are joined with {@code ", "}, as done by {@code ProxyHelper.addIfPresent}. The expansion is
+ * the same as with {@code com.damnhandy.uri.template.UriTemplate}, but without parsing the template, reflection
+ * or intermediate strings for each request.
+ * <p>
+ * Instances are immutable and thread safe. Values are given to a {@link Builder} from {@link #builder()}, which
+ * is used for a single expansion.
+ */
+public class CompiledUriTemplate {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final String RESERVED = ":/?#[]@!$&'()*+,;=";
+
+    private final String template;
+    // Literal parts and expressions in template order. Expressions are referenced by index into names
+    private final String[] literals;
+    private final char[] operators;
+    private final String[] names;
+    private final int literalLength;
+
+    /**
+     * @param template a URI template, typically the server from the configuration followed by one of the
+     *                 templates from the facades.
+     * @return the template, ready for expansion.
+     * @throws IllegalArgumentException if the template is malformed or uses unsupported features.
+     */
+    public static CompiledUriTemplate compile(String template) {
+        return new CompiledUriTemplate(template);
+    }
+
+    private CompiledUriTemplate(String template) {
+        this.template = template;
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        StringBuilder operators = new StringBuilder();
+        int literalLength = 0;
+        int pos = 0;
+        while (pos < template.length()) {
+            int start = template.indexOf('{', pos);
+            String literal = template.substring(pos, start < 0 ? template.length() : start);
+            if (literal.indexOf('}') >= 0) {
+                throw new IllegalArgumentException("Unmatched '}' in URI template '" + template + "'");
+            }
+            literals.add(literal);
+            literalLength += literal.length();
+            if (start < 0) {
+                break;
+            }
+            int end = template.indexOf('}', start);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated expression in URI template '" + template + "'");
+            }
+            String expression = template.substring(start + 1, end);
+            char operator = expression.isEmpty() ? 0 : expression.charAt(0);
+            if (operator == '+' || operator == '?' || operator == '&') {
+                expression = expression.substring(1);
+            } else {
+                operator = 0;
+            }
+            if (!isVarName(expression)) {
+                throw new IllegalArgumentException(String.format(
+                        Locale.ROOT, "Unsupported expression '{%s}' in URI template '%s'. Only a single variable " +
+                                     "with no operator or one of '+', '?' and '&' is supported",
+                        template.substring(start + 1, end), template));
+            }
+            names.add(expression);
+            operators.append(operator);
+            pos = end + 1;
+            if (pos == template.length()) {
+                literals.add("");
+            }
+        }
+        if (literals.size() == names.size()) { // Empty template
+            literals.add("");
+        }
+        this.literals = literals.toArray(new String[0]);
+        this.names = names.toArray(new String[0]);
+        this.operators = operators.toString().toCharArray();
+        this.literalLength = literalLength;
+    }
+
+    private static boolean isVarName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(isAlphaNum(c) || c == '_' || c == '.')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a builder for a single expansion of this template.
+     */
+    public Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the index of the variable in the template or -1 if the template does not contain the variable.
+     */
+    private int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledUriTemplate('" + template + "')";
+    }
+
+    /**
+     * Collects the values for a single expansion. Not thread safe.
+     */
+    public class Builder {
+        private final Object[] values = new Object[names.length];
+
+        private Builder() {
+        }
+
+        /**
+         * Set the value for a variable. Unknown variables are ignored, as with
+         * {@code com.damnhandy.uri.template.UriTemplate}.
+         * @param name  the name of the variable.
+         * @param value a String, Number, Boolean or Collection of those. If null, the variable is undefined and
+         *              the expression is left out of the result. Note that an empty String is defined.
+         * @return the builder, for chaining.
+         */
+        public Builder set(String name, Object value) {
+            int index = indexOf(name);
+            if (index >= 0) {
+                values[index] = value;
+            }
+            return this;
+        }
+
+        /**
+         * Set the value for a variable if it is not null or empty, with the same semantics as
+         * {@code ProxyHelper.addIfPresent}.
+         * @param name  the name of the variable.
+         * @param value the value. Ignored if null or if its String representation is empty.
+         * @return the builder, for chaining.
+         */
+        public Builder setIfPresent(String name, Object value) {
+            if (value == null || (value instanceof CharSequence && ((CharSequence) value).length() == 0)) {
+                return this;
+            }
+            return set(name, value);
+        }
+
+        /**
+         * @return the template expanded with the values given to the builder.
+         */
+        public String expand() {
+            StringBuilder sb = new StringBuilder(literalLength + 16 * names.length);
+            for (int i = 0; i < names.length; i++) {
+                sb.append(literals[i]);
+                Object value = values[i];
+                if (value == null) {
+                    continue;
+                }
+                char operator = operators[i];
+                if (operator == '?' || operator == '&') {
+                    sb.append(operator).append(names[i]).append('=');
+                }
+                appendValue(sb, value, operator == '+');
+            }
+            sb.append(literals[names.length]);
+            return sb.toString();
+        }
+    }
+
+    private static void appendValue(StringBuilder sb, Object value, boolean allowReserved) {
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            sb.append(((Number) value).longValue()); // Only unreserved characters, so no need for encoding
+        } else if (value instanceof Collection) {
+            Iterator<?> elements = ((Collection<?>) value).iterator();
+            while (elements.hasNext()) {
+                appendValue(sb, elements.next(), allowReserved);
+                if (elements.hasNext()) {
+                    sb.append(allowReserved ? "," : "%2C").append("%20");
+                }
+            }
+        } else {
+            encode(sb, String.valueOf(value), allowReserved);
+        }
+    }
+
+    /**
+     * Percent-encode the value as UTF-8 and append it to the builder.
+     * @param allowReserved if true, reserved characters and valid percent-encoded triplets are kept as-is.
+     */
+    static void encode(StringBuilder sb, String value, boolean allowReserved) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (isAlphaNum(c) || c == '-' || c == '.' || c == '_' || c == '~') {
+                sb.append(c);
+            } else if (allowReserved && RESERVED.indexOf(c) >= 0) {
+                sb.append(c);
+            } else if (allowReserved && c == '%' && i + 2 < value.length() &&
+                       isHex(value.charAt(i + 1)) && isHex(value.charAt(i + 2))) {
+                sb.append(value, i, i + 3);
+                i += 2;
+            } else if (c < 0x80) {
+                appendEscaped(sb, c);
+            } else {
+                int end = Character.isHighSurrogate(c) && i + 1 < value.length() ? i + 2 : i + 1;
+                for (byte b: value.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+                    appendEscaped(sb, b & 0xFF);
+                }
+                i = end - 1;
+            }
+        }
+    }
+
+    private static void appendEscaped(StringBuilder sb, int b) {
+        sb.append('%').append(HEX[b >> 4]).append(HEX[b & 0x0F]);
+    }
+
+    private static boolean isAlphaNum(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f');
+    }
+}
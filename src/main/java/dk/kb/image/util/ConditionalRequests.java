@@ -0,0 +1,124 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.StreamingOutput;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Support for conditional requests (RFC 9110 section 13): Validators ({@code ETag}, {@code Last-Modified}) and
+ * preconditions ({@code If-None-Match}, {@code If-Modified-Since}).
+ * <p>
+ * Requests to the image servers pass the preconditions on and responses pass the validators back. For content
+ * served by ds-image itself, e.g. cached tiles, ds-image generates strong ETags and evaluates
+ * {@code If-None-Match}.
+ */
+public class ConditionalRequests {
+    public static final String ETAG = "ETag";
+    public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    /**
+     * The preconditions that are forwarded to the image servers.
+     */
+    public static final List<String> PRECONDITIONS = List.of(IF_NONE_MATCH, IF_MODIFIED_SINCE);
+
+    /**
+     * Returned instead of content when the response is {@code 304 Not Modified}. Writes nothing.
+     * Compare by identity to detect that a response has no content.
+     */
+    public static final StreamingOutput NOT_MODIFIED = output -> { };
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * @param content the full content of a response.
+     * @return a quoted strong ETag derived from the SHA-256 of the content.
+     */
+    public static String strongETag(byte[] content) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 should always be available", e);
+        }
+        char[] eTag = new char[34];
+        eTag[0] = '"';
+        for (int i = 0; i < 16; i++) {
+            eTag[1 + i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            eTag[2 + i * 2] = HEX[digest[i] & 0xF];
+        }
+        eTag[33] = '"';
+        return new String(eTag);
+    }
+
+    /**
+     * Check the {@code If-None-Match} header against the ETag using weak comparison, as required for
+     * {@code If-None-Match}.
+     * @param ifNoneMatch the value of the {@code If-None-Match} header. Can be null.
+     * @param eTag        the quoted ETag for the current content.
+     * @return true if the header matches the ETag, meaning that the client has the current content.
+     */
+    public static boolean matchesIfNoneMatch(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null || eTag == null) {
+            return false;
+        }
+        String opaque = stripWeak(eTag);
+        int pos = 0;
+        while (pos < ifNoneMatch.length()) {
+            int comma = ifNoneMatch.indexOf(',', pos);
+            int end = comma < 0 ? ifNoneMatch.length() : comma;
+            String candidate = ifNoneMatch.substring(pos, end).trim();
+            if ("*".equals(candidate) || opaque.equals(stripWeak(candidate))) {
+                return true;
+            }
+            pos = end + 1;
+        }
+        return false;
+    }
+
+    private static String stripWeak(String eTag) {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+
+    /**
+     * Evaluate {@code If-None-Match} for content generated by ds-image and set the {@code ETag} on the response.
+     * If the request matches, the response status is set to {@code 304 Not Modified}.
+     * <p>
+     * The request headers and the response are taken from {@link RequestContext}. Outside of a request, nothing
+     * is done.
+     * @param eTag the quoted ETag for the content.
+     * @return true if the response is {@code 304 Not Modified} and no content should be sent.
+     */
+    public static boolean isNotModified(String eTag) {
+        RequestContext requestContext = RequestContext.current();
+        HttpServletResponse response = requestContext.getServletResponse();
+        if (response == null) {
+            return false;
+        }
+        response.setHeader(ETAG, eTag);
+        HttpHeaders requestHeaders = requestContext.getRequestHeaders();
+        if (requestHeaders != null && matchesIfNoneMatch(requestHeaders.getHeaderString(IF_NONE_MATCH), eTag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+}
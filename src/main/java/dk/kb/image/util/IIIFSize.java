@@ -0,0 +1,209 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+/**
+ * The size parameter from a IIIF Image Request, parsed without regular expressions.
+ * <p>
+ * Supported forms are {@code max}, {@code w,}, {@code ,h}, {@code pct:n}, {@code w,h} and {@code !w,h}, all
+ * optionally prefixed with {@code ^}. See <a href="https://iiif.io/api/image/3.0/#42-size">IIIF Image API size</a>.
+ */
+public final class IIIFSize {
+    private final boolean upscale;
+    private final boolean max;
+    private final boolean confined;
+    private final int width;
+    private final int height;
+    private final float percent;
+
+    private IIIFSize(boolean upscale, boolean max, boolean confined, int width, int height, float percent) {
+        this.upscale = upscale;
+        this.max = max;
+        this.confined = confined;
+        this.width = width;
+        this.height = height;
+        this.percent = percent;
+    }
+
+    /**
+     * @param size a IIIF size parameter, e.g. {@code !150,100}.
+     * @return the parsed size or null if the size is null or not a valid IIIF size.
+     */
+    public static IIIFSize parse(String size) {
+        if (size == null || size.isEmpty()) {
+            return null;
+        }
+        int pos = 0;
+        boolean upscale = size.charAt(0) == '^';
+        if (upscale) {
+            pos++;
+        }
+        if (size.startsWith("max", pos) && size.length() == pos + 3) {
+            return new IIIFSize(upscale, true, false, -1, -1, -1);
+        }
+        if (size.startsWith("pct:", pos)) {
+            float percent = parsePercent(size, pos + 4);
+            if (!(percent > 0) || (!upscale && percent > 100)) {
+                return null;
+            }
+            return new IIIFSize(upscale, false, false, -1, -1, percent);
+        }
+        boolean confined = pos < size.length() && size.charAt(pos) == '!';
+        if (confined) {
+            pos++;
+        }
+        int comma = size.indexOf(',', pos);
+        if (comma < 0) {
+            return null;
+        }
+        int width = parseDimension(size, pos, comma);
+        int height = parseDimension(size, comma + 1, size.length());
+        if (width == -2 || height == -2 || (width == -1 && height == -1) ||
+            (confined && (width == -1 || height == -1))) {
+            return null;
+        }
+        return new IIIFSize(upscale, false, confined, width, height, -1);
+    }
+
+    /**
+     * @return the positive integer in {@code s} from {@code start} to {@code end}, -1 if the range is empty or
+     *         -2 if the range is not a positive integer.
+     */
+    private static int parseDimension(String s, int start, int end) {
+        if (start == end) {
+            return -1;
+        }
+        if (end - start > 9) { // Guard against overflow
+            return -2;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -2;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value == 0 ? -2 : value;
+    }
+
+    /**
+     * @return the non-negative decimal number in {@code s} from {@code start} or -1 if it is not a valid number.
+     */
+    private static float parsePercent(String s, int start) {
+        if (start == s.length() || s.length() - start > 12) {
+            return -1;
+        }
+        for (int i = start; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && c != '.') {
+                return -1;
+            }
+        }
+        try {
+            return Float.parseFloat(s.substring(start));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Calculate the resulting dimensions when the size is applied to a region. Limits such as {@code maxWidth}
+     * are not taken into account.
+     * @param regionWidth  the width of the extracted region.
+     * @param regionHeight the height of the extracted region.
+     * @return {@code [width, height]}, both at least 1.
+     */
+    public int[] resolve(int regionWidth, int regionHeight) {
+        long w;
+        long h;
+        if (max) {
+            w = regionWidth;
+            h = regionHeight;
+        } else if (percent > 0) {
+            w = Math.round(regionWidth * percent / 100.0);
+            h = Math.round(regionHeight * percent / 100.0);
+        } else if (height == -1) {
+            w = width;
+            h = Math.round((double) width * regionHeight / regionWidth);
+        } else if (width == -1) {
+            w = Math.round((double) height * regionWidth / regionHeight);
+            h = height;
+        } else if (confined) {
+            double scale = Math.min((double) width / regionWidth, (double) height / regionHeight);
+            w = Math.round(regionWidth * scale);
+            h = Math.round(regionHeight * scale);
+        } else {
+            w = width;
+            h = height;
+        }
+        return new int[]{(int) Math.max(1, Math.min(Integer.MAX_VALUE, w)),
+                         (int) Math.max(1, Math.min(Integer.MAX_VALUE, h))};
+    }
+
+    /**
+     * @return true if the size was prefixed with {@code ^}.
+     */
+    public boolean isUpscale() {
+        return upscale;
+    }
+
+    /**
+     * @return true if the size is {@code max} or {@code ^max}.
+     */
+    public boolean isMax() {
+        return max;
+    }
+
+    /**
+     * @return true if the size is of the form {@code !w,h}.
+     */
+    public boolean isConfined() {
+        return confined;
+    }
+
+    /**
+     * @return the requested width or -1 if no width was given.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the requested height or -1 if no height was given.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the requested percentage or -1 if the size is not of the form {@code pct:n}.
+     */
+    public float getPercent() {
+        return percent;
+    }
+
+    @Override
+    public String toString() {
+        String prefix = upscale ? "^" : "";
+        if (max) {
+            return prefix + "max";
+        }
+        if (percent > 0) {
+            return prefix + "pct:" + percent;
+        }
+        return prefix + (confined ? "!" : "") + (width == -1 ? "" : width) + "," + (height == -1 ? "" : height);
+    }
+}
@@ -1,21 +1,21 @@
 package dk.kb.image.util;
 
-import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.regex.Matcher;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 
-import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.core.StreamingOutput;
 
@@ -23,17 +23,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.kb.image.api.v1.impl.AccessApiServiceImpl;
+import dk.kb.image.cache.CachePolicy;
+import dk.kb.image.config.ConfigBound;
 import dk.kb.image.config.ServiceConfig;
 import dk.kb.license.model.v1.CheckAccessForIdsInputDto;
 import dk.kb.license.model.v1.CheckAccessForIdsOutputDto;
 import dk.kb.license.model.v1.UserObjAttributeDto;
 import dk.kb.license.util.DsLicenseClient;
-import dk.kb.util.Resolver;
 import dk.kb.util.webservice.exception.InternalServiceException;
 
 public class ImageAccessValidation {
     private static final Logger log = LoggerFactory.getLogger(ImageAccessValidation.class);
     private static DsLicenseClient licenseClient;
+    private static final ConfigBound<LicenseDecisionCache> decisionCache =
+            new ConfigBound<>(LicenseDecisionCache::create);
+    private static final SingleFlight<LicenseKey, ACCESS_TYPE> licenseCalls = new SingleFlight<>("license check");
+    private static final ConfigBound<LicenseModuleGuard> licenseGuard = new ConfigBound<>(LicenseModuleGuard::create);
+    private static final ConfigBound<LicenseBatcher> licenseBatcher = new ConfigBound<>(
+            config -> LicenseBatcher.create(config, ImageAccessValidation::callLicenseModule),
+            LicenseBatcher::shutdown);
+    private static final ConfigBound<ThumbnailSigner> thumbnailSigner = new ConfigBound<>(ThumbnailSigner::create);
 
     public static enum ACCESS_TYPE {
         ACCESS, NO_ACCESS, ID_NON_EXISTING
@@ -41,6 +50,7 @@ public class ImageAccessValidation {
 
 	/*
 	 * This pattern validates the IIIF size parameter, but has the additional restriction that both height and size must be defined.    
+	 * Thumbnail classification no longer uses it, see {@link IIIFSize} and {@link ThumbnailPolicy}.
 	 * 
 	 * ^       : start of string
 	 * \\^?    : 0 or 1 of character '^'  (needs to be escaped)
@@ -79,7 +89,7 @@ public class ImageAccessValidation {
             log.debug("Fullsize for IIP request since size parameter was not defined. Identifier={}", FIF);            
             return false;
         }
-        else if ( (WID != null && WID > ServiceConfig.getConfig().getInteger("thumbnail.max_width")) || (HEI != null && HEI > ServiceConfig.getConfig().getInteger("thumbnail.height.max")) ) {
+        else if (!ThumbnailPolicy.getInstance().isThumbnail(WID, HEI)) {
             log.debug("Fullsize for IIP request since size parameter was over thumbnail size. Identifier={}, width={}, height={}", FIF, WID, HEI);
             return false;
         }
@@ -93,7 +103,7 @@ public class ImageAccessValidation {
      * This implementation is very conservative and will determine thumbnail also if most non size-parameters are defined.
      * It is better to be conservative and later loosen up than giving too much control over thumbnail extraction.
      * <p>
-     * Will be full size if any other parameters than FIF and CVT is defined. Also, WID and HEI must be below a defined limit in the configuration, or it will also be full size.
+     * Will be full size if any other parameters than FIF and CVT is defined. Also, the size must be within the limits from {@link ThumbnailPolicy}, or it will also be full size.
 
      * For a full description of all arguments see method:  {@link AccessApiServiceImpl#iIIFImageRequest(String, String, String, String, String, String)} IIUF-parameters}
      * @return true if image request is classified as thumbnail request. Else false.    
@@ -108,27 +118,15 @@ public class ImageAccessValidation {
              return false;
          }                           
          
-            //Only allow size as "w,h" parameter. Etc. "100,100". Value is default 'max' when requesting the full image.
-        
-         Matcher matcher = IIIF_SIZE_PATTERN.matcher(size);
-         if (!matcher.find()) {
+         // Value is default 'max' when requesting the full image, which is never a thumbnail
+         IIIFSize iiifSize = IIIFSize.parse(size);
+         if (iiifSize == null) {
              log.debug("Fullsize for IIIF request since size parameter did was not of accepted form: '{}'.", size);
         	 return false;
          }
-                                                      
-         int width;
-         int height;         
-         try {
-             width=Integer.parseInt(matcher.group(1));
-             height=Integer.parseInt(matcher.group(2));
-         }
-         catch(Exception e) {
-             log.debug("Fullsize for IIIF request since size parameter could not be parsed as (width,height) integers value={} , identifier={}",size,identifier);
-             return false;
-         }
-                  
-        if ( width > ServiceConfig.getConfig().getInteger("thumbnail.max_width") || height > ServiceConfig.getConfig().getInteger("thumbnail.height.max")){
-             log.debug("Fullsize for IIIF request since size parameter was over thumbnail size. Identifier={}, width={}, height={}",identifier, width,height);
+
+         if (!ThumbnailPolicy.getInstance().isThumbnail(iiifSize)) {
+             log.debug("Fullsize for IIIF request since size parameter was over thumbnail size. Identifier={}, size={}",identifier, size);
              return false;
          }
          
@@ -137,23 +135,202 @@ public class ImageAccessValidation {
 
     
         
-    @SuppressWarnings("DataFlowIssue") // licenseClient.checkAccessForResourceIds always sets all 3 lists
+    /**
+     * Resolve the access type for the given image, using the {@link LicenseDecisionCache} if it is enabled.
+     * Concurrent calls for the same image and user share a single call to the license module and concurrent calls
+     * for different images are batched if the {@link LicenseBatcher} is enabled.
+     * @param resourceID an identifier for an image.
+     * @param thumbnail if the request has been determined to be a thumbnail request.
+     * @return the access type for the image.
+     */
     public static ACCESS_TYPE accessTypeForImage(String resourceID, boolean thumbnail) {
+        CheckAccessForIdsInputDto licenseQueryDto = getCheckAccessForIdsInputDto(resourceID, thumbnail);
+        LicenseKey key = new LicenseKey(
+                resourceID, licenseQueryDto.getPresentationType(), licenseQueryDto.getAttributes());
+
+        LicenseDecisionCache cache = decisionCache.get();
+        ACCESS_TYPE cached = cache.get(key);
+        if (cached != null) {
+            log.debug("Cached access type {} for {}", cached, key);
+            return cached;
+        }
+        RequestContext.current().checkDeadline("license check");
+        // Concurrent requests for the same image, e.g. DeepZoom tiles, share a single call to the license module.
+        // The decision is cached before the call is marked as finished, so later requests will hit the cache.
+        // The decision is cached regardless of the deadline of the calling request, as it is valid for all callers
+        ACCESS_TYPE type = licenseCalls.execute(key, () -> {
+            ACCESS_TYPE checked = licenseBatcher.get().check(key);
+            cache.put(key, checked);
+            return checked;
+        });
+        // The license module client has its own timeouts, so the deadline can only be checked afterwards
+        RequestContext.current().checkDeadline("license check");
+        return type;
+    }
 
-        // Add filter query from license module.
-        DsLicenseClient licenseClient = getDsLicenseApiClient();
+    /**
+     * Asynchronous version of {@link #accessTypeForImage(String, boolean)}. Waiting for the license module does
+     * not hold a thread if the {@link LicenseBatcher} is enabled.
+     * @param resourceID an identifier for an image.
+     * @param thumbnail if the request has been determined to be a thumbnail request.
+     * @return the future access type for the image.
+     */
+    public static CompletableFuture<ACCESS_TYPE> accessTypeForImageAsync(String resourceID, boolean thumbnail) {
         CheckAccessForIdsInputDto licenseQueryDto = getCheckAccessForIdsInputDto(resourceID, thumbnail);
-        CheckAccessForIdsOutputDto accessResponse;
+        LicenseKey key = new LicenseKey(
+                resourceID, licenseQueryDto.getPresentationType(), licenseQueryDto.getAttributes());
+
+        LicenseDecisionCache cache = decisionCache.get();
+        ACCESS_TYPE cached = cache.get(key);
+        if (cached != null) {
+            log.debug("Cached access type {} for {}", cached, key);
+            return CompletableFuture.completedFuture(cached);
+        }
+        return licenseCalls.executeAsync(key, () -> licenseBatcher.get().submit(key).thenApply(type -> {
+            cache.put(key, type);
+            return type;
+        }));
+    }
+
+    /**
+     * Resolve the thumbnail access types for multiple images, using the {@link LicenseDecisionCache} if it is
+     * enabled. All images that are not in the cache are checked in a single call to the license module.
+     * The time spent is recorded as {@link RequestContext#STAGE_LICENSE}.
+     * @param resourceIDs identifiers for images.
+     * @return the access type for each distinct resource ID, in the order of the given IDs.
+     */
+    public static Map<String, ACCESS_TYPE> accessTypesForThumbnails(List<String> resourceIDs) {
+        long startNanos = System.nanoTime();
         try {
-           accessResponse = licenseClient.checkAccessForResourceIds(licenseQueryDto); // Use
+            return resolveThumbnailAccessTypes(resourceIDs);
+        } finally {
+            RequestContext.current().recordStage(RequestContext.STAGE_LICENSE, System.nanoTime() - startNanos);
+        }
+    }
+
+    private static Map<String, ACCESS_TYPE> resolveThumbnailAccessTypes(List<String> resourceIDs) {
+        Map<String, ACCESS_TYPE> types = new LinkedHashMap<>();
+        Map<String, LicenseKey> missing = new LinkedHashMap<>();
+        LicenseDecisionCache cache = decisionCache.get();
+        for (String resourceID: new LinkedHashSet<>(resourceIDs)) {
+            CheckAccessForIdsInputDto licenseQueryDto = getCheckAccessForIdsInputDto(resourceID, true);
+            LicenseKey key = new LicenseKey(
+                    resourceID, licenseQueryDto.getPresentationType(), licenseQueryDto.getAttributes());
+            ACCESS_TYPE cached = cache.get(key);
+            types.put(resourceID, cached); // Keep the order. Missing ones are resolved below
+            if (cached == null) {
+                missing.put(resourceID, key);
+            }
         }
-        catch(Exception e) {
+        if (missing.isEmpty()) {
+            return types;
+        }
+
+        RequestContext.current().checkDeadline("license check");
+        CheckAccessForIdsInputDto licenseQueryDto = getCheckAccessForIdsInputDto(null, true);
+        licenseQueryDto.setAccessIds(new ArrayList<>(missing.keySet()));
+        CheckAccessForIdsOutputDto accessResponse;
+        try {
+            accessResponse = callLicenseModule(licenseQueryDto);
+        } catch (LicenseModuleGuard.RejectedException e) {
+            throw e;
+        } catch (Exception e) {
             String message = String.format(Locale.ROOT,
-                    "Error calling licensemodule with resource ID '%s'", resourceID);
+                    "Error calling licensemodule with %d resource IDs", missing.size());
             log.error(message, e);
             throw new InternalServiceException(message);
         }
-        
+        RequestContext.current().checkDeadline("license check");
+        for (Map.Entry<String, LicenseKey> entry: missing.entrySet()) {
+            ACCESS_TYPE type = toAccessType(entry.getKey(), accessResponse);
+            cache.put(entry.getValue(), type);
+            types.put(entry.getKey(), type);
+        }
+        return types;
+    }
+
+    /**
+     * Check if the request is a thumbnail request with a valid signature from {@link ThumbnailSigner}, in which
+     * case the license check can be skipped.
+     * @param thumbnail  if the request has been determined to be a thumbnail request.
+     * @param identifier the identifier of the image, not URL encoded.
+     * @param size       the IIIF size, e.g. {@code 150,100}.
+     * @param format     the IIIF format, e.g. {@code jpg}.
+     * @param expires    the {@code expires} query parameter. Can be null.
+     * @param signature  the {@code signature} query parameter. Can be null.
+     * @return true if the request has a valid signature.
+     */
+    public static boolean isSignedThumbnail(boolean thumbnail, String identifier, String size, String format,
+                                            String expires, String signature) {
+        if (!thumbnail || signature == null) {
+            return false;
+        }
+        boolean valid = thumbnailSigner.get().isValid(identifier, size, format, expires, signature);
+        if (!valid) {
+            log.debug("Invalid or expired thumbnail signature for identifier '{}'. Falling back to license check",
+                      identifier);
+        }
+        return valid;
+    }
+
+    /**
+     * @return the signer for short-lived thumbnail URLs. Disabled unless {@code thumbnail.signedUrls.enabled}
+     *         is true.
+     */
+    public static ThumbnailSigner getThumbnailSigner() {
+        return thumbnailSigner.get();
+    }
+
+    /**
+     * @return the coalescing of concurrent calls to the license module.
+     */
+    public static SingleFlight<LicenseKey, ACCESS_TYPE> getLicenseCalls() {
+        return licenseCalls;
+    }
+
+    /**
+     * @return the batching of calls to the license module. Disabled unless {@code licensemodule.batch.enabled}
+     *         is true.
+     */
+    public static LicenseBatcher getLicenseBatcher() {
+        return licenseBatcher.get();
+    }
+
+    /**
+     * @return the circuit breaker and bulkhead for calls to the license module.
+     */
+    public static LicenseModuleGuard getLicenseGuard() {
+        return licenseGuard.get();
+    }
+
+    /**
+     * Call the license module through the {@link LicenseModuleGuard}.
+     * @param request the request for the license module.
+     * @return the response from the license module.
+     * @throws LicenseModuleGuard.RejectedException with {@code 503 Service Unavailable} if the license module is
+     *                                               unavailable or overloaded.
+     * @throws Exception if the call failed.
+     */
+    static CheckAccessForIdsOutputDto callLicenseModule(CheckAccessForIdsInputDto request) throws Exception {
+        return licenseGuard.get().check(request, getDsLicenseApiClient()::checkAccessForResourceIds);
+    }
+
+    /**
+     * @return the cache for license decisions. Disabled unless {@code licensemodule.cache.enabled} is true.
+     */
+    public static LicenseDecisionCache getDecisionCache() {
+        return decisionCache.get();
+    }
+
+    /**
+     * Determine the access type for the resource ID from the response from the license module.
+     * @param resourceID an identifier for an image.
+     * @param accessResponse the response from the license module for a request containing resourceID.
+     * @return the access type for the resource ID.
+     * @throws InternalServiceException if the resource ID was not in the response.
+     */
+    @SuppressWarnings("DataFlowIssue") // licenseClient.checkAccessForResourceIds always sets all 3 lists
+    static ACCESS_TYPE toAccessType(String resourceID, CheckAccessForIdsOutputDto accessResponse) {
         List<String> accessIDs = accessResponse.getAccessIds();
         List<String> nonAccessIDs = accessResponse.getNonAccessIds();
         List<String> nonExistingIDs = accessResponse.getNonExistingIds();
@@ -193,7 +370,9 @@ public class ImageAccessValidation {
         idsDto.setAttributes(allAttributes);
 
         List<String> ids = new ArrayList<>();
-        ids.add(resource_id);
+        if (resource_id != null) {
+            ids.add(resource_id);
+        }
         idsDto.setAccessIds(ids);
         return idsDto;
 
@@ -211,19 +390,70 @@ public class ImageAccessValidation {
      */
     public static StreamingOutput handleNoAccessOrNoImage(
             String resourceID, HttpServletResponse httpServletResponse, boolean  thumbnail) throws IOException {
-        ACCESS_TYPE type = accessTypeForImage( resourceID, thumbnail);
+        return handleNoAccessOrNoImage(resourceID, httpServletResponse, thumbnail, null);
+    }
+
+    /**
+     * Return a default image with property HTTP status code if there is no access to the image.
+     * If there is access to the image, return null.
+     *
+     * @param resourceID an identifier for an image.
+     * @param httpServletResponse used for setting MIME type.
+     * @param thumbnail if the request has been determined to be a thumbnail request.
+     * @param variant the requested size and format, used for rendering the default image. Can be null.
+     * @return a streamed image or null.
+     * @throws IOException in case of exception from license module client
+     */
+    public static StreamingOutput handleNoAccessOrNoImage(
+            String resourceID, HttpServletResponse httpServletResponse, boolean  thumbnail,
+            PlaceholderImages.Variant variant) throws IOException {
+        long startNanos = System.nanoTime();
+        ACCESS_TYPE type;
+        try {
+            type = accessTypeForImage( resourceID, thumbnail);
+        } finally {
+            RequestContext.current().recordStage(RequestContext.STAGE_LICENSE, System.nanoTime() - startNanos);
+        }
+        return toPlaceholder(type, resourceID, httpServletResponse, variant, RequestContext.current().getEndpoint());
+    }
+
+    /**
+     * Asynchronous version of
+     * {@link #handleNoAccessOrNoImage(String, HttpServletResponse, boolean, PlaceholderImages.Variant)}.
+     * @param resourceID an identifier for an image.
+     * @param httpServletResponse used for setting MIME type.
+     * @param thumbnail if the request has been determined to be a thumbnail request.
+     * @param variant the requested size and format, used for rendering the default image. Can be null.
+     * @return a future with a streamed image or null.
+     */
+    public static CompletableFuture<StreamingOutput> handleNoAccessOrNoImageAsync(
+            String resourceID, HttpServletResponse httpServletResponse, boolean  thumbnail,
+            PlaceholderImages.Variant variant) {
+        // The future might complete on another thread, so the context is resolved up front
+        RequestContext requestContext = RequestContext.current();
+        String endpoint = requestContext.getEndpoint();
+        long startNanos = System.nanoTime();
+        return accessTypeForImageAsync(resourceID, thumbnail)
+                .whenComplete((type, e) -> requestContext.recordStage(
+                        RequestContext.STAGE_LICENSE, System.nanoTime() - startNanos))
+                .thenApply(type -> toPlaceholder(type, resourceID, httpServletResponse, variant, endpoint));
+    }
 
+    /**
+     * Set caching headers for the access type and return the default image for no access or non-existing.
+     * @return a streamed image or null if there is access.
+     */
+    private static StreamingOutput toPlaceholder(
+            ACCESS_TYPE type, String resourceID, HttpServletResponse httpServletResponse,
+            PlaceholderImages.Variant variant, String endpoint) {
         log.debug("Access type {} for resource ID '{}'", type, resourceID);
+        CachePolicy.getInstance().apply(httpServletResponse, endpoint, type);
 
         switch (type) {
-        case NO_ACCESS:                        
-            httpServletResponse.setStatus(403);
-            httpServletResponse.setContentType(AccessApiServiceImpl.getMIME("jpg"));
-            return getImageForbidden();
+        case NO_ACCESS:
+            return PlaceholderImages.getInstance().getNoAccess(variant).serve(httpServletResponse, 403);
         case ID_NON_EXISTING:
-            httpServletResponse.setStatus(404);
-            httpServletResponse.setContentType(AccessApiServiceImpl.getMIME("jpg"));
-            return getImageNotExist();
+            return PlaceholderImages.getInstance().getNonExisting(variant).serve(httpServletResponse, 404);
         case ACCESS:           
             return null; //this is the contract if no image is returned                
         default :
@@ -239,21 +469,4 @@ public class ImageAccessValidation {
 
         return licenseClient;
     }
-
-    private static StreamingOutput getImageForbidden() throws IOException {
-        String noAccessImageName = ServiceConfig.getConfig().getString("images.noAccess");
-        return writeImgToStreamingOutput(noAccessImageName);
-    }
-
-
-    private static StreamingOutput getImageNotExist() throws IOException {
-        String nonExistingImageName = ServiceConfig.getConfig().getString("images.nonExisting");
-        return writeImgToStreamingOutput(nonExistingImageName);
-    }
-
-    private static StreamingOutput writeImgToStreamingOutput(String imgName) throws IOException {
-        String imgPath = Resolver.getPathFromClasspath(imgName).toString();
-        BufferedImage image = ImageIO.read(new File(imgPath));
-        return output -> ImageIO.write(image, "jpg", output);
-    }
 }
@@ -0,0 +1,72 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The number of requests in progress per endpoint, from the time the endpoint is set in the {@link RequestContext}
+ * until the response has been delivered, see {@link RequestContext#finish()}.
+ */
+public class InFlightRequests {
+    private static final ConcurrentMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Mark the start of a request.
+     * @param endpoint the endpoint that handles the request, e.g. {@link RequestContext#ENDPOINT_IIIF_IMAGE}.
+     */
+    static void begin(String endpoint) {
+        AtomicInteger count = inFlight.get(endpoint); // Avoid computeIfAbsent locking
+        if (count == null) {
+            count = inFlight.computeIfAbsent(endpoint, e -> new AtomicInteger(0));
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Mark the end of a request started with {@link #begin(String)}.
+     * @param endpoint the endpoint that handled the request.
+     */
+    static void end(String endpoint) {
+        AtomicInteger count = inFlight.get(endpoint);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of requests in progress for each endpoint that has received requests, sorted by endpoint.
+     */
+    public static Map<String, Integer> getInFlight() {
+        Map<String, Integer> counts = new TreeMap<>();
+        inFlight.forEach((endpoint, count) -> counts.put(endpoint, count.get()));
+        return counts;
+    }
+
+    /**
+     * @return the total number of requests in progress.
+     */
+    public static int getTotal() {
+        int total = 0;
+        for (AtomicInteger count: inFlight.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+}
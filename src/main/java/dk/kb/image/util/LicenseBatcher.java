@@ -0,0 +1,310 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.image.util.ImageAccessValidation.ACCESS_TYPE;
+import dk.kb.license.model.v1.CheckAccessForIdsInputDto;
+import dk.kb.license.model.v1.CheckAccessForIdsOutputDto;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects concurrent license checks for a short while and sends them to the license module as a single
+ * multi-ID request. The results are fanned out to the waiting callers.
+ * <p>
+ * Only checks with the same presentation type and user attributes can share a request. A batch is sent when
+ * {@code licensemodule.batch.maxWaitMs} has passed since the first check was added or when it holds
+ * {@code licensemodule.batch.maxBatchSize} IDs, whichever comes first.
+ */
+public class LicenseBatcher {
+    private static final Logger log = LoggerFactory.getLogger(LicenseBatcher.class);
+
+    public static final String KEY_BATCH = "licensemodule.batch";
+
+    public static final long DEFAULT_MAX_WAIT_MS = 5;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    public static final int DEFAULT_THREADS = 4;
+
+    private final boolean enabled;
+    private final long maxWaitMs;
+    private final int maxBatchSize;
+    private final LicenseCall licenseCall;
+    private final ScheduledExecutorService dispatcher;
+
+    private final Map<String, Batch> pending = new HashMap<>(); // Guarded by itself
+
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    /**
+     * Create a batcher from the {@code licensemodule.batch} part of the configuration.
+     * @param config      the full configuration. If null or if {@code licensemodule.batch.enabled} is not true,
+     *                    a disabled batcher is returned.
+     * @param licenseCall performs a request to the license module.
+     * @return a license batcher.
+     */
+    public static LicenseBatcher create(YAML config, LicenseCall licenseCall) {
+        if (config == null || !config.getBoolean(KEY_BATCH + ".enabled", false)) {
+            return new LicenseBatcher(false, 0, 0, 0, licenseCall);
+        }
+        LicenseBatcher batcher = new LicenseBatcher(
+                true,
+                config.getLong(KEY_BATCH + ".maxWaitMs", DEFAULT_MAX_WAIT_MS),
+                config.getInteger(KEY_BATCH + ".maxBatchSize", DEFAULT_MAX_BATCH_SIZE),
+                config.getInteger(KEY_BATCH + ".threads", DEFAULT_THREADS),
+                licenseCall);
+        log.info("Created {}", batcher);
+        return batcher;
+    }
+
+    /**
+     * @param enabled      if false, {@link #check(LicenseKey)} calls the license module directly from the calling
+     *                     thread.
+     * @param maxWaitMs    the maximum number of milliseconds to wait for more checks before sending a batch.
+     * @param maxBatchSize the maximum number of IDs in a batch.
+     * @param threads      the number of threads for sending batches.
+     * @param licenseCall  performs a request to the license module.
+     */
+    LicenseBatcher(boolean enabled, long maxWaitMs, int maxBatchSize, int threads, LicenseCall licenseCall) {
+        this.enabled = enabled && maxBatchSize > 1;
+        this.maxWaitMs = maxWaitMs;
+        this.maxBatchSize = maxBatchSize;
+        this.licenseCall = licenseCall;
+        if (this.enabled) {
+            AtomicInteger threadCount = new AtomicInteger(0);
+            dispatcher = Executors.newScheduledThreadPool(Math.max(1, threads), r -> {
+                Thread thread = new Thread(r, "license-batch-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            dispatcher = null;
+        }
+    }
+
+    /**
+     * Resolve the access type for the key, sharing the call to the license module with other concurrent checks.
+     * Waiting for the result respects the deadline from {@link RequestContext}.
+     * @param key the license key to check.
+     * @return the access type for the key.
+     */
+    public ACCESS_TYPE check(LicenseKey key) {
+        return RequestContext.current().await(submit(key), "license check");
+    }
+
+    /**
+     * Add the key to a batch.
+     * @param key the license key to check.
+     * @return the future result for the key.
+     */
+    CompletableFuture<ACCESS_TYPE> submit(LicenseKey key) {
+        checks.increment();
+        if (!enabled) {
+            return CompletableFuture.completedFuture(single(key));
+        }
+        CompletableFuture<ACCESS_TYPE> result = new CompletableFuture<>();
+        String group = key.getUserAndType();
+        Batch full = null;
+        boolean shutDown = false;
+        synchronized (pending) {
+            Batch batch = pending.get(group);
+            if (batch == null) {
+                Batch created = new Batch(key);
+                try {
+                    dispatcher.schedule(() -> dispatch(group, created), maxWaitMs, TimeUnit.MILLISECONDS);
+                    pending.put(group, created);
+                    batch = created;
+                } catch (RejectedExecutionException e) {
+                    shutDown = true; // The batch would never be sent
+                }
+            }
+            if (batch != null) {
+                batch.add(key.getResourceID(), result);
+                if (batch.size() >= maxBatchSize) {
+                    pending.remove(group);
+                    full = batch;
+                }
+            }
+        }
+        if (shutDown) { // E.g. replaced due to a configuration reload while the request was in progress
+            log.debug("Batcher is shut down. Checking resource ID '{}' without batching", key.getResourceID());
+            return CompletableFuture.completedFuture(single(key));
+        }
+        if (full != null) {
+            Batch send = full;
+            try {
+                dispatcher.execute(() -> send(send));
+            } catch (RejectedExecutionException e) {
+                send(send); // Shut down after the batch was created
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Send the batch for the group if it has not already been sent due to being full.
+     */
+    private void dispatch(String group, Batch batch) {
+        synchronized (pending) {
+            if (!pending.remove(group, batch)) {
+                return;
+            }
+        }
+        send(batch);
+    }
+
+    private void send(Batch batch) {
+        batches.increment();
+        List<String> ids = new ArrayList<>(batch.waiting.keySet());
+        CheckAccessForIdsInputDto request = new CheckAccessForIdsInputDto();
+        request.setPresentationType(batch.template.getPresentationType());
+        request.setAttributes(batch.template.getAttributes());
+        request.setAccessIds(ids);
+
+        CheckAccessForIdsOutputDto response;
+        try {
+            response = licenseCall.check(request);
+        } catch (LicenseModuleGuard.RejectedException e) {
+            batch.failAll(e);
+            return;
+        } catch (Exception e) {
+            String message = String.format(Locale.ROOT,
+                    "Error calling licensemodule with %d resource IDs: %s", ids.size(), ids);
+            log.error(message, e);
+            batch.failAll(new InternalServiceException(message));
+            return;
+        }
+        log.debug("Resolved {} resource IDs in one call to the license module", ids.size());
+
+        for (Map.Entry<String, List<CompletableFuture<ACCESS_TYPE>>> waiting: batch.waiting.entrySet()) {
+            try {
+                ACCESS_TYPE type = ImageAccessValidation.toAccessType(waiting.getKey(), response);
+                waiting.getValue().forEach(future -> future.complete(type));
+            } catch (RuntimeException e) {
+                waiting.getValue().forEach(future -> future.completeExceptionally(e));
+            }
+        }
+    }
+
+    /**
+     * Perform an unbatched check.
+     */
+    private ACCESS_TYPE single(LicenseKey key) {
+        CheckAccessForIdsInputDto request = new CheckAccessForIdsInputDto();
+        request.setPresentationType(key.getPresentationType());
+        request.setAttributes(key.getAttributes());
+        request.setAccessIds(List.of(key.getResourceID()));
+        CheckAccessForIdsOutputDto response;
+        try {
+            response = licenseCall.check(request);
+        } catch (LicenseModuleGuard.RejectedException e) {
+            throw e;
+        } catch (Exception e) {
+            String message = String.format(Locale.ROOT,
+                    "Error calling licensemodule with resource ID '%s'", key.getResourceID());
+            log.error(message, e);
+            throw new InternalServiceException(message);
+        }
+        return ImageAccessValidation.toAccessType(key.getResourceID(), response);
+    }
+
+    /**
+     * Stop the threads for sending batches. Pending batches are sent before the threads stop. Checks submitted
+     * after this call are sent to the license module one at a time from the calling thread.
+     */
+    public void shutdown() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+    }
+
+    /**
+     * @return true if batching is enabled.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the number of license checks.
+     */
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    /**
+     * @return the number of batches sent to the license module.
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public String toString() {
+        if (!enabled) {
+            return "LicenseBatcher(disabled)";
+        }
+        return String.format(Locale.ROOT, "LicenseBatcher(maxWaitMs=%d, maxBatchSize=%d, checks=%d, batches=%d)",
+                             maxWaitMs, maxBatchSize, getChecks(), getBatches());
+    }
+
+    /**
+     * Performs a request to the license module.
+     */
+    @FunctionalInterface
+    public interface LicenseCall {
+        CheckAccessForIdsOutputDto check(CheckAccessForIdsInputDto request) throws Exception;
+    }
+
+    /**
+     * Checks with the same presentation type and user attributes, waiting to be sent.
+     */
+    private static class Batch {
+        private final LicenseKey template;
+        private final Map<String, List<CompletableFuture<ACCESS_TYPE>>> waiting = new LinkedHashMap<>();
+
+        public Batch(LicenseKey template) {
+            this.template = template;
+        }
+
+        public void add(String resourceID, CompletableFuture<ACCESS_TYPE> result) {
+            waiting.computeIfAbsent(resourceID, id -> new ArrayList<>(1)).add(result);
+        }
+
+        public int size() {
+            return waiting.size();
+        }
+
+        public void failAll(RuntimeException e) {
+            waiting.values().forEach(futures -> futures.forEach(future -> future.completeExceptionally(e)));
+        }
+    }
+}
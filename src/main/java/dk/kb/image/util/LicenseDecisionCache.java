@@ -0,0 +1,229 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.image.util.ImageAccessValidation.ACCESS_TYPE;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache for license decisions, with separate time-to-live for each {@link ACCESS_TYPE}.
+ * <p>
+ * The cache is configured under {@code licensemodule.cache} in the behaviour config. If it is not enabled,
+ * all lookups are misses.
+ * <p>
+ * Lookups do not lock, as they are done for every request, including DeepZoom tiles. Expiry is checked on lookup
+ * and the least recently used decisions are evicted in batches when the cache grows beyond {@code maxEntries},
+ * so the size can briefly exceed the maximum.
+ */
+public class LicenseDecisionCache {
+    private static final Logger log = LoggerFactory.getLogger(LicenseDecisionCache.class);
+
+    public static final String KEY_CACHE = "licensemodule.cache";
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL_ACCESS_SECONDS = 300;
+    public static final long DEFAULT_TTL_NO_ACCESS_SECONDS = 60;
+    public static final long DEFAULT_TTL_NON_EXISTING_SECONDS = 60;
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final Map<ACCESS_TYPE, Long> ttlNanos = new EnumMap<>(ACCESS_TYPE.class);
+    private final LongSupplier clock;
+    private final Map<LicenseKey, Decision> decisions = new ConcurrentHashMap<>();
+    // Only one thread evicts at a time. Other threads add their decisions without waiting
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a cache from the {@code licensemodule.cache} part of the configuration.
+     * @param config the full configuration. If null or if {@code licensemodule.cache.enabled} is not true, a
+     *               disabled cache is returned.
+     * @return a license decision cache.
+     */
+    public static LicenseDecisionCache create(YAML config) {
+        if (config == null || !config.getBoolean(KEY_CACHE + ".enabled", false)) {
+            return new LicenseDecisionCache(false, 0, 0, 0, 0, System::nanoTime);
+        }
+        LicenseDecisionCache cache = new LicenseDecisionCache(
+                true,
+                config.getInteger(KEY_CACHE + ".maxEntries", DEFAULT_MAX_ENTRIES),
+                config.getLong(KEY_CACHE + ".ttlSeconds.access", DEFAULT_TTL_ACCESS_SECONDS),
+                config.getLong(KEY_CACHE + ".ttlSeconds.noAccess", DEFAULT_TTL_NO_ACCESS_SECONDS),
+                config.getLong(KEY_CACHE + ".ttlSeconds.nonExisting", DEFAULT_TTL_NON_EXISTING_SECONDS),
+                System::nanoTime);
+        log.info("Created {}", cache);
+        return cache;
+    }
+
+    /**
+     * @param enabled                if false, nothing is cached.
+     * @param maxEntries             the maximum number of decisions to cache.
+     * @param ttlAccessSeconds       the number of seconds to cache {@link ACCESS_TYPE#ACCESS} decisions.
+     * @param ttlNoAccessSeconds     the number of seconds to cache {@link ACCESS_TYPE#NO_ACCESS} decisions.
+     * @param ttlNonExistingSeconds  the number of seconds to cache {@link ACCESS_TYPE#ID_NON_EXISTING} decisions.
+     * @param clock                  provides the current time in nanoseconds.
+     */
+    LicenseDecisionCache(boolean enabled, int maxEntries,
+                         long ttlAccessSeconds, long ttlNoAccessSeconds, long ttlNonExistingSeconds,
+                         LongSupplier clock) {
+        this.enabled = enabled && maxEntries > 0;
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+        ttlNanos.put(ACCESS_TYPE.ACCESS, TimeUnit.SECONDS.toNanos(ttlAccessSeconds));
+        ttlNanos.put(ACCESS_TYPE.NO_ACCESS, TimeUnit.SECONDS.toNanos(ttlNoAccessSeconds));
+        ttlNanos.put(ACCESS_TYPE.ID_NON_EXISTING, TimeUnit.SECONDS.toNanos(ttlNonExistingSeconds));
+    }
+
+    /**
+     * @param key the key for a decision.
+     * @return the cached decision or null if there is no cached decision or it has expired.
+     */
+    public ACCESS_TYPE get(LicenseKey key) {
+        if (!enabled) {
+            return null;
+        }
+        Decision decision = decisions.get(key);
+        long now = clock.getAsLong();
+        if (decision != null && now - decision.expires >= 0) {
+            decisions.remove(key, decision); // Keep a newer decision
+            decision = null;
+        }
+        if (decision == null) {
+            misses.increment();
+            return null;
+        }
+        decision.lastAccess = now;
+        hits.increment();
+        return decision.type;
+    }
+
+    /**
+     * Cache the decision for the key, if the time-to-live for the decision type is positive.
+     * @param key  the key for the decision.
+     * @param type the decision.
+     */
+    public void put(LicenseKey key, ACCESS_TYPE type) {
+        long ttl = ttlNanos.get(type);
+        if (!enabled || ttl <= 0) {
+            return;
+        }
+        long now = clock.getAsLong();
+        decisions.put(key, new Decision(type, now + ttl, now));
+        if (decisions.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * Remove expired decisions and then the least recently used decisions until the cache is 10% below
+     * {@code maxEntries}, so that eviction is not needed for every new decision.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = clock.getAsLong();
+            List<Map.Entry<LicenseKey, Decision>> entries = new ArrayList<>(decisions.entrySet());
+            entries.removeIf(entry -> now - entry.getValue().expires >= 0 &&
+                                      decisions.remove(entry.getKey(), entry.getValue()));
+            int excess = decisions.size() - (maxEntries - maxEntries / 10);
+            if (excess <= 0) {
+                return;
+            }
+            // lastAccess is relative to the clock, so the difference is compared to handle overflow
+            entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess - now));
+            for (int i = 0 ; i < entries.size() && excess > 0 ; i++) {
+                if (decisions.remove(entries.get(i).getKey(), entries.get(i).getValue())) {
+                    excess--;
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * @return true if the cache is enabled.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the number of cached decisions, including expired decisions that have not been removed yet.
+     */
+    public int size() {
+        return decisions.size();
+    }
+
+    /**
+     * @return the number of lookups that were served from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups that were not in the cache or had expired.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        if (!enabled) {
+            return "LicenseDecisionCache(disabled)";
+        }
+        return String.format(Locale.ROOT, "LicenseDecisionCache(entries=%d/%d, ttlSeconds=%s, hits=%d, misses=%d)",
+                             size(), maxEntries, ttlSecondsString(), getHits(), getMisses());
+    }
+
+    private String ttlSecondsString() {
+        Map<ACCESS_TYPE, Long> seconds = new EnumMap<>(ACCESS_TYPE.class);
+        ttlNanos.forEach((type, nanos) -> seconds.put(type, TimeUnit.NANOSECONDS.toSeconds(nanos)));
+        return seconds.toString();
+    }
+
+    private static final class Decision {
+        final ACCESS_TYPE type;
+        final long expires;
+        // Updated on every hit without locking. Lost updates only affect which decisions are evicted
+        volatile long lastAccess;
+
+        Decision(ACCESS_TYPE type, long expires, long lastAccess) {
+            this.type = type;
+            this.expires = expires;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
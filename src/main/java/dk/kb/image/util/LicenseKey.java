@@ -0,0 +1,110 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.license.model.v1.UserObjAttributeDto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Identifies a license decision: The resource ID, the presentation type and the user attributes.
+ * Two requests with equal keys always get the same decision from the license module.
+ */
+public final class LicenseKey {
+    private final String resourceID;
+    private final String presentationType;
+    private final List<UserObjAttributeDto> attributes;
+    private final String attributesSignature;
+    private final int hash;
+
+    /**
+     * @param resourceID       an identifier for an image.
+     * @param presentationType the presentation type, e.g. {@code Thumbnails}.
+     * @param attributes       the user attributes for the request. The order of attributes and values does not
+     *                         matter for equality.
+     */
+    public LicenseKey(String resourceID, String presentationType, List<UserObjAttributeDto> attributes) {
+        this.resourceID = Objects.requireNonNull(resourceID, "resourceID must not be null");
+        this.presentationType = Objects.requireNonNull(presentationType, "presentationType must not be null");
+        this.attributes = attributes;
+        this.attributesSignature = signature(attributes);
+        this.hash = Objects.hash(resourceID, presentationType, attributesSignature);
+    }
+
+    /**
+     * @return a canonical representation of the attributes, independent of ordering.
+     */
+    private static String signature(List<UserObjAttributeDto> attributes) {
+        if (attributes == null || attributes.isEmpty()) {
+            return "";
+        }
+        List<String> parts = new ArrayList<>(attributes.size());
+        for (UserObjAttributeDto attribute: attributes) {
+            List<String> values = attribute.getValues() == null ?
+                    new ArrayList<>() : new ArrayList<>(attribute.getValues());
+            values.sort(null);
+            parts.add(attribute.getAttribute() + "=" + String.join(",", values));
+        }
+        parts.sort(null);
+        return String.join(";", parts);
+    }
+
+    public String getResourceID() {
+        return resourceID;
+    }
+
+    public String getPresentationType() {
+        return presentationType;
+    }
+
+    public List<UserObjAttributeDto> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return a canonical representation of the presentation type and the user attributes. Keys with equal values
+     *         can be resolved in the same call to the license module.
+     */
+    public String getUserAndType() {
+        return presentationType + "|" + attributesSignature;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LicenseKey)) {
+            return false;
+        }
+        LicenseKey other = (LicenseKey) o;
+        return hash == other.hash && resourceID.equals(other.resourceID) &&
+               presentationType.equals(other.presentationType) &&
+               attributesSignature.equals(other.attributesSignature);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "LicenseKey(resourceID='" + resourceID + "', presentationType='" + presentationType +
+               "', attributes='" + attributesSignature + "')";
+    }
+}
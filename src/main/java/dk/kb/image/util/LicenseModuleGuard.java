@@ -0,0 +1,175 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.image.upstream.CircuitBreaker;
+import dk.kb.license.model.v1.CheckAccessForIdsInputDto;
+import dk.kb.license.model.v1.CheckAccessForIdsOutputDto;
+import dk.kb.util.webservice.exception.ServiceException;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Guards the calls to the license module with a {@link CircuitBreaker} and a bulkhead that limits the number of
+ * concurrent calls. When the license module fails or is overloaded, license checks fail fast with
+ * {@code 503 Service Unavailable} instead of holding threads.
+ * <p>
+ * The guard is configured under {@code licensemodule.breaker} and {@code licensemodule.maxConcurrent} in the
+ * behaviour config.
+ */
+public class LicenseModuleGuard {
+    private static final Logger log = LoggerFactory.getLogger(LicenseModuleGuard.class);
+
+    public static final String KEY_LICENSEMODULE = "licensemodule";
+    public static final int DEFAULT_MAX_CONCURRENT = -1;
+
+    private final CircuitBreaker breaker;
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private final LongAdder rejected = new LongAdder();
+    private final StageMetrics.Histogram latencies = new StageMetrics.Histogram();
+
+    /**
+     * Create a guard from the {@code licensemodule} part of the configuration.
+     * @param config the full configuration. If null, a guard that lets all calls through is returned.
+     * @return a guard for the license module.
+     */
+    public static LicenseModuleGuard create(YAML config) {
+        if (config == null) {
+            return new LicenseModuleGuard(0, CircuitBreaker.DEFAULT_OPEN_MS, DEFAULT_MAX_CONCURRENT);
+        }
+        LicenseModuleGuard guard = new LicenseModuleGuard(
+                config.getInteger(KEY_LICENSEMODULE + ".breaker.failureThreshold",
+                                  CircuitBreaker.DEFAULT_FAILURE_THRESHOLD),
+                config.getLong(KEY_LICENSEMODULE + ".breaker.openMs", CircuitBreaker.DEFAULT_OPEN_MS),
+                config.getInteger(KEY_LICENSEMODULE + ".maxConcurrent", DEFAULT_MAX_CONCURRENT));
+        log.info("Created {}", guard);
+        return guard;
+    }
+
+    /**
+     * @param failureThreshold the number of consecutive failures that opens the circuit breaker.
+     *                         0 or less disables the breaker.
+     * @param openMs           the number of milliseconds that the breaker stays open before probing.
+     * @param maxConcurrent    the maximum number of concurrent calls. -1 means no limit.
+     */
+    public LicenseModuleGuard(int failureThreshold, long openMs, int maxConcurrent) {
+        this.breaker = new CircuitBreaker("license module", failureThreshold, openMs);
+        this.maxConcurrent = maxConcurrent;
+        this.permits = maxConcurrent < 0 ? null : new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Perform a call to the license module, if the breaker is closed and the number of concurrent calls is below
+     * the limit.
+     * @param request     the request for the license module.
+     * @param licenseCall performs the call.
+     * @return the response from the license module.
+     * @throws RejectedException with {@code 503 Service Unavailable} if the call was rejected.
+     * @throws Exception if the call failed.
+     */
+    public CheckAccessForIdsOutputDto check(CheckAccessForIdsInputDto request, LicenseBatcher.LicenseCall licenseCall)
+            throws Exception {
+        // The bulkhead is checked first, as a call allowed by a half open breaker is the probe and must be made
+        if (permits != null && !permits.tryAcquire()) {
+            rejected.increment();
+            log.warn("Rejecting license check as {} calls to the license module are in progress", maxConcurrent);
+            throw new RejectedException("Too many concurrent license checks");
+        }
+        try {
+            breaker.acquire();
+        } catch (ServiceException e) {
+            if (permits != null) {
+                permits.release();
+            }
+            throw new RejectedException(e.getMessage());
+        }
+        long startNanos = System.nanoTime();
+        try {
+            CheckAccessForIdsOutputDto response = licenseCall.check(request);
+            breaker.onSuccess();
+            return response;
+        } catch (ServiceException e) {
+            breaker.onStatus(e.getResponseStatus().getStatusCode());
+            throw e;
+        } catch (Exception e) {
+            breaker.onFailure();
+            throw e;
+        } finally {
+            latencies.record(System.nanoTime() - startNanos);
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * @return the circuit breaker for the license module.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * @return the number of calls currently in progress or -1 if the number of calls is not limited.
+     */
+    public int getInFlight() {
+        return permits == null ? -1 : maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * @return the number of calls rejected because too many calls were in progress.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of calls to the license module, including failed calls but not rejected calls.
+     */
+    public long getCalls() {
+        return latencies.getCount();
+    }
+
+    /**
+     * @param percentile the percentile, e.g. {@code 99.0}.
+     * @return the estimated latency percentile in milliseconds for the calls to the license module since the
+     *         guard was created, or null if there has been no calls.
+     */
+    public Double getLatencyPercentileMs(double percentile) {
+        return latencies.getPercentileMs(percentile);
+    }
+
+    /**
+     * Signals that a call to the license module was rejected by the guard and not attempted.
+     */
+    public static class RejectedException extends ServiceException {
+        public RejectedException(String message) {
+            super(message, Response.Status.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "LicenseModuleGuard(maxConcurrent=%d, rejected=%d, breaker=%s)",
+                             maxConcurrent, getRejected(), breaker);
+    }
+}
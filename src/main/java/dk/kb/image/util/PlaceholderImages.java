@@ -0,0 +1,428 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.image.api.v1.impl.AccessApiServiceImpl;
+import dk.kb.image.config.ServiceConfig;
+import dk.kb.util.Resolver;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.StreamingOutput;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The placeholder images returned instead of the requested image when there is no access to it or it does not
+ * exist.
+ * <p>
+ * The images stated under {@code images} in the configuration are loaded once and served as-is, without
+ * decoding and re-encoding. They are reloaded when the configuration changes, using the observer mechanism of
+ * {@link ServiceConfig}.
+ * <p>
+ * If {@code images.render.enabled} is true, the placeholders are rendered at the requested size and format,
+ * so that e.g. a thumbnail grid receives thumbnail sized placeholders. Rendered variants are kept in a bounded
+ * cache.
+ */
+public class PlaceholderImages {
+    private static final Logger log = LoggerFactory.getLogger(PlaceholderImages.class);
+
+    public static final String KEY_NO_ACCESS = "images.noAccess";
+    public static final String KEY_NON_EXISTING = "images.nonExisting";
+    public static final String KEY_RENDER = "images.render";
+
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    public static final int DEFAULT_CACHE_ENTRIES = 200;
+
+    private static volatile PlaceholderImages instance = null;
+
+    static {
+        ServiceConfig.getInstance().registerObserver(PlaceholderImages::reload);
+    }
+
+    private final Image noAccess;
+    private final Image nonExisting;
+    private final boolean render;
+    private final int maxSize;
+    private final Map<String, Image> rendered;
+    private final LongAdder renderHits = new LongAdder();
+    private final LongAdder renderMisses = new LongAdder();
+
+    /**
+     * @return the placeholder images for the current configuration, loading them if they have not been loaded.
+     */
+    public static PlaceholderImages getInstance() {
+        PlaceholderImages current = instance;
+        if (current == null) {
+            synchronized (PlaceholderImages.class) {
+                current = instance;
+                if (current == null) {
+                    current = load(ServiceConfig.getConfig());
+                    instance = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Called by {@link ServiceConfig} when the configuration changes. If the new images cannot be loaded, the old
+     * images are kept.
+     * @param config the new configuration.
+     */
+    private static void reload(YAML config) {
+        try {
+            instance = load(config);
+        } catch (Exception e) {
+            log.error("Unable to reload placeholder images. Keeping the existing images", e);
+        }
+    }
+
+    private static PlaceholderImages load(YAML config) {
+        PlaceholderImages images = new PlaceholderImages(
+                Image.load(config.getString(KEY_NO_ACCESS)),
+                Image.load(config.getString(KEY_NON_EXISTING)),
+                config.getBoolean(KEY_RENDER + ".enabled", false),
+                config.getInteger(KEY_RENDER + ".maxSize", DEFAULT_MAX_SIZE),
+                config.getInteger(KEY_RENDER + ".cacheEntries", DEFAULT_CACHE_ENTRIES));
+        log.info("Loaded {}", images);
+        return images;
+    }
+
+    /**
+     * @param noAccess     the image returned with {@code 403 Forbidden}.
+     * @param nonExisting  the image returned with {@code 404 Not Found}.
+     * @param render       if true, variants are rendered at the requested size and format.
+     * @param maxSize      the maximum width and height in pixels for rendered variants.
+     * @param cacheEntries the maximum number of rendered variants to keep.
+     */
+    PlaceholderImages(Image noAccess, Image nonExisting, boolean render, int maxSize, int cacheEntries) {
+        this.noAccess = noAccess;
+        this.nonExisting = nonExisting;
+        this.render = render && maxSize > 0;
+        this.maxSize = maxSize;
+        this.rendered = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+                return size() > cacheEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the image returned with {@code 403 Forbidden}.
+     */
+    public Image getNoAccess() {
+        return noAccess;
+    }
+
+    /**
+     * @param variant the requested size and format.
+     * @return the image returned with {@code 403 Forbidden}, rendered for the variant if rendering is enabled.
+     */
+    public Image getNoAccess(Variant variant) {
+        return getVariant(noAccess, variant);
+    }
+
+    /**
+     * @return the image returned with {@code 404 Not Found}.
+     */
+    public Image getNonExisting() {
+        return nonExisting;
+    }
+
+    /**
+     * @param variant the requested size and format.
+     * @return the image returned with {@code 404 Not Found}, rendered for the variant if rendering is enabled.
+     */
+    public Image getNonExisting(Variant variant) {
+        return getVariant(nonExisting, variant);
+    }
+
+    /**
+     * @return the number of rendered variants in the cache.
+     */
+    public int getRenderedCount() {
+        synchronized (rendered) {
+            return rendered.size();
+        }
+    }
+
+    /**
+     * @return the number of requests for rendered variants that were served from the cache.
+     */
+    public long getRenderHits() {
+        return renderHits.sum();
+    }
+
+    /**
+     * @return the number of requests for rendered variants that were not in the cache.
+     */
+    public long getRenderMisses() {
+        return renderMisses.sum();
+    }
+
+    private Image getVariant(Image base, Variant variant) {
+        if (!render || variant == null) {
+            return base;
+        }
+        int[] size = variant.resolve(base.getWidth(), base.getHeight());
+        int width = Math.min(size[0], maxSize);
+        int height = Math.min(size[1], maxSize);
+        String format = variant.getFormat() == null ? base.getFormat() : variant.getFormat();
+        if (width == base.getWidth() && height == base.getHeight() && format.equals(base.getFormat())) {
+            return base;
+        }
+        String key = base.getName() + "@" + width + "x" + height + "." + format;
+        synchronized (rendered) {
+            Image cached = rendered.get(key);
+            if (cached != null) {
+                renderHits.increment();
+                return cached;
+            }
+        }
+        renderMisses.increment();
+        // Concurrent requests for the same uncached variant might render it more than once, which is harmless
+        Image image = base.render(key, width, height, format);
+        if (image == null) {
+            return base;
+        }
+        synchronized (rendered) {
+            rendered.put(key, image);
+        }
+        return image;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaceholderImages(noAccess=" + noAccess + ", nonExisting=" + nonExisting +
+               (render ? ", render(maxSize=" + maxSize + ", rendered=" + getRenderedCount() + ")" : "") + ")";
+    }
+
+    /**
+     * The size and format requested for a placeholder. Missing dimensions are derived from the aspect ratio of
+     * the placeholder.
+     */
+    public static final class Variant {
+        private final IIIFSize size;
+        private final String format;
+
+        private Variant(IIIFSize size, String format) {
+            this.size = size;
+            this.format = format;
+        }
+
+        /**
+         * @param size   the IIIF size parameter, e.g. {@code 150,}.
+         * @param format the IIIF format parameter, e.g. {@code png}.
+         * @return a variant for a IIIF Image Request.
+         */
+        public static Variant iiif(String size, String format) {
+            return new Variant(IIIFSize.parse(size), format);
+        }
+
+        /**
+         * @param WID the IIP {@code WID} parameter. Can be null.
+         * @param HEI the IIP {@code HEI} parameter. Can be null.
+         * @param CVT the IIP {@code CVT} parameter, e.g. {@code jpeg}. Can be null.
+         * @return a variant for a IIP request.
+         */
+        public static Variant iip(Long WID, Long HEI, String CVT) {
+            String size = WID == null && HEI == null ? null : (WID == null ? "" : WID) + "," + (HEI == null ? "" : HEI);
+            // IIP uses aspect ratio preserving scaling when both WID and HEI are given
+            if (WID != null && HEI != null) {
+                size = "!" + size;
+            }
+            return new Variant(IIIFSize.parse(size), CVT);
+        }
+
+        /**
+         * @param format the requested format, e.g. {@code jpg}. Can be null.
+         * @return a variant with the size of the placeholder and the given format.
+         */
+        public static Variant format(String format) {
+            return new Variant(null, format);
+        }
+
+        int[] resolve(int width, int height) {
+            return size == null ? new int[]{width, height} : size.resolve(width, height);
+        }
+
+        /**
+         * @return the normalised format, e.g. {@code jpg} for {@code jpeg}, or null if no format was requested.
+         */
+        String getFormat() {
+            if (format == null) {
+                return null;
+            }
+            switch (format) {
+                case "jpeg": return "jpg";
+                case "tiff": return "tif";
+                default: return format;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Variant(size=" + size + ", format=" + format + ")";
+        }
+    }
+
+    /**
+     * An immutable, pre-encoded image.
+     */
+    public static final class Image {
+        private final String name;
+        private final byte[] bytes;
+        private final String format;
+        private final String contentType;
+        private final String eTag;
+        private final BufferedImage decoded; // Only for images that are used as base for rendering
+
+        /**
+         * Load the image from the classpath.
+         * @param name the name of the image, e.g. {@code noAccess.jpg}. The MIME type is derived from the extension.
+         * @return the loaded image.
+         */
+        public static Image load(String name) {
+            try {
+                byte[] bytes = Files.readAllBytes(Resolver.getPathFromClasspath(name));
+                return new Image(name, bytes, ImageIO.read(new ByteArrayInputStream(bytes)));
+            } catch (IOException e) {
+                throw new InternalServiceException("Unable to load placeholder image '" + name + "'", e);
+            }
+        }
+
+        /**
+         * @param name    the name of the image. The format and the MIME type are derived from the extension.
+         * @param bytes   the encoded image. Must not be changed afterwards.
+         * @param decoded the decoded image, used for rendering variants. Can be null.
+         */
+        Image(String name, byte[] bytes, BufferedImage decoded) {
+            this.name = name;
+            this.bytes = bytes;
+            this.format = name.substring(name.lastIndexOf('.') + 1);
+            this.contentType = AccessApiServiceImpl.getMIME(format);
+            this.eTag = ConditionalRequests.strongETag(bytes);
+            this.decoded = decoded;
+        }
+
+        /**
+         * Render the image at the given size and format.
+         * @param name   the name of the variant, ending with {@code .format}.
+         * @param width  the width of the variant.
+         * @param height the height of the variant.
+         * @param format the format of the variant, e.g. {@code png}.
+         * @return the rendered variant or null if the image could not be decoded or the format is not supported.
+         */
+        Image render(String name, int width, int height, String format) {
+            String writerFormat = "tif".equals(format) ? "tiff" : format;
+            if (decoded == null || !ImageIO.getImageWritersByFormatName(writerFormat).hasNext()) {
+                log.debug("Unable to render placeholder '{}' as format '{}'. Using the base image", this.name, format);
+                return null;
+            }
+            BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = scaled.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(decoded, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                if (!ImageIO.write(scaled, writerFormat, out)) {
+                    return null;
+                }
+            } catch (IOException e) {
+                log.warn("Exception rendering placeholder '{}'. Using the base image", name, e);
+                return null;
+            }
+            Image image = new Image(name, out.toByteArray(), null);
+            log.debug("Rendered {}", image);
+            return image;
+        }
+
+        /**
+         * Set status, Content-Type, Content-Length and ETag on the response and return the image bytes as output.
+         * @param httpServletResponse the response for the current request.
+         * @param status              the HTTP status, e.g. {@code 403}.
+         * @return the image as streaming output.
+         */
+        public StreamingOutput serve(HttpServletResponse httpServletResponse, int status) {
+            httpServletResponse.setStatus(status);
+            httpServletResponse.setContentType(contentType);
+            httpServletResponse.setContentLength(bytes.length);
+            httpServletResponse.setHeader("ETag", eTag);
+            return output -> output.write(bytes);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getLength() {
+            return bytes.length;
+        }
+
+        /**
+         * @return the format of the image, e.g. {@code jpg}.
+         */
+        public String getFormat() {
+            return format;
+        }
+
+        /**
+         * @return the width in pixels or -1 if the image has not been decoded.
+         */
+        public int getWidth() {
+            return decoded == null ? -1 : decoded.getWidth();
+        }
+
+        /**
+         * @return the height in pixels or -1 if the image has not been decoded.
+         */
+        public int getHeight() {
+            return decoded == null ? -1 : decoded.getHeight();
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        @Override
+        public String toString() {
+            return "Image(name='" + name + "', contentType='" + contentType + "', bytes=" + bytes.length +
+                   ", eTag=" + eTag + ")";
+        }
+    }
+}
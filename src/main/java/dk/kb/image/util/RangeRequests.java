@@ -0,0 +1,147 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Support for range requests (RFC 9110 section 14): Parsing of {@code Range} and evaluation of {@code If-Range}.
+ * <p>
+ * Range requests are forwarded to the image servers. If an image server does not support ranges, ds-image can
+ * serve the ranges from a local copy, see {@code RangeCache}.
+ */
+public class RangeRequests {
+    public static final String RANGE = "Range";
+    public static final String IF_RANGE = "If-Range";
+    public static final String CONTENT_RANGE = "Content-Range";
+    public static final String ACCEPT_RANGES = "Accept-Ranges";
+    public static final String BYTES = "bytes";
+
+    /**
+     * The maximum number of ranges in a request. Requests with more ranges are served in full, as allowed by
+     * RFC 9110, to avoid excessive overhead from many small parts.
+     */
+    public static final int MAX_RANGES = 16;
+
+    /**
+     * Parse a {@code Range} header and resolve it against the length of the content.
+     * @param range  the value of the {@code Range} header. Can be null.
+     * @param length the full length of the content in bytes.
+     * @return the satisfiable ranges as {@code [first, last]} inclusive byte positions, in the order requested.
+     *         An empty list means that no range is satisfiable ({@code 416 Range Not Satisfiable}).
+     *         null means that the header should be ignored and the full content served: The header is null,
+     *         malformed, not in {@code bytes} or has more than {@link #MAX_RANGES} ranges.
+     */
+    public static List<long[]> parse(String range, long length) {
+        if (range == null || !range.startsWith(BYTES + "=")) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        int specs = 0;
+        int pos = BYTES.length() + 1;
+        while (pos <= range.length()) {
+            int comma = range.indexOf(',', pos);
+            int end = comma < 0 ? range.length() : comma;
+            String spec = range.substring(pos, end).trim();
+            pos = end + 1;
+            if (spec.isEmpty()) { // RFC 9110 allows empty list elements
+                continue;
+            }
+            if (++specs > MAX_RANGES) {
+                return null;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first = parsePosition(spec, 0, dash);
+            long last = parsePosition(spec, dash + 1, spec.length());
+            if (first == -2 || last == -2 || (first == -1 && last == -1) ||
+                (first != -1 && last != -1 && last < first)) {
+                return null;
+            }
+            if (first == -1) { // Suffix range: The last 'last' bytes
+                if (last > 0 && length > 0) {
+                    ranges.add(new long[]{Math.max(0, length - last), length - 1});
+                }
+            } else if (first < length) {
+                ranges.add(new long[]{first, last == -1 ? length - 1 : Math.min(last, length - 1)});
+            }
+        }
+        return specs == 0 ? null : ranges;
+    }
+
+    /**
+     * @return the non-negative integer in {@code s} from {@code start} to {@code end}, -1 if the range is empty or
+     *         -2 if the range is not a non-negative integer.
+     */
+    private static long parsePosition(String s, int start, int end) {
+        if (start == end) {
+            return -1;
+        }
+        if (end - start > 18) { // Guard against overflow
+            return -2;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -2;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Evaluate {@code If-Range}: The range is only served if the validator matches the current content.
+     * ETags are compared using strong comparison and dates must match {@code Last-Modified} exactly.
+     * @param ifRange      the value of the {@code If-Range} header. Can be null.
+     * @param eTag         the ETag for the current content. Can be null.
+     * @param lastModified the {@code Last-Modified} for the current content. Can be null.
+     * @return true if there is no {@code If-Range} or if it matches the current content.
+     */
+    public static boolean ifRangeMatches(String ifRange, String eTag, String lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) { // Weak ETags never match If-Range
+            return false;
+        }
+        if (ifRange.startsWith("\"")) {
+            return eTag != null && !eTag.startsWith("W/") && ifRange.equals(eTag);
+        }
+        return ifRange.equals(lastModified);
+    }
+
+    /**
+     * @param range  a range as {@code [first, last]}.
+     * @param length the full length of the content.
+     * @return the value for the {@code Content-Range} header, e.g. {@code bytes 0-499/1234}.
+     */
+    public static String contentRange(long[] range, long length) {
+        return BYTES + " " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    /**
+     * @param length the full length of the content.
+     * @return the value for the {@code Content-Range} header for {@code 416 Range Not Satisfiable}.
+     */
+    public static String unsatisfiedRange(long length) {
+        return BYTES + " */" + length;
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.util.webservice.exception.InternalServiceException;
+import dk.kb.util.webservice.exception.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * State for the request currently being processed by the thread.
+ * <p>
+ * A new context is started by {@link dk.kb.image.webservice.RequestContextFilter} for every incoming request and
+ * removed from the thread by {@link #finish()} when the response has been delivered, so that pooled threads do not
+ * keep the state of earlier requests. Code that runs outside of a request, e.g. unit tests or callbacks on the
+ * threads of HTTP clients, gets a new context without a deadline, which is not kept for the thread.
+ * <p>
+ * The deadline is the end-to-end time budget for the request: Calls to the license module and the image servers
+ * must all finish within the deadline. When the deadline has passed, {@link #checkDeadline(String)} throws a
+ * {@link ServiceException} with {@code 504 Gateway Timeout}.
+ */
+public class RequestContext {
+    private static final Logger log = LoggerFactory.getLogger(RequestContext.class);
+
+    private static final ThreadLocal<RequestContext> context = new ThreadLocal<>();
+
+    /**
+     * Value for {@link #getRemainingMs()} when there is no deadline.
+     */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * Names for the endpoints of ds-image, used e.g. for matching rules in {@code CachePolicy}.
+     */
+    public static final String ENDPOINT_DEEPZOOM_DZI = "deepzoom.dzi";
+    public static final String ENDPOINT_DEEPZOOM_TILE = "deepzoom.tile";
+    public static final String ENDPOINT_IIIF_INFO = "iiif.info";
+    public static final String ENDPOINT_IIIF_IMAGE = "iiif.image";
+    public static final String ENDPOINT_IIP = "iip";
+    public static final String ENDPOINT_THUMBNAIL_ACCESS = "thumbnails.access";
+    public static final String ENDPOINT_KALTURA_THUMBNAILS = "kaltura.thumbnails";
+
+    /**
+     * Names for the processing stages of a request, used for {@link StageMetrics}.
+     */
+    public static final String STAGE_AUTH = "auth";
+    public static final String STAGE_LICENSE = "license";
+    public static final String STAGE_CONNECT = "connect";
+    public static final String STAGE_FIRST_BYTE = "first_byte";
+    public static final String STAGE_STREAM = "stream";
+    public static final String STAGE_KALTURA = "kaltura";
+    public static final String STAGE_CACHE = "cache";
+
+    private final long startNanos = System.nanoTime();
+    private long deadlineNanos = 0;
+    private boolean hasDeadline = false;
+    private HttpHeaders requestHeaders = null;
+    private HttpServletResponse servletResponse = null;
+    private String endpoint = null;
+    private String backend = null;
+    // The endpoint counted in InFlightRequests. Null if not counted or finished
+    private String inFlightEndpoint = null;
+    private boolean finished = false;
+    // Stages recorded before the endpoint was known, e.g. authorization
+    private List<String> pendingStages = null;
+    private List<Long> pendingNanos = null;
+    // Stages for the Server-Timing header. Null if the header is not enabled
+    private StringBuilder serverTiming = null;
+    // Resources to close when the request is finished, see closeOnFinish
+    private List<Closeable> resources = null;
+
+    /**
+     * Start a new context for the current thread, replacing any existing context.
+     * @return the new context.
+     */
+    public static RequestContext begin() {
+        RequestContext requestContext = new RequestContext();
+        context.set(requestContext);
+        return requestContext;
+    }
+
+    /**
+     * @return the context for the current thread or a new context without a deadline if the thread is not
+     *         processing a request. The new context is not kept for the thread.
+     */
+    public static RequestContext current() {
+        RequestContext requestContext = context.get();
+        return requestContext == null ? new RequestContext() : requestContext;
+    }
+
+    /**
+     * Remove the context for the current thread.
+     */
+    public static void end() {
+        context.remove();
+    }
+
+    /**
+     * Wrap the function so that it runs with this context as the context for the thread that calls it, e.g. for
+     * continuations of asynchronous calls that complete in other threads. The previous context for the thread is
+     * restored afterwards.
+     * @param function the function to run with this context.
+     * @return the wrapped function.
+     */
+    public <T, R> Function<T, R> bind(Function<T, R> function) {
+        return value -> {
+            RequestContext previous = context.get();
+            context.set(this);
+            try {
+                return function.apply(value);
+            } finally {
+                if (previous == null) {
+                    context.remove();
+                } else {
+                    context.set(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Set the deadline for the request to {@code budgetMs} after the start of the request.
+     * @param budgetMs the total number of milliseconds that the request is allowed to take.
+     *                 0 or less means no deadline.
+     * @return the context, for chaining.
+     */
+    public RequestContext setBudget(long budgetMs) {
+        hasDeadline = budgetMs > 0;
+        deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(budgetMs);
+        return this;
+    }
+
+    /**
+     * Make the HTTP request headers and the servlet response available to code that does not receive them
+     * directly, e.g. for passing validators such as {@code ETag} from the image servers to the client.
+     * @param requestHeaders  the headers for the incoming request.
+     * @param servletResponse the response for the incoming request.
+     * @return the context, for chaining.
+     */
+    public RequestContext setHttp(HttpHeaders requestHeaders, HttpServletResponse servletResponse) {
+        this.requestHeaders = requestHeaders;
+        this.servletResponse = servletResponse;
+        return this;
+    }
+
+    /**
+     * Set the backend that serves the request, used for selecting the upstream client if more than one backend
+     * use the same image server.
+     * @param backend the backend, e.g. {@code iiif}. See {@link dk.kb.image.upstream.UpstreamClients#BACKENDS}.
+     * @return the context, for chaining.
+     */
+    public RequestContext setBackend(String backend) {
+        this.backend = backend;
+        return this;
+    }
+
+    /**
+     * Set the endpoint, which also counts the request in {@link InFlightRequests} until {@link #finish()} is called.
+     * @param endpoint the endpoint that handles the request, e.g. {@link #ENDPOINT_IIIF_IMAGE}.
+     * @return the context, for chaining.
+     */
+    public synchronized RequestContext setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+        if (!finished) {
+            if (inFlightEndpoint != null) {
+                InFlightRequests.end(inFlightEndpoint);
+            }
+            InFlightRequests.begin(endpoint);
+            inFlightEndpoint = endpoint;
+        }
+        if (pendingStages != null) {
+            for (int i = 0 ; i < pendingStages.size() ; i++) {
+                StageMetrics.record(endpoint, pendingStages.get(i), pendingNanos.get(i));
+            }
+            pendingStages = null;
+            pendingNanos = null;
+        }
+        return this;
+    }
+
+    /**
+     * Mark the request as delivered, so that it is no longer counted in {@link InFlightRequests}, close the
+     * resources registered with {@link #closeOnFinish(Closeable)} and remove the context from the calling thread,
+     * if it is the context for the thread. Calling this more than once has no effect.
+     */
+    public void finish() {
+        if (context.get() == this) {
+            context.remove();
+        }
+        List<Closeable> toClose;
+        synchronized (this) {
+            if (inFlightEndpoint != null) {
+                InFlightRequests.end(inFlightEndpoint);
+                inFlightEndpoint = null;
+            }
+            finished = true;
+            toClose = resources;
+            resources = null;
+        }
+        if (toClose != null) {
+            toClose.forEach(RequestContext::closeQuietly);
+        }
+    }
+
+    /**
+     * Close the resource when the request is finished, see {@link #finish()}. This is for resources that are
+     * normally closed when the content of the response is written, such as responses from the image servers, as
+     * the content is not written for {@code HEAD} requests or if the request fails before the content is written.
+     * If the request has already finished, the resource is closed at once.
+     * @param resource a resource that allows {@link Closeable#close()} to be called more than once.
+     */
+    public void closeOnFinish(Closeable resource) {
+        synchronized (this) {
+            if (!finished) {
+                if (resources == null) {
+                    resources = new ArrayList<>(2);
+                }
+                resources.add(resource);
+                return;
+            }
+        }
+        closeQuietly(resource);
+    }
+
+    private static void closeQuietly(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Exception closing resource for finished request", e);
+        }
+    }
+
+    /**
+     * Record the duration of a processing stage in {@link StageMetrics} for the endpoint of the request and for
+     * the {@code Server-Timing} header, if enabled. Stages recorded before the endpoint is set are recorded in
+     * {@link StageMetrics} when it is set and discarded if it is never set.
+     * <p>
+     * Stages can be recorded from other threads, e.g. by continuations of asynchronous calls.
+     * @param stage the processing stage, e.g. {@link #STAGE_LICENSE}.
+     * @param nanos the duration of the stage in nanoseconds.
+     */
+    public synchronized void recordStage(String stage, long nanos) {
+        if (serverTiming != null) {
+            if (serverTiming.length() > 0) {
+                serverTiming.append(", ");
+            }
+            serverTiming.append(stage).append(";dur=")
+                    .append(String.format(Locale.ROOT, "%.1f", nanos / 1_000_000.0));
+        }
+        if (endpoint != null) {
+            StageMetrics.record(endpoint, stage, nanos);
+            return;
+        }
+        if (pendingStages == null) {
+            pendingStages = new ArrayList<>(2);
+            pendingNanos = new ArrayList<>(2);
+        }
+        pendingStages.add(stage);
+        pendingNanos.add(nanos);
+    }
+
+    /**
+     * Collect the stages recorded with {@link #recordStage(String, long)} for the {@code Server-Timing} header.
+     * @param enabled if true, the stages are collected.
+     * @return the context, for chaining.
+     */
+    public synchronized RequestContext setServerTiming(boolean enabled) {
+        serverTiming = enabled ? new StringBuilder() : null;
+        return this;
+    }
+
+    /**
+     * @return the value for the {@code Server-Timing} header, e.g. {@code auth;dur=0.4, license;dur=12.3}, with
+     *         the durations in milliseconds of the stages recorded until now. Null if the header is not enabled or
+     *         no stages have been recorded.
+     */
+    public synchronized String getServerTiming() {
+        return serverTiming == null || serverTiming.length() == 0 ? null : serverTiming.toString();
+    }
+
+    /**
+     * @return the endpoint that handles the request or null if it has not been set.
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the backend that serves the request or null if it has not been set.
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * @return the headers for the incoming request or null if they have not been set.
+     */
+    public HttpHeaders getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    /**
+     * @return the response for the incoming request or null if it has not been set.
+     */
+    public HttpServletResponse getServletResponse() {
+        return servletResponse;
+    }
+
+    /**
+     * @return the number of milliseconds left before the deadline, which can be 0 or negative if the deadline has
+     *         passed, or {@link #NO_DEADLINE} if there is no deadline.
+     */
+    public long getRemainingMs() {
+        if (!hasDeadline) {
+            return NO_DEADLINE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+    }
+
+    /**
+     * @return the number of milliseconds since the start of the request.
+     */
+    public long getElapsedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Throws an exception if the deadline has passed.
+     * @param stage the processing stage that is about to start or has just finished, e.g. {@code license check}.
+     *              Used for logging and for the error message.
+     * @throws ServiceException with {@code 504 Gateway Timeout} if the deadline has passed.
+     */
+    public void checkDeadline(String stage) {
+        if (getRemainingMs() > 0) {
+            return;
+        }
+        log.warn("Deadline exceeded at stage '{}' after {} ms", stage, getElapsedMs());
+        throw new ServiceException("Deadline exceeded at " + stage, Response.Status.GATEWAY_TIMEOUT);
+    }
+
+    /**
+     * Wait for the result of a call running in another thread, at most until the deadline.
+     * Exceptions from the call are re-thrown as-is if they are {@link RuntimeException}s.
+     * @param future the result of the call.
+     * @param stage  the processing stage, e.g. {@code license check}. Used for logging and for the error message.
+     * @return the result of the call.
+     * @throws ServiceException with {@code 504 Gateway Timeout} if the deadline has passed.
+     */
+    public <T> T await(Future<T> future, String stage) {
+        try {
+            long remainingMs = getRemainingMs();
+            return remainingMs == NO_DEADLINE ?
+                    future.get() :
+                    future.get(Math.max(0, remainingMs), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            checkDeadline(stage);
+            throw new ServiceException("Timeout waiting for " + stage, Response.Status.GATEWAY_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalServiceException("Interrupted while waiting for " + stage);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            log.warn("Exception waiting for {}", stage, e.getCause());
+            throw new InternalServiceException("Exception waiting for " + stage);
+        }
+    }
+}
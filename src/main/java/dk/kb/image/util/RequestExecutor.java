@@ -0,0 +1,192 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.image.config.ConfigBound;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Executor for the blocking part of request processing: The license check, the call to the image server and the
+ * setup of the response. When enabled, the DeepZoom and IIIF endpoints hand the request over to the executor and
+ * release the container thread.
+ * <p>
+ * Modes:
+ * <ul>
+ *     <li>{@code container}: Requests are processed on the container thread. This is the default.</li>
+ *     <li>{@code platform}: Requests are processed on a fixed size pool of platform threads.</li>
+ *     <li>{@code virtual}: Requests are processed on virtual threads, one per request. Virtual threads require
+ *         Java 21 or later. On older JVMs, the {@code platform} mode is used.</li>
+ * </ul>
+ * The executor is configured under {@code execution} in the behaviour config.
+ */
+public class RequestExecutor {
+    private static final Logger log = LoggerFactory.getLogger(RequestExecutor.class);
+
+    public static final String KEY_EXECUTION = "execution";
+
+    public static final String MODE_CONTAINER = "container";
+    public static final String MODE_PLATFORM = "platform";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    public static final int DEFAULT_PLATFORM_THREADS = 200;
+
+    private static final ConfigBound<RequestExecutor> instance =
+            new ConfigBound<>(RequestExecutor::create, RequestExecutor::close);
+
+    private final String mode;
+    private final ExecutorService executor;
+
+    /**
+     * @return the request executor for the current configuration.
+     */
+    public static RequestExecutor getInstance() {
+        return instance.get();
+    }
+
+    /**
+     * Create a request executor from the {@code execution} part of the configuration.
+     * @param config the full configuration. If null or if {@code execution.mode} is not set, requests are
+     *               processed on the container threads.
+     * @return a request executor.
+     */
+    public static RequestExecutor create(YAML config) {
+        String mode = config == null ? MODE_CONTAINER : config.getString(KEY_EXECUTION + ".mode", MODE_CONTAINER);
+        int platformThreads = config == null ? DEFAULT_PLATFORM_THREADS :
+                config.getInteger(KEY_EXECUTION + ".platformThreads", DEFAULT_PLATFORM_THREADS);
+        RequestExecutor executor = new RequestExecutor(mode, platformThreads);
+        if (executor.isEnabled()) {
+            log.info("Created {}", executor);
+        }
+        return executor;
+    }
+
+    /**
+     * @param mode            {@link #MODE_CONTAINER}, {@link #MODE_PLATFORM} or {@link #MODE_VIRTUAL}.
+     * @param platformThreads the number of threads for {@link #MODE_PLATFORM}.
+     */
+    public RequestExecutor(String mode, int platformThreads) {
+        switch (mode) {
+            case MODE_CONTAINER:
+                executor = null;
+                break;
+            case MODE_VIRTUAL:
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null) {
+                    executor = virtual;
+                    break;
+                }
+                log.warn("Virtual threads are not supported by Java {}. Using {} platform threads instead",
+                         Runtime.version().feature(), platformThreads);
+                mode = MODE_PLATFORM;
+                // Fall through to platform threads
+            case MODE_PLATFORM:
+                executor = Executors.newFixedThreadPool(platformThreads, new RequestThreadFactory());
+                break;
+            default: throw new IllegalArgumentException(String.format(
+                    Locale.ROOT, "Unknown %s.mode '%s'. Valid modes are %s, %s and %s",
+                    KEY_EXECUTION, mode, MODE_CONTAINER, MODE_PLATFORM, MODE_VIRTUAL));
+        }
+        this.mode = mode;
+    }
+
+    /**
+     * Use {@code Executors.newVirtualThreadPerTaskExecutor()} if the JVM supports virtual threads.
+     * It is resolved at runtime, as the code is compiled for Java versions without virtual threads.
+     * @return an executor that starts a new virtual thread for each task or null if not supported.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            MethodHandle factory = MethodHandles.publicLookup().findStatic(
+                    Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+            return (ExecutorService) factory.invoke();
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        } catch (Throwable e) {
+            log.warn("Unable to create virtual thread executor", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if requests should be processed by this executor instead of on the container thread.
+     */
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * @return the effective mode, which is {@link #MODE_PLATFORM} if {@link #MODE_VIRTUAL} was requested but
+     *         is not supported by the JVM.
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Run the task with the {@link RequestContext} of the calling thread, so that the deadline is measured from the
+     * arrival of the request.
+     * @param task the processing of the request.
+     * @return the future result of the task.
+     * @throws IllegalStateException if the executor is not enabled.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        if (executor == null) {
+            throw new IllegalStateException("The request executor is not enabled");
+        }
+        RequestContext requestContext = RequestContext.current();
+        return CompletableFuture.supplyAsync(() -> requestContext.bind(ignored -> task.get()).apply(null), executor);
+    }
+
+    /**
+     * Stop accepting new tasks. Running tasks are allowed to finish.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RequestExecutor(mode=" + mode + ")";
+    }
+
+    /**
+     * Named daemon threads for {@link #MODE_PLATFORM}.
+     */
+    private static class RequestThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "request-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
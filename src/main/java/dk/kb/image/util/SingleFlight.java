@@ -0,0 +1,135 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.util.webservice.exception.ServiceException;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key: The first caller performs the call and concurrent callers with
+ * an equal key wait for the result of that call instead of performing their own.
+ * <p>
+ * Nothing is remembered after the call has finished. Combine with a cache to reuse results.
+ * Waiting callers respect the deadline from {@link RequestContext}.
+ * @param <K> the key type.
+ * @param <V> the result type.
+ */
+public class SingleFlight<K, V> {
+    private final String name;
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param name the name of the protected call, e.g. {@code license check}. Used for error messages.
+     */
+    public SingleFlight(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Perform the call for the given key or wait for an already running call for an equal key.
+     * @param key  the key for the call.
+     * @param call performs the call. Exceptions thrown from the call are passed to all waiting callers.
+     * @return the result of the call.
+     * @throws ServiceException with {@code 504 Gateway Timeout} if the request deadline is exceeded while
+     *                          waiting for another caller.
+     */
+    public V execute(K key, Supplier<V> call) {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            coalesced.increment();
+            return RequestContext.current().await(running, name);
+        }
+
+        calls.increment();
+        try {
+            V result = call.get();
+            own.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    /**
+     * Start the asynchronous call for the given key or share an already running call for an equal key.
+     * The call is marked as finished when its future completes.
+     * @param key  the key for the call.
+     * @param call starts the call. Exceptions thrown when starting the call are passed to all waiting callers.
+     * @return the future result of the call.
+     */
+    public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            coalesced.increment();
+            return running;
+        }
+        calls.increment();
+        CompletableFuture<V> started;
+        try {
+            started = call.get();
+        } catch (RuntimeException | Error e) {
+            started = CompletableFuture.failedFuture(e);
+        }
+        started.whenComplete((result, e) -> {
+            inFlight.remove(key, own);
+            if (e == null) {
+                own.complete(result);
+            } else {
+                own.completeExceptionally(e);
+            }
+        });
+        return own;
+    }
+
+    /**
+     * @return the number of calls that are currently running.
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return the number of calls that have been performed.
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * @return the number of callers that waited for the result of another caller instead of performing a call.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight(name='" + name + "', inFlight=" + getInFlight() + ", calls=" + getCalls() +
+               ", coalesced=" + getCoalesced() + ")";
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms for the processing stages of the requests, e.g. the license check or streaming from the
+ * image server, per endpoint. The stages are recorded through {@link RequestContext#recordStage(String, long)}.
+ * <p>
+ * Recording is lock-free: Each bucket is a {@link LongAdder}, so concurrent requests do not contend. The
+ * histograms are exposed in the Prometheus text format through {@code /monitor/metrics}.
+ */
+public class StageMetrics {
+    public static final String METRIC_NAME = "ds_image_stage_duration_seconds";
+
+    /**
+     * Upper bounds for the histogram buckets in nanoseconds, from 1 ms to 60 seconds. Values above the last bound
+     * are only counted in the implicit {@code +Inf} bucket.
+     */
+    static final long[] BOUNDS_NANOS = toNanos(1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000,
+                                               30000, 60000);
+
+    // endpoint -> stage -> histogram
+    private static final ConcurrentMap<String, ConcurrentMap<String, Histogram>> histograms =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Record the duration of a processing stage.
+     * @param endpoint the endpoint that handled the request, e.g. {@link RequestContext#ENDPOINT_IIIF_IMAGE}.
+     * @param stage    the processing stage, e.g. {@link RequestContext#STAGE_LICENSE}.
+     * @param nanos    the duration of the stage in nanoseconds.
+     */
+    public static void record(String endpoint, String stage, long nanos) {
+        getHistogram(endpoint, stage).record(nanos);
+    }
+
+    /**
+     * @return the histogram for the given endpoint and stage, created if it does not exist.
+     */
+    static Histogram getHistogram(String endpoint, String stage) {
+        ConcurrentMap<String, Histogram> stages = histograms.get(endpoint); // Avoid computeIfAbsent locking
+        if (stages == null) {
+            stages = histograms.computeIfAbsent(endpoint, e -> new ConcurrentHashMap<>());
+        }
+        Histogram histogram = stages.get(stage);
+        if (histogram == null) {
+            histogram = stages.computeIfAbsent(stage, s -> new Histogram());
+        }
+        return histogram;
+    }
+
+    /**
+     * @return all histograms in the
+     *         <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus text format</a>,
+     *         sorted by endpoint and stage.
+     */
+    public static String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP ").append(METRIC_NAME)
+                .append(" Time spent in the processing stages of requests, per endpoint.\n");
+        sb.append("# TYPE ").append(METRIC_NAME).append(" histogram\n");
+        for (Map.Entry<String, ConcurrentMap<String, Histogram>> endpoint: new TreeMap<>(histograms).entrySet()) {
+            for (Map.Entry<String, Histogram> stage: new TreeMap<>(endpoint.getValue()).entrySet()) {
+                stage.getValue().appendPrometheus(sb, endpoint.getKey(), stage.getKey());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Remove all histograms. Used for testing.
+     */
+    static void clear() {
+        histograms.clear();
+    }
+
+    private static long[] toNanos(double... boundsMs) {
+        long[] nanos = new long[boundsMs.length];
+        for (int i = 0 ; i < boundsMs.length ; i++) {
+            nanos[i] = (long) (boundsMs[i] * TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return nanos;
+    }
+
+    /**
+     * Lock-free histogram with the fixed buckets from {@link #BOUNDS_NANOS}.
+     */
+    static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1]; // Last is +Inf
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0 ; i < buckets.length ; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * @return the number of recorded durations.
+         */
+        long getCount() {
+            long count = 0;
+            for (LongAdder bucket: buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * Estimate a percentile by linear interpolation within the bucket that holds it, as done by Prometheus.
+         * Percentiles in the {@code +Inf} bucket are reported as the last bound.
+         * @param percentile the percentile, e.g. {@code 99.0}.
+         * @return the estimated percentile in milliseconds or null if nothing has been recorded.
+         */
+        Double getPercentileMs(double percentile) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0 ; i < buckets.length ; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return null;
+            }
+            double rank = Math.max(1, Math.ceil(percentile / 100 * total));
+            long cumulative = 0;
+            for (int i = 0 ; i < BOUNDS_NANOS.length ; i++) {
+                if (counts[i] > 0 && cumulative + counts[i] >= rank) {
+                    long lower = i == 0 ? 0 : BOUNDS_NANOS[i-1];
+                    double nanos = lower + (BOUNDS_NANOS[i] - lower) * (rank - cumulative) / counts[i];
+                    return nanos / 1_000_000;
+                }
+                cumulative += counts[i];
+            }
+            return BOUNDS_NANOS[BOUNDS_NANOS.length-1] / 1_000_000.0;
+        }
+
+        /**
+         * Append the histogram with cumulative buckets in the Prometheus text format. As the buckets are read one
+         * at a time, concurrent recordings can make the sum deviate slightly from the buckets.
+         */
+        void appendPrometheus(StringBuilder sb, String endpoint, String stage) {
+            String labels = "endpoint=\"" + endpoint + "\",stage=\"" + stage + "\"";
+            long cumulative = 0;
+            for (int i = 0 ; i < buckets.length ; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < BOUNDS_NANOS.length ? toSeconds(BOUNDS_NANOS[i]) : "+Inf";
+                sb.append(METRIC_NAME).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            sb.append(METRIC_NAME).append("_sum{").append(labels).append("} ").append(toSeconds(sumNanos.sum()))
+                    .append('\n');
+            sb.append(METRIC_NAME).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+
+        private static String toSeconds(long nanos) {
+            return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.image.config.ConfigBound;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+
+/**
+ * The size limits for classifying image requests as thumbnails, which are license checked with the presentation
+ * type {@code Thumbnails} instead of {@code Fullsize}.
+ * <p>
+ * The limits are resolved from the configuration once and replaced as a whole when the configuration changes, so
+ * classifying a request does not look up anything in the configuration.
+ * <p>
+ * The policy is configured under {@code thumbnail} in the behaviour config. If not configured, no requests are
+ * thumbnails.
+ */
+public class ThumbnailPolicy {
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailPolicy.class);
+
+    public static final String KEY_THUMBNAIL = "thumbnail";
+
+    private static final ConfigBound<ThumbnailPolicy> instance = new ConfigBound<>(ThumbnailPolicy::create);
+
+    private final int maxWidth;
+    private final int maxHeight;
+    private final boolean singleDimension;
+    private final float maxPercent;
+
+    /**
+     * @return the thumbnail policy for the current configuration.
+     */
+    public static ThumbnailPolicy getInstance() {
+        return instance.get();
+    }
+
+    /**
+     * Create a thumbnail policy from the {@code thumbnail} part of the configuration.
+     * @param config the full configuration. If null, a policy where no requests are thumbnails is returned.
+     * @return a thumbnail policy.
+     */
+    public static ThumbnailPolicy create(YAML config) {
+        if (config == null) {
+            return new ThumbnailPolicy(0, 0, false, 0);
+        }
+        ThumbnailPolicy policy = new ThumbnailPolicy(
+                config.getInteger(KEY_THUMBNAIL + ".width.max", 0),
+                config.getInteger(KEY_THUMBNAIL + ".height.max", 0),
+                config.getBoolean(KEY_THUMBNAIL + ".singleDimension", false),
+                config.getDouble(KEY_THUMBNAIL + ".pct.max", 0.0).floatValue());
+        log.info("Created {}", policy);
+        return policy;
+    }
+
+    /**
+     * @param maxWidth        the maximum width in pixels for a thumbnail.
+     * @param maxHeight       the maximum height in pixels for a thumbnail.
+     * @param singleDimension if true, requests that only specify the width or the height are thumbnails if that
+     *                        dimension is within the limit.
+     * @param maxPercent      the maximum percentage for IIIF {@code pct:n} requests to be thumbnails.
+     *                        0 means that they are never thumbnails.
+     */
+    public ThumbnailPolicy(int maxWidth, int maxHeight, boolean singleDimension, float maxPercent) {
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.singleDimension = singleDimension;
+        this.maxPercent = maxPercent;
+    }
+
+    /**
+     * @param width  the requested width in pixels.
+     * @param height the requested height in pixels.
+     * @return true if both width and height are within the limits for thumbnails.
+     */
+    public boolean isThumbnail(long width, long height) {
+        return width <= maxWidth && height <= maxHeight;
+    }
+
+    /**
+     * Classify a IIIF size. {@code w,h} and {@code !w,h} are thumbnails if both dimensions are within the limits,
+     * {@code w,} and {@code ,h} if single dimension requests are allowed and the dimension is within the limit and
+     * {@code pct:n} if n is within the percentage limit. {@code max} is never a thumbnail.
+     * The {@code ^} prefix does not change the classification, as the limits are for the requested size.
+     * @param size a parsed IIIF size. Can be null.
+     * @return true if the size is within the limits for thumbnails.
+     */
+    public boolean isThumbnail(IIIFSize size) {
+        if (size == null || size.isMax()) {
+            return false;
+        }
+        if (size.getPercent() > 0) {
+            return size.getPercent() <= maxPercent;
+        }
+        if (size.getWidth() == -1) {
+            return singleDimension && size.getHeight() <= maxHeight;
+        }
+        if (size.getHeight() == -1) {
+            return singleDimension && size.getWidth() <= maxWidth;
+        }
+        return isThumbnail(size.getWidth(), size.getHeight());
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "ThumbnailPolicy(maxWidth=%d, maxHeight=%d, singleDimension=%b, " +
+                                          "maxPercent=%.1f)",
+                             maxWidth, maxHeight, singleDimension, maxPercent);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.util.webservice.exception.InternalServiceException;
+import dk.kb.util.yaml.YAML;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/**
+ * Signs and validates short-lived thumbnail URLs.
+ * <p>
+ * The signature is a HMAC-SHA256 of the identifier, the IIIF size, the format and the expiry time. A request with
+ * a valid signature has already been checked against the license module and can skip the license check until the
+ * signature expires.
+ * <p>
+ * The signer is configured under {@code thumbnail.signedUrls} in the behaviour config. If no secret is configured,
+ * a random secret is generated, meaning that URLs are only valid for the instance of ds-image that signed them.
+ * The random secret is generated once per JVM, so signed URLs stay valid when the configuration is reloaded.
+ */
+public class ThumbnailSigner {
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailSigner.class);
+
+    public static final String KEY_SIGNED_URLS = "thumbnail.signedUrls";
+    public static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * Query parameter for the expiry time in epoch seconds.
+     */
+    public static final String PARAM_EXPIRES = "expires";
+    /**
+     * Query parameter for the signature.
+     */
+    public static final String PARAM_SIGNATURE = "signature";
+
+    public static final long DEFAULT_TTL_SECONDS = 300;
+
+    private final boolean enabled;
+    private final SecretKeySpec secret;
+    private final long ttlSeconds;
+    private final LongSupplier clock;
+
+    /**
+     * Create a signer from the {@code thumbnail.signedUrls} part of the configuration.
+     * @param config the full configuration. If null or if {@code thumbnail.signedUrls.enabled} is not true,
+     *               a disabled signer is returned.
+     * @return a thumbnail signer.
+     */
+    public static ThumbnailSigner create(YAML config) {
+        if (config == null || !config.getBoolean(KEY_SIGNED_URLS + ".enabled", false)) {
+            return new ThumbnailSigner(false, null, 0, System::currentTimeMillis);
+        }
+        String secret = config.getString(KEY_SIGNED_URLS + ".secret", "");
+        byte[] secretBytes;
+        if (secret.isEmpty()) {
+            log.info("No {}.secret configured. Using a random secret, so signed URLs are only valid for this " +
+                     "instance", KEY_SIGNED_URLS);
+            secretBytes = RandomSecret.SECRET;
+        } else {
+            secretBytes = secret.getBytes(StandardCharsets.UTF_8);
+        }
+        ThumbnailSigner signer = new ThumbnailSigner(
+                true, secretBytes,
+                config.getLong(KEY_SIGNED_URLS + ".ttlSeconds", DEFAULT_TTL_SECONDS),
+                System::currentTimeMillis);
+        log.info("Created {}", signer);
+        return signer;
+    }
+
+    /**
+     * @param enabled    if false, nothing is signed and no signatures are valid.
+     * @param secret     the key for the HMAC.
+     * @param ttlSeconds the number of seconds that a signature is valid.
+     * @param clock      provides the current time in epoch milliseconds.
+     */
+    ThumbnailSigner(boolean enabled, byte[] secret, long ttlSeconds, LongSupplier clock) {
+        this.enabled = enabled && secret != null && secret.length > 0 && ttlSeconds > 0;
+        this.secret = this.enabled ? new SecretKeySpec(secret, ALGORITHM) : null;
+        this.ttlSeconds = ttlSeconds;
+        this.clock = clock;
+    }
+
+    /**
+     * @return the expiry time in epoch seconds for signatures created now.
+     */
+    public long getExpires() {
+        return clock.getAsLong() / 1000 + ttlSeconds;
+    }
+
+    /**
+     * @param identifier the identifier of the image, not URL encoded.
+     * @param size       the IIIF size, e.g. {@code 150,100}.
+     * @param format     the IIIF format, e.g. {@code jpg}.
+     * @param expires    the expiry time in epoch seconds, normally from {@link #getExpires()}.
+     * @return the signature or null if the signer is disabled.
+     */
+    public String sign(String identifier, String size, String format, long expires) {
+        if (!enabled) {
+            return null;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hmac(identifier, size, format, expires));
+    }
+
+    /**
+     * Check if the signature matches the image parameters and has not expired.
+     * @param identifier the identifier of the image, not URL encoded.
+     * @param size       the IIIF size, e.g. {@code 150,100}.
+     * @param format     the IIIF format, e.g. {@code jpg}.
+     * @param expires    the expiry time in epoch seconds, as given in the request. Can be null.
+     * @param signature  the signature, as given in the request. Can be null.
+     * @return true if the signature is valid.
+     */
+    public boolean isValid(String identifier, String size, String format, String expires, String signature) {
+        if (!enabled || expires == null || signature == null) {
+            return false;
+        }
+        long expiresSeconds;
+        byte[] given;
+        try {
+            expiresSeconds = Long.parseLong(expires);
+            given = Base64.getUrlDecoder().decode(signature);
+        } catch (IllegalArgumentException e) {
+            log.debug("Malformed signature parameters expires='{}', signature='{}'", expires, signature);
+            return false;
+        }
+        if (clock.getAsLong() / 1000 >= expiresSeconds) {
+            log.debug("Expired signature for identifier '{}'", identifier);
+            return false;
+        }
+        return MessageDigest.isEqual(hmac(identifier, size, format, expiresSeconds), given);
+    }
+
+    private byte[] hmac(String identifier, String size, String format, long expires) {
+        String message = identifier + "\n" + size + "\n" + format + "\n" + expires;
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(secret);
+            return mac.doFinal(message.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new InternalServiceException("Unable to calculate " + ALGORITHM + " signature", e);
+        }
+    }
+
+    /**
+     * @return true if signing is enabled.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public String toString() {
+        if (!enabled) {
+            return "ThumbnailSigner(disabled)";
+        }
+        return String.format(Locale.ROOT, "ThumbnailSigner(algorithm=%s, ttlSeconds=%d)", ALGORITHM, ttlSeconds);
+    }
+
+    /**
+     * The random secret used when no secret is configured, generated on first use.
+     */
+    private static final class RandomSecret {
+        private static final byte[] SECRET = new byte[32];
+        static {
+            new SecureRandom().nextBytes(SECRET);
+        }
+    }
+}
@@ -25,6 +25,9 @@ public class Application_v1 extends javax.ws.rs.core.Application {
                 AccessApiServiceImpl.class,
                 ServiceApiServiceImpl.class,
                 OpenApiResource.class,
+                RequestContextFilter.class,
+                ServerTimingFilter.class,
+                InFlightFilter.class,
                 dk.kb.util.webservice.exception.ServiceExceptionMapper.class
         ));
     }
@@ -0,0 +1,60 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.webservice;
+
+import dk.kb.image.util.InFlightRequests;
+import dk.kb.image.util.RequestContext;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+
+/**
+ * Calls {@link RequestContext#finish()} when the response has been delivered, so that {@link InFlightRequests}
+ * also counts the time for streaming the content, resources registered with
+ * {@link RequestContext#closeOnFinish(java.io.Closeable)} are released and the context does not stay on the
+ * thread: Responses with content are finished when the content has been written, responses without content and
+ * responses to {@code HEAD} requests, where the content is never written, when the response filters are called.
+ */
+@Provider
+public class InFlightFilter implements ContainerResponseFilter, WriterInterceptor {
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+        if (!responseContext.hasEntity() || HttpMethod.HEAD.equals(requestContext.getMethod())) {
+            finish(requestContext.getProperty(RequestContextFilter.PROPERTY_REQUEST_CONTEXT));
+        }
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        try {
+            context.proceed();
+        } finally {
+            finish(context.getProperty(RequestContextFilter.PROPERTY_REQUEST_CONTEXT));
+        }
+    }
+
+    private static void finish(Object context) {
+        if (context instanceof RequestContext) {
+            ((RequestContext) context).finish();
+        }
+    }
+}
@@ -14,6 +14,7 @@
  */
 package dk.kb.image.webservice;
         
+import dk.kb.image.util.RequestContext;
 import dk.kb.util.webservice.exception.InternalServiceException;
 import io.swagger.annotations.AuthorizationScope;
 import org.apache.cxf.helpers.CastUtils;
@@ -99,14 +100,26 @@ public class KBAuthorizationInterceptor extends AbstractPhaseInterceptor<Message
     }
 
     
+    /**
+     * Authorize the call and record the time spent as {@link RequestContext#STAGE_AUTH}.
+     */
+    @Override
+    public void handleMessage(Message message) throws Fault {
+        long startNanos = System.nanoTime();
+        try {
+            authorize(message);
+        } finally {
+            RequestContext.current().recordStage(RequestContext.STAGE_AUTH, System.nanoTime() - startNanos);
+        }
+    }
+
     /**
      * Logic: <br>
      * 1. Validate Token present if required for method. 
      * 2. Validate access control for role allowed to call the method.
      * 
      */
-    @Override
-    public void handleMessage(Message message) throws Fault {
+    private void authorize(Message message) throws Fault {
 
         //message.getExchange().get(OperationResourceInfo.class);
         final String endpoint = getEndpointName(message);
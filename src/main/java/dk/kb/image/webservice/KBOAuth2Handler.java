@@ -71,7 +71,7 @@ public class KBOAuth2Handler {
     //Map with realm+kid as key the PublicKey as values 
     //See https://www.rfc-editor.org/rfc/rfc7515#section-4.1.4
     final Map<String, PublicKey> realmKeys; //Map
-    private static KBOAuth2Handler instance;
+    private static volatile KBOAuth2Handler instance;
 
     /**
      * Fetches KB OAuth2 settings from the configuration and initializes the handler.
@@ -115,11 +115,19 @@ public class KBOAuth2Handler {
     /**
      * @return singleton instance of this  class, initialized from {@link ServiceConfig}.
      */
-    public static synchronized KBOAuth2Handler getInstance() {
-        if (instance == null) {
-            instance = new KBOAuth2Handler();
+    public static KBOAuth2Handler getInstance() {
+        KBOAuth2Handler current = instance;
+        if (current == null) {
+            // Only locks on first call, as this is called for every request
+            synchronized (KBOAuth2Handler.class) {
+                current = instance;
+                if (current == null) {
+                    current = new KBOAuth2Handler();
+                    instance = current;
+                }
+            }
         }
-        return instance;
+        return current;
     }
 
     /**
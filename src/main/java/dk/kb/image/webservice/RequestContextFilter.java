@@ -0,0 +1,38 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.webservice;
+
+import dk.kb.image.util.RequestContext;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Starts a new {@link RequestContext} for every incoming request, so that the deadline is measured from the
+ * arrival of the request. The context is also stored as the request property {@link #PROPERTY_REQUEST_CONTEXT}.
+ */
+@Provider
+@PreMatching
+public class RequestContextFilter implements ContainerRequestFilter {
+    public static final String PROPERTY_REQUEST_CONTEXT = RequestContext.class.getName();
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+        requestContext.setProperty(
+                PROPERTY_REQUEST_CONTEXT, RequestContext.begin().setServerTiming(ServerTimingFilter.isEnabled()));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.webservice;
+
+import dk.kb.image.config.ConfigBound;
+import dk.kb.image.util.RequestContext;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Adds the {@code Server-Timing} header with the durations of the processing stages recorded in the
+ * {@link RequestContext}, e.g. authorization, license check, cache lookup and connection to the image server, so
+ * that they are visible in the developer tools of browsers.
+ * <p>
+ * The header is only added for the image endpoints, i.e. requests where {@link RequestContext#getEndpoint()} is
+ * set, and only if {@code serverTiming.enabled} is true in the behaviour config. Streaming the content happens
+ * after the headers are sent, so the time for streaming is not part of the header.
+ */
+@Provider
+public class ServerTimingFilter implements ContainerResponseFilter {
+    public static final String SERVER_TIMING = "Server-Timing";
+    public static final String KEY_ENABLED = "serverTiming.enabled";
+
+    private static final ConfigBound<Boolean> enabled = new ConfigBound<>(
+            config -> config != null && config.getBoolean(KEY_ENABLED, false));
+
+    /**
+     * @return true if the {@code Server-Timing} header is enabled.
+     */
+    public static boolean isEnabled() {
+        return enabled.get();
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+        // Asynchronous responses are filtered on another thread, so the context is taken from the request
+        Object context = requestContext.getProperty(RequestContextFilter.PROPERTY_REQUEST_CONTEXT);
+        if (!(context instanceof RequestContext) || ((RequestContext) context).getEndpoint() == null) {
+            return;
+        }
+        String serverTiming = ((RequestContext) context).getServerTiming();
+        if (serverTiming != null) {
+            responseContext.getHeaders().add(SERVER_TIMING, serverTiming);
+        }
+    }
+}
@@ -7,6 +7,8 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.core.Response;
+
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -289,6 +291,102 @@ public class IIPValidationTest {
         assertTrue(actualMessage.contains(expectedMessage));
     }
 
+    @Test
+    public void ctwShortArrayTest(){
+        // Too few values gives a bad request, not an index out of bounds
+        InvalidArgumentServiceException exception = assertThrows(InvalidArgumentServiceException.class, () -> {
+            IIPParamValidation.ctwValidation("[1,2,3;4,5;6,7,8]");
+        });
+        assertEquals(Response.Status.BAD_REQUEST, exception.getResponseStatus());
+        assertEquals("The array2 in CTW needs to contain three numbers r, g and b, but was: 4,5", exception.getMessage());
+
+        // Trailing empty values do not count
+        assertThrows(InvalidArgumentServiceException.class, () -> IIPParamValidation.ctwValidation("1,2,,"));
+        assertThrows(InvalidArgumentServiceException.class, () -> IIPParamValidation.ctwValidation("[]"));
+        assertThrows(InvalidArgumentServiceException.class, () -> IIPParamValidation.ctwValidation(""));
+
+        // Values after the first three are not checked
+        assertDoesNotThrow(() -> IIPParamValidation.ctwValidation("1,2,3,hest"));
+    }
+
+    @Test
+    public void ctwBracketsTest(){
+        // Brackets are ignored wherever they are
+        assertDoesNotThrow(() -> IIPParamValidation.ctwValidation("[[1,2,3];[4,5,6]]"));
+        assertDoesNotThrow(() -> IIPParamValidation.ctwValidation("]1[,[2],3]]"));
+        assertDoesNotThrow(() -> IIPParamValidation.ctwValidation("[1,2,3;[]]"));
+        assertDoesNotThrow(() -> IIPParamValidation.ctwValidation("[1,2,3,[]]"));
+
+        // An empty value, even with brackets, is not a number
+        Exception exception = assertThrows(InvalidArgumentServiceException.class, () -> {
+            IIPParamValidation.ctwValidation("[1,[],3]");
+        });
+        assertEquals("The value of g in array1 needs to be a number, but was: ", exception.getMessage());
+
+        exception = assertThrows(InvalidArgumentServiceException.class, () -> {
+            IIPParamValidation.ctwValidation("[1,2,3];[4,5,[6]x]");
+        });
+        assertEquals("The value of b in array2 needs to be a number, but was: 6x", exception.getMessage());
+    }
+
+    @Test
+    public void ctwSignsAndExponentsTest(){
+        // Everything accepted by Float.parseFloat is a number
+        assertDoesNotThrow(() -> IIPParamValidation.ctwValidation("[-1,+2.5,.5;5.,-.5,[+0]]"));
+        assertDoesNotThrow(() -> IIPParamValidation.ctwValidation("[1e3,1E-2,-2.5e+1]"));
+        assertDoesNotThrow(() -> IIPParamValidation.ctwValidation("[NaN,-Infinity,0x1p3]"));
+        assertDoesNotThrow(() -> IIPParamValidation.ctwValidation("[1f,2d,3]"));
+
+        for (String notNumber : new String[]{"1-", "--1", "+-1", "1+2", "1.2.3", "1e", "e3", "-", "+", "."}) {
+            Exception exception = assertThrows(InvalidArgumentServiceException.class, () -> {
+                IIPParamValidation.ctwValidation("[1," + notNumber + ",3]");
+            }, "The value '" + notNumber + "' should not be accepted");
+            assertEquals("The value of g in array1 needs to be a number, but was: " + notNumber, exception.getMessage());
+        }
+    }
+
+    @Test
+    public void pflOverflowTest(){
+        assertDoesNotThrow(() -> IIPParamValidation.pflValidation("2147483647:0,0-2147483647,0"));
+
+        Exception exception = assertThrows(InvalidArgumentServiceException.class, () -> {
+            IIPParamValidation.pflValidation("800:20,20-2147483648,440");
+        });
+        assertEquals("The value of x2 needs to be a positive number, but was: '2147483648'", exception.getMessage());
+
+        exception = assertThrows(InvalidArgumentServiceException.class, () -> {
+            IIPParamValidation.pflValidation("99999999999999999999999:20,20-440,440");
+        });
+        assertEquals("The value of r needs to be a positive number, but was: '99999999999999999999999'",
+                     exception.getMessage());
+
+        // Leading zeros do not overflow
+        assertDoesNotThrow(() -> IIPParamValidation.pflValidation("800:20,20-440,00000000000000000440"));
+    }
+
+    @Test
+    public void pflEmbeddedTest(){
+        // The first occurrence of r:x1,y1-x2,y2 anywhere in the value is used
+        assertDoesNotThrow(() -> IIPParamValidation.pflValidation("profile=800:20,20-440,440&more"));
+        assertDoesNotThrow(() -> IIPParamValidation.pflValidation("a800:20,20-440,440b"));
+        assertDoesNotThrow(() -> IIPParamValidation.pflValidation("1:2,3-4 800:20,20-440,440"));
+        assertDoesNotThrow(() -> IIPParamValidation.pflValidation("-800:20,20-440,440"));
+
+        for (String pfl : new String[]{"800:20,20-440", "800:20,20-440,", "800:20;20-440,440", "800:20,-20-440,440", ""}) {
+            Exception exception = assertThrows(InvalidArgumentServiceException.class, () -> {
+                IIPParamValidation.pflValidation(pfl);
+            }, "The PFL '" + pfl + "' should not be accepted");
+            assertEquals("The value of PFL needs to be defined specifically as r:x1,y1-x2,y2 but was: '" + pfl + "'",
+                         exception.getMessage());
+        }
+
+        // Values are checked in the embedded occurrence
+        Exception exception = assertThrows(InvalidArgumentServiceException.class, () -> {
+            IIPParamValidation.pflValidation("x1:2,3-4 800:20,20-440,4400000000000y");
+        });
+        assertEquals("The value of y2 needs to be a positive number, but was: '4400000000000'", exception.getMessage());
+    }
+
     @Test
     public void colTest(){
         String col = "multicolor";
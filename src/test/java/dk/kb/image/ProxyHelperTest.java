@@ -15,7 +15,15 @@
 package dk.kb.image;
 
 import com.damnhandy.uri.template.UriTemplate;
+import com.sun.net.httpserver.HttpServer;
+import dk.kb.util.webservice.exception.ServiceException;
+import dk.kb.image.upstream.UpstreamClients;
+import dk.kb.image.upstream.UpstreamPool;
+import dk.kb.image.util.RequestContext;
+import dk.kb.image.webservice.InFlightFilter;
+import dk.kb.image.webservice.RequestContextFilter;
 import org.apache.http.client.utils.URIBuilder;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentMatchers;
 import org.mockito.MockedStatic;
@@ -23,19 +31,31 @@ import org.mockito.Mockito;
 import org.mockito.stubbing.Answer;
 
 import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
 
 /**
  * Hacked unit test as it expects www.kb.dk to be available.
@@ -114,4 +134,79 @@ class ProxyHelperTest {
         // We know the response from www.kb.dk starts with text/html
         verify(servletResponse).setContentType(ArgumentMatchers.startsWith("text/html"));
     }
-}
\ No newline at end of file
+
+    @Tag("fast")
+    @Test
+    void unwrittenResponseIsReleased() throws IOException {
+        HttpServer server = startServer(0);
+        try {
+            URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/image.jpg");
+            UpstreamPool pool = UpstreamClients.forURI(uri).getPool();
+            RequestContext requestContext = RequestContext.begin();
+            // The content is never written, as for HEAD requests
+            ProxyHelper.proxy("image.jpg", uri, uri, null);
+            assertEquals(1, pool.getLeased(), "The response should hold a connection until the request finishes");
+
+            ContainerRequestContext request = mock(ContainerRequestContext.class);
+            when(request.getMethod()).thenReturn(HttpMethod.HEAD);
+            when(request.getProperty(RequestContextFilter.PROPERTY_REQUEST_CONTEXT)).thenReturn(requestContext);
+            ContainerResponseContext response = mock(ContainerResponseContext.class);
+            when(response.hasEntity()).thenReturn(true);
+            new InFlightFilter().filter(request, response);
+            assertEquals(0, pool.getLeased(), "The connection should be released when the request finishes");
+        } finally {
+            RequestContext.end();
+            server.stop(0);
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    void asyncDeadlineExceeded() throws Exception {
+        HttpServer server = startServer(300);
+        try {
+            URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/image.jpg");
+            UpstreamPool pool = UpstreamClients.forURI(uri).getPool();
+            HttpServletResponse servletResponse = mock(HttpServletResponse.class);
+            RequestContext.begin().setBudget(100);
+            CompletableFuture<StreamingOutput> output =
+                    ProxyHelper.proxyAsync("image.jpg", uri, uri, servletResponse, null);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> output.get(10, TimeUnit.SECONDS));
+            assertEquals(Response.Status.GATEWAY_TIMEOUT, ((ServiceException) e.getCause()).getResponseStatus());
+
+            // The late response is closed without touching the servlet response
+            long deadline = System.currentTimeMillis() + 10000;
+            while (pool.getLeased() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, pool.getLeased(), "The late response should be closed");
+            verifyNoInteractions(servletResponse);
+        } finally {
+            RequestContext.end();
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Start a local image server that responds with the byte 87 as {@code image/jpeg}.
+     * @param delayMs the number of milliseconds to wait before responding.
+     */
+    private static HttpServer startServer(long delayMs) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = {87};
+            exchange.getResponseHeaders().add("Content-Type", "image/jpeg");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+}
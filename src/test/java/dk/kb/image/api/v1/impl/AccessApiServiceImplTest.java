@@ -0,0 +1,59 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.api.v1.impl;
+
+import dk.kb.image.config.ConfigAdjuster;
+import dk.kb.image.config.ServiceConfig;
+import dk.kb.image.util.ThumbnailSigner;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.UriBuilder;
+import java.net.URI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AccessApiServiceImplTest {
+    private static final String BASE = "http://localhost:8080/ds-image/v1/";
+
+    @Tag("fast")
+    @Test
+    public void thumbnailURL() {
+        URI url = AccessApiServiceImpl.thumbnailURL(
+                UriBuilder.fromUri(BASE), "image.tif", "150,100", "jpg", ThumbnailSigner.create(null), 60);
+        assertEquals(BASE + "IIIF/image.tif/full/150,100/0/default.jpg", url.toString());
+    }
+
+    @Tag("fast")
+    @Test
+    public void thumbnailURLWithSlash() {
+        try (ConfigAdjuster ignored = new ConfigAdjuster("signed_urls.yaml")) {
+            ThumbnailSigner signer = ThumbnailSigner.create(ServiceConfig.getConfig());
+            long expires = signer.getExpires();
+            String identifier = "a/b c/image.tif";
+            URI url = AccessApiServiceImpl.thumbnailURL(
+                    UriBuilder.fromUri(BASE), identifier, "150,100", "jpg", signer, expires);
+
+            // Slashes are kept for the non-escaped IIIF endpoint, as containers reject %2F in paths by default
+            assertEquals("/ds-image/v1/IIIF/a/b%20c/image.tif/full/150,100/0/default.jpg", url.getRawPath());
+            String prefix = ThumbnailSigner.PARAM_EXPIRES + "=" + expires + "&" + ThumbnailSigner.PARAM_SIGNATURE + "=";
+            assertTrue(url.getRawQuery().startsWith(prefix), "The URL should be signed but was " + url);
+            String signature = url.getRawQuery().substring(prefix.length());
+            assertTrue(signer.isValid(identifier, "150,100", "jpg", Long.toString(expires), signature),
+                       "The signature should be for the identifier with slashes");
+        }
+    }
+}
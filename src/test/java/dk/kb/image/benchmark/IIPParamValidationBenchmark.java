@@ -0,0 +1,193 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.benchmark;
+
+import dk.kb.image.IIPParamValidation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the validation of the structured IIP and DeepZoom parameters in {@link IIPParamValidation} with the
+ * previous implementation, which compiled patterns and split the values into maps for every request.
+ * The previous implementation is kept here as the baseline.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=dk.kb.image.benchmark.IIPParamValidationBenchmark} or from the IDE.
+ * Use {@code -prof gc} to see the allocation rate: {@code gc.alloc.rate.norm} is the bytes allocated per request.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class IIPParamValidationBenchmark {
+    private static final String PFL = "800:20,20-440,440";
+    private static final String CTW = "[0.33,0.33,0.33;0,1,0;1,0,0]";
+    private static final String ROT = "!90";
+    private static final String CMP = "COLD";
+    private static final String COL = "gray";
+    private static final String TILES = "2_4";
+    private static final String FORMAT = "jpg";
+
+    @Benchmark
+    public void iipRequest() {
+        IIPParamValidation.rotValidation(ROT);
+        IIPParamValidation.cmpValidation(CMP);
+        IIPParamValidation.pflValidation(PFL);
+        IIPParamValidation.ctwValidation(CTW);
+        IIPParamValidation.colValidation(COL);
+    }
+
+    @Benchmark
+    public void iipRequestBaseline() {
+        Baseline.rotValidation(ROT);
+        Baseline.cmpValidation(CMP);
+        Baseline.pflValidation(PFL);
+        Baseline.ctwValidation(CTW);
+        Baseline.colValidation(COL);
+    }
+
+    @Benchmark
+    public void deepzoomTileRequest() {
+        IIPParamValidation.deepzoomTileValidation(TILES);
+        IIPParamValidation.deepzoomFormatValidation(FORMAT);
+        IIPParamValidation.cmpValidation(CMP);
+        IIPParamValidation.ctwValidation(CTW);
+        IIPParamValidation.colValidation(COL);
+    }
+
+    @Benchmark
+    public void deepzoomTileRequestBaseline() {
+        Baseline.deepzoomTileValidation(TILES);
+        Baseline.deepzoomFormatValidation(FORMAT);
+        Baseline.cmpValidation(CMP);
+        Baseline.ctwValidation(CTW);
+        Baseline.colValidation(COL);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(IIPParamValidationBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    /**
+     * The previous validation of the parameters that are not simple ranges.
+     */
+    private static class Baseline {
+        static void rotValidation(String rot) {
+            if (rot != null && !rot.isEmpty()) {
+                String[] values = {"0", "90", "180", "270", "!90", "!180", "!270"};
+                if (!Arrays.asList(values).contains(rot)) {
+                    throw new IllegalArgumentException("ROT");
+                }
+            }
+        }
+
+        static void cmpValidation(String cmp) {
+            if (cmp != null) {
+                String[] values = {"GREY", "JET", "COLD", "HOT", "RED", "GREEN", "BLUE"};
+                if (!Arrays.asList(values).contains(cmp)) {
+                    throw new IllegalArgumentException("CMP");
+                }
+            }
+        }
+
+        static void colValidation(String col) {
+            if (col != null) {
+                String[] values = {"grey", "gray", "binary"};
+                if (!Arrays.asList(values).contains(col)) {
+                    throw new IllegalArgumentException("COL");
+                }
+            }
+        }
+
+        static void pflValidation(String pfl) {
+            if (pfl != null) {
+                Pattern correctPattern = Pattern.compile("(\\d+):(\\d+),(\\d+)-(\\d+),(\\d+)", Pattern.CASE_INSENSITIVE);
+                Matcher matcher = correctPattern.matcher(pfl);
+                if (!matcher.find()) {
+                    throw new IllegalArgumentException("PFL");
+                }
+                Map<String, String> values = new HashMap<>();
+                values.put("r", matcher.group(1));
+                values.put("x1", matcher.group(2));
+                values.put("y1", matcher.group(3));
+                values.put("x2", matcher.group(4));
+                values.put("y2", matcher.group(5));
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    if (Integer.parseInt(entry.getValue()) < 0) {
+                        throw new IllegalArgumentException("PFL " + entry.getKey());
+                    }
+                }
+            }
+        }
+
+        static void ctwValidation(String ctw) {
+            if (ctw != null) {
+                ctw = ctw.replace("[", "");
+                ctw = ctw.replace("]", "");
+                for (String array : ctw.split(";")) {
+                    String[] rgbArray = array.split(",");
+                    Map<String, String> rgbMap = new HashMap<>();
+                    rgbMap.put("r", rgbArray[0]);
+                    rgbMap.put("g", rgbArray[1]);
+                    rgbMap.put("b", rgbArray[2]);
+                    for (Map.Entry<String, String> entry : rgbMap.entrySet()) {
+                        Float.parseFloat(entry.getValue());
+                    }
+                }
+            }
+        }
+
+        static void deepzoomTileValidation(String tiles) {
+            Pattern correctPattern = Pattern.compile("\\d+_+\\d", Pattern.CASE_INSENSITIVE);
+            if (!correctPattern.matcher(tiles).find()) {
+                throw new IllegalArgumentException("tiles");
+            }
+        }
+
+        static void deepzoomFormatValidation(String format) {
+            String[] values = {"jpg", "png", "jpeg"};
+            List<String> valid = Arrays.asList(values);
+            if (!valid.contains(format)) {
+                throw new IllegalArgumentException("format");
+            }
+        }
+    }
+}
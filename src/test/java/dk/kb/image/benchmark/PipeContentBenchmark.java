@@ -0,0 +1,97 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.benchmark;
+
+import dk.kb.image.upstream.BufferPool;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the copy loop used by {@code ProxyHelper.pipeContent} before pooling ({@link IOUtils#copyLarge}) with
+ * copying through a {@link BufferPool} with heap and direct buffers, for payloads from DeepZoom tiles to large
+ * IIP exports. The output discards the bytes, so the numbers show the overhead of the copy itself.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=dk.kb.image.benchmark.PipeContentBenchmark} or from the IDE.
+ * Use {@code -prof gc} to see the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PipeContentBenchmark {
+
+    @Param({"4096", "65536", "1048576", "52428800"})
+    public int payloadBytes;
+
+    private byte[] payload;
+    private BufferPool heapPool;
+    private BufferPool directPool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        payload = new byte[payloadBytes];
+        new Random(87).nextBytes(payload);
+        heapPool = new BufferPool(BufferPool.DEFAULT_BUFFER_BYTES, 64, false);
+        directPool = new BufferPool(BufferPool.DEFAULT_BUFFER_BYTES, 64, true);
+    }
+
+    @Benchmark
+    public long copyLarge() throws IOException {
+        return IOUtils.copyLarge(new ByteArrayInputStream(payload), OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public long pooledHeap() throws IOException {
+        return heapPool.copy(new ByteArrayInputStream(payload), OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public long pooledDirect() throws IOException {
+        return directPool.copy(new ByteArrayInputStream(payload), OutputStream.nullOutputStream());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(PipeContentBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
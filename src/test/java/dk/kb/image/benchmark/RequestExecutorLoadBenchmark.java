@@ -0,0 +1,157 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.benchmark;
+
+import com.sun.net.httpserver.HttpServer;
+import dk.kb.image.ProxyHelper;
+import dk.kb.image.config.ConfigAdjuster;
+import dk.kb.image.util.RequestExecutor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test comparing the {@code platform} and {@code virtual} modes of {@link RequestExecutor} for proxying
+ * through {@link ProxyHelper}: A local HTTP server simulates an image server that responds with a small tile after
+ * a fixed delay and a fixed number of concurrent clients sends requests as fast as possible.
+ * Throughput and latency percentiles are printed for each mode.
+ * <p>
+ * Virtual threads require Java 21 or later. On older JVMs, the {@code virtual} mode falls back to platform threads
+ * and the two modes show the same numbers.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=dk.kb.image.benchmark.RequestExecutorLoadBenchmark -Dexec.args="1000 20000 50 200"}
+ * or from the IDE. The arguments are concurrent clients, total requests, image server delay in milliseconds and
+ * number of threads for the {@code platform} mode.
+ */
+public class RequestExecutorLoadBenchmark {
+    private static final byte[] TILE = new byte[4096];
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int delayMs = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int platformThreads = args.length > 3 ? Integer.parseInt(args[3]) : RequestExecutor.DEFAULT_PLATFORM_THREADS;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), clients);
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+            exchange.sendResponseHeaders(200, TILE.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(TILE);
+            }
+        });
+        server.start();
+        URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/tile.jpg");
+
+        System.out.printf(Locale.ROOT, "Java %d, clients=%d, requests=%d, delay=%dms, platformThreads=%d%n",
+                          Runtime.version().feature(), clients, requests, delayMs, platformThreads);
+        try (ConfigAdjuster ignored = new ConfigAdjuster("execution_load.yaml")) {
+            for (String mode: List.of(RequestExecutor.MODE_PLATFORM, RequestExecutor.MODE_VIRTUAL)) {
+                RequestExecutor executor = new RequestExecutor(mode, platformThreads);
+                try {
+                    run(executor, uri, clients, requests / 10); // Warmup
+                    Result result = run(executor, uri, clients, requests);
+                    System.out.printf(Locale.ROOT,
+                                      "%-8s (effective %-8s): %8.0f requests/s, p50=%4d ms, p99=%4d ms, " +
+                                      "max=%4d ms, failed=%d%n",
+                                      mode, executor.getMode(), result.throughput(), result.percentile(50),
+                                      result.percentile(99), result.percentile(100), result.failed);
+                } finally {
+                    executor.close();
+                }
+            }
+        } finally {
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    /**
+     * Send requests with at most {@code clients} requests in flight.
+     */
+    private static Result run(RequestExecutor executor, URI uri, int clients, int requests)
+            throws InterruptedException {
+        Semaphore inFlight = new Semaphore(clients);
+        long[] latenciesNanos = new long[requests];
+        List<CompletableFuture<?>> futures = new ArrayList<>(requests);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            inFlight.acquire();
+            int request = i;
+            long requestStart = System.nanoTime();
+            futures.add(executor.submit(() -> {
+                try {
+                    ProxyHelper.proxy("benchmark", uri, uri, null, null).write(OutputStream.nullOutputStream());
+                    return null;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    latenciesNanos[request] = System.nanoTime() - requestStart;
+                    inFlight.release();
+                }
+            }));
+        }
+        int failed = 0;
+        for (CompletableFuture<?> future: futures) {
+            try {
+                future.get(1, TimeUnit.MINUTES);
+            } catch (Exception e) {
+                failed++;
+            }
+        }
+        return new Result(latenciesNanos, System.nanoTime() - startNanos, failed);
+    }
+
+    private static class Result {
+        private final long[] sortedLatenciesNanos;
+        private final long totalNanos;
+        private final int failed;
+
+        Result(long[] latenciesNanos, long totalNanos, int failed) {
+            this.sortedLatenciesNanos = latenciesNanos.clone();
+            Arrays.sort(sortedLatenciesNanos);
+            this.totalNanos = totalNanos;
+            this.failed = failed;
+        }
+
+        double throughput() {
+            return sortedLatenciesNanos.length * 1e9 / totalNanos;
+        }
+
+        long percentile(int percentile) {
+            int index = (int) Math.ceil(percentile / 100.0 * sortedLatenciesNanos.length) - 1;
+            return TimeUnit.NANOSECONDS.toMillis(sortedLatenciesNanos[Math.max(0, index)]);
+        }
+    }
+}
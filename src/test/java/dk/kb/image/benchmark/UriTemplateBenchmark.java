@@ -0,0 +1,189 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.benchmark;
+
+import com.damnhandy.uri.template.UriTemplate;
+import dk.kb.image.IIIFFacade;
+import dk.kb.image.IIPFacade;
+import dk.kb.image.ProxyHelper;
+import dk.kb.image.util.CompiledUriTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building the image server URIs with {@link UriTemplate} and {@code ProxyHelper.addIfPresent}, as done
+ * before, with {@link CompiledUriTemplate}, for each of the proxied endpoints. The values are typical requests
+ * from OpenSeadragon and IIIF viewers.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=dk.kb.image.benchmark.UriTemplateBenchmark} or from the IDE.
+ * Use {@code -prof gc} to see the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class UriTemplateBenchmark {
+    private static final String IIP_SERVER = "http://example.com/iipsrv/iipsrv.fcgi";
+    private static final String DEEPZOOM_SERVER = "http://example.com/deepzoom";
+    private static final String IIIF_SERVER = "http://example.com/iiif";
+
+    private static final String FIF = "/mymount/85/c1/85c1df89-bffe-48e0-8813-111f6f0fba50.jp2";
+    private static final List<Float> RGN = Arrays.asList(0.1f, 0.2f, 0.3f, 0.4f);
+    private static final String IMAGEID = "85/c1/85c1df89-bffe-48e0-8813-111f6f0fba50";
+    private static final String IDENTIFIER = "85c1df89-bffe-48e0-8813-111f6f0fba50";
+
+    private CompiledUriTemplate iip;
+    private CompiledUriTemplate deepzoomDZI;
+    private CompiledUriTemplate deepzoomTile;
+    private CompiledUriTemplate iiifImage;
+    private CompiledUriTemplate iiifInfo;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        iip = CompiledUriTemplate.compile(IIP_SERVER + IIPFacade.IIP_TEMPLATE);
+        deepzoomDZI = CompiledUriTemplate.compile(DEEPZOOM_SERVER + IIPFacade.DEEPZOOM_PATH_DZI_TEMPLATE);
+        deepzoomTile = CompiledUriTemplate.compile(DEEPZOOM_SERVER + IIPFacade.DEEPZOOM_PATH_TEMPLATE);
+        iiifImage = CompiledUriTemplate.compile(IIIF_SERVER + IIIFFacade.IIIF_IMAGE3_TEMPLATE);
+        iiifInfo = CompiledUriTemplate.compile(IIIF_SERVER + IIIFFacade.IIIF_INFO3_TEMPLATE);
+    }
+
+    @Benchmark
+    public String iipUriTemplate() {
+        UriTemplate template = UriTemplate.fromTemplate(IIP_SERVER + IIPFacade.IIP_TEMPLATE).set("FIF", FIF);
+        ProxyHelper.addIfPresent(template, "WID", 800L);
+        ProxyHelper.addIfPresent(template, "HEI", 600L);
+        ProxyHelper.addIfPresent(template, "RGN", RGN);
+        ProxyHelper.addIfPresent(template, "QLT", 75);
+        ProxyHelper.addIfPresent(template, "CVT", "jpeg");
+        return template.expand();
+    }
+
+    @Benchmark
+    public String iipCompiled() {
+        return iip.builder()
+                .set("FIF", FIF)
+                .setIfPresent("WID", 800L)
+                .setIfPresent("HEI", 600L)
+                .setIfPresent("RGN", RGN)
+                .setIfPresent("QLT", 75)
+                .setIfPresent("CVT", "jpeg")
+                .expand();
+    }
+
+    @Benchmark
+    public String deepzoomDZIUriTemplate() {
+        return UriTemplate.fromTemplate(DEEPZOOM_SERVER + IIPFacade.DEEPZOOM_PATH_DZI_TEMPLATE)
+                .set("dzipath", IMAGEID + ".dzi")
+                .expand();
+    }
+
+    @Benchmark
+    public String deepzoomDZICompiled() {
+        return deepzoomDZI.builder()
+                .set("dzipath", IMAGEID + ".dzi")
+                .expand();
+    }
+
+    @Benchmark
+    public String deepzoomTileUriTemplate() {
+        UriTemplate template = UriTemplate.fromTemplate(DEEPZOOM_SERVER + IIPFacade.DEEPZOOM_PATH_TEMPLATE)
+                .set("imageid", IMAGEID)
+                .set("layer", Integer.toString(11))
+                .set("tile", "2_0")
+                .set("format", "jpg");
+        ProxyHelper.addIfPresent(template, "GAM", 1.1f);
+        return template.expand();
+    }
+
+    @Benchmark
+    public String deepzoomTileCompiled() {
+        return deepzoomTile.builder()
+                .set("imageid", IMAGEID)
+                .set("layer", 11)
+                .set("tile", "2_0")
+                .set("format", "jpg")
+                .setIfPresent("GAM", 1.1f)
+                .expand();
+    }
+
+    @Benchmark
+    public String iiifImageUriTemplate() {
+        return UriTemplate.fromTemplate(IIIF_SERVER + IIIFFacade.IIIF_IMAGE3_TEMPLATE)
+                .set("identifier", IDENTIFIER)
+                .set("region", "0,0,512,512")
+                .set("size", "^256,")
+                .set("rotation", "0")
+                .set("quality", "default")
+                .set("format", "jpg")
+                .expand();
+    }
+
+    @Benchmark
+    public String iiifImageCompiled() {
+        return iiifImage.builder()
+                .set("identifier", IDENTIFIER)
+                .set("region", "0,0,512,512")
+                .set("size", "^256,")
+                .set("rotation", "0")
+                .set("quality", "default")
+                .set("format", "jpg")
+                .expand();
+    }
+
+    @Benchmark
+    public String iiifInfoUriTemplate() {
+        return UriTemplate.fromTemplate(IIIF_SERVER + IIIFFacade.IIIF_INFO3_TEMPLATE)
+                .set("identifier", IDENTIFIER)
+                .set("ext", "json")
+                .expand();
+    }
+
+    @Benchmark
+    public String iiifInfoCompiled() {
+        return iiifInfo.builder()
+                .set("identifier", IDENTIFIER)
+                .set("ext", "json")
+                .expand();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(UriTemplateBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.cache;
+
+import dk.kb.image.config.ConfigAdjuster;
+import dk.kb.image.config.ServiceConfig;
+import dk.kb.image.util.ImageAccessValidation.ACCESS_TYPE;
+import dk.kb.image.util.RequestContext;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class CachePolicyTest {
+
+    @Tag("fast")
+    @Test
+    public void disabledByDefault() {
+        CachePolicy policy = CachePolicy.create(null);
+        assertFalse(policy.isEnabled());
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        assertFalse(policy.apply(response, RequestContext.ENDPOINT_DEEPZOOM_TILE, ACCESS_TYPE.ACCESS));
+        verify(response, never()).setHeader(anyString(), anyString());
+    }
+
+    @Tag("fast")
+    @Test
+    public void rules() throws IOException {
+        try (ConfigAdjuster ignored = new ConfigAdjuster("cache_control.yaml")) {
+            CachePolicy policy = CachePolicy.create(ServiceConfig.getConfig());
+            assertTrue(policy.isEnabled());
+
+            HttpServletResponse tile = mock(HttpServletResponse.class);
+            assertTrue(policy.apply(tile, RequestContext.ENDPOINT_DEEPZOOM_TILE, ACCESS_TYPE.ACCESS));
+            verify(tile).setHeader(CachePolicy.CACHE_CONTROL, "public, max-age=86400");
+            verify(tile).setHeader(CachePolicy.SURROGATE_CONTROL, "max-age=604800");
+            verify(tile, never()).setHeader(CachePolicy.VARY, "Accept");
+
+            HttpServletResponse info = mock(HttpServletResponse.class);
+            assertTrue(policy.apply(info, RequestContext.ENDPOINT_IIIF_INFO, ACCESS_TYPE.ACCESS));
+            verify(info).setHeader(CachePolicy.CACHE_CONTROL, "max-age=60");
+            verify(info).setHeader(CachePolicy.VARY, "Accept");
+
+            HttpServletResponse noAccessTile = mock(HttpServletResponse.class);
+            assertTrue(policy.apply(noAccessTile, RequestContext.ENDPOINT_DEEPZOOM_TILE, ACCESS_TYPE.NO_ACCESS));
+            verify(noAccessTile).setHeader(CachePolicy.CACHE_CONTROL, "no-store");
+
+            HttpServletResponse image = mock(HttpServletResponse.class);
+            assertFalse(policy.apply(image, RequestContext.ENDPOINT_IIIF_IMAGE, ACCESS_TYPE.ACCESS),
+                        "No rule should match access to IIIF images");
+            verify(image, never()).setHeader(anyString(), anyString());
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.cache;
+
+import dk.kb.image.upstream.UpstreamResponse;
+import dk.kb.image.util.RangeRequests;
+import dk.kb.image.util.RequestContext;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RangeCacheTest {
+    private static final byte[] CONTENT = "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path folder;
+
+    @Tag("fast")
+    @Test
+    public void disabledByDefault() {
+        RangeCache cache = RangeCache.create(null);
+        assertFalse(cache.isEnabled());
+        assertNull(cache.get("a"));
+    }
+
+    @Tag("fast")
+    @Test
+    public void singleRange() throws IOException {
+        RangeCache cache = new RangeCache(true, folder, 1000, 100, 60000, System::currentTimeMillis);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        StreamingOutput output = cache.spoolAndServe(
+                "a", upstream(CONTENT), "bytes=5-9", null, response, RequestContext.current());
+
+        assertEquals("56789", write(output));
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(response).setHeader(RangeRequests.CONTENT_RANGE, "bytes 5-9/20");
+        verify(response).setContentLengthLong(5);
+        assertEquals(CONTENT.length, cache.getTotalBytes());
+
+        // Resumed download is served from the local copy
+        RangeCache.Entry entry = cache.get("a");
+        assertNotNull(entry);
+        assertEquals("fghij", write(RangeCache.serve(entry, "bytes=15-", null, mock(HttpServletResponse.class))));
+        cache.close();
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Tag("fast")
+    @Test
+    public void multipleRanges() throws IOException {
+        RangeCache cache = new RangeCache(true, folder, 1000, 100, 60000, System::currentTimeMillis);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        String body = write(cache.spoolAndServe(
+                "a", upstream(CONTENT), "bytes=0-1,-2", null, response, RequestContext.current()));
+
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        assertTrue(body.contains("Content-Range: bytes 0-1/20\r\n\r\n01\r\n"), "First part should be present in\n" + body);
+        assertTrue(body.contains("Content-Range: bytes 18-19/20\r\n\r\nij\r\n"), "Second part should be present in\n" + body);
+        assertTrue(body.endsWith("--\r\n"), "The multipart should be terminated");
+        cache.close();
+    }
+
+    @Tag("fast")
+    @Test
+    public void notSatisfiable() throws IOException {
+        RangeCache cache = new RangeCache(true, folder, 1000, 100, 60000, System::currentTimeMillis);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        assertEquals("", write(cache.spoolAndServe(
+                "a", upstream(CONTENT), "bytes=100-", null, response, RequestContext.current())));
+        verify(response).setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        verify(response).setHeader(RangeRequests.CONTENT_RANGE, "bytes */20");
+        cache.close();
+    }
+
+    @Tag("fast")
+    @Test
+    public void ifRangeMismatch() throws IOException {
+        RangeCache cache = new RangeCache(true, folder, 1000, 100, 60000, System::currentTimeMillis);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        StreamingOutput output = cache.spoolAndServe(
+                "a", upstream(CONTENT), "bytes=5-9", "\"old\"", response, RequestContext.current());
+        assertArrayEquals(CONTENT, write(output).getBytes(StandardCharsets.US_ASCII));
+        verify(response, never()).setStatus(anyInt());
+        cache.close();
+    }
+
+    @Tag("fast")
+    @Test
+    public void tooLarge() throws IOException {
+        RangeCache cache = new RangeCache(true, folder, 1000, 10, 60000, System::currentTimeMillis);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        StreamingOutput output = cache.spoolAndServe(
+                "a", upstream(CONTENT), "bytes=5-9", null, response, RequestContext.current());
+        assertArrayEquals(CONTENT, write(output).getBytes(StandardCharsets.US_ASCII),
+                          "Content above maxEntryBytes should be served in full");
+        verify(response, never()).setStatus(anyInt());
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Tag("fast")
+    @Test
+    public void unwrittenPartialCopy() throws IOException {
+        RangeCache cache = new RangeCache(true, folder, 1000, 10, 60000, System::currentTimeMillis);
+        UpstreamResponse upstream = upstream(CONTENT);
+        RequestContext requestContext = RequestContext.begin();
+        try {
+            cache.spoolAndServe("a", upstream, "bytes=5-9", null, mock(HttpServletResponse.class), requestContext);
+            // The content is never written, e.g. as the client disconnected
+            requestContext.finish();
+        } finally {
+            RequestContext.end();
+        }
+        verify(upstream, atLeastOnce()).close();
+        try (Stream<Path> files = Files.list(folder)) {
+            assertEquals(0, files.count(), "The partial copy should be deleted");
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void concurrentSpools() throws Exception {
+        RangeCache cache = new RangeCache(true, folder, 1000, 100, 60000, System::currentTimeMillis);
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        UpstreamResponse first = upstream(CONTENT);
+        when(first.getBody()).thenReturn(new FilterInputStream(new ByteArrayInputStream(CONTENT)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                reading.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.read(b, off, len);
+            }
+        });
+        UpstreamResponse second = upstream(CONTENT);
+
+        CompletableFuture<String> firstOutput = CompletableFuture.supplyAsync(() -> spool(cache, first, "bytes=0-4"));
+        assertTrue(reading.await(10, TimeUnit.SECONDS));
+        CompletableFuture<String> secondOutput = new CompletableFuture<>();
+        Thread waiting = new Thread(() -> secondOutput.complete(spool(cache, second, "bytes=5-9")));
+        waiting.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (waiting.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        assertEquals("01234", firstOutput.get(10, TimeUnit.SECONDS));
+        assertEquals("56789", secondOutput.get(10, TimeUnit.SECONDS));
+        verify(second, never()).getBody(); // Served from the copy made for the first request
+        verify(second, atLeastOnce()).close();
+        cache.close();
+    }
+
+    @Tag("fast")
+    @Test
+    public void expiryAndEviction() throws IOException {
+        AtomicLong clock = new AtomicLong(0);
+        RangeCache cache = new RangeCache(true, folder, 50, 50, 1000, clock::get);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        write(cache.spoolAndServe("a", upstream(CONTENT), "bytes=0-0", null, response, RequestContext.current()));
+        write(cache.spoolAndServe("b", upstream(CONTENT), "bytes=0-0", null, response, RequestContext.current()));
+        write(cache.spoolAndServe("c", upstream(CONTENT), "bytes=0-0", null, response, RequestContext.current()));
+        assertNull(cache.get("a"), "'a' should be evicted as the total size exceeds maxBytes");
+        assertNotNull(cache.get("b"));
+
+        clock.set(1000);
+        assertNull(cache.get("b"), "'b' should have expired");
+        cache.close();
+    }
+
+    private static UpstreamResponse upstream(byte[] content) throws IOException {
+        UpstreamResponse upstream = mock(UpstreamResponse.class);
+        when(upstream.getStatusCode()).thenReturn(200);
+        when(upstream.getHeader("Content-Type")).thenReturn("image/jpeg");
+        when(upstream.getHeader("ETag")).thenReturn("\"abc\"");
+        when(upstream.getBody()).thenReturn(new ByteArrayInputStream(content));
+        return upstream;
+    }
+
+    private static String spool(RangeCache cache, UpstreamResponse upstream, String range) {
+        try {
+            return write(cache.spoolAndServe(
+                    "a", upstream, range, null, mock(HttpServletResponse.class), RequestContext.current()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String write(StreamingOutput output) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        output.write(out);
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+}
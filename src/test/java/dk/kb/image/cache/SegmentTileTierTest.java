@@ -0,0 +1,120 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.cache;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentTileTierTest {
+
+    @TempDir
+    Path folder;
+
+    @Tag("fast")
+    @Test
+    public void slowClient() throws Exception {
+        SegmentTileTier tier = new SegmentTileTier(folder, 200, 2);
+        try {
+            assertTrue(tier.put("a", tile('a', 60), "\"a\""));
+            SlowOutput output = new SlowOutput();
+            CompletableFuture<Boolean> delivery = CompletableFuture.supplyAsync(() -> transfer(tier, "a", output));
+            assertTrue(output.writing.await(10, TimeUnit.SECONDS));
+
+            // The segment holding 'a' can be reused while 'a' is being written to the client
+            assertTrue(tier.put("b", tile('b', 60), "\"b\""));
+            assertTrue(tier.put("c", tile('c', 60), "\"c\""));
+            assertNull(tier.getETag("a"));
+
+            output.release.countDown();
+            assertTrue(delivery.get(10, TimeUnit.SECONDS));
+            assertArrayEquals(tile('a', 60), output.toByteArray());
+        } finally {
+            tier.close();
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void closeWhileDelivering() throws Exception {
+        SegmentTileTier tier = new SegmentTileTier(folder, 200, 2);
+        assertTrue(tier.put("a", tile('a', 60), "\"a\""));
+        SlowOutput output = new SlowOutput();
+        CompletableFuture<Boolean> delivery = CompletableFuture.supplyAsync(() -> transfer(tier, "a", output));
+        assertTrue(output.writing.await(10, TimeUnit.SECONDS));
+
+        tier.close();
+        try (var files = Files.list(folder)) {
+            assertEquals(0, files.count(), "The segment file should be deleted");
+        }
+        output.release.countDown();
+        assertTrue(delivery.get(10, TimeUnit.SECONDS));
+        assertArrayEquals(tile('a', 60), output.toByteArray());
+
+        assertFalse(tier.put("b", tile('b', 60), "\"b\""));
+        assertFalse(tier.transferTo("a", new ByteArrayOutputStream()));
+    }
+
+    private static boolean transfer(SegmentTileTier tier, String key, OutputStream output) {
+        try {
+            return tier.transferTo(key, output);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] tile(char content, int length) {
+        byte[] tile = new byte[length];
+        Arrays.fill(tile, (byte) content);
+        return tile;
+    }
+
+    /**
+     * Blocks writes until {@link #release} is counted down, simulating a slow client.
+     */
+    private static class SlowOutput extends ByteArrayOutputStream {
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writing.countDown();
+            try {
+                if (!release.await(10, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Not released");
+                }
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            super.write(b, off, len);
+        }
+    }
+}
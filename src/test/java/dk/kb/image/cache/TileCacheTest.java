@@ -0,0 +1,111 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.cache;
+
+import dk.kb.image.config.ConfigAdjuster;
+import dk.kb.image.config.ServiceConfig;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class TileCacheTest {
+
+    @Tag("fast")
+    @Test
+    public void disabledByDefault() throws IOException {
+        TileCache cache = TileCache.create(null);
+        assertFalse(cache.isEnabled());
+        Upstream upstream = new Upstream(10);
+        serve(cache, "a", upstream);
+        serve(cache, "a", upstream);
+        assertEquals(2, upstream.calls.get());
+    }
+
+    @Tag("fast")
+    @Test
+    public void tiers() throws IOException {
+        try (ConfigAdjuster ignored = new ConfigAdjuster("tile_cache.yaml")) {
+            TileCache cache = TileCache.create(ServiceConfig.getConfig());
+            try {
+                Upstream upstream = new Upstream(40);
+
+                assertArrayEquals(upstream.tile("a"), serve(cache, "a", upstream));
+                assertArrayEquals(upstream.tile("a"), serve(cache, "a", upstream));
+                assertEquals(1, upstream.calls.get(), "Second request should be served from cache");
+                assertEquals(1, cache.getHeapHits());
+
+                // Heap tier holds 100 bytes, so adding 2 tiles evicts 'a' from the heap tier
+                serve(cache, "b", upstream);
+                serve(cache, "c", upstream);
+                assertArrayEquals(upstream.tile("a"), serve(cache, "a", upstream));
+                assertEquals(3, upstream.calls.get(), "'a' should be served from the disk tier");
+                assertEquals(1, cache.getDiskHits());
+            } finally {
+                cache.close();
+            }
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void tooLarge() throws IOException {
+        try (ConfigAdjuster ignored = new ConfigAdjuster("tile_cache.yaml")) {
+            TileCache cache = TileCache.create(ServiceConfig.getConfig());
+            try {
+                Upstream upstream = new Upstream(65);
+                serve(cache, "a", upstream);
+                assertArrayEquals(upstream.tile("a"), serve(cache, "a", upstream));
+                assertEquals(2, upstream.calls.get(), "Tiles above maxTileBytes should not be cached");
+            } finally {
+                cache.close();
+            }
+        }
+    }
+
+    private byte[] serve(TileCache cache, String key, Upstream upstream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.serve(key, () -> upstream.get(key)).write(out);
+        return out.toByteArray();
+    }
+
+    private static class Upstream {
+        private final int tileSize;
+        private final AtomicInteger calls = new AtomicInteger(0);
+
+        public Upstream(int tileSize) {
+            this.tileSize = tileSize;
+        }
+
+        public StreamingOutput get(String key) {
+            calls.incrementAndGet();
+            return output -> output.write(tile(key));
+        }
+
+        public byte[] tile(String key) {
+            byte[] tile = new byte[tileSize];
+            Arrays.fill(tile, (byte) key.charAt(0));
+            return tile;
+        }
+    }
+}
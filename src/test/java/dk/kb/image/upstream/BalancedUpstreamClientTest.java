@@ -0,0 +1,401 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import dk.kb.image.config.ConfigAdjuster;
+import dk.kb.util.webservice.exception.ServiceException;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BalancedUpstreamClientTest {
+    private static final String PRIMARY = "http://primary.example.com/iipsrv";
+    private static final String REPLICA = "http://replica.example.com/iipsrv";
+    private static final URI URI_PRIMARY = URI.create(PRIMARY + "?FIF=foo.tif&CVT=jpg");
+
+    @Tag("fast")
+    @Test
+    public void rewrite() throws IOException {
+        FakeClient replica = new FakeClient("iip#2", uri -> ok(uri));
+        BalancedUpstreamClient client = balanced(false, new FakeClient("iip", uri -> {
+            throw new IllegalStateException("Primary should be skipped");
+        }), replica);
+        // Open the breaker for the primary, so that the replica is chosen
+        CircuitBreaker primaryBreaker = client.getReplicaClients().get(0).getPool().getCircuitBreaker();
+        for (int i = 0 ; i < CircuitBreaker.DEFAULT_FAILURE_THRESHOLD ; i++) {
+            primaryBreaker.onFailure();
+        }
+        try (UpstreamResponse response = client.get(URI_PRIMARY, Map.of(), 1000)) {
+            assertEquals(REPLICA + "?FIF=foo.tif&CVT=jpg", response.getHeader("X-URI"));
+        }
+        assertTrue(client.isAvailable(), "The image server should be available through the replica");
+    }
+
+    @Tag("fast")
+    @Test
+    public void failover() throws IOException {
+        FakeClient down = new FakeClient("iip", uri -> CompletableFuture.failedFuture(
+                new ConnectException("Connection refused")));
+        FakeClient up = new FakeClient("iip#2", uri -> ok(uri));
+        BalancedUpstreamClient client = balanced(false, down, up);
+        up.getPool().acquire(); // Makes the failing replica the first choice
+        for (int i = 0 ; i < 10 ; i++) {
+            try (UpstreamResponse response = client.get(URI_PRIMARY, Map.of(), 1000)) {
+                assertEquals(200, response.getStatusCode());
+            }
+        }
+        up.getPool().release();
+        // Failovers stop when the breaker for the failing replica opens
+        assertEquals(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD, client.getFailovers());
+        assertEquals(CircuitBreaker.State.OPEN, down.getPool().getCircuitBreaker().getState());
+    }
+
+    @Tag("fast")
+    @Test
+    public void failoverOnStatus() throws IOException {
+        List<FakeResponse> unavailable = Collections.synchronizedList(new ArrayList<>());
+        FakeClient overloaded = new FakeClient("iip", uri -> {
+            FakeResponse response = new FakeResponse(uri, 503);
+            unavailable.add(response);
+            return CompletableFuture.completedFuture(response);
+        });
+        FakeClient up = new FakeClient("iip#2", uri -> ok(uri));
+        BalancedUpstreamClient client = balanced(false, overloaded, up);
+        up.getPool().acquire(); // Makes the overloaded replica the first choice
+        try (UpstreamResponse response = client.get(URI_PRIMARY, Map.of(), 1000)) {
+            assertEquals(200, response.getStatusCode());
+            assertEquals(REPLICA + "?FIF=foo.tif&CVT=jpg", response.getHeader("X-URI"));
+        }
+        up.getPool().release();
+        assertEquals(1, client.getFailovers());
+        assertEquals(1, unavailable.size());
+        assertTrue(unavailable.get(0).closed.get(), "The 503 response should be closed");
+    }
+
+    @Tag("fast")
+    @Test
+    public void allRetryableStatus() throws IOException {
+        List<FakeResponse> responses = Collections.synchronizedList(new ArrayList<>());
+        Function<URI, CompletableFuture<UpstreamResponse>> gatewayTimeout = uri -> {
+            FakeResponse response = new FakeResponse(uri, 504);
+            responses.add(response);
+            return CompletableFuture.completedFuture(response);
+        };
+        BalancedUpstreamClient client = balanced(
+                false, new FakeClient("iip", gatewayTimeout), new FakeClient("iip#2", gatewayTimeout));
+        UpstreamResponse response = client.get(URI_PRIMARY, Map.of(), 1000);
+        assertEquals(504, response.getStatusCode(), "The last response should be relayed");
+        assertEquals(2, responses.size());
+        assertEquals(1, responses.stream().filter(r -> r.closed.get()).count(),
+                     "Only the relayed response should be open");
+        response.close();
+    }
+
+    @Tag("fast")
+    @Test
+    public void allDown() {
+        BalancedUpstreamClient client = balanced(
+                false,
+                new FakeClient("iip", uri -> CompletableFuture.failedFuture(new ConnectException("refused"))),
+                new FakeClient("iip#2", uri -> CompletableFuture.failedFuture(new ConnectException("refused"))));
+        assertThrows(ConnectException.class, () -> client.get(URI_PRIMARY, Map.of(), 1000));
+        for (int i = 1 ; i < CircuitBreaker.DEFAULT_FAILURE_THRESHOLD ; i++) {
+            assertThrows(ConnectException.class, () -> client.get(URI_PRIMARY, Map.of(), 1000));
+        }
+        assertFalse(client.isAvailable(), "All breakers should be open");
+        ServiceException e = assertThrows(ServiceException.class, () -> client.get(URI_PRIMARY, Map.of(), 1000));
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE, e.getResponseStatus());
+    }
+
+    @Tag("fast")
+    @Test
+    public void poolRejectedProbe() throws Exception {
+        UpstreamSettings settings = new UpstreamSettings(null, "iip") {
+            @Override
+            public int getBreakerFailureThreshold() {
+                return 1;
+            }
+
+            @Override
+            public long getBreakerOpenMs() {
+                return 500;
+            }
+        };
+        AtomicBoolean full = new AtomicBoolean(true);
+        FakeClient primary = new FakeClient(settings, uri -> {
+            if (full.getAndSet(false)) {
+                throw new ServiceException("Too many requests", Response.Status.SERVICE_UNAVAILABLE);
+            }
+            return ok(uri);
+        });
+        FakeClient down = new FakeClient(
+                settings, uri -> CompletableFuture.failedFuture(new ConnectException("refused")));
+        BalancedUpstreamClient client = balanced(false, primary, down);
+        primary.getPool().getCircuitBreaker().onFailure();
+        down.getPool().getCircuitBreaker().onFailure();
+        Thread.sleep(600); // Both breakers are ready for probing
+
+        // The probe for the primary is rejected by its pool before the call is made
+        assertThrows(ConnectException.class, () -> client.get(URI_PRIMARY, Map.of(), 1000));
+        // so the next call is let through as a new probe
+        try (UpstreamResponse response = client.get(URI_PRIMARY, Map.of(), 1000)) {
+            assertEquals(200, response.getStatusCode());
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, primary.getPool().getCircuitBreaker().getState());
+    }
+
+    @Tag("fast")
+    @Test
+    public void leastOutstanding() throws IOException {
+        FakeClient busy = new FakeClient("iip", uri -> {
+            throw new IllegalStateException("Busy replica should not be chosen");
+        });
+        FakeClient idle = new FakeClient("iip#2", uri -> ok(uri));
+        BalancedUpstreamClient client = balanced(false, busy, idle);
+        busy.getPool().acquire();
+        for (int i = 0 ; i < 10 ; i++) {
+            client.get(URI_PRIMARY, Map.of(), 1000).close();
+        }
+        busy.getPool().release();
+    }
+
+    @Tag("fast")
+    @Test
+    public void hedge() throws Exception {
+        List<FakeResponse> slowResponses = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean stall = new AtomicBoolean(false);
+        FakeClient slow = new FakeClient("iip", uri -> {
+            if (!stall.get()) {
+                return ok(uri);
+            }
+            // Responds long after the hedged request
+            FakeResponse late = new FakeResponse(uri);
+            slowResponses.add(late);
+            return CompletableFuture.supplyAsync(
+                    () -> late, CompletableFuture.delayedExecutor(500, TimeUnit.MILLISECONDS));
+        });
+        FakeClient fast = new FakeClient("iip#2", uri -> ok(uri));
+        BalancedUpstreamClient client = balanced(true, slow, fast);
+
+        // Establish the latency distribution
+        for (int i = 0 ; i < 2 * BalancedUpstreamClient.Latencies.MIN_SAMPLES ; i++) {
+            client.get(URI_PRIMARY, Map.of(), 1000).close();
+        }
+        assertTrue(client.getHedgeDelayMs() >= 0, "The hedge delay should be known");
+
+        stall.set(true);
+        fast.getPool().acquire(); // Makes the slow replica the first choice
+        UpstreamResponse response = client.getAsync(URI_PRIMARY, Map.of(), 5000).get(400, TimeUnit.MILLISECONDS);
+        assertEquals(REPLICA + "?FIF=foo.tif&CVT=jpg", response.getHeader("X-URI"));
+        response.close();
+        fast.getPool().release();
+        assertEquals(1, client.getHedges());
+
+        // The late response from the slow replica is closed
+        Thread.sleep(700);
+        assertEquals(1, slowResponses.size());
+        assertTrue(slowResponses.get(0).closed.get(), "The losing response should be closed");
+    }
+
+    @Tag("fast")
+    @Test
+    public void hashRouting() throws IOException {
+        List<String> servers = List.of(PRIMARY, REPLICA, "http://third.example.com/iipsrv");
+        BalancedUpstreamClient three = hashed(servers);
+        BalancedUpstreamClient two = hashed(servers.subList(0, 2));
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0 ; i < 1000 ; i++) {
+            String key = "image_" + i + ".tif";
+            String chosen = three.choose(Set.of(), key).toString();
+            counts.merge(chosen, 1, Integer::sum);
+            assertEquals(chosen, three.choose(Set.of(), key).toString(), "The choice should be stable");
+            if (!"iip#3".equals(chosen)) {
+                assertEquals(chosen, two.choose(Set.of(), key).toString(),
+                             "Only images for the removed replica should move");
+            }
+        }
+        assertEquals(3, counts.size());
+        counts.values().forEach(count -> assertTrue(count > 200, "The images should be spread: " + counts));
+
+        // The same image always hits the same server
+        String first;
+        try (UpstreamResponse response = three.get(URI_PRIMARY, "foo.tif", Map.of(), 1000)) {
+            first = response.getHeader("X-URI");
+        }
+        for (int i = 0 ; i < 10 ; i++) {
+            try (UpstreamResponse response = three.get(URI_PRIMARY, "foo.tif", Map.of(), 1000)) {
+                assertEquals(first, response.getHeader("X-URI"));
+            }
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void registry() {
+        try (ConfigAdjuster ignored = new ConfigAdjuster("image_server_replicas.yaml")) {
+            UpstreamClient client = UpstreamClients.forURI(URI.create("http://example.com/iipsrv/iipsrv.fcgi?FIF=a"));
+            assertInstanceOf(BalancedUpstreamClient.class, client);
+            assertEquals(3, ((BalancedUpstreamClient) client).getReplicaClients().size());
+            assertEquals("iip#3", ((BalancedUpstreamClient) client).getReplicaClients().get(2).getSettings().getName());
+            assertEquals("iip", client.getSettings().getBackend());
+            assertEquals(List.of("iip", "iip#2", "iip#3", "iiif", UpstreamSettings.DEFAULT_BACKEND),
+                         UpstreamClients.getClients().stream().map(c -> c.getSettings().getName())
+                                 .collect(Collectors.toList()));
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void uniqueReplicaNames() {
+        // Both deepzoom servers have replicas
+        try (ConfigAdjuster ignored = new ConfigAdjuster("deepzoom_replicas.yaml")) {
+            assertEquals(List.of("deepzoom", "deepzoom#2", "deepzoom#3", UpstreamSettings.DEFAULT_BACKEND),
+                         UpstreamClients.getClients().stream().map(c -> c.getSettings().getName())
+                                 .collect(Collectors.toList()));
+        }
+    }
+
+    private static BalancedUpstreamClient balanced(boolean hedge, FakeClient primary, FakeClient replica) {
+        UpstreamSettings settings = new UpstreamSettings(null, "iip") {
+            @Override
+            public boolean isHedgeEnabled() {
+                return hedge;
+            }
+        };
+        return new BalancedUpstreamClient(PRIMARY, List.of(PRIMARY, REPLICA), List.of(primary, replica), settings);
+    }
+
+    private static BalancedUpstreamClient hashed(List<String> servers) {
+        UpstreamSettings settings = new UpstreamSettings(null, "iip") {
+            @Override
+            public String getRouting() {
+                return UpstreamSettings.ROUTING_HASH;
+            }
+        };
+        List<UpstreamClient> clients = new ArrayList<>();
+        clients.add(new FakeClient("iip", uri -> ok(uri)));
+        for (int i = 2 ; i <= servers.size() ; i++) {
+            clients.add(new FakeClient("iip#" + i, uri -> ok(uri)));
+        }
+        return new BalancedUpstreamClient(PRIMARY, servers, clients, settings);
+    }
+
+    private static CompletableFuture<UpstreamResponse> ok(URI uri) {
+        return CompletableFuture.completedFuture(new FakeResponse(uri));
+    }
+
+    private static class FakeClient implements UpstreamClient {
+        private final UpstreamSettings settings;
+        private final UpstreamPool pool;
+        private final Function<URI, CompletableFuture<UpstreamResponse>> responder;
+
+        FakeClient(String name, Function<URI, CompletableFuture<UpstreamResponse>> responder) {
+            this(name.contains("#") ?
+                         new UpstreamSettings(null, "iip").forReplica(Integer.parseInt(name.split("#")[1])) :
+                         new UpstreamSettings(null, "iip"),
+                 responder);
+        }
+
+        FakeClient(UpstreamSettings settings, Function<URI, CompletableFuture<UpstreamResponse>> responder) {
+            this.settings = settings;
+            this.pool = new UpstreamPool(settings);
+            this.responder = responder;
+        }
+
+        @Override
+        public UpstreamResponse get(URI uri, Map<String, String> requestHeaders, long budgetMs) throws IOException {
+            try {
+                return responder.apply(uri).join();
+            } catch (CompletionException e) {
+                throw (IOException) e.getCause();
+            }
+        }
+
+        @Override
+        public CompletableFuture<UpstreamResponse> getAsync(
+                URI uri, Map<String, String> requestHeaders, long budgetMs) {
+            return responder.apply(uri);
+        }
+
+        @Override
+        public UpstreamSettings getSettings() {
+            return settings;
+        }
+
+        @Override
+        public UpstreamPool getPool() {
+            return pool;
+        }
+    }
+
+    private static class FakeResponse implements UpstreamResponse {
+        private final URI uri;
+        private final int statusCode;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        FakeResponse(URI uri) {
+            this(uri, 200);
+        }
+
+        FakeResponse(URI uri, int statusCode) {
+            this.uri = uri;
+            this.statusCode = statusCode;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return "X-URI".equals(name) ? uri.toString() : null;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public void close() {
+            closed.set(true);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BufferPoolTest {
+
+    @Tag("fast")
+    @Test
+    public void heapCopy() throws IOException {
+        assertCopy(new BufferPool(1000, 2, false));
+    }
+
+    @Tag("fast")
+    @Test
+    public void directCopy() throws IOException {
+        assertCopy(new BufferPool(1000, 2, true));
+    }
+
+    @Tag("fast")
+    @Test
+    public void limit() throws IOException {
+        byte[] content = content(2500);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1500, new BufferPool(1000, 2, true).copy(new ByteArrayInputStream(content), out, 1500));
+        assertArrayEquals(Arrays.copyOf(content, 1500), out.toByteArray());
+    }
+
+    @Tag("fast")
+    @Test
+    public void reuse() throws IOException {
+        BufferPool pool = new BufferPool(100, 1, false);
+        for (int i = 0; i < 3; i++) {
+            pool.copy(new ByteArrayInputStream(content(250)), new ByteArrayOutputStream());
+        }
+        assertEquals(1, pool.getAllocated());
+        assertEquals(2, pool.getReused());
+        assertEquals(1, pool.getIdle());
+    }
+
+    @Tag("fast")
+    @Test
+    public void notPooledByDefault() throws IOException {
+        BufferPool pool = BufferPool.create(null);
+        pool.copy(new ByteArrayInputStream(content(10)), new ByteArrayOutputStream());
+        pool.copy(new ByteArrayInputStream(content(10)), new ByteArrayOutputStream());
+        assertEquals(2, pool.getAllocated());
+        assertEquals(0, pool.getIdle());
+    }
+
+    private void assertCopy(BufferPool pool) throws IOException {
+        for (int size: new int[]{0, 1, 999, 1000, 1001, 12345}) {
+            byte[] content = content(size);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(size, pool.copy(new ByteArrayInputStream(content), out));
+            assertArrayEquals(content, out.toByteArray(), "Copied content for size " + size);
+        }
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(87).nextBytes(content);
+        return content;
+    }
+}
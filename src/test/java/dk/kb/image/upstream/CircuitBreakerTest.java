@@ -0,0 +1,179 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import dk.kb.image.util.LicenseModuleGuard;
+import dk.kb.license.model.v1.CheckAccessForIdsInputDto;
+import dk.kb.license.model.v1.CheckAccessForIdsOutputDto;
+import dk.kb.util.webservice.exception.ServiceException;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest {
+
+    @Tag("fast")
+    @Test
+    public void openAfterConsecutiveFailures() {
+        AtomicLong now = new AtomicLong(0);
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 1000, now::get);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess(); // Resets the count
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire();
+
+        breaker.onStatus(503);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        ServiceException e = assertThrows(ServiceException.class, breaker::acquire);
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE, e.getResponseStatus());
+        assertEquals(1, breaker.getRejected());
+        assertEquals(1, breaker.getTrips());
+    }
+
+    @Tag("fast")
+    @Test
+    public void halfOpenProbe() {
+        AtomicLong now = new AtomicLong(0);
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1000, now::get);
+        breaker.onFailure();
+        now.set(999);
+        assertThrows(ServiceException.class, breaker::acquire);
+
+        now.set(1000);
+        breaker.acquire(); // The probe
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertThrows(ServiceException.class, breaker::acquire); // Only a single probe at a time
+
+        breaker.onFailure(); // Failed probe
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertThrows(ServiceException.class, breaker::acquire);
+
+        now.set(2000);
+        breaker.acquire();
+        breaker.onStatus(404); // The server is responding
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire();
+    }
+
+    @Tag("fast")
+    @Test
+    public void lostProbe() {
+        AtomicLong now = new AtomicLong(0);
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1000, now::get);
+        breaker.onFailure();
+        now.set(1000);
+        breaker.acquire(); // Probe that never reports back
+        now.set(2000);
+        breaker.acquire(); // New probe
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    @Tag("fast")
+    @Test
+    public void skippedProbe() {
+        AtomicLong now = new AtomicLong(0);
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1000, now::get);
+        breaker.onFailure();
+        now.set(1000);
+        breaker.acquire(); // Probe that is rejected before the call is made
+        breaker.onSkipped();
+        breaker.acquire(); // New probe at once
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Tag("fast")
+    @Test
+    public void disabled() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 0, 1000);
+        for (int i = 0 ; i < 100 ; i++) {
+            breaker.onFailure();
+        }
+        breaker.acquire();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Tag("fast")
+    @Test
+    public void licenseModuleGuard() {
+        LicenseModuleGuard guard = new LicenseModuleGuard(2, 60000, 10);
+        CheckAccessForIdsInputDto request = new CheckAccessForIdsInputDto();
+        for (int i = 0 ; i < 2 ; i++) {
+            assertThrows(IOException.class, () -> guard.check(request, r -> {
+                throw new IOException("Connection refused");
+            }));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, guard.getCircuitBreaker().getState());
+        assertThrows(LicenseModuleGuard.RejectedException.class, () -> guard.check(request, r -> {
+            throw new IllegalStateException("Should not be called");
+        }));
+        assertEquals(0, guard.getInFlight());
+        assertEquals(2, guard.getCalls(), "Rejected calls should not count");
+        assertNotNull(guard.getLatencyPercentileMs(99));
+    }
+
+    @Tag("fast")
+    @Test
+    public void licenseModuleGuardBulkhead() throws Exception {
+        LicenseModuleGuard guard = new LicenseModuleGuard(1, 50, 1);
+        CheckAccessForIdsInputDto request = new CheckAccessForIdsInputDto();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<CheckAccessForIdsOutputDto> running = CompletableFuture.supplyAsync(() -> {
+            try {
+                return guard.check(request, r -> {
+                    started.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                    return new CheckAccessForIdsOutputDto();
+                });
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+        try {
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            guard.getCircuitBreaker().onFailure(); // Another call failed, so the breaker is open
+            Thread.sleep(100); // Ready for probing
+
+            // Rejected by the bulkhead, which must not use up the probe
+            assertThrows(LicenseModuleGuard.RejectedException.class, () -> guard.check(request, r -> {
+                throw new IllegalStateException("Should not be called");
+            }));
+            assertEquals(1, guard.getRejected());
+            assertEquals(CircuitBreaker.State.OPEN, guard.getCircuitBreaker().getState(),
+                         "The breaker should still be waiting for a probe");
+        } finally {
+            release.countDown();
+        }
+        running.get(10, TimeUnit.SECONDS);
+        guard.check(request, r -> new CheckAccessForIdsOutputDto()); // The probe
+        assertEquals(CircuitBreaker.State.CLOSED, guard.getCircuitBreaker().getState());
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RelayedHeadersTest {
+
+    @Tag("fast")
+    @Test
+    public void defaultHeaders() {
+        assertEquals(RelayedHeaders.DEFAULT_HEADERS, RelayedHeaders.create(null).getHeaders());
+    }
+
+    @Tag("fast")
+    @Test
+    public void hopByHopIgnored() {
+        RelayedHeaders relayed = new RelayedHeaders(List.of("ETag", "Transfer-Encoding", "connection", "X-Foo"));
+        assertEquals(List.of("ETag", "X-Foo"), relayed.getHeaders());
+    }
+
+    @Tag("fast")
+    @Test
+    public void contentLength() {
+        UpstreamResponse upstream = mock(UpstreamResponse.class);
+        when(upstream.getHeader("Content-Length")).thenReturn("1234");
+        when(upstream.getHeader("ETag")).thenReturn("\"abc\"");
+        when(upstream.getHeader("Content-Disposition")).thenReturn("inline; filename=\"foo.jpg\"");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        RelayedHeaders.create(null).copy(upstream, response, true);
+        verify(response).setContentLengthLong(1234L);
+        verify(response).setHeader("ETag", "\"abc\"");
+        verify(response).setHeader("Content-Disposition", "inline; filename=\"foo.jpg\"");
+        verify(response, never()).setHeader(eq("Content-Length"), anyString());
+    }
+
+    @Tag("fast")
+    @Test
+    public void contentLengthWithoutContent() {
+        UpstreamResponse upstream = mock(UpstreamResponse.class);
+        when(upstream.getHeader("Content-Length")).thenReturn("1234");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        RelayedHeaders.create(null).copy(upstream, response, false);
+        verify(response, never()).setContentLengthLong(anyLong());
+    }
+
+    @Tag("fast")
+    @Test
+    public void invalidContentLength() {
+        UpstreamResponse upstream = mock(UpstreamResponse.class);
+        when(upstream.getHeader("Content-Length")).thenReturn("12, 34");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        RelayedHeaders.create(null).copy(upstream, response, true);
+        verify(response, never()).setContentLengthLong(anyLong());
+    }
+
+    @Tag("fast")
+    @Test
+    public void cachePolicyWins() {
+        UpstreamResponse upstream = mock(UpstreamResponse.class);
+        when(upstream.getHeader("Cache-Control")).thenReturn("no-cache");
+        when(upstream.getHeader("Expires")).thenReturn("0");
+        when(upstream.getHeader("Last-Modified")).thenReturn("Wed, 21 Oct 2015 07:28:00 GMT");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.containsHeader("Cache-Control")).thenReturn(true);
+
+        RelayedHeaders.create(null).copy(upstream, response, true);
+        verify(response, never()).setHeader(eq("Cache-Control"), anyString());
+        verify(response, never()).setHeader(eq("Expires"), anyString());
+        verify(response).setHeader("Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT");
+    }
+}
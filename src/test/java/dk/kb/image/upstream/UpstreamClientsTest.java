@@ -0,0 +1,228 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.upstream;
+
+import com.sun.net.httpserver.HttpServer;
+import dk.kb.image.config.ConfigAdjuster;
+import dk.kb.util.webservice.exception.ServiceException;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpstreamClientsTest {
+
+    @Tag("fast")
+    @Test
+    public void resolveBackend() {
+        try (ConfigAdjuster ignored = new ConfigAdjuster("image_server_path.yaml")) {
+            assertEquals("iip", backendFor("http://example.com/iipsrv/iipsrv.fcgi?FIF=foo.jpg&CVT=png"));
+            assertEquals("iiif", backendFor("http://example.com/foo.jpg/full/max/0/default.jpg"));
+            assertEquals(UpstreamSettings.DEFAULT_BACKEND, backendFor("http://example.org/foo.jpg"));
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void sharedServer() {
+        // deepzoom.param and iip.server are the same server in shared_server.yaml
+        try (ConfigAdjuster ignored = new ConfigAdjuster("shared_server.yaml")) {
+            URI uri = URI.create("http://example.com/iipsrv/iipsrv.fcgi?DeepZoom=foo.jpg.dzi");
+            BalancedUpstreamClient deepzoom = UpstreamClients.forURI(uri, UpstreamClients.BACKEND_DEEPZOOM);
+            BalancedUpstreamClient iip = UpstreamClients.forURI(uri, UpstreamClients.BACKEND_IIP);
+            assertNotSame(deepzoom, iip, "Each backend should have its own client");
+            assertNotSame(deepzoom.getPool(), iip.getPool(), "Each backend should have its own connection pool");
+            assertEquals(5000, deepzoom.getSettings().getReadTimeoutMs());
+            assertEquals(UpstreamSettings.DEFAULT_READ_TIMEOUT_MS, iip.getSettings().getReadTimeoutMs());
+
+            // Without a backend, the first backend is used
+            assertSame(iip, UpstreamClients.forURI(uri));
+            // A backend without a matching server uses the matching server for another backend
+            assertSame(iip, UpstreamClients.forURI(uri, UpstreamClients.BACKEND_IIIF));
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void hedgeRequiresJdkClient() {
+        try (ConfigAdjuster ignored = new ConfigAdjuster("hedge_urlconnection.yaml")) {
+            IllegalArgumentException e = assertThrows(
+                    IllegalArgumentException.class,
+                    () -> UpstreamClients.forURI(URI.create("http://example.com/iipsrv/iipsrv.fcgi?FIF=foo.jpg")));
+            assertTrue(e.getMessage().contains("hedge.enabled"), "The message should state the setting");
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void poolExhausted() {
+        UpstreamPool pool = new UpstreamPool(new UpstreamSettings(null, "test") {
+            @Override
+            public int getMaxConnections() {
+                return 1;
+            }
+            @Override
+            public long getAcquireTimeoutMs() {
+                return 10;
+            }
+        });
+        pool.acquire();
+        assertThrows(ServiceException.class, pool::acquire);
+        assertEquals(1, pool.getLeased());
+        assertEquals(1, pool.getRejected());
+        pool.release();
+        pool.acquire();
+        assertEquals(3, pool.getRequests());
+    }
+
+    @Tag("fast")
+    @Test
+    public void maxPending() {
+        UpstreamPool pool = new UpstreamPool(new UpstreamSettings(null, "test") {
+            @Override
+            public int getMaxConnections() {
+                return 1;
+            }
+            @Override
+            public int getMaxPending() {
+                return 0;
+            }
+        });
+        pool.acquire();
+        long startNanos = System.nanoTime();
+        ServiceException e = assertThrows(ServiceException.class, pool::acquire);
+        // Rejected without waiting for the acquire timeout of 10 seconds
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE, e.getResponseStatus());
+        assertTrue(System.nanoTime() - startNanos < 5_000_000_000L);
+        assertEquals(0, pool.getPending());
+        assertEquals(1, pool.getRejected());
+    }
+
+    @Tag("fast")
+    @Test
+    public void closeReplaced() throws InterruptedException {
+        UpstreamPool replaced;
+        try (ConfigAdjuster ignored = new ConfigAdjuster("image_server_path.yaml")) {
+            replaced = UpstreamClients.forURI(URI.create("http://example.com/foo.jpg/info.json")).getPool();
+            replaced.acquire(); // A response that is still being streamed
+        }
+        UpstreamClients.forURI(URI.create("http://example.org/foo.jpg")); // Replaces the clients
+        Thread.sleep(100);
+        assertFalse(replaced.isDrained(), "The pool should not be drained while a connection is in use");
+
+        replaced.release();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!replaced.isDrained() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(replaced.isDrained(), "The pool should be drained when the connection is released");
+    }
+
+    @Tag("fast")
+    @Test
+    public void readTimeout() throws IOException {
+        InputStream stalled = new InputStream() {
+            private final CountDownLatch closed = new CountDownLatch(1);
+            @Override
+            public int read() throws IOException {
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                throw new IOException("Stream closed");
+            }
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+        try (InputStream in = new ReadTimeoutInputStream(stalled, 50, URI.create("http://example.com/"))) {
+            assertThrows(SocketTimeoutException.class, in::read);
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void readTimeoutClosed() throws IOException {
+        int pending = ReadTimeoutInputStream.getPendingChecks();
+        InputStream in = new ReadTimeoutInputStream(
+                InputStream.nullInputStream(), 60000, URI.create("http://example.com/"));
+        assertEquals(pending + 1, ReadTimeoutInputStream.getPendingChecks());
+        in.close();
+        assertEquals(pending, ReadTimeoutInputStream.getPendingChecks(),
+                     "The check should be removed from the watchdog when the stream is closed");
+    }
+
+    @Tag("fast")
+    @Test
+    public void urlConnectionUnreadBodyKeepsConnection() throws IOException, InterruptedException {
+        // Record the client port for each request to see if the connection is reused
+        List<Integer> clientPorts = new CopyOnWriteArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            byte[] body = {87};
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/image.jpg");
+            UpstreamClient client = new UrlConnectionUpstreamClient(
+                    new UpstreamSettings(null, UpstreamSettings.DEFAULT_BACKEND));
+            for (int i = 0 ; i < 2 ; i++) {
+                // The body is never opened, as for HEAD requests
+                try (UpstreamResponse response = client.get(uri, Map.of(), Long.MAX_VALUE)) {
+                    assertEquals(200, response.getStatusCode());
+                }
+                // The JVM drains unread content in a background thread before the connection is reused
+                Thread.sleep(500);
+            }
+            assertEquals(0, client.getPool().getLeased());
+            assertEquals(2, clientPorts.size());
+            assertEquals(clientPorts.get(0), clientPorts.get(1),
+                         "The connection should be kept alive when the body is not read");
+            client.close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private String backendFor(String uri) {
+        return UpstreamClients.forURI(URI.create(uri)).getSettings().getBackend();
+    }
+}
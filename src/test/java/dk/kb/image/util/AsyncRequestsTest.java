@@ -0,0 +1,90 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.util.webservice.exception.ServiceException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.Response;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncRequestsTest {
+
+    @AfterEach
+    public void cleanup() {
+        RequestContext.end();
+    }
+
+    @Tag("fast")
+    @Test
+    public void disabledByDefault() {
+        assertFalse(AsyncRequests.create(null).isEnabled());
+    }
+
+    @Tag("fast")
+    @Test
+    public void withinDeadline() throws Exception {
+        RequestContext.begin().setBudget(60000);
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> limited = AsyncRequests.withDeadline(future, "test");
+        future.complete("result");
+        assertEquals("result", limited.get(10, TimeUnit.SECONDS));
+    }
+
+    @Tag("fast")
+    @Test
+    public void deadlineExceeded() {
+        RequestContext.begin().setBudget(50);
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> limited = AsyncRequests.withDeadline(future, "test");
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> limited.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof ServiceException, "Expected ServiceException but got " + e.getCause());
+        assertEquals(Response.Status.GATEWAY_TIMEOUT, ((ServiceException) e.getCause()).getResponseStatus());
+        // The given future might be shared between requests and must not be affected
+        assertFalse(future.isDone());
+    }
+
+    @Tag("fast")
+    @Test
+    public void failurePassedOn() {
+        RequestContext.begin().setBudget(60000);
+        IllegalStateException failure = new IllegalStateException("Expected");
+        CompletableFuture<String> limited = AsyncRequests.withDeadline(
+                CompletableFuture.failedFuture(failure), "test");
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> limited.get(10, TimeUnit.SECONDS));
+        assertSame(failure, AsyncRequests.unwrap(e));
+    }
+
+    @Tag("fast")
+    @Test
+    public void unwrap() {
+        IllegalStateException failure = new IllegalStateException("Expected");
+        assertSame(failure, AsyncRequests.unwrap(new CompletionException(new ExecutionException(failure))));
+        assertSame(failure, AsyncRequests.unwrap(failure));
+    }
+}
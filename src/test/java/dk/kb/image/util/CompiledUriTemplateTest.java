@@ -0,0 +1,115 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import com.damnhandy.uri.template.UriTemplate;
+import dk.kb.image.IIIFFacade;
+import dk.kb.image.IIPFacade;
+import dk.kb.image.ProxyHelper;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CompiledUriTemplateTest {
+    // Reserved characters are left out, as UriTemplate fails on '$' with the '+' operator
+    private static final String[] VALUES = {
+            "", "abc", "a b", "a/b", "%2F", "%zz", "100%", "^!56,78", "æøå", "a+b&c=d?e#f", "~-._",
+            "\"<>\\`{|}", "😀"};
+
+    @Tag("fast")
+    @Test
+    public void sameAsUriTemplate() {
+        for (String template: new String[]{"X{v}Y", "X{+v}Y", "X{?v}Y", "X{&v}Y", "X.{v}", "{+v}"}) {
+            CompiledUriTemplate compiled = CompiledUriTemplate.compile(template);
+            for (String value: VALUES) {
+                assertEquals(UriTemplate.fromTemplate(template).set("v", value).expand(),
+                             compiled.builder().set("v", value).expand(),
+                             "Expanding '" + template + "' with '" + value + "'");
+            }
+            assertEquals(UriTemplate.fromTemplate(template).expand(), compiled.builder().expand(),
+                         "Expanding '" + template + "' without value");
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void sameAsAddIfPresent() {
+        String template = "http://example.com/iip/" + IIPFacade.IIP_TEMPLATE;
+        UriTemplate expected = UriTemplate.fromTemplate(template).set("FIF", "/foo/bar.tif");
+        ProxyHelper.addIfPresent(expected, "WID", 800L);
+        ProxyHelper.addIfPresent(expected, "RGN", Arrays.asList(0.1f, 0.2f, 0.5f, 0.5f));
+        ProxyHelper.addIfPresent(expected, "QLT", 87);
+        ProxyHelper.addIfPresent(expected, "CNT", 1.5f);
+        ProxyHelper.addIfPresent(expected, "CMP", "");
+        ProxyHelper.addIfPresent(expected, "CTW", "[0,0,1;0,1,0;1,0,0]");
+        expected.set("INV", "&INV");
+        ProxyHelper.addIfPresent(expected, "JTL", Arrays.asList(1, 2));
+        ProxyHelper.addIfPresent(expected, "CVT", "jpeg");
+
+        String actual = CompiledUriTemplate.compile(template).builder()
+                .set("FIF", "/foo/bar.tif")
+                .setIfPresent("WID", 800L)
+                .setIfPresent("HEI", null)
+                .setIfPresent("RGN", Arrays.asList(0.1f, 0.2f, 0.5f, 0.5f))
+                .setIfPresent("QLT", 87)
+                .setIfPresent("CNT", 1.5f)
+                .setIfPresent("CMP", "")
+                .setIfPresent("CTW", "[0,0,1;0,1,0;1,0,0]")
+                .set("INV", "&INV")
+                .setIfPresent("JTL", Arrays.asList(1, 2))
+                .setIfPresent("CVT", "jpeg")
+                .expand();
+        assertEquals(expected.expand(), actual);
+    }
+
+    @Tag("fast")
+    @Test
+    public void facadeTemplates() {
+        assertEquals(
+                "http://example.com/iiif/foo%2Fbar%20zoo/full/%5E200,/!90/default.png",
+                CompiledUriTemplate.compile("http://example.com/iiif" + IIIFFacade.IIIF_IMAGE3_TEMPLATE).builder()
+                        .set("identifier", "foo/bar zoo")
+                        .set("region", "full")
+                        .set("size", "^200,")
+                        .set("rotation", "!90")
+                        .set("quality", "default")
+                        .set("format", "png")
+                        .expand());
+        assertEquals(
+                "http://example.com/dz/foo/bar_files/11/2_0.jpg?GAM=1.1&INV",
+                CompiledUriTemplate.compile("http://example.com/dz" + IIPFacade.DEEPZOOM_PATH_TEMPLATE).builder()
+                        .set("imageid", "foo/bar")
+                        .set("layer", 11)
+                        .set("tile", "2_0")
+                        .set("format", "jpg")
+                        .setIfPresent("GAM", 1.1f)
+                        .set("INV", "&INV")
+                        .set("unknown", "ignored")
+                        .expand());
+    }
+
+    @Tag("fast")
+    @Test
+    public void unsupported() {
+        assertThrows(IllegalArgumentException.class, () -> CompiledUriTemplate.compile("/{foo,bar}"));
+        assertThrows(IllegalArgumentException.class, () -> CompiledUriTemplate.compile("/{#foo}"));
+        assertThrows(IllegalArgumentException.class, () -> CompiledUriTemplate.compile("/{foo"));
+        assertThrows(IllegalArgumentException.class, () -> CompiledUriTemplate.compile("/foo}"));
+    }
+}
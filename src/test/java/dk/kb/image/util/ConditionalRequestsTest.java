@@ -0,0 +1,97 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.HttpHeaders;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ConditionalRequestsTest {
+
+    @AfterEach
+    public void cleanup() {
+        RequestContext.end();
+    }
+
+    @Tag("fast")
+    @Test
+    public void strongETag() {
+        String eTag = ConditionalRequests.strongETag("foo".getBytes(StandardCharsets.UTF_8));
+        assertTrue(eTag.matches("\"[0-9a-f]{32}\""), "ETag should be 32 quoted hex digits but was " + eTag);
+        assertEquals(eTag, ConditionalRequests.strongETag("foo".getBytes(StandardCharsets.UTF_8)));
+        assertNotEquals(eTag, ConditionalRequests.strongETag("bar".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Tag("fast")
+    @Test
+    public void ifNoneMatch() {
+        assertTrue(ConditionalRequests.matchesIfNoneMatch("\"abc\"", "\"abc\""));
+        assertTrue(ConditionalRequests.matchesIfNoneMatch("W/\"abc\"", "\"abc\""));
+        assertTrue(ConditionalRequests.matchesIfNoneMatch("\"abc\"", "W/\"abc\""));
+        assertTrue(ConditionalRequests.matchesIfNoneMatch("\"x\", \"abc\" ,\"y\"", "\"abc\""));
+        assertTrue(ConditionalRequests.matchesIfNoneMatch("*", "\"abc\""));
+
+        assertFalse(ConditionalRequests.matchesIfNoneMatch(null, "\"abc\""));
+        assertFalse(ConditionalRequests.matchesIfNoneMatch("\"abc\"", null));
+        assertFalse(ConditionalRequests.matchesIfNoneMatch("\"abcd\"", "\"abc\""));
+        assertFalse(ConditionalRequests.matchesIfNoneMatch("\"x\", \"y\"", "\"abc\""));
+    }
+
+    @Tag("fast")
+    @Test
+    public void notModified() {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        HttpHeaders headers = mock(HttpHeaders.class);
+        when(headers.getHeaderString(ConditionalRequests.IF_NONE_MATCH)).thenReturn("\"abc\"");
+        RequestContext.begin().setHttp(headers, response);
+
+        assertTrue(ConditionalRequests.isNotModified("\"abc\""));
+        verify(response).setHeader(ConditionalRequests.ETAG, "\"abc\"");
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    @Tag("fast")
+    @Test
+    public void modified() {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        HttpHeaders headers = mock(HttpHeaders.class);
+        when(headers.getHeaderString(ConditionalRequests.IF_NONE_MATCH)).thenReturn("\"old\"");
+        RequestContext.begin().setHttp(headers, response);
+
+        assertFalse(ConditionalRequests.isNotModified("\"abc\""));
+        verify(response).setHeader(ConditionalRequests.ETAG, "\"abc\"");
+        verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    @Tag("fast")
+    @Test
+    public void outsideRequest() {
+        RequestContext.begin();
+        assertFalse(ConditionalRequests.isNotModified("\"abc\""));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IIIFSizeTest {
+
+    @Tag("fast")
+    @Test
+    public void parse() {
+        assertEquals("max", IIIFSize.parse("max").toString());
+        assertEquals("^max", IIIFSize.parse("^max").toString());
+        assertEquals("150,", IIIFSize.parse("150,").toString());
+        assertEquals(",100", IIIFSize.parse(",100").toString());
+        assertEquals("150,100", IIIFSize.parse("150,100").toString());
+        assertEquals("!150,100", IIIFSize.parse("!150,100").toString());
+        assertEquals("^!150,100", IIIFSize.parse("^!150,100").toString());
+        assertEquals("pct:50.0", IIIFSize.parse("pct:50").toString());
+        assertEquals("^pct:150.0", IIIFSize.parse("^pct:150").toString());
+        assertTrue(IIIFSize.parse("^!150,100").isConfined());
+        assertTrue(IIIFSize.parse("^!150,100").isUpscale());
+    }
+
+    @Tag("fast")
+    @Test
+    public void invalid() {
+        for (String size: new String[]{null, "", ",", "!150,", "!,100", "150", "a,100", "150,b", "0,100",
+                                        "-1,100", "pct:", "pct:0", "pct:101", "pct:abc", "maxx", "^", "!max",
+                                        "1234567890,1", "150,100,"}) {
+            assertNull(IIIFSize.parse(size), "The size '" + size + "' should be invalid");
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void resolve() {
+        assertArrayEquals(new int[]{400, 200}, IIIFSize.parse("max").resolve(400, 200));
+        assertArrayEquals(new int[]{100, 50}, IIIFSize.parse("100,").resolve(400, 200));
+        assertArrayEquals(new int[]{200, 100}, IIIFSize.parse(",100").resolve(400, 200));
+        assertArrayEquals(new int[]{100, 100}, IIIFSize.parse("100,100").resolve(400, 200));
+        assertArrayEquals(new int[]{100, 50}, IIIFSize.parse("!100,100").resolve(400, 200));
+        assertArrayEquals(new int[]{100, 50}, IIIFSize.parse("pct:25").resolve(400, 200));
+    }
+}
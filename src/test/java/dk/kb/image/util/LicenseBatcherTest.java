@@ -0,0 +1,159 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.image.util.ImageAccessValidation.ACCESS_TYPE;
+import dk.kb.license.model.v1.CheckAccessForIdsInputDto;
+import dk.kb.license.model.v1.CheckAccessForIdsOutputDto;
+import dk.kb.license.model.v1.UserObjAttributeDto;
+import dk.kb.util.webservice.exception.InternalServiceException;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LicenseBatcherTest {
+
+    @Tag("fast")
+    @Test
+    public void batch() throws Exception {
+        List<CheckAccessForIdsInputDto> requests = Collections.synchronizedList(new ArrayList<>());
+        LicenseBatcher batcher = new LicenseBatcher(true, 10000, 3, 1, request -> {
+            requests.add(request);
+            return response(request.getAccessIds());
+        });
+        try {
+            CompletableFuture<ACCESS_TYPE> a = batcher.submit(key("access_1", "u1"));
+            CompletableFuture<ACCESS_TYPE> b = batcher.submit(key("denied_1", "u1"));
+            CompletableFuture<ACCESS_TYPE> other = batcher.submit(key("access_2", "u2"));
+            CompletableFuture<ACCESS_TYPE> c = batcher.submit(key("missing_1", "u1"));
+
+            // The batch for u1 is full and sent at once, long before maxWaitMs
+            assertEquals(ACCESS_TYPE.ACCESS, a.get(10, TimeUnit.SECONDS));
+            assertEquals(ACCESS_TYPE.NO_ACCESS, b.get(10, TimeUnit.SECONDS));
+            assertEquals(ACCESS_TYPE.ID_NON_EXISTING, c.get(10, TimeUnit.SECONDS));
+            assertEquals(1, requests.size());
+            assertEquals(List.of("access_1", "denied_1", "missing_1"), requests.get(0).getAccessIds());
+            // Different user attributes are not part of the batch
+            assertEquals(false, other.isDone());
+        } finally {
+            batcher.shutdown();
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void maxWait() throws Exception {
+        List<CheckAccessForIdsInputDto> requests = Collections.synchronizedList(new ArrayList<>());
+        LicenseBatcher batcher = new LicenseBatcher(true, 20, 50, 1, request -> {
+            requests.add(request);
+            return response(request.getAccessIds());
+        });
+        try {
+            CompletableFuture<ACCESS_TYPE> a = batcher.submit(key("access_1", "u1"));
+            CompletableFuture<ACCESS_TYPE> b = batcher.submit(key("access_1", "u1"));
+            CompletableFuture<ACCESS_TYPE> c = batcher.submit(key("access_2", "u1"));
+
+            assertEquals(ACCESS_TYPE.ACCESS, a.get(10, TimeUnit.SECONDS));
+            assertEquals(ACCESS_TYPE.ACCESS, b.get(10, TimeUnit.SECONDS));
+            assertEquals(ACCESS_TYPE.ACCESS, c.get(10, TimeUnit.SECONDS));
+            assertEquals(1, requests.size());
+            assertEquals(List.of("access_1", "access_2"), requests.get(0).getAccessIds());
+            assertEquals(1, batcher.getBatches());
+            assertEquals(3, batcher.getChecks());
+        } finally {
+            batcher.shutdown();
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void error() {
+        LicenseBatcher batcher = new LicenseBatcher(true, 1, 50, 1, request -> {
+            throw new IllegalStateException("Expected");
+        });
+        try {
+            assertThrows(InternalServiceException.class, () -> batcher.check(key("access_1", "u1")));
+        } finally {
+            batcher.shutdown();
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void afterShutdown() throws Exception {
+        List<CheckAccessForIdsInputDto> requests = Collections.synchronizedList(new ArrayList<>());
+        LicenseBatcher batcher = new LicenseBatcher(true, 10000, 50, 1, request -> {
+            requests.add(request);
+            return response(request.getAccessIds());
+        });
+        batcher.shutdown();
+
+        // Checks after shutdown, e.g. from requests in progress during a configuration reload, are not batched
+        CompletableFuture<ACCESS_TYPE> a = batcher.submit(key("access_1", "u1"));
+        CompletableFuture<ACCESS_TYPE> b = batcher.submit(key("denied_1", "u1"));
+        assertTrue(a.isDone());
+        assertEquals(ACCESS_TYPE.ACCESS, a.get(0, TimeUnit.SECONDS));
+        assertEquals(ACCESS_TYPE.NO_ACCESS, b.get(0, TimeUnit.SECONDS));
+        assertEquals(2, requests.size());
+    }
+
+    @Tag("fast")
+    @Test
+    public void disabled() {
+        List<CheckAccessForIdsInputDto> requests = new ArrayList<>();
+        LicenseBatcher batcher = LicenseBatcher.create(null, request -> {
+            requests.add(request);
+            return response(request.getAccessIds());
+        });
+        assertEquals(false, batcher.isEnabled());
+        assertEquals(ACCESS_TYPE.ACCESS, batcher.check(key("access_1", "u1")));
+        assertEquals(ACCESS_TYPE.NO_ACCESS, batcher.check(key("denied_1", "u1")));
+        assertEquals(2, requests.size());
+    }
+
+    private static LicenseKey key(String resourceID, String user) {
+        UserObjAttributeDto attribute = new UserObjAttributeDto();
+        attribute.setAttribute("user");
+        attribute.setValues(List.of(user));
+        return new LicenseKey(resourceID, "Thumbnails", List.of(attribute));
+    }
+
+    /**
+     * @return a response where IDs starting with {@code access} have access, {@code denied} have no access and
+     *         the rest are non-existing.
+     */
+    private static CheckAccessForIdsOutputDto response(List<String> ids) {
+        CheckAccessForIdsOutputDto response = new CheckAccessForIdsOutputDto();
+        List<String> access = new ArrayList<>();
+        List<String> noAccess = new ArrayList<>();
+        List<String> nonExisting = new ArrayList<>();
+        for (String id: ids) {
+            (id.startsWith("access") ? access : id.startsWith("denied") ? noAccess : nonExisting).add(id);
+        }
+        response.setAccessIds(access);
+        response.setNonAccessIds(noAccess);
+        response.setNonExistingIds(nonExisting);
+        return response;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.image.util.ImageAccessValidation.ACCESS_TYPE;
+import dk.kb.license.model.v1.UserObjAttributeDto;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LicenseDecisionCacheTest {
+
+    @Tag("fast")
+    @Test
+    public void ttlPerType() {
+        AtomicLong now = new AtomicLong(0);
+        LicenseDecisionCache cache = new LicenseDecisionCache(true, 100, 300, 60, 0, now::get);
+        cache.put(key("a", "Thumbnails"), ACCESS_TYPE.ACCESS);
+        cache.put(key("b", "Thumbnails"), ACCESS_TYPE.NO_ACCESS);
+        cache.put(key("c", "Thumbnails"), ACCESS_TYPE.ID_NON_EXISTING);
+
+        assertEquals(ACCESS_TYPE.ACCESS, cache.get(key("a", "Thumbnails")));
+        assertEquals(ACCESS_TYPE.NO_ACCESS, cache.get(key("b", "Thumbnails")));
+        assertNull(cache.get(key("c", "Thumbnails")), "TTL 0 means no caching");
+        assertNull(cache.get(key("a", "Fullsize")), "Presentation type is part of the key");
+
+        now.set(TimeUnit.SECONDS.toNanos(61));
+        assertEquals(ACCESS_TYPE.ACCESS, cache.get(key("a", "Thumbnails")));
+        assertNull(cache.get(key("b", "Thumbnails")), "NO_ACCESS should have expired");
+
+        assertEquals(3, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Tag("fast")
+    @Test
+    public void bounded() {
+        LicenseDecisionCache cache = new LicenseDecisionCache(true, 2, 300, 300, 300, System::nanoTime);
+        cache.put(key("a", "Thumbnails"), ACCESS_TYPE.ACCESS);
+        cache.put(key("b", "Thumbnails"), ACCESS_TYPE.ACCESS);
+        cache.get(key("a", "Thumbnails")); // 'b' is now least recently used
+        cache.put(key("c", "Thumbnails"), ACCESS_TYPE.ACCESS);
+
+        assertEquals(2, cache.size());
+        assertEquals(ACCESS_TYPE.ACCESS, cache.get(key("a", "Thumbnails")));
+        assertNull(cache.get(key("b", "Thumbnails")));
+    }
+
+    @Tag("fast")
+    @Test
+    public void evictExpiredFirst() {
+        AtomicLong now = new AtomicLong(0);
+        LicenseDecisionCache cache = new LicenseDecisionCache(true, 3, 300, 60, 60, now::get);
+        cache.put(key("a", "Thumbnails"), ACCESS_TYPE.ACCESS);
+        cache.put(key("b", "Thumbnails"), ACCESS_TYPE.NO_ACCESS);
+        now.set(TimeUnit.SECONDS.toNanos(61));
+        cache.put(key("c", "Thumbnails"), ACCESS_TYPE.ACCESS);
+        cache.put(key("d", "Thumbnails"), ACCESS_TYPE.ACCESS);
+
+        // 'b' has expired and is evicted instead of the least recently used 'a'
+        assertEquals(3, cache.size());
+        assertEquals(ACCESS_TYPE.ACCESS, cache.get(key("a", "Thumbnails")));
+        assertNull(cache.get(key("b", "Thumbnails")));
+    }
+
+    @Tag("fast")
+    @Test
+    public void attributeOrder() {
+        LicenseDecisionCache cache = new LicenseDecisionCache(true, 10, 300, 300, 300, System::nanoTime);
+        cache.put(new LicenseKey("a", "Thumbnails", List.of(attribute("x", "1", "2"), attribute("y", "3"))),
+                  ACCESS_TYPE.ACCESS);
+        assertEquals(ACCESS_TYPE.ACCESS, cache.get(
+                new LicenseKey("a", "Thumbnails", List.of(attribute("y", "3"), attribute("x", "2", "1")))));
+        assertNull(cache.get(new LicenseKey("a", "Thumbnails", List.of(attribute("x", "1")))));
+    }
+
+    private static LicenseKey key(String id, String presentationType) {
+        return new LicenseKey(id, presentationType, List.of(attribute("everybody", "yes")));
+    }
+
+    private static UserObjAttributeDto attribute(String name, String... values) {
+        UserObjAttributeDto attribute = new UserObjAttributeDto();
+        attribute.setAttribute(name);
+        attribute.setValues(List.of(values));
+        return attribute;
+    }
+}
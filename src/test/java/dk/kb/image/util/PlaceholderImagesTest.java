@@ -0,0 +1,113 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.util.Resolver;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlaceholderImagesTest {
+
+    @Tag("fast")
+    @Test
+    public void serveAsIs() throws Exception {
+        PlaceholderImages.Image image = PlaceholderImages.Image.load("noAccess.jpg");
+        byte[] original = Files.readAllBytes(Resolver.getPathFromClasspath("noAccess.jpg"));
+
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.serve(response, 403).write(out);
+
+        // The bytes are served without re-encoding
+        assertArrayEquals(original, out.toByteArray());
+        Mockito.verify(response).setStatus(403);
+        Mockito.verify(response).setContentType("image/jpeg");
+        Mockito.verify(response).setContentLength(original.length);
+        Mockito.verify(response).setHeader("ETag", image.getETag());
+    }
+
+    @Tag("fast")
+    @Test
+    public void render() throws Exception {
+        PlaceholderImages.Image base = PlaceholderImages.Image.load("noAccess.jpg");
+        PlaceholderImages images = new PlaceholderImages(base, base, true, 500, 2);
+
+        PlaceholderImages.Image thumbnail = images.getNoAccess(PlaceholderImages.Variant.iiif("!100,100", "png"));
+        assertEquals("image/png", thumbnail.getContentType());
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(bytes(thumbnail)));
+        assertEquals(100, Math.max(decoded.getWidth(), decoded.getHeight()));
+        assertTrue(thumbnail.getLength() < base.getLength(), "The thumbnail should be smaller than the base image");
+
+        // Cached
+        assertSame(thumbnail, images.getNoAccess(PlaceholderImages.Variant.iiif("!100,100", "png")));
+        assertEquals(1, images.getRenderedCount());
+
+        // IIP with only WID keeps the aspect ratio
+        PlaceholderImages.Image iip = images.getNoAccess(PlaceholderImages.Variant.iip(50L, null, "jpeg"));
+        decoded = ImageIO.read(new ByteArrayInputStream(bytes(iip)));
+        assertEquals(50, decoded.getWidth());
+        assertEquals(Math.round(50.0 * base.getHeight() / base.getWidth()), decoded.getHeight());
+
+        // Limited to maxSize
+        PlaceholderImages.Image large = images.getNoAccess(PlaceholderImages.Variant.iiif("^5000,5000", "jpg"));
+        decoded = ImageIO.read(new ByteArrayInputStream(bytes(large)));
+        assertEquals(500, decoded.getWidth());
+
+        // Bounded cache
+        assertEquals(2, images.getRenderedCount());
+
+        // Unsupported formats and same size and format uses the base image
+        assertSame(base, images.getNoAccess(PlaceholderImages.Variant.iiif("max", "pdf")));
+        assertSame(base, images.getNoAccess(PlaceholderImages.Variant.format("jpg")));
+    }
+
+    @Tag("fast")
+    @Test
+    public void renderDisabled() {
+        PlaceholderImages.Image base = PlaceholderImages.Image.load("noAccess.jpg");
+        PlaceholderImages images = new PlaceholderImages(base, base, false, 500, 2);
+        assertSame(base, images.getNoAccess(PlaceholderImages.Variant.iiif("!100,100", "png")));
+    }
+
+    private static byte[] bytes(PlaceholderImages.Image image) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.serve(Mockito.mock(HttpServletResponse.class), 403).write(out);
+        return out.toByteArray();
+    }
+
+    @Tag("fast")
+    @Test
+    public void eTag() {
+        PlaceholderImages.Image noAccess = PlaceholderImages.Image.load("noAccess.jpg");
+        PlaceholderImages.Image nonExisting = PlaceholderImages.Image.load("nonExisting.jpg");
+        assertTrue(noAccess.getETag().matches("\"[0-9a-f]{32}\""), "The ETag should be strong and quoted");
+        assertEquals(noAccess.getETag(), PlaceholderImages.Image.load("noAccess.jpg").getETag());
+        assertNotEquals(noAccess.getETag(), nonExisting.getETag());
+    }
+}
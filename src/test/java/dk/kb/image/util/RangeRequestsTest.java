@@ -0,0 +1,87 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RangeRequestsTest {
+
+    @Tag("fast")
+    @Test
+    public void singleRanges() {
+        assertRanges("bytes=0-499", 1000, new long[]{0, 499});
+        assertRanges("bytes=500-", 1000, new long[]{500, 999});
+        assertRanges("bytes=-100", 1000, new long[]{900, 999});
+        assertRanges("bytes=900-2000", 1000, new long[]{900, 999});
+        assertRanges("bytes=-2000", 1000, new long[]{0, 999});
+    }
+
+    @Tag("fast")
+    @Test
+    public void multipleRanges() {
+        assertRanges("bytes=0-9, 20-29,-5", 100, new long[]{0, 9}, new long[]{20, 29}, new long[]{95, 99});
+        assertRanges("bytes=0-9,200-299", 100, new long[]{0, 9}); // Unsatisfiable ranges are skipped
+    }
+
+    @Tag("fast")
+    @Test
+    public void unsatisfiable() {
+        assertEquals(0, RangeRequests.parse("bytes=1000-", 1000).size());
+        assertEquals(0, RangeRequests.parse("bytes=-0", 1000).size());
+    }
+
+    @Tag("fast")
+    @Test
+    public void ignored() {
+        assertNull(RangeRequests.parse(null, 1000));
+        assertNull(RangeRequests.parse("items=0-9", 1000));
+        assertNull(RangeRequests.parse("bytes=", 1000));
+        assertNull(RangeRequests.parse("bytes=9-0", 1000));
+        assertNull(RangeRequests.parse("bytes=a-9", 1000));
+        assertNull(RangeRequests.parse("bytes=-", 1000));
+        assertNull(RangeRequests.parse("bytes=10", 1000));
+        assertNull(RangeRequests.parse("bytes=" + "0-0,".repeat(RangeRequests.MAX_RANGES + 1), 1000));
+    }
+
+    @Tag("fast")
+    @Test
+    public void ifRange() {
+        assertTrue(RangeRequests.ifRangeMatches(null, null, null));
+        assertTrue(RangeRequests.ifRangeMatches("\"abc\"", "\"abc\"", null));
+        assertFalse(RangeRequests.ifRangeMatches("\"abc\"", "\"def\"", null));
+        assertFalse(RangeRequests.ifRangeMatches("W/\"abc\"", "\"abc\"", null));
+        assertFalse(RangeRequests.ifRangeMatches("\"abc\"", "W/\"abc\"", null));
+        String date = "Wed, 21 Oct 2015 07:28:00 GMT";
+        assertTrue(RangeRequests.ifRangeMatches(date, null, date));
+        assertFalse(RangeRequests.ifRangeMatches(date, "\"abc\"", null));
+    }
+
+    private void assertRanges(String header, long length, long[]... expected) {
+        List<long[]> ranges = RangeRequests.parse(header, length);
+        assertEquals(expected.length, ranges.size(), "Number of ranges for '" + header + "'");
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], ranges.get(i), "Range #" + i + " for '" + header + "'");
+        }
+    }
+}
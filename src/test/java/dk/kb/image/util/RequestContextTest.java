@@ -0,0 +1,123 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.util.webservice.exception.ServiceException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.Response;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestContextTest {
+
+    @AfterEach
+    public void cleanup() {
+        RequestContext.end();
+    }
+
+    @Tag("fast")
+    @Test
+    public void noDeadline() {
+        RequestContext.begin().setBudget(0);
+        assertEquals(RequestContext.NO_DEADLINE, RequestContext.current().getRemainingMs());
+        RequestContext.current().checkDeadline("test");
+    }
+
+    @Tag("fast")
+    @Test
+    public void withinDeadline() {
+        RequestContext.begin().setBudget(60000);
+        long remaining = RequestContext.current().getRemainingMs();
+        assertTrue(remaining > 0 && remaining <= 60000, "Remaining should be within budget but was " + remaining);
+        RequestContext.current().checkDeadline("test");
+    }
+
+    @Tag("fast")
+    @Test
+    public void deadlineExceeded() throws InterruptedException {
+        RequestContext.begin().setBudget(1);
+        Thread.sleep(5);
+        ServiceException e = assertThrows(ServiceException.class,
+                                          () -> RequestContext.current().checkDeadline("test"));
+        assertEquals(Response.Status.GATEWAY_TIMEOUT, e.getResponseStatus());
+    }
+
+    @Tag("fast")
+    @Test
+    public void bind() throws Exception {
+        RequestContext requestContext = RequestContext.begin().setEndpoint(RequestContext.ENDPOINT_IIIF_IMAGE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Function<String, String> endpoint = requestContext.bind(
+                    prefix -> prefix + RequestContext.current().getEndpoint());
+            assertEquals("bound " + RequestContext.ENDPOINT_IIIF_IMAGE,
+                         executor.submit(() -> endpoint.apply("bound ")).get(10, TimeUnit.SECONDS));
+            // The context for the executor thread is restored afterwards
+            assertNull(executor.submit(() -> RequestContext.current().getEndpoint()).get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void outsideRequest() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Contexts outside of requests, e.g. in callbacks from HTTP clients, are not kept for the thread
+            executor.submit(() -> RequestContext.current().setBudget(60000)).get(10, TimeUnit.SECONDS);
+            assertEquals(RequestContext.NO_DEADLINE,
+                         executor.submit(() -> RequestContext.current().getRemainingMs()).get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void serverTiming() {
+        RequestContext requestContext = RequestContext.begin();
+        requestContext.recordStage(RequestContext.STAGE_AUTH, 400_000);
+        assertNull(requestContext.getServerTiming(), "Server-Timing should be disabled by default");
+
+        requestContext = RequestContext.begin().setServerTiming(true);
+        assertNull(requestContext.getServerTiming());
+        requestContext.recordStage(RequestContext.STAGE_AUTH, 400_000);
+        requestContext.setEndpoint(RequestContext.ENDPOINT_IIP);
+        requestContext.recordStage(RequestContext.STAGE_LICENSE, 12_345_678);
+        assertEquals("auth;dur=0.4, license;dur=12.3", requestContext.getServerTiming());
+    }
+
+    @Tag("fast")
+    @Test
+    public void inFlight() {
+        int before = InFlightRequests.getInFlight().getOrDefault(RequestContext.ENDPOINT_DEEPZOOM_DZI, 0);
+        RequestContext requestContext = RequestContext.begin().setEndpoint(RequestContext.ENDPOINT_DEEPZOOM_DZI);
+        assertEquals(before + 1, InFlightRequests.getInFlight().get(RequestContext.ENDPOINT_DEEPZOOM_DZI));
+        requestContext.finish();
+        requestContext.finish();
+        assertEquals(before, InFlightRequests.getInFlight().get(RequestContext.ENDPOINT_DEEPZOOM_DZI));
+    }
+}
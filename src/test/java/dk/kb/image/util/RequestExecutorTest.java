@@ -0,0 +1,82 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestExecutorTest {
+
+    @AfterEach
+    public void cleanup() {
+        RequestContext.end();
+    }
+
+    @Tag("fast")
+    @Test
+    public void containerByDefault() {
+        RequestExecutor executor = RequestExecutor.create(null);
+        assertFalse(executor.isEnabled());
+        assertEquals(RequestExecutor.MODE_CONTAINER, executor.getMode());
+        assertThrows(IllegalStateException.class, () -> executor.submit(() -> "foo"));
+    }
+
+    @Tag("fast")
+    @Test
+    public void platform() throws Exception {
+        RequestExecutor executor = new RequestExecutor(RequestExecutor.MODE_PLATFORM, 2);
+        try {
+            RequestContext.begin().setEndpoint(RequestContext.ENDPOINT_DEEPZOOM_TILE);
+            Thread caller = Thread.currentThread();
+            // The task runs on another thread, but with the context of the caller
+            assertEquals(RequestContext.ENDPOINT_DEEPZOOM_TILE, executor.submit(() -> {
+                assertNotEquals(caller, Thread.currentThread());
+                return RequestContext.current().getEndpoint();
+            }).get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void virtual() throws Exception {
+        RequestExecutor executor = new RequestExecutor(RequestExecutor.MODE_VIRTUAL, 2);
+        try {
+            boolean supported = Runtime.version().feature() >= 21;
+            assertEquals(supported ? RequestExecutor.MODE_VIRTUAL : RequestExecutor.MODE_PLATFORM,
+                         executor.getMode());
+            assertTrue(executor.isEnabled());
+            assertEquals("foo", executor.submit(() -> "foo").get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void unknownMode() {
+        assertThrows(IllegalArgumentException.class, () -> new RequestExecutor("green", 2));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StageMetricsTest {
+
+    @AfterEach
+    public void cleanup() {
+        StageMetrics.clear();
+        RequestContext.end();
+    }
+
+    @Tag("fast")
+    @Test
+    public void prometheus() {
+        StageMetrics.record(RequestContext.ENDPOINT_IIP, RequestContext.STAGE_LICENSE,
+                            TimeUnit.MICROSECONDS.toNanos(500));
+        StageMetrics.record(RequestContext.ENDPOINT_IIP, RequestContext.STAGE_LICENSE,
+                            TimeUnit.MILLISECONDS.toNanos(2));
+        StageMetrics.record(RequestContext.ENDPOINT_IIP, RequestContext.STAGE_LICENSE,
+                            TimeUnit.MINUTES.toNanos(2));
+
+        String metrics = StageMetrics.toPrometheus();
+        String prefix = StageMetrics.METRIC_NAME + "_bucket{endpoint=\"iip\",stage=\"license\",le=";
+        assertTrue(metrics.contains("# TYPE " + StageMetrics.METRIC_NAME + " histogram\n"), metrics);
+        assertTrue(metrics.contains(prefix + "\"0.001\"} 1\n"), metrics);
+        assertTrue(metrics.contains(prefix + "\"0.0025\"} 2\n"), metrics);
+        assertTrue(metrics.contains(prefix + "\"60\"} 2\n"), metrics);
+        assertTrue(metrics.contains(prefix + "\"+Inf\"} 3\n"), metrics);
+        assertTrue(metrics.contains(
+                StageMetrics.METRIC_NAME + "_sum{endpoint=\"iip\",stage=\"license\"} 120.0025\n"), metrics);
+        assertTrue(metrics.contains(
+                StageMetrics.METRIC_NAME + "_count{endpoint=\"iip\",stage=\"license\"} 3\n"), metrics);
+    }
+
+    @Tag("fast")
+    @Test
+    public void pendingStages() {
+        RequestContext requestContext = RequestContext.begin();
+        requestContext.recordStage(RequestContext.STAGE_AUTH, 1000);
+        assertFalse(StageMetrics.toPrometheus().contains("stage=\"auth\""),
+                    "Stages should not be recorded before the endpoint is known");
+
+        requestContext.setEndpoint(RequestContext.ENDPOINT_IIIF_IMAGE);
+        requestContext.recordStage(RequestContext.STAGE_CONNECT, 1000);
+        assertEquals(1, StageMetrics.getHistogram(
+                RequestContext.ENDPOINT_IIIF_IMAGE, RequestContext.STAGE_AUTH).getCount());
+        assertEquals(1, StageMetrics.getHistogram(
+                RequestContext.ENDPOINT_IIIF_IMAGE, RequestContext.STAGE_CONNECT).getCount());
+    }
+
+    @Tag("fast")
+    @Test
+    public void percentiles() {
+        StageMetrics.Histogram histogram = new StageMetrics.Histogram();
+        assertNull(histogram.getPercentileMs(50));
+        for (int i = 0 ; i < 90 ; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(7)); // 5-10 ms bucket
+        }
+        for (int i = 0 ; i < 10 ; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(200)); // 100-250 ms bucket
+        }
+        assertEquals(5 + 5 * 50 / 90.0, histogram.getPercentileMs(50), 0.001);
+        assertEquals(10.0, histogram.getPercentileMs(90), 0.001);
+        assertEquals(250.0, histogram.getPercentileMs(100), 0.001);
+    }
+}
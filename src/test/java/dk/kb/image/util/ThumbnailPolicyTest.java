@@ -0,0 +1,81 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.image.config.ConfigAdjuster;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ThumbnailPolicyTest {
+
+    @Tag("fast")
+    @Test
+    public void disabledByDefault() {
+        ThumbnailPolicy policy = ThumbnailPolicy.create(null);
+        assertFalse(policy.isThumbnail(100, 100));
+        assertFalse(policy.isThumbnail(IIIFSize.parse("100,100")));
+    }
+
+    @Tag("fast")
+    @Test
+    public void iiifSizes() {
+        ThumbnailPolicy policy = new ThumbnailPolicy(200, 150, true, 5);
+        assertTrue(policy.isThumbnail(IIIFSize.parse("200,150")));
+        assertTrue(policy.isThumbnail(IIIFSize.parse("^!200,150")));
+        assertFalse(policy.isThumbnail(IIIFSize.parse("201,150")));
+        assertFalse(policy.isThumbnail(IIIFSize.parse("200,151")));
+
+        assertTrue(policy.isThumbnail(IIIFSize.parse("200,")));
+        assertFalse(policy.isThumbnail(IIIFSize.parse("201,")));
+        assertTrue(policy.isThumbnail(IIIFSize.parse(",150")));
+        assertFalse(policy.isThumbnail(IIIFSize.parse(",151")));
+
+        assertTrue(policy.isThumbnail(IIIFSize.parse("pct:5")));
+        assertFalse(policy.isThumbnail(IIIFSize.parse("pct:5.5")));
+
+        assertFalse(policy.isThumbnail(IIIFSize.parse("max")));
+        assertFalse(policy.isThumbnail(IIIFSize.parse("^max")));
+        assertFalse(policy.isThumbnail(IIIFSize.parse("foo")));
+    }
+
+    @Tag("fast")
+    @Test
+    public void conservative() {
+        ThumbnailPolicy policy = new ThumbnailPolicy(200, 150, false, 0);
+        assertTrue(policy.isThumbnail(IIIFSize.parse("200,150")));
+        assertFalse(policy.isThumbnail(IIIFSize.parse("100,")));
+        assertFalse(policy.isThumbnail(IIIFSize.parse(",100")));
+        assertFalse(policy.isThumbnail(IIIFSize.parse("pct:1")));
+    }
+
+    @Tag("fast")
+    @Test
+    public void classification() {
+        try (ConfigAdjuster ignored = new ConfigAdjuster("thumbnail_policy.yaml")) {
+            assertTrue(ImageAccessValidation.isThumbnailIIIF("id", "full", "200,", "0", "default", "jpg"));
+            assertTrue(ImageAccessValidation.isThumbnailIIIF("id", "full", "pct:2", "0", "default", "jpg"));
+            assertFalse(ImageAccessValidation.isThumbnailIIIF("id", "full", "max", "0", "default", "jpg"));
+            assertFalse(ImageAccessValidation.isThumbnailIIIF("id", "full", "200,", "90", "default", "jpg"));
+
+            assertTrue(ImageAccessValidation.isThumbnailIIP("id", 200L, 150L, null, null, null, null, null, null,
+                                                            null, null, null, null, null, null, "jpeg"));
+            assertFalse(ImageAccessValidation.isThumbnailIIP("id", 201L, 150L, null, null, null, null, null, null,
+                                                             null, null, null, null, null, null, "jpeg"));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.util;
+
+import dk.kb.image.config.ConfigAdjuster;
+import dk.kb.image.config.ServiceConfig;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ThumbnailSignerTest {
+    private static final byte[] SECRET = "test-secret".getBytes(StandardCharsets.UTF_8);
+
+    @Tag("fast")
+    @Test
+    public void signAndValidate() {
+        AtomicLong now = new AtomicLong(1_000_000L);
+        ThumbnailSigner signer = new ThumbnailSigner(true, SECRET, 60, now::get);
+        long expires = signer.getExpires();
+        assertEquals(1060, expires);
+
+        String signature = signer.sign("a/b/c", "150,100", "jpg", expires);
+        String expiresString = Long.toString(expires);
+        assertTrue(signer.isValid("a/b/c", "150,100", "jpg", expiresString, signature));
+
+        // Any change to the parameters invalidates the signature
+        assertFalse(signer.isValid("a/b/d", "150,100", "jpg", expiresString, signature));
+        assertFalse(signer.isValid("a/b/c", "150,150", "jpg", expiresString, signature));
+        assertFalse(signer.isValid("a/b/c", "150,100", "png", expiresString, signature));
+        assertFalse(signer.isValid("a/b/c", "150,100", "jpg", Long.toString(expires + 1000), signature));
+        assertFalse(signer.isValid("a/b/c", "150,100", "jpg", expiresString, "bogus"));
+        assertFalse(signer.isValid("a/b/c", "150,100", "jpg", "notanumber", signature));
+        assertFalse(signer.isValid("a/b/c", "150,100", "jpg", null, signature));
+
+        // Expired
+        now.set(1_060_000L);
+        assertFalse(signer.isValid("a/b/c", "150,100", "jpg", expiresString, signature));
+    }
+
+    @Tag("fast")
+    @Test
+    public void otherSecret() {
+        ThumbnailSigner signer = new ThumbnailSigner(true, SECRET, 60, () -> 0);
+        ThumbnailSigner other = new ThumbnailSigner(true, "other".getBytes(StandardCharsets.UTF_8), 60, () -> 0);
+        String signature = signer.sign("a", "150,100", "jpg", 60);
+        assertFalse(other.isValid("a", "150,100", "jpg", "60", signature));
+    }
+
+    @Tag("fast")
+    @Test
+    public void randomSecret() {
+        try (ConfigAdjuster ignored = new ConfigAdjuster("signed_urls.yaml")) {
+            ThumbnailSigner signer = ThumbnailSigner.create(ServiceConfig.getConfig());
+            assertTrue(signer.isEnabled());
+            long expires = signer.getExpires();
+            String signature = signer.sign("a", "150,100", "jpg", expires);
+
+            // The random secret is kept when the signer is created again, e.g. on configuration reload
+            ThumbnailSigner reloaded = ThumbnailSigner.create(ServiceConfig.getConfig());
+            assertTrue(reloaded.isValid("a", "150,100", "jpg", Long.toString(expires), signature));
+        }
+    }
+
+    @Tag("fast")
+    @Test
+    public void disabled() {
+        ThumbnailSigner signer = ThumbnailSigner.create(null);
+        assertFalse(signer.isEnabled());
+        assertNull(signer.sign("a", "150,100", "jpg", signer.getExpires()));
+        assertFalse(signer.isValid("a", "150,100", "jpg", "0", "any"));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.image.webservice;
+
+import dk.kb.image.util.InFlightRequests;
+import dk.kb.image.util.RequestContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class InFlightFilterTest {
+
+    @AfterEach
+    public void cleanup() {
+        RequestContext.end();
+    }
+
+    @Tag("fast")
+    @Test
+    public void contextEndsWithContent() throws IOException {
+        int before = InFlightRequests.getTotal();
+        RequestContext requestContext = startRequest();
+        ContainerRequestContext request = request(HttpMethod.GET, requestContext);
+        ContainerResponseContext response = mock(ContainerResponseContext.class);
+        when(response.hasEntity()).thenReturn(true);
+        InFlightFilter filter = new InFlightFilter();
+
+        filter.filter(request, response);
+        assertSame(requestContext, RequestContext.current(), "The context should be kept until content is written");
+
+        WriterInterceptorContext writer = mock(WriterInterceptorContext.class);
+        when(writer.getProperty(RequestContextFilter.PROPERTY_REQUEST_CONTEXT)).thenReturn(requestContext);
+        filter.aroundWriteTo(writer);
+        assertNoContext(requestContext);
+        assertEquals(before, InFlightRequests.getTotal());
+    }
+
+    @Tag("fast")
+    @Test
+    public void contextEndsWithoutContent() {
+        RequestContext requestContext = startRequest();
+        ContainerRequestContext request = request(HttpMethod.HEAD, requestContext);
+        ContainerResponseContext response = mock(ContainerResponseContext.class);
+        when(response.hasEntity()).thenReturn(true);
+
+        new InFlightFilter().filter(request, response);
+        assertNoContext(requestContext);
+    }
+
+    private static RequestContext startRequest() {
+        return RequestContext.begin()
+                .setBudget(60000)
+                .setHttp(mock(HttpHeaders.class), mock(HttpServletResponse.class))
+                .setEndpoint(RequestContext.ENDPOINT_DEEPZOOM_TILE);
+    }
+
+    private static ContainerRequestContext request(String method, RequestContext requestContext) {
+        ContainerRequestContext request = mock(ContainerRequestContext.class);
+        when(request.getMethod()).thenReturn(method);
+        when(request.getProperty(RequestContextFilter.PROPERTY_REQUEST_CONTEXT)).thenReturn(requestContext);
+        return request;
+    }
+
+    /**
+     * Assert that the thread no longer holds the context or state from the request.
+     */
+    private static void assertNoContext(RequestContext requestContext) {
+        RequestContext current = RequestContext.current();
+        assertNotSame(requestContext, current, "The context should be removed when the request finishes");
+        assertNull(current.getServletResponse());
+        assertNull(current.getRequestHeaders());
+        assertEquals(RequestContext.NO_DEADLINE, current.getRemainingMs());
+    }
+}